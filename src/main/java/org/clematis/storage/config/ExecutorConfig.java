@@ -0,0 +1,110 @@
+package org.clematis.storage.config;
+
+import org.clematis.logging.slf4j.MDCThreadPoolExecutorFactoryBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+
+/**
+ * Executors of the storage. Their workers inherit the MDC of the submitting thread,
+ * so log lines of a task carry the transaction id of the request that started it.
+ * <p>
+ * With {@code spring.threads.virtual.enabled} the workers are virtual threads, like the request
+ * threads of Tomcat. The pools still bound the number of tasks running at once, a blocked
+ * task only stops occupying a platform thread. Downloads are the exception, they get a virtual
+ * thread each, as the request threads do.
+ */
+@Configuration
+public class ExecutorConfig {
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    /**
+     * Executor saving the files of batch uploads. The number of threads bounds the number
+     * of files written at once, further files wait in the queue.
+     */
+    @Bean
+    public MDCThreadPoolExecutorFactoryBean uploadExecutor(
+        @Value("${clematis.storage.batch.parallelism:8}") int parallelism) {
+        return executor("upload-", parallelism);
+    }
+
+    /**
+     * Executor removing files of deleted metadata, its threads remove chunks of a purge in parallel.
+     */
+    @Bean
+    public MDCThreadPoolExecutorFactoryBean purgeExecutor(
+        @Value("${clematis.storage.purge.parallelism:4}") int parallelism) {
+        return executor("purge-", parallelism);
+    }
+
+    /**
+     * Executor running purges one after another, it lists the files and hands them over to the purge executor.
+     */
+    @Bean
+    public MDCThreadPoolExecutorFactoryBean purgeJobExecutor() {
+        return executor("purge-job-", 1);
+    }
+
+    /**
+     * Executor migrating files to the sharded layout, one of its threads lists the files
+     * and the others migrate pages of them in parallel.
+     */
+    @Bean
+    public MDCThreadPoolExecutorFactoryBean reshardExecutor(
+        @Value("${clematis.storage.sharding.migration.parallelism:4}") int parallelism) {
+        return executor("reshard-", parallelism + 1);
+    }
+
+    /**
+     * Executor compacting pack segments, one segment at a time.
+     */
+    @Bean
+    public MDCThreadPoolExecutorFactoryBean packCompactionExecutor() {
+        return executor("pack-compaction-", 1);
+    }
+
+    /**
+     * Executor migrating files between the tiers of the tiered store, one file at a time.
+     */
+    @Bean
+    public MDCThreadPoolExecutorFactoryBean tierMigrationExecutor() {
+        return executor("tier-migration-", 1);
+    }
+
+    /**
+     * Executor writing downloads after the request thread is released. A slow client occupies
+     * one of its threads for the whole transfer, further downloads wait in the queue,
+     * while connector threads stay free for other requests.
+     * <p>
+     * With virtual threads the number of threads is not bounded: every download is written by
+     * a new virtual thread, which is gone when the download is done, and never waits in a queue.
+     */
+    @Bean
+    public MDCThreadPoolExecutorFactoryBean downloadExecutor(
+        @Value("${clematis.storage.download.async.threads:256}") int threads) {
+        MDCThreadPoolExecutorFactoryBean factoryBean = executor("download-", threads);
+        if (virtualThreads) {
+            // no queue and no idle threads, a thread is started for every task
+            factoryBean.setCorePoolSize(0);
+            factoryBean.setMaxPoolSize(Integer.MAX_VALUE);
+            factoryBean.setQueueCapacity(0);
+            factoryBean.setKeepAliveSeconds(0);
+        }
+        return factoryBean;
+    }
+
+    private MDCThreadPoolExecutorFactoryBean executor(String threadNamePrefix, int threads) {
+        MDCThreadPoolExecutorFactoryBean factoryBean = new MDCThreadPoolExecutorFactoryBean();
+        factoryBean.setCorePoolSize(threads);
+        factoryBean.setMaxPoolSize(threads);
+        factoryBean.setThreadNamePrefix(threadNamePrefix);
+        if (virtualThreads) {
+            // requires Java 21
+            factoryBean.setThreadFactory(new VirtualThreadTaskExecutor(threadNamePrefix).getVirtualThreadFactory());
+        }
+        return factoryBean;
+    }
+}
@@ -0,0 +1,34 @@
+package org.clematis.storage.config;
+
+import org.clematis.storage.controller.AbstractStorageController;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Resolves multipart requests before they reach their handlers, except streaming uploads.
+ * Their handler parses the raw body incrementally, so the container must not parse it first.
+ */
+@Configuration
+public class MultipartConfig {
+
+    /**
+     * Replaces the resolver of Spring Boot, the multipart settings still apply to the other requests.
+     */
+    @Bean
+    public StandardServletMultipartResolver multipartResolver(MultipartProperties multipartProperties) {
+        StandardServletMultipartResolver resolver = new StandardServletMultipartResolver() {
+            @Override
+            public boolean isMultipart(HttpServletRequest request) {
+                return super.isMultipart(request)
+                    && !request.getRequestURI().endsWith(AbstractStorageController.STREAM_UPLOAD_PATH);
+            }
+        };
+        resolver.setResolveLazily(multipartProperties.isResolveLazily());
+        resolver.setStrictServletCompliance(multipartProperties.isStrictServletCompliance());
+        return resolver;
+    }
+}
@@ -1,7 +1,18 @@
 package org.clematis.storage.config;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.clematis.storage.web.ContentBodyHttpMessageConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.support.TaskExecutorAdapter;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -13,6 +24,13 @@ public class SpringWebMvcConfig implements WebMvcConfigurer {
     public static final String ALL_REGEXP = "/**";
     public static final String ORIGINS = "*";
 
+    @Qualifier("downloadExecutor")
+    @Autowired
+    private ExecutorService downloadExecutor;
+
+    @Value("${clematis.storage.download.async.timeout:30m}")
+    private Duration asyncTimeout;
+
     @SuppressWarnings("checkstyle:MagicNumber")
     @Override
     public void addCorsMappings(CorsRegistry registry) {
@@ -29,4 +47,20 @@ public class SpringWebMvcConfig implements WebMvcConfigurer {
             .allowCredentials(false)
             .maxAge(3600);
     }
+
+    /**
+     * Streamed downloads are written by the download executor. A download running longer
+     * than the timeout, or whose client disconnects, is cancelled and its thread interrupted.
+     */
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(new TaskExecutorAdapter(downloadExecutor));
+        configurer.setDefaultTimeout(asyncTimeout.toMillis());
+    }
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        // streamed downloads must be picked before any generic object converter
+        converters.add(0, new ContentBodyHttpMessageConverter());
+    }
 }
\ No newline at end of file
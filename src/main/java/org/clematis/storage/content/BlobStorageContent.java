@@ -0,0 +1,55 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.repository.BlobContentRepository;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * {@link StorageContent} kept in a database BLOB. Each transfer reads only the
+ * requested region of the BLOB, the length is taken from the metadata, which is
+ * the compressed size for content stored compressed. The BLOB
+ * may be shared with other entities if the content is deduplicated.
+ */
+@SuppressFBWarnings("EI_EXPOSE_REP")
+public class BlobStorageContent implements StorageContent {
+
+    private final StorageEntity metadata;
+
+    private final String blobId;
+
+    private final BlobContentRepository blobContentRepository;
+
+    public BlobStorageContent(StorageEntity metadata, String blobId, BlobContentRepository blobContentRepository) {
+        this.metadata = metadata;
+        this.blobId = blobId;
+        this.blobContentRepository = blobContentRepository;
+    }
+
+    @Override
+    public StorageEntity getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public long length() {
+        Long encodedSize = metadata.getEncodedSize();
+        return encodedSize != null ? encodedSize : metadata.getSize();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return blobContentRepository.openStream(blobId, 0, length());
+    }
+
+    @Override
+    public void transferTo(long position, long count, OutputStream out) throws IOException {
+        try (InputStream in = blobContentRepository.openStream(blobId, position, count)) {
+            in.transferTo(out);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.clematis.storage.content;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.clematis.storage.model.StorageEntity;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * {@link StorageContent} over bytes which are already held in memory.
+ */
+@SuppressFBWarnings({"EI_EXPOSE_REP", "EI_EXPOSE_REP2"})
+public class ByteArrayStorageContent implements StorageContent {
+
+    private final StorageEntity metadata;
+
+    private final byte[] data;
+
+    public ByteArrayStorageContent(StorageEntity metadata, byte[] data) {
+        this.metadata = metadata;
+        this.data = data != null ? data : new byte[0];
+    }
+
+    @Override
+    public StorageEntity getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public long length() {
+        return data.length;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public void transferTo(long position, long count, OutputStream out) throws IOException {
+        out.write(data, Math.toIntExact(position), Math.toIntExact(count));
+    }
+}
@@ -0,0 +1,75 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.clematis.storage.model.StorageEntity;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * {@link StorageContent} over a byte buffer, either on the heap or a direct buffer
+ * allocated outside of it. The buffer is never modified, so the content can be
+ * transferred by many requests at once.
+ */
+@SuppressFBWarnings("EI_EXPOSE_REP")
+public class ByteBufferStorageContent implements StorageContent {
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private final StorageEntity metadata;
+
+    private final ByteBuffer data;
+
+    public ByteBufferStorageContent(StorageEntity metadata, ByteBuffer data) {
+        this.metadata = metadata;
+        this.data = data.asReadOnlyBuffer();
+    }
+
+    @Override
+    public StorageEntity getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public long length() {
+        return data.limit();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        ByteBuffer buffer = data.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & BYTE_MASK : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(len, buffer.remaining());
+                buffer.get(b, off, count);
+                return count;
+            }
+        };
+    }
+
+    @Override
+    public void transferTo(long position, long count, OutputStream out) throws IOException {
+        ByteBuffer region = data.slice(Math.toIntExact(position), Math.toIntExact(count));
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (region.hasRemaining()) {
+            channel.write(region);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.clematis.storage.content;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+/**
+ * Stream which computes the size and the SHA-256 checksum of the content passing
+ * through it, so both are known as soon as the content is written without reading
+ * it again. Reading more than the allowed number of bytes fails with
+ * {@link MaxUploadSizeExceededException}.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    private final MessageDigest digest;
+
+    private final long maxSize;
+
+    private long size;
+
+    private String checksum;
+
+    public ChecksumInputStream(InputStream in, long maxSize) {
+        super(in);
+        this.maxSize = maxSize;
+        try {
+            this.digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported", e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            digest.update((byte) b);
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            digest.update(b, off, read);
+            count(read);
+        }
+        return read;
+    }
+
+    /**
+     * Skipped bytes are read anyway, otherwise they would be missing from the checksum
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[SKIP_BUFFER_SIZE];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // marks would break the checksum
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("Mark/reset is not supported");
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     *
+     * @return size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Completes the checksum computation. Must be called after the content has been
+     * read completely, later reads are not included into the checksum.
+     *
+     * @return lowercase hex encoded SHA-256 of the content
+     */
+    public String getChecksum() {
+        if (checksum == null) {
+            checksum = HexFormat.of().formatHex(digest.digest());
+        }
+        return checksum;
+    }
+
+    private void count(int read) {
+        size += read;
+        if (size > maxSize) {
+            throw new MaxUploadSizeExceededException(maxSize);
+        }
+    }
+}
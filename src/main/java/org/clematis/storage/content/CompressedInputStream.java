@@ -0,0 +1,71 @@
+package org.clematis.storage.content;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Stream of compressed content created by {@link ContentCodec#encode(InputStream, int)}.
+ * Counts the compressed bytes read, which is the stored size once the stream is read
+ * to the end. Closing it releases the native memory of the compressor.
+ */
+public class CompressedInputStream extends FilterInputStream {
+
+    private final Deflater deflater;
+
+    private long size;
+
+    CompressedInputStream(InputStream in, Deflater deflater) {
+        super(in);
+        this.deflater = deflater;
+    }
+
+    /**
+     * Returns the number of compressed bytes read so far.
+     *
+     * @return compressed size
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            size++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            size += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        size += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            deflater.end();
+        }
+    }
+}
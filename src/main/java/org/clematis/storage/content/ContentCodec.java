@@ -0,0 +1,112 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Codecs compressing stored content, named by their HTTP content codings, so content
+ * stored with a codec can be sent as is to clients accepting the coding.
+ * <p>
+ * Content is compressed while it is read, producing the bytes to store, so it can be
+ * streamed into a file or a BLOB without buffering.
+ */
+public enum ContentCodec {
+
+    /**
+     * The gzip format, RFC 1952
+     */
+    GZIP("gzip", true) {
+        @Override
+        InputStream encoder(InputStream in, Deflater deflater) {
+            return new GzipEncoderInputStream(in, deflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    },
+
+    /**
+     * The zlib format, RFC 1950, which HTTP names deflate
+     */
+    DEFLATE("deflate", false) {
+        @Override
+        InputStream encoder(InputStream in, Deflater deflater) {
+            return new DeflaterInputStream(in, deflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String coding;
+
+    private final boolean nowrap;
+
+    ContentCodec(String coding, boolean nowrap) {
+        this.coding = coding;
+        this.nowrap = nowrap;
+    }
+
+    /**
+     * Returns the HTTP content coding of the codec.
+     *
+     * @return content coding, e.g. gzip
+     */
+    public String getCoding() {
+        return coding;
+    }
+
+    /**
+     * Opens a stream reading the content compressed. Closing it closes the source.
+     *
+     * @param in    uncompressed content
+     * @param level compression level from 1 (fastest) to 9 (smallest)
+     * @return stream of compressed bytes, which counts them
+     */
+    public CompressedInputStream encode(InputStream in, int level) {
+        Deflater deflater = new Deflater(level, nowrap);
+        return new CompressedInputStream(encoder(in, deflater), deflater);
+    }
+
+    /**
+     * Opens a stream reading compressed content uncompressed. Closing it closes the source.
+     *
+     * @param in compressed content
+     * @return stream of uncompressed bytes
+     * @throws IOException if the content doesn't start like content of the codec
+     */
+    public abstract InputStream decode(InputStream in) throws IOException;
+
+    abstract InputStream encoder(InputStream in, Deflater deflater);
+
+    /**
+     * Finds a codec by its HTTP content coding.
+     *
+     * @param coding content coding, case-insensitive
+     * @return codec or empty if there is none for the coding
+     */
+    public static Optional<ContentCodec> forCoding(String coding) {
+        if (coding == null) {
+            return Optional.empty();
+        }
+        String name = coding.trim().toLowerCase(Locale.ROOT);
+        for (ContentCodec codec : values()) {
+            if (codec.coding.equals(name)) {
+                return Optional.of(codec);
+            }
+        }
+        return Optional.empty();
+    }
+}
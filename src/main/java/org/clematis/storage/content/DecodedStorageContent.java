@@ -0,0 +1,82 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.util.StreamUtils;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * {@link StorageContent} of a file stored compressed, which reads it uncompressed.
+ * The stored bytes are available with {@link #getEncoded()}, to be sent as is
+ * to clients accepting the content coding.
+ * <p>
+ * A region is read by uncompressing the content from its start, so reading a region
+ * costs as much as reading the content up to its end.
+ */
+@SuppressFBWarnings("EI_EXPOSE_REP")
+public class DecodedStorageContent implements StorageContent {
+
+    private final StorageContent encoded;
+
+    private final ContentCodec codec;
+
+    public DecodedStorageContent(StorageContent encoded, ContentCodec codec) {
+        this.encoded = encoded;
+        this.codec = codec;
+    }
+
+    /**
+     * Returns the uncompressed view of stored content, if its metadata names a content coding.
+     *
+     * @param stored content as stored
+     * @return the stored content if it isn't compressed, or its uncompressed view
+     */
+    public static StorageContent of(StorageContent stored) {
+        String coding = stored.getMetadata().getContentEncoding();
+        if (coding == null) {
+            return stored;
+        }
+        ContentCodec codec = ContentCodec.forCoding(coding)
+            .orElseThrow(() -> new IllegalStateException("Unsupported content coding: " + coding));
+        return new DecodedStorageContent(stored, codec);
+    }
+
+    @Override
+    public StorageEntity getMetadata() {
+        return encoded.getMetadata();
+    }
+
+    @Override
+    public long length() {
+        return getMetadata().getSize();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return codec.decode(encoded.getInputStream());
+    }
+
+    @Override
+    public void transferTo(long position, long count, OutputStream out) throws IOException {
+        if (count <= 0) {
+            return;
+        }
+        try (InputStream in = getInputStream()) {
+            long copied = StreamUtils.copyRange(in, out, position, position + count - 1);
+            if (copied < count) {
+                throw new IOException("Unexpected end of content " + getMetadata().getId() + " at "
+                    + (position + copied));
+            }
+        }
+    }
+
+    @Override
+    public Optional<StorageContent> getEncoded() {
+        return Optional.of(encoded);
+    }
+}
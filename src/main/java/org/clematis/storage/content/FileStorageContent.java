@@ -0,0 +1,73 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+import org.clematis.storage.model.StorageEntity;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * {@link StorageContent} backed by a file on the local filesystem. Bytes are moved
+ * with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so the file
+ * is never copied onto the Java heap as a whole.
+ */
+@SuppressFBWarnings("EI_EXPOSE_REP")
+public class FileStorageContent implements StorageContent {
+
+    private final StorageEntity metadata;
+
+    private final Path path;
+
+    private final long length;
+
+    public FileStorageContent(StorageEntity metadata, Path path, long length) {
+        this.metadata = metadata;
+        this.path = path;
+        this.length = length;
+    }
+
+    @Override
+    public StorageEntity getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public void transferTo(long position, long count, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long offset = position;
+            long end = position + count;
+            while (offset < end) {
+                long transferred = channel.transferTo(offset, end - offset, target);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of file " + path + " at " + offset);
+                }
+                offset += transferred;
+            }
+        }
+    }
+
+    @Override
+    public Optional<Path> getFile() {
+        return Optional.of(path);
+    }
+}
@@ -0,0 +1,113 @@
+package org.clematis.storage.content;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Stream reading content in the gzip format: a fixed header, the raw deflate stream
+ * of the content and a trailer with its CRC-32 and size. The JDK only writes gzip
+ * to an output stream, this one is read like {@link DeflaterInputStream}.
+ */
+class GzipEncoderInputStream extends InputStream {
+
+    /**
+     * Magic, deflate method, no flags, no modification time, no extra flags, unknown OS
+     */
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final int TRAILER_SIZE = 8;
+
+    private final CRC32 crc = new CRC32();
+
+    private final InputStream deflated;
+
+    private long rawSize;
+
+    private int headerPosition;
+
+    private byte[] trailer;
+
+    private int trailerPosition;
+
+    /**
+     * @param in       uncompressed content
+     * @param deflater deflater producing raw deflate data, without the zlib wrapper
+     * @param bufferSize size of the input buffer
+     */
+    GzipEncoderInputStream(InputStream in, Deflater deflater, int bufferSize) {
+        this.deflated = new DeflaterInputStream(new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    crc.update(b);
+                    rawSize++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    crc.update(b, off, n);
+                    rawSize += n;
+                }
+                return n;
+            }
+        }, deflater, bufferSize);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int n;
+        do {
+            n = read(single, 0, 1);
+        } while (n == 0);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    @SuppressWarnings("checkstyle:ReturnCount")
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (headerPosition < HEADER.length) {
+            int n = Math.min(len, HEADER.length - headerPosition);
+            System.arraycopy(HEADER, headerPosition, b, off, n);
+            headerPosition += n;
+            return n;
+        }
+        if (trailer == null) {
+            int n = deflated.read(b, off, len);
+            if (n != -1) {
+                return n;
+            }
+            trailer = ByteBuffer.allocate(TRAILER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt((int) crc.getValue())
+                .putInt((int) rawSize)
+                .array();
+        }
+        if (trailerPosition == trailer.length) {
+            return -1;
+        }
+        int n = Math.min(len, trailer.length - trailerPosition);
+        System.arraycopy(trailer, trailerPosition, b, off, n);
+        trailerPosition += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflated.close();
+    }
+}
@@ -0,0 +1,81 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.repository.BlobContentRepository;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * {@link StorageContent} of a file with a copy in the hot tier, a database BLOB kept apart
+ * from the file. The copy holds the content as stored, compressed if the metadata names
+ * a content coding. If the copy is dropped by the time the content is read, e.g. because
+ * the file was demoted, the file is read from the cold tier instead.
+ */
+@SuppressFBWarnings("EI_EXPOSE_REP")
+public class HotStorageContent implements StorageContent {
+
+    private final StorageEntity metadata;
+
+    private final String blobId;
+
+    private final BlobContentRepository blobContentRepository;
+
+    private final Supplier<Optional<StorageContent>> cold;
+
+    /**
+     * @param metadata              metadata of the file
+     * @param blobId                id of the BLOB with the copy
+     * @param blobContentRepository repository of the BLOB
+     * @param cold                  opens the content as stored in the cold tier
+     */
+    public HotStorageContent(StorageEntity metadata,
+                             String blobId,
+                             BlobContentRepository blobContentRepository,
+                             Supplier<Optional<StorageContent>> cold) {
+        this.metadata = metadata;
+        this.blobId = blobId;
+        this.blobContentRepository = blobContentRepository;
+        this.cold = cold;
+    }
+
+    @Override
+    public StorageEntity getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public long length() {
+        Long encodedSize = metadata.getEncodedSize();
+        return encodedSize != null ? encodedSize : metadata.getSize();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        Optional<InputStream> hot = blobContentRepository.findStream(blobId, 0, length());
+        return hot.isPresent() ? hot.get() : cold().getInputStream();
+    }
+
+    @Override
+    public void transferTo(long position, long count, OutputStream out) throws IOException {
+        Optional<InputStream> hot = blobContentRepository.findStream(blobId, position, count);
+        if (hot.isEmpty()) {
+            cold().transferTo(position, count, out);
+            return;
+        }
+        try (InputStream in = hot.get()) {
+            in.transferTo(out);
+        }
+    }
+
+    private StorageContent cold() throws IOException {
+        StorageContent content = cold.get()
+            .orElseThrow(() -> new IOException("Content of " + metadata.getId() + " is gone"));
+        return content.getEncoded().orElse(content);
+    }
+}
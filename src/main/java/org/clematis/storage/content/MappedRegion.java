@@ -0,0 +1,158 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import lombok.extern.java.Log;
+
+/**
+ * Read-only memory mapping of a whole file, shared by all downloads of the file.
+ * <p>
+ * A download leases the mapping for the time of a transfer. Once the owner closes the mapping,
+ * e.g. when the file is deleted or the mapping is evicted, no new leases are given and the
+ * mapping is unmapped as soon as the last lease is returned, instead of whenever the garbage
+ * collector finds the buffer. Unmapping a buffer still being read would crash the JVM, so
+ * a mapping is never unmapped while leased.
+ */
+@Log
+public class MappedRegion {
+
+    private static final Optional<Consumer<ByteBuffer>> UNMAPPER = unmapper();
+
+    private final Path file;
+
+    private final String path;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Leases, plus one held by the owner until the mapping is closed
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private MappedRegion(Path file, String path, MappedByteBuffer buffer) {
+        this.file = file;
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Maps a whole file.
+     *
+     * @param file file to map
+     * @param path logical path of the stored file, to release mappings by path prefixes
+     * @return the mapping
+     * @throws IOException if the file can't be mapped
+     */
+    public static MappedRegion map(Path file, String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MappedRegion(file, path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Returns the mapped file.
+     *
+     * @return path of the file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the logical path of the stored file.
+     *
+     * @return normalized path, may be null
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the number of mapped bytes.
+     *
+     * @return length of the file when it was mapped
+     */
+    public long length() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Leases the mapping, every successful lease must be released.
+     *
+     * @return true if the mapping is leased, false if it is closed
+     */
+    public boolean acquire() {
+        int count = references.get();
+        while (count > 0 && !references.compareAndSet(count, count + 1)) {
+            count = references.get();
+        }
+        return count > 0;
+    }
+
+    /**
+     * Returns a lease, the last one unmaps a closed mapping.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            UNMAPPER.ifPresent(unmapper -> unmapper.accept(buffer));
+            log.fine("Unmapped " + file);
+        }
+    }
+
+    /**
+     * Closes the mapping for new leases, it is unmapped once the current ones are returned.
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * Returns a view of a region of the mapping, valid while the mapping is leased.
+     *
+     * @param position offset of the first byte
+     * @param count    number of bytes
+     * @return read-only buffer over the region
+     */
+    public ByteBuffer slice(long position, long count) {
+        return buffer.slice(Math.toIntExact(position), Math.toIntExact(count)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Looks up the cleaner of direct buffers, it is not exported by the JDK. Without it mappings
+     * are unmapped by the garbage collector.
+     */
+    private static Optional<Consumer<ByteBuffer>> unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return Optional.of(buffer -> {
+                try {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } catch (ReflectiveOperationException e) {
+                    log.warning("Failed to unmap a buffer, " + e.getMessage());
+                }
+            });
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warning("Mapped files are unmapped by the garbage collector, " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.clematis.storage.model.StorageEntity;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * {@link StorageContent} of a file served from its memory mapping, see {@link MappedRegion}.
+ * Full and ranged transfers copy straight from the mapped pages, without opening the file.
+ * If the mapping is closed by the time of the transfer, the file is read like without a mapping.
+ * <p>
+ * The content is not handed over to sendfile, the mapping is kept for files read often enough.
+ */
+@SuppressFBWarnings("EI_EXPOSE_REP2")
+public class MappedStorageContent implements StorageContent {
+
+    private final StorageContent file;
+
+    private final MappedRegion region;
+
+    /**
+     * @param file   content read from the file, used when the mapping is closed
+     * @param region mapping of the file
+     */
+    public MappedStorageContent(StorageContent file, MappedRegion region) {
+        this.file = file;
+        this.region = region;
+    }
+
+    @Override
+    public StorageEntity getMetadata() {
+        return file.getMetadata();
+    }
+
+    @Override
+    public long length() {
+        return file.length();
+    }
+
+    /**
+     * Opens the file, a stream may be read for longer than a mapping should be leased.
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return file.getInputStream();
+    }
+
+    @Override
+    public void transferTo(long position, long count, OutputStream out) throws IOException {
+        if (region.acquire()) {
+            try {
+                ByteBuffer bytes = region.slice(position, count);
+                WritableByteChannel channel = Channels.newChannel(out);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            } finally {
+                region.release();
+            }
+        } else {
+            file.transferTo(position, count, out);
+        }
+    }
+}
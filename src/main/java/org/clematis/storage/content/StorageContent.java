@@ -0,0 +1,80 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import org.clematis.storage.model.StorageEntity;
+
+/**
+ * Handle to the binary content of a stored file. Implementations read bytes from
+ * the backing store on demand, so the content is never materialized on the heap
+ * unless the store itself keeps it there.
+ */
+public interface StorageContent {
+
+    /**
+     * Returns metadata of the stored file the content belongs to.
+     *
+     * @return metadata without binary data
+     */
+    StorageEntity getMetadata();
+
+    /**
+     * Returns the length of the content in bytes.
+     *
+     * @return content length
+     */
+    long length();
+
+    /**
+     * Opens a new stream over the whole content. The caller is responsible for closing it.
+     *
+     * @return input stream positioned at the first byte
+     * @throws IOException if the backing store can't be read
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Writes the whole content to the given stream. The stream is not closed.
+     *
+     * @param out target stream
+     * @throws IOException if reading or writing fails
+     */
+    default void transferTo(OutputStream out) throws IOException {
+        transferTo(0, length(), out);
+    }
+
+    /**
+     * Writes a region of the content to the given stream, reading only the requested
+     * bytes from the backing store. The stream is not closed.
+     *
+     * @param position offset of the first byte to write
+     * @param count    number of bytes to write
+     * @param out      target stream
+     * @throws IOException if reading or writing fails
+     */
+    void transferTo(long position, long count, OutputStream out) throws IOException;
+
+    /**
+     * Returns the local file backing this content, if any. Callers may use it
+     * to hand the transfer over to the container (e.g. sendfile).
+     *
+     * @return path of the backing file or empty if the content is not a plain file
+     */
+    default Optional<Path> getFile() {
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the content as stored, compressed with the content coding named by the metadata,
+     * if the file is stored compressed. It may be sent as is to clients accepting the coding.
+     *
+     * @return stored compressed content or empty if the content is stored as is
+     */
+    default Optional<StorageContent> getEncoded() {
+        return Optional.empty();
+    }
+}
@@ -1,5 +1,11 @@
 package org.clematis.storage.controller;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -7,10 +13,29 @@ import java.util.Optional;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 
+import org.apache.tomcat.util.http.fileupload.FileItemIterator;
+import org.apache.tomcat.util.http.fileupload.FileItemStream;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletFileUpload;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletRequestContext;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.PathKey;
 import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.ArchiveService;
+import org.clematis.storage.service.BatchUploadService;
+import org.clematis.storage.service.ChunkedUploadService;
+import org.clematis.storage.service.DeleteResult;
+import org.clematis.storage.service.FilePurger;
+import org.clematis.storage.service.ImportResult;
+import org.clematis.storage.service.PurgeProgress;
 import org.clematis.storage.service.StorageService;
+import org.clematis.storage.service.UploadResult;
+import org.clematis.storage.service.UploadSession;
+import org.clematis.storage.web.ContentBody;
+import org.clematis.storage.web.DownloadResponseFactory;
 import org.clematis.storage.web.ErrorResponse;
 import org.clematis.storage.web.RequestResponse;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -18,10 +43,19 @@ import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -31,6 +65,8 @@ import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.java.Log;
 /**
  * Abstract base controller that provides REST endpoints for uploading,
@@ -40,12 +76,76 @@ import lombok.extern.java.Log;
  * Subclasses must supply:
  * - a concrete {@link StorageService} implementation via {@link #getStorageService()}
  * - the base download path used for generating public download URLs via {@link #getDownloadPath()}
+ * - the collaborators shared by all stores, like the download response factory, via the constructor
  */
 @Log
 public abstract class AbstractStorageController {
 
+    /**
+     * Path of streaming uploads below the path of a store, their requests are not resolved as multipart
+     */
+    public static final String STREAM_UPLOAD_PATH = "/upload/stream";
+
     private static final String FILE_NOT_FOUND_MSG = "File not found, id=";
 
+    private static final String PATH_PARAM = "path";
+
+    private static final String PATH_SEPARATOR = "/";
+
+    /**
+     * Limit for values of form fields read from a streamed multipart body
+     */
+    private static final int MAX_FORM_FIELD_SIZE = 4096;
+
+    private static final String LIMIT_PARAM = "limit";
+
+    private static final String NEXT_PARAM = "next";
+
+    private static final String ARCHIVE_MEDIA_TYPE = "application/zip";
+
+    /**
+     * Name of an archive of all files
+     */
+    private static final String ARCHIVE_NAME = "files";
+
+    private static final String SESSION_NOT_FOUND_MSG = "Upload session not found, id=";
+
+    /**
+     * Page size used when only a page token is given
+     */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Upper bound of the page size, so a single page stays cheap
+     */
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private final DownloadResponseFactory downloadResponseFactory;
+
+    private final ObjectMapper objectMapper;
+
+    private final BatchUploadService batchUploadService;
+
+    private final FilePurger filePurger;
+
+    private final ChunkedUploadService chunkedUploadService;
+
+    private final ArchiveService archiveService;
+
+    protected AbstractStorageController(DownloadResponseFactory downloadResponseFactory,
+                                        ObjectMapper objectMapper,
+                                        BatchUploadService batchUploadService,
+                                        FilePurger filePurger,
+                                        ChunkedUploadService chunkedUploadService,
+                                        ArchiveService archiveService) {
+        this.downloadResponseFactory = downloadResponseFactory;
+        this.objectMapper = objectMapper;
+        this.batchUploadService = batchUploadService;
+        this.filePurger = filePurger;
+        this.chunkedUploadService = chunkedUploadService;
+        this.archiveService = archiveService;
+    }
+
     /**
      * Builds a standard API response object describing a stored file.
      * Includes:
@@ -55,18 +155,35 @@ public abstract class AbstractStorageController {
      * - file size
      */
     private RequestResponse createResponse(StorageEntity attachment, String contentType, long size) {
-        String downloadUrl = ServletUriComponentsBuilder.fromCurrentContextPath()
-            .path(getDownloadPath())
-            .path(attachment.getId())
-            .toUriString();
+        return createResponse(downloadBaseUrl(), attachment, contentType, size);
+    }
+
+    /**
+     * Builds a response object with a download URL relative to the given base, so listings
+     * compute the base once per request and not for every file.
+     */
+    private static RequestResponse createResponse(String downloadBaseUrl,
+                                                  StorageEntity attachment,
+                                                  String contentType,
+                                                  long size) {
         return new RequestResponse(
             attachment.getFileName(),
-            downloadUrl,
+            downloadBaseUrl + attachment.getId(),
             contentType,
             size
         );
     }
 
+    /**
+     * Returns the public URL prefix of downloads, file ids are appended to it.
+     */
+    private String downloadBaseUrl() {
+        String downloadBaseUrl = ServletUriComponentsBuilder.fromCurrentContextPath()
+            .path(getDownloadPath())
+            .toUriString();
+        return downloadBaseUrl.endsWith(PATH_SEPARATOR) ? downloadBaseUrl : downloadBaseUrl + PATH_SEPARATOR;
+    }
+
     // ---------------------------------------------------------------------
     // Upload single file
     // ---------------------------------------------------------------------
@@ -99,10 +216,13 @@ public abstract class AbstractStorageController {
     // Upload batch
     // ---------------------------------------------------------------------
     @Operation(summary = "Upload multiple files",
-        description = "Uploads multiple files and optionally stores them under the specified path.")
+        description = "Uploads multiple files in parallel and optionally stores them under the specified path. "
+            + "Every file is saved on its own, the response has a result per file.")
     @ApiResponses({
         @ApiResponse(responseCode = "200", description = "Files successfully uploaded",
             content = @Content(array = @ArraySchema(schema = @Schema(implementation = RequestResponse.class)))),
+        @ApiResponse(responseCode = "207", description = "Some files failed, they are returned with an error",
+            content = @Content(array = @ArraySchema(schema = @Schema(implementation = RequestResponse.class)))),
         @ApiResponse(responseCode = "500", description = "Internal server error",
             content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
     })
@@ -113,11 +233,70 @@ public abstract class AbstractStorageController {
         @Parameter(description = "Optional storage path", in = ParameterIn.QUERY)
         @RequestParam(name = "path", required = false) String path) {
         try {
+            List<UploadResult> results = batchUploadService.saveAll(getStorageService(), files, path);
+            String downloadBaseUrl = downloadBaseUrl();
+            List<RequestResponse> responseList = new ArrayList<>(files.length);
+            for (int i = 0; i < files.length; i++) {
+                UploadResult result = results.get(i);
+                responseList.add(result.isSaved()
+                    ? createResponse(downloadBaseUrl, result.entity(), files[i].getContentType(), files[i].getSize())
+                    : new RequestResponse().setFileName(result.fileName()).setError(result.error().getMessage()));
+            }
+            boolean allSaved = results.stream().allMatch(UploadResult::isSaved);
+            return ResponseEntity.status(allSaved ? HttpStatus.OK : HttpStatus.MULTI_STATUS).body(responseList);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, e.getMessage(), e);
+            return ResponseEntity
+                .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR));
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Streaming upload
+    // ---------------------------------------------------------------------
+    @Operation(summary = "Upload files with streaming",
+        description = "Parses the multipart body incrementally and writes every file straight to the storage, "
+            + "without spooling it to a temporary file first. The path is taken from the query string "
+            + "or from a 'path' form field sent before the files. Every file is saved on its own, "
+            + "the response has a result per file.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Files successfully uploaded",
+            content = @Content(array = @ArraySchema(schema = @Schema(implementation = RequestResponse.class)))),
+        @ApiResponse(responseCode = "207", description = "Some files failed, they are returned with an error",
+            content = @Content(array = @ArraySchema(schema = @Schema(implementation = RequestResponse.class)))),
+        @ApiResponse(responseCode = "400", description = "The path form field is too long",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class))),
+        @ApiResponse(responseCode = "500", description = "Internal server error",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @SuppressWarnings("checkstyle:ReturnCount")
+    @PostMapping(value = STREAM_UPLOAD_PATH, consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<?> uploadStream(HttpServletRequest request) {
+        try {
+            // the request is not resolved as multipart, reading its parameters would parse the whole body
+            String path = queryParameter(request, PATH_PARAM);
             List<RequestResponse> responseList = new ArrayList<>();
-            for (MultipartFile file : files) {
-                responseList.add(saveAttachment(file, path));
+            boolean allSaved = true;
+            FileItemIterator items = new ServletFileUpload().getItemIterator(new ServletRequestContext(request));
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                try (InputStream in = item.openStream()) {
+                    if (!item.isFormField()) {
+                        RequestResponse response = saveStreamed(item, in, path);
+                        allSaved &= response.getError() == null;
+                        responseList.add(response);
+                    } else if (PATH_PARAM.equals(item.getFieldName())) {
+                        byte[] value = in.readNBytes(MAX_FORM_FIELD_SIZE + 1);
+                        if (value.length > MAX_FORM_FIELD_SIZE) {
+                            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorResponse(
+                                "Path is longer than " + MAX_FORM_FIELD_SIZE + " bytes", HttpStatus.BAD_REQUEST));
+                        }
+                        path = new String(value, StandardCharsets.UTF_8);
+                    }
+                }
             }
-            return ResponseEntity.ok(responseList);
+            return ResponseEntity.status(allSaved ? HttpStatus.OK : HttpStatus.MULTI_STATUS).body(responseList);
         } catch (Exception e) {
             log.log(Level.SEVERE, e.getMessage(), e);
             return ResponseEntity
@@ -126,18 +305,177 @@ public abstract class AbstractStorageController {
         }
     }
 
+    // ---------------------------------------------------------------------
+    // Resumable chunked upload
+    // ---------------------------------------------------------------------
+    @Operation(summary = "Start a chunked upload",
+        description = "Starts a resumable upload of a file of the given size. Chunks of the file are then sent "
+            + "with PUT at their offsets, in any order and in parallel, and the upload is committed once "
+            + "all bytes are received. The file appears in the storage only on commit.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "201", description = "Upload session created",
+            content = @Content(schema = @Schema(implementation = UploadSession.class))),
+        @ApiResponse(responseCode = "400", description = "Invalid file name or size",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @PostMapping("/upload/sessions")
+    public ResponseEntity<?> createUploadSession(
+        @Parameter(description = "Name of the file", required = true, in = ParameterIn.QUERY)
+        @RequestParam("fileName") String fileName,
+        @Parameter(description = "Size of the file in bytes", required = true, in = ParameterIn.QUERY)
+        @RequestParam("size") long size,
+        @Parameter(description = "MIME type of the file", in = ParameterIn.QUERY)
+        @RequestParam(name = "contentType", required = false) String contentType,
+        @Parameter(description = "Optional storage path", in = ParameterIn.QUERY)
+        @RequestParam(name = PATH_PARAM, required = false) String path) throws IOException {
+        try {
+            UploadSession session = chunkedUploadService.create(getDownloadPath(), fileName, contentType, path, size);
+            URI location = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path(getDownloadPath())
+                .path("/upload/sessions/{id}")
+                .buildAndExpand(session.getId())
+                .toUri();
+            return ResponseEntity.created(location).body(session);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.BAD_REQUEST));
+        }
+    }
+
+    @Operation(summary = "Upload a chunk",
+        description = "Writes the request body into the file at the given offset. A chunk interrupted by "
+            + "a network failure may be resumed after the bytes received, see the received ranges.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Chunk written",
+            content = @Content(schema = @Schema(implementation = UploadSession.class))),
+        @ApiResponse(responseCode = "400", description = "Chunk doesn't fit in the file",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class))),
+        @ApiResponse(responseCode = "404", description = "Upload session not found",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class))),
+        @ApiResponse(responseCode = "409", description = "Upload is being committed",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @PutMapping("/upload/sessions/{id}")
+    public ResponseEntity<?> uploadChunk(
+        @Parameter(description = "ID of the upload session", required = true, in = ParameterIn.PATH)
+        @PathVariable("id") String id,
+        @Parameter(description = "Offset of the chunk in the file", required = true, in = ParameterIn.QUERY)
+        @RequestParam("offset") long offset,
+        HttpServletRequest request) throws IOException {
+        Optional<UploadSession> session = chunkedUploadService.get(getDownloadPath(), id);
+        if (session.isEmpty()) {
+            return sessionNotFound(id);
+        }
+        try (InputStream chunk = request.getInputStream()) {
+            chunkedUploadService.write(session.get(), offset, chunk);
+            return ResponseEntity.ok(session.get());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.BAD_REQUEST));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.CONFLICT));
+        }
+    }
+
+    @Operation(summary = "Get a chunked upload",
+        description = "Returns the byte ranges received and missing, to resume an interrupted upload.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Upload session",
+            content = @Content(schema = @Schema(implementation = UploadSession.class))),
+        @ApiResponse(responseCode = "404", description = "Upload session not found",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @GetMapping("/upload/sessions/{id}")
+    public ResponseEntity<?> getUploadSession(
+        @Parameter(description = "ID of the upload session", required = true, in = ParameterIn.PATH)
+        @PathVariable("id") String id) {
+        Optional<UploadSession> session = chunkedUploadService.get(getDownloadPath(), id);
+        if (session.isEmpty()) {
+            return sessionNotFound(id);
+        }
+        return ResponseEntity.ok(session.get());
+    }
+
+    @Operation(summary = "Commit a chunked upload",
+        description = "Stores the uploaded file and ends the upload session. The file is moved into the "
+            + "storage, not copied, where the storage keeps files on disk.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "File stored",
+            content = @Content(schema = @Schema(implementation = RequestResponse.class))),
+        @ApiResponse(responseCode = "404", description = "Upload session not found",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class))),
+        @ApiResponse(responseCode = "409", description = "Bytes are missing or chunks are being written",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class))),
+        @ApiResponse(responseCode = "500", description = "Internal server error",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @PostMapping("/upload/sessions/{id}/commit")
+    public ResponseEntity<?> commitUploadSession(
+        @Parameter(description = "ID of the upload session", required = true, in = ParameterIn.PATH)
+        @PathVariable("id") String id) {
+        Optional<UploadSession> session = chunkedUploadService.get(getDownloadPath(), id);
+        if (session.isEmpty()) {
+            return sessionNotFound(id);
+        }
+        try {
+            StorageEntity attachment = chunkedUploadService.commit(session.get(), getStorageService());
+            return ResponseEntity.ok(createResponse(attachment, attachment.getContentType(), attachment.getSize()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.CONFLICT));
+        } catch (Exception e) {
+            log.log(Level.SEVERE, e.getMessage(), e);
+            return ResponseEntity
+                .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR));
+        }
+    }
+
+    @Operation(summary = "Abort a chunked upload", description = "Ends the upload session and drops its file.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "204", description = "Upload session aborted"),
+        @ApiResponse(responseCode = "404", description = "Upload session not found",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @DeleteMapping("/upload/sessions/{id}")
+    public ResponseEntity<?> abortUploadSession(
+        @Parameter(description = "ID of the upload session", required = true, in = ParameterIn.PATH)
+        @PathVariable("id") String id) {
+        Optional<UploadSession> session = chunkedUploadService.get(getDownloadPath(), id);
+        if (session.isEmpty()) {
+            return sessionNotFound(id);
+        }
+        chunkedUploadService.abort(session.get());
+        return ResponseEntity.noContent().build();
+    }
+
     // ---------------------------------------------------------------------
     // List all files
     // ---------------------------------------------------------------------
-    @Operation(summary = "List all stored files", description = "Returns metadata for all files currently stored.")
-    @ApiResponse(responseCode = "200", description = "List of stored files",
-        content = @Content(array = @ArraySchema(schema = @Schema(implementation = RequestResponse.class))))
+    @Operation(summary = "List all stored files",
+        description = "Returns metadata for all files currently stored. "
+            + "With limit or next set, returns one page ordered by path and a Link header to the next page.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "List of stored files",
+            content = @Content(array = @ArraySchema(schema = @Schema(implementation = RequestResponse.class)))),
+        @ApiResponse(responseCode = "400", description = "Invalid page token",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
     @GetMapping("/get")
-    public ResponseEntity<List<RequestResponse>> getAll() {
+    public ResponseEntity<?> getAll(
+        @Parameter(description = "Maximum number of files to return, enables paging", in = ParameterIn.QUERY)
+        @RequestParam(name = "limit", required = false) Integer limit,
+        @Parameter(description = "Opaque token of the next page, taken from the Link header", in = ParameterIn.QUERY)
+        @RequestParam(name = "next", required = false) String next) {
+        if (limit != null || next != null) {
+            return page(null, limit, next);
+        }
         List<StorageEntity> storageEntities = getStorageService().getAll();
 
+        String downloadBaseUrl = downloadBaseUrl();
         List<RequestResponse> responses = storageEntities.stream()
-            .map(storageEntity -> createResponse(storageEntity,
+            .map(storageEntity -> createResponse(downloadBaseUrl, storageEntity,
                     storageEntity.getContentType(),
                     storageEntity.getSize()
                 )
@@ -146,24 +484,123 @@ public abstract class AbstractStorageController {
         return ResponseEntity.ok().body(responses);
     }
 
+    // ---------------------------------------------------------------------
+    // Streaming listing
+    // ---------------------------------------------------------------------
+    @Operation(summary = "Stream stored files as NDJSON",
+        description = "Writes metadata of all files whose path starts with the optional prefix as newline "
+            + "delimited JSON, one object per line, ordered by path. Files are read from a database cursor "
+            + "and written as they come, so memory use doesn't depend on the number of files.")
+    @ApiResponse(responseCode = "200", description = "Stream of stored files",
+        content = @Content(mediaType = MediaType.APPLICATION_NDJSON_VALUE,
+            schema = @Schema(implementation = RequestResponse.class)))
+    @GetMapping(value = "/list", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<ContentBody> list(
+        @Parameter(description = "Path prefix to search", in = ParameterIn.QUERY)
+        @RequestParam(name = "path", required = false) String path) {
+        // the request is not available while the body is written
+        String downloadBaseUrl = downloadBaseUrl();
+        return ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_NDJSON)
+            .body((ContentBody) out -> writeNdjson(path, downloadBaseUrl, out));
+    }
+
+    // ---------------------------------------------------------------------
+    // Archive of a path prefix
+    // ---------------------------------------------------------------------
+    @Operation(summary = "Download files as a ZIP archive",
+        description = "Streams a ZIP archive of all files whose path starts with the optional prefix, the same "
+            + "files as /find returns. The archive is written while it is sent, without temporary files. "
+            + "Files of types compressed by their format are stored without compression.")
+    @ApiResponse(responseCode = "200", description = "ZIP archive of the files",
+        content = @Content(mediaType = ARCHIVE_MEDIA_TYPE))
+    @GetMapping(value = "/archive", produces = ARCHIVE_MEDIA_TYPE)
+    public ResponseEntity<StreamingResponseBody> archive(
+        @Parameter(description = "Path prefix of the files", in = ParameterIn.QUERY)
+        @RequestParam(name = PATH_PARAM, required = false) String path,
+        @Parameter(description = "Store all files without compression", in = ParameterIn.QUERY)
+        @RequestParam(name = "stored", defaultValue = "false") boolean stored) {
+        StorageService storageService = getStorageService();
+        String prefix = path != null ? StorageEntity.normalizePath(path.strip()) : "";
+        String name = prefix.replaceAll("/+$", "");
+        name = name.isEmpty() ? ARCHIVE_NAME : name.substring(name.lastIndexOf('/') + 1);
+        return ResponseEntity.ok()
+            .contentType(MediaType.parseMediaType(ARCHIVE_MEDIA_TYPE))
+            .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename(name + ".zip", StandardCharsets.UTF_8)
+                .build()
+                .toString())
+            .body(out -> archiveService.writeZip(storageService, prefix, stored, out));
+    }
+
+    // ---------------------------------------------------------------------
+    // Import of an archive
+    // ---------------------------------------------------------------------
+    @Operation(summary = "Import files from a ZIP or TAR archive",
+        description = "Reads a ZIP, TAR or gzipped TAR archive sent as the request body and stores every file "
+            + "entry under the optional path, named by its relative path in the archive. Entries are stored "
+            + "while the archive is received, without buffering or extracting it. The result reports the "
+            + "stored files, the throughput and the entries which failed.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "All files of the archive stored",
+            content = @Content(schema = @Schema(implementation = ImportResult.class))),
+        @ApiResponse(responseCode = "207", description = "Some entries failed, they are listed in the result",
+            content = @Content(schema = @Schema(implementation = ImportResult.class))),
+        @ApiResponse(responseCode = "400", description = "Not a ZIP or TAR archive, or an invalid path",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class))),
+        @ApiResponse(responseCode = "500", description = "Internal server error",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @PostMapping("/import")
+    public ResponseEntity<?> importArchive(
+        @Parameter(description = "Optional storage path of the files", in = ParameterIn.QUERY)
+        @RequestParam(name = PATH_PARAM, required = false) String path,
+        HttpServletRequest request) {
+        try {
+            ImportResult result = archiveService.importArchive(getStorageService(), request.getInputStream(), path);
+            return ResponseEntity.status(result.failed() == 0 ? HttpStatus.OK : HttpStatus.MULTI_STATUS).body(result);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.BAD_REQUEST));
+        } catch (Exception e) {
+            log.log(Level.SEVERE, e.getMessage(), e);
+            return ResponseEntity
+                .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR));
+        }
+    }
+
     // ---------------------------------------------------------------------
     // Find by path prefix
     // ---------------------------------------------------------------------
     @Operation(summary = "Find files by path prefix",
         description = "Returns stored file metadata whose logical path starts with the provided prefix. "
-            + "If path is blank or missing, returns all files.")
-    @ApiResponse(responseCode = "200", description = "List of matched files",
-        content = @Content(array = @ArraySchema(schema = @Schema(implementation = RequestResponse.class))))
+            + "If path is blank or missing, returns all files. "
+            + "With limit or next set, returns one page ordered by path and a Link header to the next page.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "List of matched files",
+            content = @Content(array = @ArraySchema(schema = @Schema(implementation = RequestResponse.class)))),
+        @ApiResponse(responseCode = "400", description = "Invalid page token",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
     @GetMapping("/find")
-    public ResponseEntity<List<RequestResponse>> findByPath(
+    public ResponseEntity<?> findByPath(
         @Parameter(description = "Path prefix to search", in = ParameterIn.QUERY)
-        @RequestParam(name = "path", required = false) String path
+        @RequestParam(name = "path", required = false) String path,
+        @Parameter(description = "Maximum number of files to return, enables paging", in = ParameterIn.QUERY)
+        @RequestParam(name = "limit", required = false) Integer limit,
+        @Parameter(description = "Opaque token of the next page, taken from the Link header", in = ParameterIn.QUERY)
+        @RequestParam(name = "next", required = false) String next
     ) {
+        if (limit != null || next != null) {
+            return page(path, limit, next);
+        }
 
         List<StorageEntity> found = getStorageService().findByPath(path);
 
+        String downloadBaseUrl = downloadBaseUrl();
         List<RequestResponse> responses = found.stream()
-            .map(se -> createResponse(se, se.getContentType(), se.getSize()))
+            .map(se -> createResponse(downloadBaseUrl, se, se.getContentType(), se.getSize()))
             .collect(Collectors.toList());
 
         return ResponseEntity.ok(responses);
@@ -172,9 +609,11 @@ public abstract class AbstractStorageController {
     // ---------------------------------------------------------------------
     // Download by id
     // ---------------------------------------------------------------------
-    @Operation(summary = "Download file by ID", description = "Downloads file binary content.")
+    @Operation(summary = "Download file by ID", description = "Downloads file binary content. "
+        + "Supports conditional requests with the ETag and Last-Modified validators.")
     @ApiResponses({
         @ApiResponse(responseCode = "200", description = "File found and returned"),
+        @ApiResponse(responseCode = "304", description = "File not modified"),
         @ApiResponse(responseCode = "404", description = "File not found",
                 content = @Content(schema = @Schema(implementation = ErrorResponse.class))
             ),
@@ -185,27 +624,69 @@ public abstract class AbstractStorageController {
     @SuppressWarnings("checkstyle:ReturnCount")
     @GetMapping(value = "/{id}")
     @ResponseBody
-    public ResponseEntity<?> getFile(
+    public ResponseEntity<StreamingResponseBody> getFile(
         @Parameter(description = "ID of the file to download", required = true, in = ParameterIn.PATH)
-        @PathVariable("id") String id) {
+        @PathVariable("id") String id,
+        HttpServletRequest request,
+        HttpServletResponse response) {
         try {
-            Optional<StorageEntity> storageEntity = getStorageService().getStorageEntity(id);
-            if (storageEntity.isPresent()) {
-                StorageEntity se = storageEntity.get();
-                return ResponseEntity.ok()
-                    .contentType(MediaType.valueOf(se.getContentType()))
-                    .body(se.getData());
+            // validators are checked against the metadata, the content is opened only to be sent
+            Optional<StorageEntity> metadata = getStorageService().getStorageEntity(id);
+            Optional<ResponseEntity<StreamingResponseBody>> notModified = metadata
+                .flatMap(entity -> downloadResponseFactory.checkNotModified(entity, request, response));
+            if (notModified.isPresent()) {
+                return notModified.get();
+            }
+            Optional<StorageContent> content = metadata.isPresent()
+                ? getStorageService().getContent(id)
+                : Optional.empty();
+            if (content.isPresent()) {
+                return downloadResponseFactory.create(content.get(), request);
             } else {
-                return ResponseEntity
-                    .status(HttpStatus.NOT_FOUND)
-                    .body(new ErrorResponse(FILE_NOT_FOUND_MSG + id, HttpStatus.NOT_FOUND));
+                return downloadError(HttpStatus.NOT_FOUND, FILE_NOT_FOUND_MSG + id);
             }
         } catch (Exception e) {
             log.log(Level.SEVERE, e.getMessage(), e);
-            return ResponseEntity
-                .status(HttpStatus.INTERNAL_SERVER_ERROR)
-                .body(new ErrorResponse(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR));
+            return downloadError(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns an error of a download. Downloads are written asynchronously, so is the error.
+     */
+    private ResponseEntity<StreamingResponseBody> downloadError(HttpStatus status, String message) {
+        ErrorResponse error = new ErrorResponse(message, status);
+        return ResponseEntity.status(status)
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(out -> objectMapper.writer()
+                .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .writeValue(out, error));
+    }
+
+    // ---------------------------------------------------------------------
+    // Headers of a download
+    // ---------------------------------------------------------------------
+    @Operation(summary = "Download headers by ID",
+        description = "Returns the headers of a download, served from metadata without reading the content."
+    )
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "File found"),
+        @ApiResponse(responseCode = "304", description = "File not modified"),
+        @ApiResponse(responseCode = "404", description = "File not found")
+    })
+    @RequestMapping(value = "/{id}", method = RequestMethod.HEAD)
+    public ResponseEntity<?> headFile(
+        @Parameter(description = "ID of the file", required = true, in = ParameterIn.PATH)
+        @PathVariable("id") String id,
+        HttpServletRequest request,
+        HttpServletResponse response) {
+        Optional<StorageEntity> metadata = getStorageService().getStorageEntity(id);
+        if (metadata.isEmpty()) {
+            return ResponseEntity.notFound().build();
         }
+        Optional<ResponseEntity<Void>> notModified =
+            downloadResponseFactory.checkNotModified(metadata.get(), request, response);
+        return notModified.orElseGet(() -> downloadResponseFactory.head(metadata.get(), request));
     }
 
     // ---------------------------------------------------------------------
@@ -265,27 +746,200 @@ public abstract class AbstractStorageController {
         }
     }
 
+    // ---------------------------------------------------------------------
+    // Delete in bulk
+    // ---------------------------------------------------------------------
+    @Operation(summary = "Delete files by path",
+        description = "Deletes all files whose path starts with the given prefix. Metadata is deleted at once, "
+            + "content on disk may be removed in the background, follow the Location header for progress.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Files and their content deleted",
+            content = @Content(schema = @Schema(implementation = DeleteResult.class))),
+        @ApiResponse(responseCode = "202", description = "Files deleted, content is being removed",
+            content = @Content(schema = @Schema(implementation = DeleteResult.class))),
+        @ApiResponse(responseCode = "400", description = "Invalid path",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @DeleteMapping("/delete")
+    public ResponseEntity<?> deleteByPath(
+        @Parameter(description = "Path prefix of the files to delete", required = true, in = ParameterIn.QUERY)
+        @RequestParam(PATH_PARAM) String path) {
+        if (path.isBlank()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(new ErrorResponse("Path is blank, use /delete/all to delete all files",
+                    HttpStatus.BAD_REQUEST));
+        }
+        try {
+            return deleted(getStorageService().deleteByPath(path));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.BAD_REQUEST));
+        }
+    }
+
+    @Operation(summary = "Delete files by IDs",
+        description = "Deletes the files with the given IDs, unknown IDs are ignored. "
+            + "Content on disk may be removed in the background, follow the Location header for progress.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Files and their content deleted",
+            content = @Content(schema = @Schema(implementation = DeleteResult.class))),
+        @ApiResponse(responseCode = "202", description = "Files deleted, content is being removed",
+            content = @Content(schema = @Schema(implementation = DeleteResult.class)))
+    })
+    @PostMapping(value = "/delete/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> deleteFiles(
+        @Parameter(description = "IDs of the files to delete") @RequestBody List<String> ids) {
+        return deleted(getStorageService().deleteFiles(ids.stream().distinct().toList()));
+    }
+
     // ---------------------------------------------------------------------
     // Delete all files
     // ---------------------------------------------------------------------
-    @Operation(summary = "Delete all files", description = "Deletes all files and metadata from the storage.")
+    @Operation(summary = "Delete all files", description = "Deletes all files and metadata from the storage. "
+        + "Content on disk may be removed in the background, the Location header points to its progress.")
     @ApiResponse(responseCode = "204", description = "All files deleted")
     @DeleteMapping("/delete/all")
     public ResponseEntity<?> deleteAllFiles() {
-        List<StorageEntity> all = getStorageService().getAll();
-        for (StorageEntity se : all) {
-            try {
-                getStorageService().deleteFile(se.getId());
-            } catch (Exception e) {
-                log.warning("Failed to delete file id=" + se.getId());
-            }
+        DeleteResult result = getStorageService().deleteByPath(null);
+        ResponseEntity.HeadersBuilder<?> builder = ResponseEntity.noContent();
+        if (result.purge() != null) {
+            builder.location(purgeLocation(result.purge()));
         }
-        return ResponseEntity.noContent().build();
+        return builder.build();
+    }
+
+    @Operation(summary = "Get progress of a purge",
+        description = "Returns progress of the background removal of deleted files.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Progress of the purge",
+            content = @Content(schema = @Schema(implementation = PurgeProgress.class))),
+        @ApiResponse(responseCode = "404", description = "Purge not found",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @GetMapping("/purge/{id}")
+    public ResponseEntity<?> getPurge(
+        @Parameter(description = "ID of the purge", required = true, in = ParameterIn.PATH)
+        @PathVariable("id") String id) {
+        Optional<PurgeProgress> progress = filePurger.getProgress(id);
+        if (progress.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .body(new ErrorResponse("Purge not found, id=" + id, HttpStatus.NOT_FOUND));
+        }
+        return ResponseEntity.ok(progress.get());
+    }
+
+    /**
+     * Returns 202 with the location of the purge progress if content is removed in the background,
+     * or 200 if everything is deleted already.
+     */
+    private ResponseEntity<DeleteResult> deleted(DeleteResult result) {
+        if (result.purge() == null) {
+            return ResponseEntity.ok(result);
+        }
+        return ResponseEntity.accepted().location(purgeLocation(result.purge())).body(result);
+    }
+
+    private static ResponseEntity<?> sessionNotFound(String id) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND)
+            .body(new ErrorResponse(SESSION_NOT_FOUND_MSG + id, HttpStatus.NOT_FOUND));
+    }
+
+    private URI purgeLocation(PurgeProgress purge) {
+        return ServletUriComponentsBuilder.fromCurrentContextPath()
+            .path(getDownloadPath())
+            .path("/purge/{id}")
+            .buildAndExpand(purge.getId())
+            .toUri();
     }
 
     // ---------------------------------------------------------------------
     // Internal helper
     // ---------------------------------------------------------------------
+    /**
+     * Lists one page of stored files by path prefix, ordered by path. If there are more files,
+     * a {@code Link} header with {@code rel="next"} points to the next page. Pages are found
+     * by the key of the last listed file, never by an offset.
+     */
+    @SuppressWarnings("checkstyle:ReturnCount")
+    private ResponseEntity<?> page(String path, Integer limit, String next) {
+        PathKey after = null;
+        if (next != null) {
+            try {
+                after = PathKey.decode(next);
+            } catch (IllegalArgumentException e) {
+                log.warning("Invalid page token: " + next);
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse("Invalid page token: " + next, HttpStatus.BAD_REQUEST));
+            }
+        }
+        int pageSize = limit != null ? Math.max(1, Math.min(limit, MAX_PAGE_SIZE)) : DEFAULT_PAGE_SIZE;
+
+        // one more file tells if there is a next page
+        List<StorageEntity> found = getStorageService().findByPath(path, after, pageSize + 1);
+        List<StorageEntity> page = found.size() > pageSize ? found.subList(0, pageSize) : found;
+
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+        if (found.size() > pageSize) {
+            String nextUrl = ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQueryParam(NEXT_PARAM, PathKey.of(page.get(page.size() - 1)).encode())
+                .replaceQueryParam(LIMIT_PARAM, pageSize)
+                .toUriString();
+            builder.header(HttpHeaders.LINK, "<" + nextUrl + ">; rel=\"next\"");
+        }
+        String downloadBaseUrl = downloadBaseUrl();
+        return builder.body(page.stream()
+            .map(entity -> createResponse(downloadBaseUrl, entity, entity.getContentType(), entity.getSize()))
+            .toList());
+    }
+
+    /**
+     * Writes stored files as NDJSON with a streaming generator, no response objects are created.
+     */
+    private void writeNdjson(String path, String downloadBaseUrl, OutputStream out) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // lines are terminated explicitly instead
+            generator.setRootValueSeparator(null);
+            getStorageService().forEachByPath(path, entity -> {
+                try {
+                    generator.writeStartObject();
+                    generator.writeStringField("fileName", entity.getFileName());
+                    generator.writeStringField("downloadUrl", downloadBaseUrl + entity.getId());
+                    generator.writeStringField("contentType", entity.getContentType());
+                    generator.writeNumberField("size", entity.getSize());
+                    generator.writeEndObject();
+                    generator.writeRaw('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Reads a parameter from the query string only, without touching the request body.
+     */
+    private static String queryParameter(HttpServletRequest request, String name) {
+        String value = ServletUriComponentsBuilder.fromRequest(request).build().getQueryParams().getFirst(name);
+        return value != null ? UriUtils.decode(value, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Saves a file read from a streamed multipart body, a failure is returned as the result of the file.
+     */
+    private RequestResponse saveStreamed(FileItemStream item, InputStream in, String path) {
+        try {
+            StorageEntity attachment = getStorageService()
+                .saveAttachment(item.getName(), item.getContentType(), in, path);
+            return createResponse(attachment, attachment.getContentType(), attachment.getSize());
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Unable to save streamed file " + item.getName(), e);
+            return new RequestResponse().setFileName(item.getName()).setError(e.getMessage());
+        }
+    }
+
     /**
      * Saves an uploaded file through the storage service and builds the response DTO.
      */
@@ -318,7 +972,8 @@ public abstract class AbstractStorageController {
     @Operation(
         summary = "Get files by path prefix",
         description = "Returns all files whose stored names start with the given prefix. "
-            + "If prefix is empty or null, returns all files."
+            + "If prefix is empty or null, returns all files. "
+            + "With limit or next set, returns one page ordered by path and a Link header to the next page."
     )
     @ApiResponses(value = {
         @ApiResponse(responseCode = "200", description = "List of files returned successfully",
@@ -327,12 +982,20 @@ public abstract class AbstractStorageController {
             content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
     })
     @GetMapping("/getByPath")
-    public ResponseEntity<List<RequestResponse>> getByPath(
-        @RequestParam(name = "pathPrefix", required = false) String path) {
+    public ResponseEntity<?> getByPath(
+        @RequestParam(name = "pathPrefix", required = false) String path,
+        @Parameter(description = "Maximum number of files to return, enables paging", in = ParameterIn.QUERY)
+        @RequestParam(name = "limit", required = false) Integer limit,
+        @Parameter(description = "Opaque token of the next page, taken from the Link header", in = ParameterIn.QUERY)
+        @RequestParam(name = "next", required = false) String next) {
         try {
+            if (limit != null || next != null) {
+                return page(path, limit, next);
+            }
             List<StorageEntity> storageEntities = getStorageService().findByPath(path);
+            String downloadBaseUrl = downloadBaseUrl();
             List<RequestResponse> responses = storageEntities.stream()
-                .map(entity -> createResponse(entity, entity.getContentType(), entity.getSize()))
+                .map(entity -> createResponse(downloadBaseUrl, entity, entity.getContentType(), entity.getSize()))
                 .toList();
             return ResponseEntity.ok(responses);
         } catch (Exception e) {
@@ -1,11 +1,36 @@
 package org.clematis.storage.controller;
 
+import java.net.URI;
+import java.util.Optional;
+
+import org.clematis.storage.service.ArchiveService;
+import org.clematis.storage.service.BatchUploadService;
+import org.clematis.storage.service.ChunkedUploadService;
+import org.clematis.storage.service.ContentCache;
+import org.clematis.storage.service.ContentReferenceService;
+import org.clematis.storage.service.FilePurger;
+import org.clematis.storage.service.ReshardProgress;
+import org.clematis.storage.service.ShardMigration;
 import org.clematis.storage.service.StorageService;
+import org.clematis.storage.web.DownloadResponseFactory;
+import org.clematis.storage.web.ErrorResponse;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import lombok.Getter;
 import lombok.extern.java.Log;
 
@@ -19,10 +44,26 @@ import lombok.extern.java.Log;
 @Log
 public class FileStorageController extends AbstractStorageController {
 
+    private static final String RESHARD_PATH = "/reshard";
+
     private final StorageService storageService;
 
-    public FileStorageController(@Qualifier("fileStorageServiceImpl") StorageService storageService) {
-        this.storageService = storageService;
+    private final ShardMigration shardMigration;
+
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    public FileStorageController(@Qualifier("fileStorageServiceImpl") StorageService storageService,
+                                 ContentCache contentCache,
+                                 ShardMigration shardMigration,
+                                 DownloadResponseFactory downloadResponseFactory,
+                                 ObjectMapper objectMapper,
+                                 BatchUploadService batchUploadService,
+                                 FilePurger filePurger,
+                                 ChunkedUploadService chunkedUploadService,
+                                 ArchiveService archiveService) {
+        super(downloadResponseFactory, objectMapper, batchUploadService, filePurger, chunkedUploadService,
+            archiveService);
+        this.storageService = contentCache.decorate(storageService, ContentReferenceService.FS_STORE);
+        this.shardMigration = shardMigration;
     }
 
     @Override
@@ -34,4 +75,46 @@ public class FileStorageController extends AbstractStorageController {
     public String getDownloadPath() {
         return "/api/files/";
     }
+
+    // ---------------------------------------------------------------------
+    // Migration to the sharded layout
+    // ---------------------------------------------------------------------
+    @Operation(summary = "Migrate files to the sharded layout",
+        description = "Starts moving files stored under their logical paths to folders derived from their ids, "
+            + "in the background and in parallel. Files stay readable while they are moved.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "202", description = "Migration started",
+            content = @Content(schema = @Schema(implementation = ReshardProgress.class))),
+        @ApiResponse(responseCode = "409", description = "Sharding is disabled or a migration is running",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @PostMapping(RESHARD_PATH)
+    public ResponseEntity<?> reshard() {
+        try {
+            ReshardProgress progress = shardMigration.start();
+            URI location = ServletUriComponentsBuilder.fromCurrentRequestUri().build().toUri();
+            return ResponseEntity.accepted().location(location).body(progress);
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                .body(new ErrorResponse(e.getMessage(), HttpStatus.CONFLICT));
+        }
+    }
+
+    @Operation(summary = "Get progress of the migration to the sharded layout",
+        description = "Returns progress of the last migration since the start of the application.")
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Progress of the migration",
+            content = @Content(schema = @Schema(implementation = ReshardProgress.class))),
+        @ApiResponse(responseCode = "404", description = "No migration was started",
+            content = @Content(schema = @Schema(implementation = ErrorResponse.class)))
+    })
+    @GetMapping(RESHARD_PATH)
+    public ResponseEntity<?> getReshard() {
+        Optional<ReshardProgress> progress = shardMigration.getProgress();
+        if (progress.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .body(new ErrorResponse("No migration was started", HttpStatus.NOT_FOUND));
+        }
+        return ResponseEntity.ok(progress.get());
+    }
 }
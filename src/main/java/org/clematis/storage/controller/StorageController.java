@@ -1,10 +1,19 @@
 package org.clematis.storage.controller;
 
+import org.clematis.storage.service.ArchiveService;
+import org.clematis.storage.service.BatchUploadService;
+import org.clematis.storage.service.ChunkedUploadService;
+import org.clematis.storage.service.ContentCache;
+import org.clematis.storage.service.ContentReferenceService;
+import org.clematis.storage.service.FilePurger;
 import org.clematis.storage.service.StorageService;
+import org.clematis.storage.web.DownloadResponseFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import lombok.Getter;
 import lombok.extern.java.Log;
@@ -21,8 +30,18 @@ public class StorageController extends AbstractStorageController {
 
     private final StorageService storageService;
 
-    public StorageController(@Qualifier("dbStorageServiceImpl") StorageService storageService) {
-        this.storageService = storageService;
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    public StorageController(@Qualifier("dbStorageServiceImpl") StorageService storageService,
+                             ContentCache contentCache,
+                             DownloadResponseFactory downloadResponseFactory,
+                             ObjectMapper objectMapper,
+                             BatchUploadService batchUploadService,
+                             FilePurger filePurger,
+                             ChunkedUploadService chunkedUploadService,
+                             ArchiveService archiveService) {
+        super(downloadResponseFactory, objectMapper, batchUploadService, filePurger, chunkedUploadService,
+            archiveService);
+        this.storageService = contentCache.decorate(storageService, ContentReferenceService.DB_STORE);
     }
 
     @Override
@@ -0,0 +1,57 @@
+package org.clematis.storage.controller;
+
+import org.clematis.storage.service.ArchiveService;
+import org.clematis.storage.service.BatchUploadService;
+import org.clematis.storage.service.ChunkedUploadService;
+import org.clematis.storage.service.ContentCache;
+import org.clematis.storage.service.ContentReferenceService;
+import org.clematis.storage.service.FilePurger;
+import org.clematis.storage.service.StorageService;
+import org.clematis.storage.web.DownloadResponseFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Spring Web MVC controller to expose endpoints to upload the file to the tiered storage,
+ * files are stored on the filesystem and files read often are read from database copies
+ */
+@Getter
+@RestController
+@RequestMapping("/api/tiered")
+@SuppressFBWarnings("EI_EXPOSE_REP")
+@Log
+public class TieredStorageController extends AbstractStorageController {
+
+    private final StorageService storageService;
+
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    public TieredStorageController(@Qualifier("tieredStorageServiceImpl") StorageService storageService,
+                                   ContentCache contentCache,
+                                   DownloadResponseFactory downloadResponseFactory,
+                                   ObjectMapper objectMapper,
+                                   BatchUploadService batchUploadService,
+                                   FilePurger filePurger,
+                                   ChunkedUploadService chunkedUploadService,
+                                   ArchiveService archiveService) {
+        super(downloadResponseFactory, objectMapper, batchUploadService, filePurger, chunkedUploadService,
+            archiveService);
+        this.storageService = contentCache.decorate(storageService, ContentReferenceService.TIERED_STORE);
+    }
+
+    @Override
+    public StorageService getStorageService() {
+        return storageService;
+    }
+
+    @Override
+    public String getDownloadPath() {
+        return "/api/tiered/";
+    }
+}
@@ -0,0 +1,47 @@
+package org.clematis.storage.model;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Reference count of deduplicated content. Content with the same SHA-256 is stored
+ * once per store and shared by all storage entities with this checksum as content id.
+ */
+@Builder
+@Entity
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(name = "storage_content_ref",
+    indexes = @Index(name = "idx_storage_content_ref_store", columnList = "store"))
+public class ContentReference {
+
+    /**
+     * Store name and checksum, e.g. {@code db:9f86d0...}
+     */
+    @Id
+    private String id;
+
+    /**
+     * Name of the store keeping the content
+     */
+    private String store;
+
+    /**
+     * Lowercase hex encoded SHA-256 of the content
+     */
+    private String checksum;
+
+    private long size;
+
+    /**
+     * Number of storage entities sharing the content
+     */
+    private long refCount;
+}
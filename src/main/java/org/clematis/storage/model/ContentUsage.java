@@ -0,0 +1,10 @@
+package org.clematis.storage.model;
+
+/**
+ * Number of stored files sharing a deduplicated content
+ *
+ * @param contentId checksum of the content
+ * @param count     number of files
+ */
+public record ContentUsage(String contentId, Long count) {
+}
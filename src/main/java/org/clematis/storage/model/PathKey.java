@@ -0,0 +1,56 @@
+package org.clematis.storage.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position of a stored file in listings ordered by normalized path and id.
+ * Listings continue after a key instead of skipping an offset, so any page
+ * is a range scan of the path index regardless of how deep it is.
+ * <p>
+ * Keys are passed to clients as opaque URL safe tokens.
+ *
+ * @param path normalized path of the last listed file
+ * @param id   id of the last listed file
+ */
+public record PathKey(String path, String id) {
+
+    private static final char SEPARATOR = ':';
+
+    /**
+     * Returns the key of a stored file.
+     *
+     * @param entity stored file metadata with a normalized path
+     * @return listing key positioned at the file
+     */
+    public static PathKey of(StorageEntity entity) {
+        return new PathKey(entity.getPath(), entity.getId());
+    }
+
+    /**
+     * Restores a key from a token created by {@link #encode()}.
+     *
+     * @param token opaque token
+     * @return listing key
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static PathKey decode(String token) {
+        String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        // ids never contain the separator, paths may
+        int separator = value.indexOf(SEPARATOR);
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Invalid page token: " + token);
+        }
+        return new PathKey(value.substring(separator + 1), value.substring(0, separator));
+    }
+
+    /**
+     * Encodes the key to an opaque token.
+     *
+     * @return URL safe token
+     */
+    public String encode() {
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString((id + SEPARATOR + path).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,33 @@
+package org.clematis.storage.model;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jakarta.persistence.Basic;
+import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Lob;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Binary content of a file stored in the database, kept apart from {@link StorageEntity}
+ * so that metadata queries never touch BLOBs. Shares the id of its storage entity.
+ * Content is read and written with plain JDBC by the blob content repository.
+ */
+@Entity
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@SuppressFBWarnings({"EI_EXPOSE_REP", "EI_EXPOSE_REP2"})
+@Table(name = "storage_blob")
+public class StorageBlob {
+
+    @Id
+    private String id;
+
+    @Lob
+    @Basic(fetch = FetchType.LAZY)
+    private byte[] data;
+}
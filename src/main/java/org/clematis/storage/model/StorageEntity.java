@@ -1,12 +1,16 @@
 package org.clematis.storage.model;
 
+import java.time.Instant;
+
 import org.hibernate.annotations.GenericGenerator;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.Id;
-import jakarta.persistence.Lob;
+import jakarta.persistence.Index;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.PreUpdate;
 import jakarta.persistence.Table;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -14,8 +18,11 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 
 /**
- * A database entity to capture uploaded file information: MIME type, name, binary data
- * A UUID id is being generated
+ * A database entity to capture uploaded file information: MIME type, name, size and checksum.
+ * Binary data is stored apart, in {@link StorageBlob} or on the filesystem.
+ * The checksum is the strong ETag of the content.
+ * A UUID id is being generated. Every file belongs to the store which saved it, the stores
+ * share the table and list, search and delete their own files only.
  */
 @Builder
 @Entity
@@ -23,7 +30,8 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 @NoArgsConstructor
 @SuppressFBWarnings("EI_EXPOSE_REP")
-@Table(name = "storage_entity")
+@Table(name = "storage_entity",
+    indexes = @Index(name = "idx_storage_entity_store_path", columnList = "store, path, id"))
 public class StorageEntity {
 
     @Id
@@ -35,19 +43,68 @@ public class StorageEntity {
 
     private String contentType;
 
-    @Lob
-    private byte[] data;
-
     private long size;
 
-    public StorageEntity(byte[] data) {
-        this.data = data;
-    }
+    /**
+     * Lowercase hex encoded SHA-256 of the content, computed while it is stored
+     */
+    private String checksum;
+
+    /**
+     * File name with separators canonicalized to '/', indexed for prefix searches
+     */
+    private String path;
+
+    /**
+     * Checksum of deduplicated content shared with other entities, null if the content
+     * is stored for this entity only
+     */
+    private String contentId;
+
+    /**
+     * Time the content was stored, sent as Last-Modified with downloads
+     */
+    private Instant lastModified;
+
+    /**
+     * HTTP content coding the content is stored compressed with, null if it is stored as is
+     */
+    private String contentEncoding;
+
+    /**
+     * Number of stored bytes of compressed content, null if the content is stored as is.
+     * The size is always the uncompressed size
+     */
+    private Long encodedSize;
 
-    public StorageEntity(String fileName, String contentType, byte[] data) {
+    /**
+     * Name of the store owning the file, e.g. "db" or "fs"
+     */
+    private String store;
+
+    public StorageEntity(String fileName, String contentType) {
         this.fileName = fileName;
         this.contentType = contentType;
-        this.data = data;
-        this.size = data != null ? data.length : 0;
+    }
+
+    public StorageEntity(String store, String fileName, String contentType) {
+        this(fileName, contentType);
+        this.store = store;
+    }
+
+    /**
+     * Canonicalizes separators of a stored file name, so it can be matched by path prefixes.
+     *
+     * @param fileName logical file name, may contain '\' or '/' separators
+     * @return file name with '/' separators only, or null for null
+     */
+    public static String normalizePath(String fileName) {
+        return fileName != null ? fileName.replace('\\', '/') : null;
+    }
+
+    @PrePersist
+    @PreUpdate
+    void updatePath() {
+        this.path = normalizePath(fileName);
     }
 }
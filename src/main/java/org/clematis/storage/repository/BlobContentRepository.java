@@ -0,0 +1,357 @@
+package org.clematis.storage.repository;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.sql.DataSource;
+
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Repository;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+import lombok.extern.java.Log;
+
+/**
+ * Plain JDBC access to binary content of files kept in the database, in the table
+ * of {@link org.clematis.storage.model.StorageBlob}. Content is read
+ * through {@link Blob#getBinaryStream(long, long)}, so only the requested region
+ * is fetched, and written with {@link PreparedStatement#setBinaryStream(int, InputStream)},
+ * so nothing is materialized by the persistence layer.
+ */
+@Repository
+@Log
+public class BlobContentRepository {
+
+    private static final String SELECT_DATA = "SELECT data FROM storage_blob WHERE id = ?";
+
+    private static final String INSERT_DATA = "INSERT INTO storage_blob (id, data) VALUES (?, ?)";
+
+    private static final String DELETE_DATA = "DELETE FROM storage_blob WHERE id = ?";
+
+    private static final String DELETE_DATA_BY_PATH = "DELETE FROM storage_blob WHERE id IN "
+        + "(SELECT e.id FROM storage_entity e WHERE e.store = ? AND e.path LIKE ? ESCAPE '"
+        + StorageEntityRepository.LIKE_ESCAPE + "')";
+
+    private static final String SELECT_IDS_LIKE = "SELECT id FROM storage_blob WHERE id LIKE ? ESCAPE '"
+        + StorageEntityRepository.LIKE_ESCAPE + "'";
+
+    private static final String RENAME_DATA = "UPDATE storage_blob SET id = ? WHERE id = ?";
+
+    private final DataSource dataSource;
+
+    public BlobContentRepository(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Opens a stream over a region of the stored content. The stream holds a database
+     * connection until it is closed, so the caller must always close it.
+     *
+     * @param id       storage entity id
+     * @param position offset of the first byte, zero based
+     * @param count    number of bytes to read
+     * @return stream over the requested region; empty if there is no content
+     * @throws IOException if the content can't be read
+     */
+    public InputStream openStream(String id, long position, long count) throws IOException {
+        return findStream(id, position, count).orElseGet(InputStream::nullInputStream);
+    }
+
+    /**
+     * Opens a stream over a region of the stored content, telling missing content apart
+     * from empty content. The stream must always be closed, see {@link #openStream}.
+     *
+     * @param id       storage entity id
+     * @param position offset of the first byte, zero based
+     * @param count    number of bytes to read
+     * @return stream over the requested region, or empty if there is no content
+     * @throws IOException if the content can't be read
+     */
+    @SuppressWarnings("checkstyle:ReturnCount")
+    public Optional<InputStream> findStream(String id, long position, long count) throws IOException {
+        if (count <= 0) {
+            return Optional.of(InputStream.nullInputStream());
+        }
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(SELECT_DATA);
+            statement.setString(1, id);
+            resultSet = statement.executeQuery();
+            Blob blob = resultSet.next() ? resultSet.getBlob(1) : null;
+            if (blob == null) {
+                close(resultSet, statement, connection);
+                return Optional.empty();
+            }
+            // JDBC positions are one based
+            return Optional.of(new BlobInputStream(blob.getBinaryStream(position + 1, count),
+                blob, resultSet, statement, connection));
+        } catch (SQLException e) {
+            close(resultSet, statement, connection);
+            throw new IOException("Failed to read content of " + id, e);
+        }
+    }
+
+    /**
+     * Streams content into a new BLOB row. The driver reads the stream while the statement
+     * executes, so the content is never materialized as a byte array. Uses the connection
+     * of the current transaction, if there is one.
+     *
+     * @param id      storage entity id
+     * @param content content to store, read until the end but not closed
+     * @throws IOException if the content can't be written
+     */
+    public void writeContent(String id, InputStream content) throws IOException {
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_DATA)) {
+            statement.setString(1, id);
+            statement.setBinaryStream(2, content);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            // drivers wrap exceptions thrown by the stream, the size limit must reach the caller as is
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof MaxUploadSizeExceededException sizeExceeded) {
+                    throw sizeExceeded;
+                }
+            }
+            throw new IOException("Failed to write content of " + id, e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    /**
+     * Streams the content of many files into new BLOB rows, sending the inserts to the
+     * database in batches. The streams of one batch are open at the same time, until
+     * the batch is executed.
+     *
+     * @param contents  content sources by storage entity id
+     * @param batchSize number of rows inserted at once
+     * @throws IOException if a content can't be read or written
+     */
+    public void writeContents(Map<String, ? extends InputStreamSource> contents, int batchSize) throws IOException {
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        List<InputStream> batch = new ArrayList<>(batchSize);
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_DATA)) {
+            for (Map.Entry<String, ? extends InputStreamSource> content : contents.entrySet()) {
+                InputStream in = content.getValue().getInputStream();
+                batch.add(in);
+                statement.setString(1, content.getKey());
+                statement.setBinaryStream(2, in);
+                statement.addBatch();
+                if (batch.size() == batchSize) {
+                    executeBatch(statement, batch);
+                }
+            }
+            if (!batch.isEmpty()) {
+                executeBatch(statement, batch);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to write content of " + contents.size() + " files", e);
+        } finally {
+            closeAll(batch);
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    /**
+     * Deletes stored content, does nothing if there is none.
+     *
+     * @param id storage entity id
+     * @throws IOException if the content can't be deleted
+     */
+    public void deleteContent(String id) throws IOException {
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement statement = connection.prepareStatement(DELETE_DATA)) {
+            statement.setString(1, id);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException("Failed to delete content of " + id, e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    /**
+     * Deletes stored content of many files, sending the deletes to the database in batches.
+     *
+     * @param ids       ids of the content
+     * @param batchSize number of rows deleted at once
+     * @throws IOException if the content can't be deleted
+     */
+    public void deleteContents(Collection<String> ids, int batchSize) throws IOException {
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement statement = connection.prepareStatement(DELETE_DATA)) {
+            int batch = 0;
+            for (String id : ids) {
+                statement.setString(1, id);
+                statement.addBatch();
+                batch++;
+                if (batch % batchSize == 0) {
+                    statement.executeBatch();
+                }
+            }
+            if (batch % batchSize != 0) {
+                statement.executeBatch();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to delete content of " + ids.size() + " files", e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    /**
+     * Deletes the content of all files of a store matching a path pattern with a single statement.
+     * Deduplicated content, which is stored under its checksum, is not affected.
+     *
+     * @param store   name of the store
+     * @param pattern LIKE pattern escaped with {@link StorageEntityRepository#LIKE_ESCAPE}
+     * @return number of deleted rows
+     * @throws IOException if the content can't be deleted
+     */
+    public int deleteContentByPathLike(String store, String pattern) throws IOException {
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement statement = connection.prepareStatement(DELETE_DATA_BY_PATH)) {
+            statement.setString(1, store);
+            statement.setString(2, pattern);
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException("Failed to delete content by path " + pattern, e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    /**
+     * Returns the ids of stored content starting with a prefix, e.g. of content kept
+     * under ids of its own by a store.
+     *
+     * @param prefix prefix of the ids, matched literally
+     * @return ids of the content
+     * @throws IOException if the ids can't be read
+     */
+    public List<String> findIdsByPrefix(String prefix) throws IOException {
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_IDS_LIKE)) {
+            statement.setString(1, StorageEntityRepository.likePrefix(prefix));
+            List<String> ids = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    ids.add(resultSet.getString(1));
+                }
+            }
+            return ids;
+        } catch (SQLException e) {
+            throw new IOException("Failed to read content ids by prefix " + prefix, e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    /**
+     * Moves stored content to another id without copying it.
+     *
+     * @param id    current id of the content
+     * @param newId new id of the content
+     * @throws IOException if the content can't be moved
+     */
+    public void renameContent(String id, String newId) throws IOException {
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement statement = connection.prepareStatement(RENAME_DATA)) {
+            statement.setString(1, newId);
+            statement.setString(2, id);
+            if (statement.executeUpdate() != 1) {
+                throw new IOException("No content to move, id=" + id);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to move content of " + id + " to " + newId, e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    private static void executeBatch(PreparedStatement statement, List<InputStream> batch) throws SQLException {
+        try {
+            statement.executeBatch();
+        } finally {
+            closeAll(batch);
+        }
+    }
+
+    private static void closeAll(List<InputStream> streams) {
+        for (InputStream stream : streams) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.warning("Failed to close content stream: " + e.getMessage());
+            }
+        }
+        streams.clear();
+    }
+
+    private void close(ResultSet resultSet, PreparedStatement statement, Connection connection) {
+        try {
+            if (resultSet != null) {
+                resultSet.close();
+            }
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            log.warning("Failed to close statement: " + e.getMessage());
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    /**
+     * Stream over a BLOB which releases all JDBC resources when closed
+     */
+    private final class BlobInputStream extends FilterInputStream {
+
+        private final Blob blob;
+        private final ResultSet resultSet;
+        private final PreparedStatement statement;
+        private final Connection connection;
+        private boolean closed;
+
+        private BlobInputStream(InputStream in, Blob blob, ResultSet resultSet,
+                                PreparedStatement statement, Connection connection) {
+            super(in);
+            this.blob = blob;
+            this.resultSet = resultSet;
+            this.statement = statement;
+            this.connection = connection;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+                blob.free();
+            } catch (SQLException e) {
+                log.warning("Failed to free BLOB: " + e.getMessage());
+            } finally {
+                BlobContentRepository.this.close(resultSet, statement, connection);
+            }
+        }
+    }
+}
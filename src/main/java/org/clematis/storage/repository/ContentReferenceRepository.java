@@ -0,0 +1,101 @@
+package org.clematis.storage.repository;
+
+import org.clematis.storage.model.ContentReference;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+/**
+ * {@link JpaRepository} for reference counts of deduplicated content. Counts are changed
+ * with single update statements, so concurrent uploads never lose an increment.
+ * A count with no references belongs to content which is not stored (yet).
+ */
+public interface ContentReferenceRepository extends JpaRepository<ContentReference, String> {
+
+    /**
+     * Adds a reference to existing content.
+     *
+     * @param id content reference id
+     * @return number of updated rows, 0 if the content is not stored yet
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update ContentReference c set c.refCount = c.refCount + 1 where c.id = :id")
+    int increment(@Param("id") String id);
+
+    /**
+     * Creates the reference count of content which is not stored yet, with no references.
+     * Fails on the key if the count exists.
+     *
+     * @param id       content reference id
+     * @param store    name of the store
+     * @param checksum SHA-256 of the content
+     * @param size     content size in bytes
+     * @return number of inserted rows
+     */
+    @Modifying
+    @Query("insert into ContentReference (id, store, checksum, size, refCount) "
+        + "values (:id, :store, :checksum, :size, 0)")
+    int insertUnreferenced(@Param("id") String id,
+                           @Param("store") String store,
+                           @Param("checksum") String checksum,
+                           @Param("size") long size);
+
+    /**
+     * Returns the number of references to content.
+     *
+     * @param id content reference id
+     * @return reference count, 0 if the content is not stored
+     */
+    @Query("select coalesce(max(c.refCount), 0) from ContentReference c where c.id = :id")
+    long findRefCount(@Param("id") String id);
+
+    /**
+     * Removes a reference from content.
+     *
+     * @param id content reference id
+     * @return number of updated rows
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update ContentReference c set c.refCount = c.refCount - 1 where c.id = :id and c.refCount > 0")
+    int decrement(@Param("id") String id);
+
+    /**
+     * Removes several references from content at once.
+     *
+     * @param id    content reference id
+     * @param count number of references to remove
+     * @return number of updated rows
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update ContentReference c set c.refCount = c.refCount - :count where c.id = :id")
+    int decrementBy(@Param("id") String id, @Param("count") long count);
+
+    /**
+     * Deletes the reference count if nobody references the content any more.
+     *
+     * @param id content reference id
+     * @return number of deleted rows, 1 if the content can be deleted
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("delete from ContentReference c where c.id = :id and c.refCount <= 0")
+    int deleteUnreferenced(@Param("id") String id);
+
+    /**
+     * Returns the number of bytes physically kept by a store for deduplicated content.
+     *
+     * @param store name of the store
+     * @return sum of content sizes
+     */
+    @Query("select coalesce(sum(c.size), 0) from ContentReference c where c.store = :store and c.refCount > 0")
+    long sumStoredBytes(@Param("store") String store);
+
+    /**
+     * Returns the number of bytes the deduplicated content of a store would take without sharing.
+     *
+     * @param store name of the store
+     * @return sum of content sizes multiplied by their reference counts
+     */
+    @Query("select coalesce(sum(c.size * c.refCount), 0) from ContentReference c where c.store = :store")
+    long sumReferencedBytes(@Param("store") String store);
+}
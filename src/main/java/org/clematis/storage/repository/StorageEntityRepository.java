@@ -1,10 +1,315 @@
 package org.clematis.storage.repository;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import org.clematis.storage.model.ContentUsage;
+import org.clematis.storage.model.PathKey;
 import org.clematis.storage.model.StorageEntity;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import jakarta.persistence.QueryHint;
 
 /**
- * Default {@link JpaRepository} for storage of uploaded files metadata
+ * Default {@link JpaRepository} for storage of uploaded files metadata. The stores share the table,
+ * listings, searches and deletes take the name of the store and match its files only.
  */
 public interface StorageEntityRepository extends JpaRepository<StorageEntity, String> {
+
+    /**
+     * Selects metadata columns into detached instances, which the persistence context doesn't track.
+     * Columns are listed in the order of the entity fields, as the generated all-args constructor takes them
+     */
+    String SELECT_METADATA = "select new org.clematis.storage.model.StorageEntity("
+        + "e.id, e.fileName, e.contentType, e.size, e.checksum, e.path, e.contentId, e.lastModified, "
+        + "e.contentEncoding, e.encodedSize, e.store) "
+        + "from StorageEntity e ";
+
+    /**
+     * Escape character of LIKE patterns. Not a backslash, which MySQL treats as an escape in string literals
+     */
+    char LIKE_ESCAPE = '!';
+
+    /**
+     * Condition matching the files of a store
+     */
+    String WHERE_STORE = "where e.store = :store ";
+
+    /**
+     * Condition of prefix searches within a store, served by the path index
+     */
+    String WHERE_PATH_LIKE = WHERE_STORE + "and e.path like :pattern escape '" + LIKE_ESCAPE + "' ";
+
+    /**
+     * Keyset condition positioning a page after the given path and id
+     */
+    String AND_AFTER_KEY = "and (e.path > :path or (e.path = :path and e.id > :id)) ";
+
+    /**
+     * Listing order matching the path index
+     */
+    String ORDER_BY_PATH = "order by e.path, e.id";
+
+    /**
+     * Rows fetched from the database at once while streaming. MySQL streams with
+     * a positive fetch size only if {@code useCursorFetch=true} is set on the connection.
+     */
+    String STREAM_FETCH_SIZE = "1000";
+
+    /**
+     * Loads metadata of a stored file without its binary data.
+     *
+     * @param id storage entity id
+     * @return detached metadata or empty if not found
+     */
+    @Query(SELECT_METADATA + "where e.id = :id")
+    Optional<StorageEntity> findMetadataById(@Param("id") String id);
+
+    /**
+     * Loads metadata of a file of a store without its binary data.
+     *
+     * @param store name of the store
+     * @param id    storage entity id
+     * @return detached metadata or empty if not found or owned by another store
+     */
+    @Query(SELECT_METADATA + WHERE_STORE + "and e.id = :id")
+    Optional<StorageEntity> findMetadataById(@Param("store") String store, @Param("id") String id);
+
+    /**
+     * Deletes metadata of a file of a store with a single statement, the row is not loaded first.
+     *
+     * @param store name of the store
+     * @param id    storage entity id
+     * @return number of deleted rows
+     */
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query("delete from StorageEntity e " + WHERE_STORE + "and e.id = :id")
+    int deleteMetadataById(@Param("store") String store, @Param("id") String id);
+
+    /**
+     * Deletes metadata of many files of a store with a single statement.
+     *
+     * @param store name of the store
+     * @param ids   storage entity ids
+     * @return number of deleted rows
+     */
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query("delete from StorageEntity e " + WHERE_STORE + "and e.id in :ids")
+    int deleteMetadataByIds(@Param("store") String store, @Param("ids") Collection<String> ids);
+
+    /**
+     * Deletes metadata of all files of a store matching a path pattern with a single statement.
+     *
+     * @param store   name of the store
+     * @param pattern LIKE pattern escaped with {@link #LIKE_ESCAPE}
+     * @return number of deleted rows
+     */
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query("delete from StorageEntity e " + WHERE_PATH_LIKE)
+    int deleteMetadataByPathLike(@Param("store") String store, @Param("pattern") String pattern);
+
+    /**
+     * Counts the files sharing each deduplicated content among the given files of a store.
+     *
+     * @param store name of the store
+     * @param ids   storage entity ids
+     * @return usage of every deduplicated content of the files
+     */
+    @Query("select new org.clematis.storage.model.ContentUsage(e.contentId, count(e)) from StorageEntity e "
+        + WHERE_STORE + "and e.id in :ids and e.contentId is not null group by e.contentId")
+    List<ContentUsage> countContentUsageByIds(@Param("store") String store, @Param("ids") Collection<String> ids);
+
+    /**
+     * Counts the files sharing each deduplicated content among the files of a store matching a path pattern.
+     *
+     * @param store   name of the store
+     * @param pattern LIKE pattern escaped with {@link #LIKE_ESCAPE}
+     * @return usage of every deduplicated content of the files
+     */
+    @Query("select new org.clematis.storage.model.ContentUsage(e.contentId, count(e)) from StorageEntity e "
+        + WHERE_PATH_LIKE + "and e.contentId is not null group by e.contentId")
+    List<ContentUsage> countContentUsageByPathLike(@Param("store") String store, @Param("pattern") String pattern);
+
+    /**
+     * Returns the file names of files of a store whose content is not deduplicated.
+     *
+     * @param store name of the store
+     * @param ids   storage entity ids
+     * @return file names as stored
+     */
+    @Query("select e.fileName from StorageEntity e " + WHERE_STORE + "and e.id in :ids and e.contentId is null")
+    List<String> findFileNamesByIds(@Param("store") String store, @Param("ids") Collection<String> ids);
+
+    /**
+     * Returns which of the given ids belong to files of a store whose content is not deduplicated.
+     *
+     * @param store name of the store
+     * @param ids   storage entity ids
+     * @return storage entity ids
+     */
+    @Query("select e.id from StorageEntity e " + WHERE_STORE + "and e.id in :ids and e.contentId is null")
+    List<String> findIdsIn(@Param("store") String store, @Param("ids") Collection<String> ids);
+
+    /**
+     * Returns the ids of files of a store whose content is not deduplicated, matching a path pattern.
+     *
+     * @param store   name of the store
+     * @param pattern LIKE pattern escaped with {@link #LIKE_ESCAPE}
+     * @return storage entity ids
+     */
+    @Query("select e.id from StorageEntity e " + WHERE_PATH_LIKE + "and e.contentId is null")
+    List<String> findIdsByPathLike(@Param("store") String store, @Param("pattern") String pattern);
+
+    /**
+     * Returns which of the given normalized paths belong to files of any of the stores.
+     *
+     * @param stores names of the stores
+     * @param paths  normalized paths
+     * @return paths of stored files
+     */
+    @Query("select e.path from StorageEntity e where e.store in :stores and e.path in :paths")
+    List<String> findPathsIn(@Param("stores") Collection<String> stores, @Param("paths") Collection<String> paths);
+
+    /**
+     * Loads metadata of all files of a store.
+     *
+     * @param store name of the store
+     * @return detached metadata of every file of the store
+     */
+    @Query(SELECT_METADATA + WHERE_STORE)
+    List<StorageEntity> findAllMetadata(@Param("store") String store);
+
+    /**
+     * Loads metadata of files of a store whose normalized path matches a LIKE pattern.
+     * A pattern with a constant prefix is a range scan of the path index.
+     *
+     * @param store   name of the store
+     * @param pattern LIKE pattern escaped with {@link #LIKE_ESCAPE}
+     * @return detached metadata ordered by path
+     */
+    @Query(SELECT_METADATA + WHERE_PATH_LIKE + ORDER_BY_PATH)
+    List<StorageEntity> findMetadataByPathLike(@Param("store") String store, @Param("pattern") String pattern);
+
+    /**
+     * Loads the first page of metadata of a store whose normalized path matches a LIKE pattern.
+     *
+     * @param store   name of the store
+     * @param pattern LIKE pattern escaped with {@link #LIKE_ESCAPE}
+     * @param limit   maximum number of rows
+     * @return detached metadata ordered by path and id
+     */
+    @Query(SELECT_METADATA + WHERE_PATH_LIKE + ORDER_BY_PATH)
+    List<StorageEntity> findMetadataByPathLike(@Param("store") String store,
+                                               @Param("pattern") String pattern,
+                                               Limit limit);
+
+    /**
+     * Loads a page of metadata of a store whose normalized path matches a LIKE pattern, positioned
+     * after the given path and id. The cost doesn't depend on how many rows precede the page.
+     *
+     * @param store   name of the store
+     * @param pattern LIKE pattern escaped with {@link #LIKE_ESCAPE}
+     * @param path    normalized path of the last row of the previous page
+     * @param id      id of the last row of the previous page
+     * @param limit   maximum number of rows
+     * @return detached metadata ordered by path and id
+     */
+    @Query(SELECT_METADATA + WHERE_PATH_LIKE + AND_AFTER_KEY + ORDER_BY_PATH)
+    List<StorageEntity> findMetadataByPathLikeAfter(@Param("store") String store,
+                                                    @Param("pattern") String pattern,
+                                                    @Param("path") String path,
+                                                    @Param("id") String id,
+                                                    Limit limit);
+
+    /**
+     * Loads metadata of files of a store whose path starts with the given prefix.
+     * Separators of the prefix are normalized the same way as stored paths.
+     *
+     * @param store  name of the store
+     * @param prefix path prefix, matched literally
+     * @return detached metadata ordered by path
+     */
+    default List<StorageEntity> findMetadataByPathPrefix(String store, String prefix) {
+        return findMetadataByPathLike(store, likePrefix(StorageEntity.normalizePath(prefix)));
+    }
+
+    /**
+     * Streams metadata of a store whose normalized path matches a LIKE pattern from a database cursor.
+     * Rows are projections not tracked by the persistence context, so memory doesn't grow
+     * with the number of rows. Must be consumed and closed within a transaction.
+     *
+     * @param store   name of the store
+     * @param pattern LIKE pattern escaped with {@link #LIKE_ESCAPE}
+     * @return stream of detached metadata ordered by path and id
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+    @Query(SELECT_METADATA + WHERE_PATH_LIKE + ORDER_BY_PATH)
+    Stream<StorageEntity> streamMetadataByPathLike(@Param("store") String store, @Param("pattern") String pattern);
+
+    /**
+     * Streams metadata of files of a store whose path starts with the given prefix.
+     *
+     * @param store  name of the store
+     * @param prefix path prefix, matched literally; null or empty matches all files
+     * @return stream of detached metadata ordered by path and id
+     */
+    default Stream<StorageEntity> streamMetadataByPathPrefix(String store, String prefix) {
+        return streamMetadataByPathLike(store, likePathPrefix(prefix));
+    }
+
+    /**
+     * Loads a page of metadata of a store whose path starts with the given prefix, ordered by path and id.
+     *
+     * @param store  name of the store
+     * @param prefix path prefix, matched literally; null or empty matches all files
+     * @param after  key of the last file of the previous page, null for the first page
+     * @param limit  maximum number of rows
+     * @return detached metadata
+     */
+    default List<StorageEntity> findMetadataPage(String store, String prefix, PathKey after, int limit) {
+        String pattern = likePathPrefix(prefix);
+        return after == null
+            ? findMetadataByPathLike(store, pattern, Limit.of(limit))
+            : findMetadataByPathLikeAfter(store, pattern, after.path(), after.id(), Limit.of(limit));
+    }
+
+    /**
+     * Builds a LIKE pattern matching all normalized paths starting with the prefix.
+     *
+     * @param prefix path prefix with any separators, null matches all paths
+     * @return LIKE pattern
+     */
+    static String likePathPrefix(String prefix) {
+        return likePrefix(prefix != null ? StorageEntity.normalizePath(prefix) : "");
+    }
+
+    /**
+     * Builds a LIKE pattern matching all values starting with the prefix,
+     * wildcards in the prefix itself are escaped.
+     *
+     * @param prefix literal prefix
+     * @return LIKE pattern
+     */
+    static String likePrefix(String prefix) {
+        StringBuilder pattern = new StringBuilder(prefix.length() + 1);
+        for (char c : prefix.toCharArray()) {
+            if (c == LIKE_ESCAPE || c == '%' || c == '_') {
+                pattern.append(LIKE_ESCAPE);
+            }
+            pattern.append(c);
+        }
+        return pattern.append('%').toString();
+    }
 }
@@ -0,0 +1,330 @@
+package org.clematis.storage.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.PathKey;
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+
+import lombok.extern.java.Log;
+
+/**
+ * Writes stored files as archives and imports archives as files.
+ * <p>
+ * A ZIP archive is produced while it is sent: files are listed a page at a time, ordered by path,
+ * and the content of every file is streamed into its entry, so memory use doesn't depend on the
+ * number or the size of the files and nothing is written to temporary files. An imported ZIP or
+ * TAR archive is read the same way, entry by entry while it is received.
+ */
+@Service
+@Log
+public class ArchiveService {
+
+    /**
+     * Files listed at once, each page is a range scan of the path index
+     */
+    private static final int PAGE_SIZE = 500;
+
+    /**
+     * Failed entries listed in the result of an import, the others are only counted
+     */
+    private static final int MAX_REPORTED_FAILURES = 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String PARENT_FOLDER = "..";
+
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    private final CompressionPolicy compressionPolicy;
+
+    /**
+     * Entries whose metadata is saved together, their rows are inserted in JDBC batches of this size
+     */
+    private final int importBatchSize;
+
+    public ArchiveService(CompressionPolicy compressionPolicy,
+                          @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:50}") int importBatchSize) {
+        this.compressionPolicy = compressionPolicy;
+        this.importBatchSize = Math.max(1, importBatchSize);
+    }
+
+    /**
+     * Writes all files whose path starts with the prefix as a ZIP archive, the same files
+     * as {@link StorageService#findByPath(String)} finds. Entries are named by the paths
+     * of the files; files sharing a path get their ids appended to the names.
+     * <p>
+     * Entries of types compressed by their format, or all entries if {@code stored} is set,
+     * are written without compression. They are deflated at level 0 rather than written with
+     * the STORED method, which needs the CRC of an entry before its data and would read
+     * every file twice.
+     *
+     * @param storageService service to read the files from
+     * @param path           path prefix, or null/blank for all files
+     * @param stored         write all entries without compression
+     * @param out            target stream, finished but not closed
+     * @return number of files written
+     * @throws IOException if a file can't be read or the archive can't be written
+     */
+    public long writeZip(StorageService storageService, String path, boolean stored, OutputStream out)
+        throws IOException {
+        log.info("Writing ZIP archive of path: " + path);
+        ZipOutputStream zip = new ZipOutputStream(out);
+        long files = 0;
+        String previousPath = null;
+        PathKey after = null;
+        List<StorageEntity> page;
+        do {
+            page = storageService.findByPath(path, after, PAGE_SIZE);
+            for (StorageEntity entity : page) {
+                // files sharing a path are listed one after another
+                String name = entity.getPath().equals(previousPath)
+                    ? entity.getPath() + "." + entity.getId()
+                    : entity.getPath();
+                previousPath = entity.getPath();
+                if (writeEntry(storageService, entity, name, stored, zip)) {
+                    files++;
+                }
+            }
+            after = page.isEmpty() ? null : PathKey.of(page.get(page.size() - 1));
+        } while (page.size() == PAGE_SIZE);
+        zip.finish();
+        log.info("ZIP archive of path " + path + " written, files: " + files);
+        return files;
+    }
+
+    /**
+     * Stores the files of a ZIP or TAR archive, optionally gzipped, read from a stream. The
+     * format is detected from the content. Every regular file entry is streamed straight into
+     * the storage service while the archive is read, the archive is neither buffered nor
+     * extracted to temporary files. Files are named by the relative paths of their entries
+     * under the path; directories, links and other special entries are skipped.
+     * <p>
+     * The content of every entry is stored on its own by {@link StorageService#stageAttachment},
+     * outside of any transaction spanning other entries, and the metadata of the stored entries
+     * is saved a batch at a time by {@link StorageService#saveStaged}, so the rows are inserted
+     * in JDBC batches and no transaction is open while the archive is read. An entry with an
+     * invalid name, unreadable data or rejected by the storage service is reported as failed
+     * and skipped, the other entries are stored. If the metadata of a batch can't be saved,
+     * the entries of the batch are reported as failed.
+     *
+     * @param storageService service storing the files
+     * @param in             archive stream, read until its end and closed
+     * @param path           path the entries are stored under, may be null
+     * @return numbers of stored and failed files, throughput and the failed entries
+     * @throws IllegalArgumentException if the stream is not a ZIP or TAR archive or the path is invalid
+     * @throws IOException              if the archive can't be read, the files stored before are kept
+     */
+    public ImportResult importArchive(StorageService storageService, InputStream in, String path)
+        throws IOException {
+        if (path != null && StringUtils.cleanPath(path).contains(PARENT_FOLDER)) {
+            throw new IllegalArgumentException("Path contains invalid path sequence " + path);
+        }
+        log.info("Importing archive to path: " + path);
+        long started = System.nanoTime();
+        ImportProgress progress = new ImportProgress();
+        List<String> names = new ArrayList<>(importBatchSize);
+        List<StorageEntity> staged = new ArrayList<>(importBatchSize);
+        try (ArchiveInputStream<?> archive = openArchive(in)) {
+            ArchiveEntry entry = archive.getNextEntry();
+            while (entry != null) {
+                Optional<String> name = entryName(archive, entry, progress);
+                Optional<StorageEntity> entity = name.flatMap(n ->
+                    importEntry(storageService, archive, n, path, progress));
+                if (entity.isPresent()) {
+                    names.add(name.get());
+                    staged.add(entity.get());
+                }
+                if (staged.size() == importBatchSize) {
+                    saveBatch(storageService, names, staged, progress);
+                }
+                entry = archive.getNextEntry();
+            }
+        } finally {
+            // the last batch, or the entries stored before the archive failed
+            saveBatch(storageService, names, staged, progress);
+        }
+        ImportResult result = progress.result(Duration.ofNanos(System.nanoTime() - started));
+        log.info("Archive imported to path " + path + ", files: " + result.files() + ", failed: "
+            + result.failed() + ", bytes: " + result.bytes() + " in " + result.millis() + " ms, "
+            + result.bytesPerSecond() + " bytes/s");
+        return result;
+    }
+
+    /**
+     * Saves the metadata of the staged entries and clears the batch.
+     */
+    private static void saveBatch(StorageService storageService,
+                                  List<String> names,
+                                  List<StorageEntity> staged,
+                                  ImportProgress progress) {
+        try {
+            if (!staged.isEmpty()) {
+                progress.stored(storageService.saveStaged(staged));
+            }
+        } catch (RuntimeException e) {
+            log.warning("Failed to save metadata of " + staged.size() + " entries, " + e.getMessage());
+            names.forEach(name -> progress.failed(name, "Metadata not saved, " + e.getMessage()));
+        }
+        names.clear();
+        staged.clear();
+    }
+
+    /**
+     * Stores the content of an entry.
+     *
+     * @return stored file, or empty if the entry failed
+     */
+    private static Optional<StorageEntity> importEntry(StorageService storageService,
+                                                       ArchiveInputStream<?> archive,
+                                                       String name,
+                                                       String path,
+                                                       ImportProgress progress) {
+        String contentType = MediaTypeFactory.getMediaType(name)
+            .map(MediaType::toString)
+            .orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        try {
+            return Optional.of(storageService.stageAttachment(name, contentType,
+                StreamUtils.nonClosing(archive), path));
+        } catch (Exception e) {
+            log.warning("Failed to import entry " + name + ", " + e.getMessage());
+            progress.failed(name, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Validates an entry and returns its relative path, or empty if it is skipped or failed.
+     */
+    @SuppressWarnings("checkstyle:ReturnCount")
+    private static Optional<String> entryName(ArchiveInputStream<?> archive,
+                                              ArchiveEntry entry,
+                                              ImportProgress progress) {
+        if (entry.isDirectory()) {
+            return Optional.empty();
+        }
+        if (entry instanceof TarArchiveEntry tarEntry && !tarEntry.isFile()) {
+            log.info("Skipping special archive entry " + entry.getName());
+            return Optional.empty();
+        }
+        // entries may be named with backslashes, absolute or with "./"
+        String name = StringUtils.cleanPath(entry.getName().replace('\\', '/')).replaceFirst("^/+", "");
+        if (!StringUtils.hasText(name) || name.contains(PARENT_FOLDER)) {
+            progress.failed(entry.getName(), "Invalid path sequence");
+            return Optional.empty();
+        }
+        if (!archive.canReadEntryData(entry)) {
+            progress.failed(entry.getName(), "Unsupported compression method or encryption");
+            return Optional.empty();
+        }
+        return Optional.of(name);
+    }
+
+    /**
+     * Detects the format of an archive, a gzipped stream is expected to be a TAR archive.
+     */
+    private static ArchiveInputStream<?> openArchive(InputStream in) throws IOException {
+        InputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        buffered.mark(2);
+        int magic = buffered.read() | buffered.read() << Byte.SIZE;
+        buffered.reset();
+        if (magic == GZIPInputStream.GZIP_MAGIC) {
+            buffered = new BufferedInputStream(new GZIPInputStream(buffered, BUFFER_SIZE), BUFFER_SIZE);
+        }
+        String format;
+        try {
+            format = ArchiveStreamFactory.detect(buffered);
+        } catch (ArchiveException e) {
+            throw new IllegalArgumentException("Not a ZIP or TAR archive", e);
+        }
+        return switch (format) {
+            // stored entries followed by a data descriptor are read till their signature
+            case ArchiveStreamFactory.ZIP -> new ZipArchiveInputStream(buffered, StandardCharsets.UTF_8.name(),
+                true, true);
+            case ArchiveStreamFactory.TAR -> new TarArchiveInputStream(buffered);
+            default -> throw new IllegalArgumentException("Unsupported archive format: " + format);
+        };
+    }
+
+    private boolean writeEntry(StorageService storageService,
+                               StorageEntity entity,
+                               String name,
+                               boolean stored,
+                               ZipOutputStream zip) throws IOException {
+        // the file may have been deleted since it was listed
+        Optional<StorageContent> content = storageService.getContent(entity.getId());
+        if (content.isEmpty()) {
+            log.warning("Skipping missing file " + entity.getId() + ": " + name);
+            return false;
+        }
+        zip.setLevel(stored || !compressionPolicy.isCompressible(entity.getContentType())
+            ? Deflater.NO_COMPRESSION
+            : Deflater.DEFAULT_COMPRESSION);
+        ZipEntry entry = new ZipEntry(name);
+        if (entity.getLastModified() != null) {
+            entry.setLastModifiedTime(FileTime.from(entity.getLastModified()));
+        }
+        zip.putNextEntry(entry);
+        content.get().transferTo(zip);
+        zip.closeEntry();
+        return true;
+    }
+
+    /**
+     * Counts of an import in progress
+     */
+    private static final class ImportProgress {
+
+        private final List<ImportResult.Failure> failures = new ArrayList<>();
+
+        private int files;
+
+        private int failed;
+
+        private long bytes;
+
+        void stored(List<StorageEntity> entities) {
+            files += entities.size();
+            bytes += entities.stream().mapToLong(StorageEntity::getSize).sum();
+        }
+
+        void failed(String entry, String error) {
+            failed++;
+            if (failures.size() < MAX_REPORTED_FAILURES) {
+                failures.add(new ImportResult.Failure(entry, error));
+            }
+        }
+
+        ImportResult result(Duration elapsed) {
+            long millis = elapsed.toMillis();
+            return new ImportResult(files, failed, bytes, millis,
+                bytes * MILLIS_PER_SECOND / Math.max(1, millis), List.copyOf(failures));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.clematis.storage.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import lombok.extern.java.Log;
+
+/**
+ * Saves the files of a batch in parallel on the upload executor.
+ * <p>
+ * Every file is saved on its own by the storage service, in its own transaction if the
+ * service has them, so a failed file doesn't affect the others. The caller waits until
+ * all files are done and gets a result per file, in the order of the batch. Services saving
+ * batches at once, see {@link StorageService#saveBatch}, save the whole batch themselves.
+ */
+@Service
+@Log
+public class BatchUploadService {
+
+    private final ExecutorService uploadExecutor;
+
+    public BatchUploadService(@Qualifier("uploadExecutor") ExecutorService uploadExecutor) {
+        this.uploadExecutor = uploadExecutor;
+    }
+
+    /**
+     * Saves all files with the given storage service.
+     *
+     * @param storageService service to save the files with
+     * @param files          uploaded files
+     * @param path           optional folder of the files
+     * @return results of the files in the order of the batch
+     */
+    public List<UploadResult> saveAll(StorageService storageService, MultipartFile[] files, String path) {
+        Optional<List<UploadResult>> batch = storageService.saveBatch(files, path);
+        if (batch.isPresent()) {
+            return batch.get();
+        }
+        log.info("Saving " + files.length + " files to " + path);
+        List<Future<UploadResult>> futures = new ArrayList<>(files.length);
+        for (MultipartFile file : files) {
+            futures.add(uploadExecutor.submit(() -> save(storageService, file, path)));
+        }
+        List<UploadResult> results = new ArrayList<>(files.length);
+        for (int i = 0; i < files.length; i++) {
+            results.add(await(futures.get(i), files[i]));
+        }
+        return results;
+    }
+
+    private static UploadResult save(StorageService storageService, MultipartFile file, String path) {
+        try {
+            return new UploadResult(file.getOriginalFilename(), storageService.saveAttachment(file, path), null);
+        } catch (Exception e) {
+            log.warning("Failed to save " + file.getOriginalFilename() + ": " + e.getMessage());
+            return new UploadResult(file.getOriginalFilename(), null, e);
+        }
+    }
+
+    private static UploadResult await(Future<UploadResult> future, MultipartFile file) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return new UploadResult(file.getOriginalFilename(), null, e);
+        } catch (ExecutionException e) {
+            return new UploadResult(file.getOriginalFilename(), null, e);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.clematis.storage.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.PathKey;
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.web.multipart.MultipartFile;
+
+import lombok.extern.java.Log;
+
+/**
+ * Storage service serving small files from a {@link ContentCache} and delegating
+ * everything else to another storage service.
+ * <p>
+ * A cache hit answers both metadata and content lookups without a repository query
+ * or a read from the backing store. Cached files are dropped when they are deleted
+ * and when a file with the same logical path is uploaded again.
+ */
+@Log
+public class CachingStorageService implements StorageService {
+
+    private final StorageService delegate;
+
+    private final String keyPrefix;
+
+    private final ContentCache contentCache;
+
+    public CachingStorageService(StorageService delegate, String store, ContentCache contentCache) {
+        this.delegate = delegate;
+        this.keyPrefix = ContentCache.keyPrefix(store);
+        this.contentCache = contentCache;
+    }
+
+    @Override
+    public StorageEntity saveAttachment(MultipartFile file, String path) throws Exception {
+        return invalidated(delegate.saveAttachment(file, path));
+    }
+
+    @Override
+    public StorageEntity saveAttachment(String fileName, String contentType, InputStream content, String path)
+        throws Exception {
+        return invalidated(delegate.saveAttachment(fileName, contentType, content, path));
+    }
+
+    /**
+     * Stages a file with the delegate, content replacing a file with the same path is stored already.
+     */
+    @Override
+    public StorageEntity stageAttachment(String fileName, String contentType, InputStream content, String path)
+        throws Exception {
+        return invalidated(delegate.stageAttachment(fileName, contentType, content, path));
+    }
+
+    @Override
+    public List<StorageEntity> saveStaged(List<StorageEntity> staged) {
+        List<StorageEntity> saved = delegate.saveStaged(staged);
+        saved.forEach(this::invalidated);
+        return saved;
+    }
+
+    @Override
+    public StorageEntity saveFile(String fileName, String contentType, Path file, String path) throws Exception {
+        return invalidated(delegate.saveFile(fileName, contentType, file, path));
+    }
+
+    @Override
+    public List<StorageEntity> saveAttachments(MultipartFile[] files, String path) throws Exception {
+        List<StorageEntity> saved = delegate.saveAttachments(files, path);
+        saved.forEach(this::invalidated);
+        return saved;
+    }
+
+    @Override
+    public Optional<List<UploadResult>> saveBatch(MultipartFile[] files, String path) {
+        Optional<List<UploadResult>> results = delegate.saveBatch(files, path);
+        results.ifPresent(batch -> batch.stream().filter(UploadResult::isSaved).map(UploadResult::entity)
+            .forEach(this::invalidated));
+        return results;
+    }
+
+    @Override
+    public List<StorageEntity> findByPath(String path) {
+        return delegate.findByPath(path);
+    }
+
+    @Override
+    public List<StorageEntity> findByPath(String path, PathKey after, int limit) {
+        return delegate.findByPath(path, after, limit);
+    }
+
+    @Override
+    public void forEachByPath(String path, Consumer<StorageEntity> action) {
+        delegate.forEachByPath(path, action);
+    }
+
+    @Override
+    public List<StorageEntity> getAll() {
+        return delegate.getAll();
+    }
+
+    /**
+     * Returns metadata of a cached file, or loads it from the delegate.
+     */
+    @Override
+    public Optional<StorageEntity> getStorageEntity(String id) {
+        Optional<StorageContent> cached = contentCache.get(keyPrefix + id);
+        return cached.isPresent() ? cached.map(StorageContent::getMetadata) : delegate.getStorageEntity(id);
+    }
+
+    /**
+     * Returns cached content, or loads it from the delegate and caches it if it is small enough,
+     * unless it is invalidated while it is loaded.
+     */
+    @Override
+    public Optional<StorageContent> getContent(String id) {
+        Optional<StorageContent> cached = contentCache.get(keyPrefix + id);
+        if (cached.isPresent()) {
+            return cached;
+        }
+        long stamp = contentCache.stamp();
+        Optional<StorageContent> content = delegate.getContent(id);
+        if (content.isEmpty() || !contentCache.admits(content.get().length())) {
+            return content;
+        }
+        try {
+            return Optional.of(contentCache.put(keyPrefix, id, content.get(), stamp));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes a file and drops it from the cache. Content of the file read before the delete
+     * and offered to the cache afterwards is rejected.
+     */
+    @Override
+    public void deleteFile(String id) {
+        delegate.deleteFile(id);
+        contentCache.invalidate(keyPrefix + id);
+    }
+
+    /**
+     * Deletes files and drops them from the cache like {@link #deleteFile(String)}.
+     */
+    @Override
+    public DeleteResult deleteFiles(List<String> ids) {
+        DeleteResult result = delegate.deleteFiles(ids);
+        ids.forEach(id -> contentCache.invalidate(keyPrefix + id));
+        return result;
+    }
+
+    /**
+     * Deletes files by path prefix and drops the cached files under the prefix.
+     */
+    @Override
+    public DeleteResult deleteByPath(String path) {
+        DeleteResult result = delegate.deleteByPath(path);
+        contentCache.invalidateByPath(keyPrefix, path != null ? StorageEntity.normalizePath(path.strip()) : "");
+        return result;
+    }
+
+    private StorageEntity invalidated(StorageEntity saved) {
+        contentCache.invalidatePath(keyPrefix, StorageEntity.normalizePath(saved.getFileName()));
+        return saved;
+    }
+}
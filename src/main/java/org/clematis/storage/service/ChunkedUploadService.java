@@ -0,0 +1,239 @@
+package org.clematis.storage.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+
+import lombok.extern.java.Log;
+
+/**
+ * Resumable uploads of large files in chunks, see {@link UploadSession}.
+ * <p>
+ * A session creates a file of the declared size in a staging folder under the download
+ * folder. Every chunk is written in place at its offset with positioned writes, so chunks
+ * of the same file may be sent over parallel connections and in any order, and a chunk
+ * interrupted by a network failure is resumed from the last byte written. Once all bytes
+ * are received, the upload is committed: the file is handed to a storage service, which
+ * renames it into place if it keeps content on the same volume. The stored file and its
+ * metadata appear only on commit.
+ * <p>
+ * Sessions are kept in memory and expire when they are not used for the configured time,
+ * their files are removed with them. Files of sessions of a previous run are removed at startup.
+ */
+@Service
+@Log
+public class ChunkedUploadService {
+
+    /**
+     * Staging folder of uploads under the download folder
+     */
+    public static final String UPLOADS_FOLDER = ".uploads";
+
+    private static final String SESSION_FILE_SUFFIX = ".part";
+
+    private static final String SESSION = "Upload session ";
+
+    private static final String PARENT_FOLDER = "..";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path uploadsFolder;
+
+    private final long maxFileSize;
+
+    private final Cache<String, UploadSession> sessions;
+
+    public ChunkedUploadService(@Value("${clematis.storage.download.folder}") String downloadFolder,
+                                @Value("${clematis.storage.chunked.max-file-size:10GB}") DataSize maxFileSize,
+                                @Value("${clematis.storage.chunked.session-ttl:24h}") Duration sessionTtl) {
+        this.uploadsFolder = Path.of(downloadFolder, UPLOADS_FOLDER).toAbsolutePath().normalize();
+        this.maxFileSize = maxFileSize.toBytes();
+        this.sessions = Caffeine.newBuilder()
+            .expireAfterAccess(sessionTtl)
+            .scheduler(Scheduler.systemScheduler())
+            .removalListener((String id, UploadSession session, RemovalCause cause) -> discard(session, cause))
+            .build();
+        removeStaleFiles();
+        log.info("Chunked uploads max file size: " + maxFileSize + ", session ttl: " + sessionTtl);
+    }
+
+    /**
+     * Starts an upload and allocates its file.
+     *
+     * @param store       store the file is going to be committed to
+     * @param fileName    name of the file
+     * @param contentType MIME type of the file, may be null
+     * @param path        optional storage path of the file
+     * @param size        size of the file in bytes
+     * @return new session
+     * @throws IllegalArgumentException if the name or the path are invalid, or the size is out of limits
+     * @throws IOException              if the file can't be allocated
+     */
+    public UploadSession create(String store, String fileName, String contentType, String path, long size)
+        throws IOException {
+        if (size < 0 || size > maxFileSize) {
+            throw new IllegalArgumentException("File size must be from 0 to " + maxFileSize + ": " + size);
+        }
+        if (!StringUtils.hasText(fileName) || StringUtils.cleanPath(fileName).contains(PARENT_FOLDER)
+            || (path != null && StringUtils.cleanPath(path).contains(PARENT_FOLDER))) {
+            throw new IllegalArgumentException("Filename contains invalid path sequence " + path + "/" + fileName);
+        }
+        String id = UUID.randomUUID().toString();
+        Files.createDirectories(uploadsFolder);
+        Path file = uploadsFolder.resolve(id + SESSION_FILE_SUFFIX);
+        // the length is set up front, chunks are written in place at their offsets in any order
+        try (RandomAccessFile allocated = new RandomAccessFile(file.toFile(), "rw")) {
+            allocated.setLength(size);
+        }
+        UploadSession session = new UploadSession(id, store, fileName, contentType, path, size, file);
+        sessions.put(id, session);
+        log.info(SESSION + id + " created for " + fileName + ", size " + size);
+        return session;
+    }
+
+    /**
+     * Looks up a session of a store.
+     *
+     * @param store store of the session
+     * @param id    id of the session
+     * @return session or empty if it is unknown, expired or belongs to another store
+     */
+    public Optional<UploadSession> get(String store, String id) {
+        return Optional.ofNullable(sessions.getIfPresent(id)).filter(session -> session.store().equals(store));
+    }
+
+    /**
+     * Writes a chunk at its offset. Bytes written before a failure of the stream are kept
+     * as received, so the chunk can be resumed after them.
+     *
+     * @param session upload session
+     * @param offset  offset of the first byte of the chunk in the file
+     * @param chunk   content of the chunk, read until its end
+     * @return number of bytes written
+     * @throws IllegalArgumentException if the chunk doesn't fit in the file
+     * @throws IllegalStateException    if the upload is being committed
+     * @throws IOException              if the chunk can't be read or written
+     */
+    public long write(UploadSession session, long offset, InputStream chunk) throws IOException {
+        if (offset < 0 || offset > session.getSize()) {
+            throw new IllegalArgumentException("Offset " + offset + " is outside of the file of size "
+                + session.getSize());
+        }
+        if (!session.startWrite()) {
+            throw new IllegalStateException(SESSION + session.getId() + " is being committed");
+        }
+        long position = offset;
+        try (FileChannel channel = FileChannel.open(session.file(), StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            for (int n = chunk.read(buffer.array()); n != -1; n = chunk.read(buffer.array())) {
+                if (position + n > session.getSize()) {
+                    throw new IllegalArgumentException("Chunk at " + offset + " exceeds the file of size "
+                        + session.getSize());
+                }
+                buffer.limit(n);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                buffer.clear();
+            }
+        } finally {
+            if (position > offset) {
+                session.received(offset, position);
+            }
+            session.endWrite();
+        }
+        return position - offset;
+    }
+
+    /**
+     * Stores the uploaded file with a storage service and ends the session. The session is
+     * kept if the commit fails, so it may be retried.
+     *
+     * @param session        upload session
+     * @param storageService service storing the file
+     * @return metadata of the stored file
+     * @throws IllegalStateException if bytes are missing or chunks are being written
+     * @throws Exception             if the file can't be stored
+     */
+    public StorageEntity commit(UploadSession session, StorageService storageService) throws Exception {
+        if (!session.isComplete()) {
+            throw new IllegalStateException(SESSION + session.getId() + " is incomplete, received "
+                + session.getReceivedBytes() + " of " + session.getSize() + " bytes");
+        }
+        if (!session.startCommit()) {
+            throw new IllegalStateException(SESSION + session.getId() + " has chunks being written");
+        }
+        StorageEntity stored;
+        try {
+            stored = storageService.saveFile(session.getFileName(), session.getContentType(),
+                session.file(), session.getPath());
+        } catch (Exception e) {
+            session.endCommit();
+            throw e;
+        }
+        // the session stays committing, chunks arriving late are refused
+        sessions.invalidate(session.getId());
+        log.info(SESSION + session.getId() + " committed as " + stored.getId());
+        return stored;
+    }
+
+    /**
+     * Ends a session without storing its file.
+     *
+     * @param session upload session
+     */
+    public void abort(UploadSession session) {
+        sessions.invalidate(session.getId());
+    }
+
+    private void discard(UploadSession session, RemovalCause cause) {
+        if (session == null) {
+            return;
+        }
+        try {
+            // a committed file is gone already, unless the store copied it
+            Files.deleteIfExists(session.file());
+            log.info(SESSION + session.getId() + " removed, cause " + cause);
+        } catch (IOException e) {
+            log.warning("Failed to remove file of " + SESSION + session.getId() + ", " + e.getMessage());
+        }
+    }
+
+    private void removeStaleFiles() {
+        if (!Files.isDirectory(uploadsFolder)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(uploadsFolder)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SESSION_FILE_SUFFIX)).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            log.warning("Failed to remove files of previous upload sessions: " + e.getMessage());
+        }
+    }
+}
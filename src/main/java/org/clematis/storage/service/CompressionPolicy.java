@@ -0,0 +1,108 @@
+package org.clematis.storage.service;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+import org.clematis.storage.content.ContentCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import lombok.extern.java.Log;
+
+/**
+ * Decides which uploaded files are stored compressed, shared by all storage services.
+ * <p>
+ * Files of types which are compressed already, like images, video, audio and archives,
+ * are stored as is, as compressing them again costs CPU time and saves nothing. So are
+ * small files, for which the codec framing outweighs the savings, and files of unknown type.
+ */
+@Component
+@Log
+public class CompressionPolicy {
+
+    /**
+     * Content types which are compressed by their format, wildcards match a whole top-level type
+     */
+    static final String DEFAULT_EXCLUDED_TYPES = "image/png,image/jpeg,image/gif,image/webp,image/avif,image/heic,"
+        + "video/*,audio/*,"
+        + "application/zip,application/gzip,application/x-gzip,application/zstd,application/x-bzip2,"
+        + "application/x-xz,application/x-7z-compressed,application/vnd.rar,application/java-archive,"
+        + "application/pdf,application/octet-stream,font/woff,font/woff2,"
+        + "application/vnd.openxmlformats-officedocument.wordprocessingml.document,"
+        + "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet,"
+        + "application/vnd.openxmlformats-officedocument.presentationml.presentation";
+
+    private final ContentCodec codec;
+
+    private final int level;
+
+    private final long minSize;
+
+    private final List<MediaType> excludedTypes;
+
+    public CompressionPolicy(@Value("${clematis.storage.compression.enabled:false}") boolean enabled,
+                             @Value("${clematis.storage.compression.codec:gzip}") String coding,
+                             @Value("${clematis.storage.compression.level:6}") int level,
+                             @Value("${clematis.storage.compression.min-size:1KB}") DataSize minSize,
+                             @Value("${clematis.storage.compression.excluded-types:" + DEFAULT_EXCLUDED_TYPES + "}")
+                             List<String> excludedTypes) {
+        this.codec = enabled ? ContentCodec.forCoding(coding)
+            .orElseThrow(() -> new IllegalArgumentException("Unsupported compression codec: " + coding)) : null;
+        this.level = level;
+        this.minSize = minSize.toBytes();
+        this.excludedTypes = excludedTypes.stream()
+            .map(String::trim)
+            .filter(type -> !type.isEmpty())
+            .map(MediaType::parseMediaType)
+            .toList();
+        log.info("Compression at rest enabled: " + enabled + ", codec: " + coding + ", level: " + level
+            + ", min size: " + minSize);
+    }
+
+    /**
+     * Chooses the codec to store a file with.
+     *
+     * @param contentType declared content type of the file, may be null
+     * @param size        size of the file, or -1 if it is not known before the file is read
+     * @return codec or empty if the file is stored as is
+     */
+    public Optional<ContentCodec> codecFor(String contentType, long size) {
+        if (codec == null || contentType == null || (size >= 0 && size < minSize)) {
+            return Optional.empty();
+        }
+        return isCompressible(contentType) ? Optional.of(codec) : Optional.empty();
+    }
+
+    /**
+     * Tells whether content of a type is worth compressing, regardless of whether compression
+     * at rest is enabled, e.g. to choose how to write it into an archive.
+     *
+     * @param contentType declared content type, may be null
+     * @return false for types which are compressed by their format, unknown and invalid types
+     */
+    public boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        MediaType mediaType;
+        try {
+            mediaType = MediaType.parseMediaType(contentType.toLowerCase(Locale.ROOT));
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+        return excludedTypes.stream().noneMatch(type -> type.includes(mediaType));
+    }
+
+    /**
+     * Returns the compression level, from 1 (fastest) to 9 (smallest).
+     *
+     * @return compression level
+     */
+    public int getLevel() {
+        return level;
+    }
+}
@@ -0,0 +1,311 @@
+package org.clematis.storage.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.clematis.storage.content.ByteBufferStorageContent;
+import org.clematis.storage.content.DecodedStorageContent;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.util.unit.DataSize;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.java.Log;
+
+/**
+ * In-memory cache of small stored files, shared by all storage services.
+ * <p>
+ * The cache is bounded by the total size of the cached content and uses the W-TinyLFU
+ * admission and eviction policy of Caffeine: a file is admitted only if it is requested more
+ * often than the one it would evict, so a scan over many cold files doesn't flush hot ones.
+ * Files larger than the per-object limit are never cached. The content may be kept in direct
+ * buffers, outside of the heap, so a large cache doesn't add to garbage collection pauses.
+ * <p>
+ * Cached files are indexed by their logical paths, so files replaced under a path or deleted
+ * by a path prefix are dropped without scanning the cache. Invalidations are stamped with
+ * a logical clock, content read before an invalidation of its file, path or store is not cached.
+ * <p>
+ * Hits, misses, evictions and the cached bytes are published as
+ * {@code clematis.storage.content.cache.*} metrics.
+ */
+@Component
+@Log
+public class ContentCache {
+
+    private static final String METRIC_PREFIX = "clematis.storage.content.cache";
+
+    /**
+     * Invalidations of files and paths are recorded in stripes of their hashes
+     */
+    private static final int STRIPES = 1024;
+
+    private final Cache<String, StorageContent> cache;
+
+    /**
+     * Keys of cached files by store key prefix and logical path, ordered for prefix lookups
+     */
+    private final NavigableMap<String, Set<String>> keysByPath = new ConcurrentSkipListMap<>();
+
+    /**
+     * Time of invalidations, advanced by every invalidation
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    private final AtomicLongArray keyStripes = new AtomicLongArray(STRIPES);
+
+    private final AtomicLongArray pathStripes = new AtomicLongArray(STRIPES);
+
+    private final Map<String, AtomicLong> storeInvalidations = new ConcurrentHashMap<>();
+
+    /**
+     * Key prefixes of the decorated stores
+     */
+    private final Set<String> keyPrefixes = ConcurrentHashMap.newKeySet();
+
+    private final boolean enabled;
+
+    private final long maxObjectSize;
+
+    private final boolean offHeap;
+
+    public ContentCache(@Value("${clematis.storage.cache.enabled:false}") boolean enabled,
+                        @Value("${clematis.storage.cache.max-size:64MB}") DataSize maxSize,
+                        @Value("${clematis.storage.cache.max-object-size:64KB}") DataSize maxObjectSize,
+                        @Value("${clematis.storage.cache.off-heap:false}") boolean offHeap,
+                        MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxObjectSize = Math.min(maxObjectSize.toBytes(), maxSize.toBytes());
+        this.offHeap = offHeap;
+        this.cache = Caffeine.newBuilder()
+            .maximumWeight(maxSize.toBytes())
+            .weigher((String key, StorageContent content) ->
+                Math.toIntExact(content.getEncoded().orElse(content).length()))
+            // the path index is updated by the thread removing an entry
+            .executor(Runnable::run)
+            .removalListener(this::onRemoval)
+            .recordStats()
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, METRIC_PREFIX);
+        Gauge.builder(METRIC_PREFIX + ".bytes", cache,
+                c -> c.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L))
+            .description("Bytes of content held by the cache")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        log.info("Content cache enabled: " + enabled + ", max size: " + maxSize
+            + ", max object size: " + maxObjectSize + ", off-heap: " + offHeap);
+    }
+
+    /**
+     * Puts the cache in front of a storage service, if the cache is enabled.
+     *
+     * @param storageService service to read files from
+     * @param store          name of the store, keeps the files of different services apart
+     * @return caching service or the given one if the cache is disabled
+     */
+    public StorageService decorate(StorageService storageService, String store) {
+        if (!enabled) {
+            return storageService;
+        }
+        keyPrefixes.add(keyPrefix(store));
+        return new CachingStorageService(storageService, store, this);
+    }
+
+    /**
+     * Drops deleted files from the caches of every store, the tiered store serves the files
+     * of the file store under keys of its own.
+     *
+     * @param event files deleted by their ids or by a path prefix
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onFilesDeleted(FilesDeletedEvent event) {
+        for (String keyPrefix : keyPrefixes) {
+            if (event.pathPrefix() != null) {
+                invalidateByPath(keyPrefix, event.pathPrefix());
+            } else {
+                event.ids().forEach(id -> invalidate(keyPrefix + id));
+            }
+        }
+    }
+
+    /**
+     * Returns the prefix of the keys of a store.
+     *
+     * @param store name of the store
+     * @return key prefix
+     */
+    static String keyPrefix(String store) {
+        return store + ":";
+    }
+
+    /**
+     * Returns cached content.
+     *
+     * @param key key of the file
+     * @return cached content or empty on a miss
+     */
+    public Optional<StorageContent> get(String key) {
+        return Optional.ofNullable(cache.getIfPresent(key));
+    }
+
+    /**
+     * Returns the current time of invalidations, taken before content is read from a store,
+     * so the content can't be cached if it is invalidated while it is read.
+     *
+     * @return stamp to pass to {@link #put}
+     */
+    public long stamp() {
+        return clock.get();
+    }
+
+    /**
+     * Checks the per-object size limit.
+     *
+     * @param length size of the content in bytes
+     * @return true if content of this size may be cached
+     */
+    public boolean admits(long length) {
+        return length <= maxObjectSize;
+    }
+
+    /**
+     * Reads the whole content into a buffer and offers it to the cache. The cache
+     * policy may still reject it in favour of more frequently used files. Content
+     * stored compressed is kept compressed and uncompressed when it is read.
+     * <p>
+     * The content is not cached if the file, its path or a path prefix of its store was
+     * invalidated since the stamp, e.g. because it was deleted while it was read.
+     *
+     * @param keyPrefix prefix of the keys of the store
+     * @param id        id of the file
+     * @param content   content read from the storage
+     * @param stamp     stamp taken before the content was read, see {@link #stamp()}
+     * @return content served from memory
+     * @throws IOException if the content can't be read
+     */
+    public StorageContent put(String keyPrefix, String id, StorageContent content, long stamp) throws IOException {
+        StorageContent stored = content.getEncoded().orElse(content);
+        int length = Math.toIntExact(stored.length());
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        try (InputStream in = stored.getInputStream()) {
+            buffer.put(in.readNBytes(length));
+        }
+        buffer.flip();
+        StorageContent cached = DecodedStorageContent.of(new ByteBufferStorageContent(content.getMetadata(), buffer));
+        String key = keyPrefix + id;
+        String pathKey = keyPrefix + pathOf(content.getMetadata());
+        // indexed before the check, so an invalidation of the path either finds the key or rejects it
+        keysByPath.computeIfAbsent(pathKey, k -> ConcurrentHashMap.newKeySet()).add(key);
+        StorageContent current = cache.asMap().compute(key, (k, previous) ->
+            invalidatedAt(keyStripes, key) <= stamp && invalidatedAt(pathStripes, pathKey) <= stamp
+                && storeInvalidatedAt(keyPrefix) <= stamp ? cached : previous);
+        if (current == null) {
+            unindex(pathKey, key);
+        }
+        return cached;
+    }
+
+    /**
+     * Drops a file from the cache.
+     *
+     * @param key key of the file
+     */
+    public void invalidate(String key) {
+        invalidated(keyStripes, key);
+        cache.invalidate(key);
+    }
+
+    /**
+     * Drops all files of a store with the given logical path, whose content
+     * is replaced when a file with the same path is uploaded again.
+     *
+     * @param keyPrefix prefix of the keys of the store
+     * @param path      normalized logical path
+     */
+    public void invalidatePath(String keyPrefix, String path) {
+        String pathKey = keyPrefix + path;
+        invalidated(pathStripes, pathKey);
+        Set<String> keys = keysByPath.remove(pathKey);
+        if (keys != null) {
+            keys.forEach(cache::invalidate);
+        }
+    }
+
+    /**
+     * Drops all files of a store whose logical paths start with a prefix, found in the index
+     * of cached paths. Content of the store being read meanwhile is not cached.
+     *
+     * @param keyPrefix  prefix of the keys of the store
+     * @param pathPrefix normalized path prefix, empty for all files of the store
+     */
+    public void invalidateByPath(String keyPrefix, String pathPrefix) {
+        storeInvalidations.computeIfAbsent(keyPrefix, k -> new AtomicLong())
+            .accumulateAndGet(clock.incrementAndGet(), Math::max);
+        String from = keyPrefix + pathPrefix;
+        Map<String, Set<String>> paths = keysByPath.subMap(from, true, from + Character.MAX_VALUE, true);
+        for (String pathKey : paths.keySet()) {
+            Set<String> keys = keysByPath.remove(pathKey);
+            if (keys != null) {
+                keys.forEach(cache::invalidate);
+            }
+        }
+    }
+
+    private long storeInvalidatedAt(String keyPrefix) {
+        AtomicLong invalidatedAt = storeInvalidations.get(keyPrefix);
+        return invalidatedAt != null ? invalidatedAt.get() : 0;
+    }
+
+    private void invalidated(AtomicLongArray stripes, String key) {
+        stripes.accumulateAndGet(stripe(key), clock.incrementAndGet(), Math::max);
+    }
+
+    private static long invalidatedAt(AtomicLongArray stripes, String key) {
+        return stripes.get(stripe(key));
+    }
+
+    private static int stripe(String key) {
+        return Math.floorMod(key.hashCode(), STRIPES);
+    }
+
+    /**
+     * Removes a key from the index when its entry leaves the cache. A replaced entry
+     * is indexed by the put replacing it.
+     */
+    private void onRemoval(String key, StorageContent content, RemovalCause cause) {
+        if (key != null && content != null && cause != RemovalCause.REPLACED) {
+            unindex(key.substring(0, key.indexOf(':') + 1) + pathOf(content.getMetadata()), key);
+        }
+    }
+
+    private void unindex(String pathKey, String key) {
+        keysByPath.computeIfPresent(pathKey, (k, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * Logical path of a cached file, stores may leave the normalized path of their metadata unset.
+     */
+    private static String pathOf(StorageEntity metadata) {
+        return metadata.getPath() != null ? metadata.getPath() : StorageEntity.normalizePath(metadata.getFileName());
+    }
+}
@@ -0,0 +1,287 @@
+package org.clematis.storage.service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.clematis.storage.model.ContentReference;
+import org.clematis.storage.model.ContentUsage;
+import org.clematis.storage.repository.ContentReferenceRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.java.Log;
+
+/**
+ * Reference counting of deduplicated content shared by storage services.
+ * <p>
+ * Content is identified by its SHA-256 within a store. The first upload stores the content,
+ * later uploads with the same checksum only add a reference. The content is deleted when
+ * its last reference is released. Storing and deleting the content happen in the same
+ * transaction as the reference change, so the row lock on the reference serializes them
+ * with concurrent uploads of the same content. Counts of new content are created in
+ * transactions of their own, so concurrent first uploads don't fail on their keys.
+ * <p>
+ * Stored and referenced bytes and the deduplication ratio are published as gauges
+ * tagged with the store name. The sums are read from the database at most once per
+ * the metrics ttl, not on every scrape.
+ */
+@Service
+@Log
+public class ContentReferenceService {
+
+    /**
+     * Store of {@link DbStorageServiceImpl}
+     */
+    public static final String DB_STORE = "db";
+
+    /**
+     * Store of {@link FileStorageServiceImpl}
+     */
+    public static final String FS_STORE = "fs";
+
+    /**
+     * Store of {@link PackStorageServiceImpl}, its content is never deduplicated
+     */
+    public static final String PACK_STORE = "pack";
+
+    /**
+     * Store of {@link TieredStorageServiceImpl}, its files are deduplicated with the filesystem store
+     */
+    public static final String TIERED_STORE = "tiered";
+
+    private static final String STORE_TAG = "store";
+
+    /**
+     * Attempts to reference content whose count is deleted by concurrent releases
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final ContentReferenceRepository contentReferenceRepository;
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Creates reference counts apart from the transaction of the upload
+     */
+    private final TransactionTemplate newTransaction;
+
+    /**
+     * Sums published by the gauges per store, kept for the metrics ttl
+     */
+    private final Cache<String, Usage> usages;
+
+    public ContentReferenceService(ContentReferenceRepository contentReferenceRepository,
+                                   MeterRegistry meterRegistry,
+                                   PlatformTransactionManager transactionManager,
+                                   @Value("${clematis.storage.dedup.metrics-ttl:30s}") Duration metricsTtl) {
+        this.contentReferenceRepository = contentReferenceRepository;
+        this.meterRegistry = meterRegistry;
+        this.newTransaction = new TransactionTemplate(transactionManager);
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.usages = Caffeine.newBuilder()
+            .expireAfterWrite(metricsTtl)
+            .build();
+        for (String store : new String[]{DB_STORE, FS_STORE}) {
+            Gauge.builder("clematis.storage.dedup.stored.bytes", this, s -> s.getUsage(store).stored())
+                .description("Bytes physically stored for deduplicated content")
+                .baseUnit("bytes")
+                .tag(STORE_TAG, store)
+                .register(meterRegistry);
+            Gauge.builder("clematis.storage.dedup.referenced.bytes", this, s -> s.getUsage(store).referenced())
+                .description("Bytes of deduplicated content as seen by clients")
+                .baseUnit("bytes")
+                .tag(STORE_TAG, store)
+                .register(meterRegistry);
+            Gauge.builder("clematis.storage.dedup.ratio", this, s -> s.getUsage(store).ratio())
+                .description("Referenced bytes per stored byte of deduplicated content")
+                .tag(STORE_TAG, store)
+                .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Adds a reference to content. If the content is not stored yet, the given operation
+     * stores it within the transaction. Concurrent uploads of the same content wait for
+     * the transaction storing it and then share it.
+     *
+     * @param store        name of the store
+     * @param checksum     SHA-256 of the content
+     * @param size         content size in bytes
+     * @param storeContent stores the content, called only for the first reference
+     * @return true if the content was already stored and the caller's copy is not needed
+     * @throws IOException if the content can't be stored
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public boolean acquire(String store, String checksum, long size, ContentOperation storeContent)
+        throws IOException {
+        String id = referenceId(store, checksum);
+        increment(id, store, checksum, size);
+        if (contentReferenceRepository.findRefCount(id) > 1) {
+            log.info("Content is already stored: " + id);
+            Counter.builder("clematis.storage.dedup.hits")
+                .description("Uploads which reused stored content")
+                .tag(STORE_TAG, store)
+                .register(meterRegistry)
+                .increment();
+            return true;
+        }
+        storeContent.run();
+        return false;
+    }
+
+    /**
+     * Adds a reference, locking the count until the transaction ends. A missing count is created
+     * first with no references in a transaction of its own, so uploads racing to create it never
+     * fail on its key, and the update never misses a row, which would lock the gap of the key.
+     */
+    private void increment(String id, String store, String checksum, long size) {
+        for (int attempt = 0; ; attempt++) {
+            if (!contentReferenceRepository.existsById(id)) {
+                try {
+                    newTransaction.executeWithoutResult(status ->
+                        contentReferenceRepository.insertUnreferenced(id, store, checksum, size));
+                } catch (DataIntegrityViolationException e) {
+                    log.info("Content reference created concurrently: " + id);
+                }
+            }
+            if (contentReferenceRepository.increment(id) > 0) {
+                return;
+            }
+            // the count was deleted with its last reference meanwhile
+            if (attempt == MAX_ATTEMPTS) {
+                throw new IllegalStateException("Failed to reference content " + id);
+            }
+        }
+    }
+
+    /**
+     * Removes a reference from content. If it was the last one, the given operation
+     * deletes the content within the transaction.
+     *
+     * @param store         name of the store
+     * @param checksum      SHA-256 of the content
+     * @param deleteContent deletes the content, called only when the last reference is released
+     * @return true if the content was deleted
+     * @throws IOException if the content can't be deleted
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public boolean release(String store, String checksum, ContentOperation deleteContent) throws IOException {
+        String id = referenceId(store, checksum);
+        contentReferenceRepository.decrement(id);
+        if (contentReferenceRepository.deleteUnreferenced(id) > 0) {
+            log.info("Last reference released, deleting content: " + id);
+            deleteContent.run();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the references of many deleted files at once, one update per distinct content.
+     * The caller deletes the returned content within the same transaction or after it.
+     *
+     * @param store  name of the store
+     * @param usages number of deleted files per content
+     * @return checksums of the content which is not referenced any more
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public List<String> releaseAll(String store, List<ContentUsage> usages) {
+        List<String> unreferenced = new ArrayList<>();
+        for (ContentUsage usage : usages) {
+            String id = referenceId(store, usage.contentId());
+            contentReferenceRepository.decrementBy(id, usage.count());
+            if (contentReferenceRepository.deleteUnreferenced(id) > 0) {
+                unreferenced.add(usage.contentId());
+            }
+        }
+        log.info("Released " + usages.size() + " contents, unreferenced: " + unreferenced.size());
+        return unreferenced;
+    }
+
+    /**
+     * Returns which of the given contents are referenced.
+     *
+     * @param store     name of the store
+     * @param checksums SHA-256 of the contents
+     * @return checksums of the referenced contents
+     */
+    public Set<String> findReferenced(String store, Collection<String> checksums) {
+        Set<String> referenced = new HashSet<>();
+        contentReferenceRepository.findAllById(checksums.stream().map(c -> referenceId(store, c)).toList())
+            .forEach(reference -> referenced.add(reference.getChecksum()));
+        return referenced;
+    }
+
+    /**
+     * Returns the number of referenced bytes per stored byte, 1 if nothing is stored.
+     * The sums are read from the database, unlike those of the gauges.
+     *
+     * @param store name of the store
+     * @return deduplication ratio
+     */
+    public double getRatio(String store) {
+        return readUsage(store).ratio();
+    }
+
+    /**
+     * Returns the sums of a store as read within the metrics ttl.
+     */
+    private Usage getUsage(String store) {
+        return usages.get(store, this::readUsage);
+    }
+
+    private Usage readUsage(String store) {
+        return new Usage(contentReferenceRepository.sumStoredBytes(store),
+            contentReferenceRepository.sumReferencedBytes(store));
+    }
+
+    private static String referenceId(String store, String checksum) {
+        return store + ":" + checksum;
+    }
+
+    /**
+     * Operation on stored content run within a reference count transaction
+     */
+    @FunctionalInterface
+    public interface ContentOperation {
+
+        /**
+         * Runs the operation.
+         *
+         * @throws IOException if the content can't be accessed
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * Bytes stored for the deduplicated content of a store and referenced by its files
+     *
+     * @param stored     sum of content sizes
+     * @param referenced sum of content sizes multiplied by their reference counts
+     */
+    private record Usage(long stored, long referenced) {
+
+        /**
+         * @return referenced bytes per stored byte, 1 if nothing is stored
+         */
+        double ratio() {
+            return stored > 0 ? (double) referenced / stored : 1;
+        }
+    }
+}
@@ -2,58 +2,343 @@ package org.clematis.storage.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import org.clematis.storage.content.BlobStorageContent;
+import org.clematis.storage.content.ChecksumInputStream;
+import org.clematis.storage.content.CompressedInputStream;
+import org.clematis.storage.content.ContentCodec;
+import org.clematis.storage.content.DecodedStorageContent;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.PathKey;
 import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.repository.BlobContentRepository;
 import org.clematis.storage.repository.StorageEntityRepository;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import lombok.extern.java.Log;
 
 /**
  * Storage service implementation that persists uploaded files in a database.
  * <p>
- * File contents are stored directly in the {@link StorageEntity} table as BLOBs,
+ * File contents are stored as BLOBs in a separate table, see {@link org.clematis.storage.model.StorageBlob},
  * while the logical path (folder + filename) is stored in the entity's path field.
+ * Listings and metadata lookups never read the content table.
+ * Content may be stored compressed, as decided by the {@link CompressionPolicy}.
  */
 @Service
 @Log
 public class DbStorageServiceImpl implements StorageService {
 
+    /**
+     * Maximum number of IDs bound to a single IN clause
+     */
+    private static final int IDS_PER_STATEMENT = 1000;
+
     private final StorageEntityRepository storageEntityRepository;
 
+    private final BlobContentRepository blobContentRepository;
+
+    private final ContentReferenceService contentReferenceService;
+
+    private final MetadataCache metadataCache;
+
+    private final CompressionPolicy compressionPolicy;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final TransactionTemplate transactionTemplate;
+
     @Value("${clematis.storage.max_file_size:104857600}")
     private long maxFileSize;
 
-    public DbStorageServiceImpl(StorageEntityRepository storageEntityRepository) {
+    /**
+     * Store identical content once and share it by reference counts
+     */
+    @Value("${clematis.storage.dedup.enabled:false}")
+    private boolean dedupEnabled;
+
+    /**
+     * Number of statements sent to the database at once, the same as Hibernate uses
+     */
+    @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:50}")
+    private int jdbcBatchSize;
+
+    public DbStorageServiceImpl(StorageEntityRepository storageEntityRepository,
+                                BlobContentRepository blobContentRepository,
+                                ContentReferenceService contentReferenceService,
+                                MetadataCache metadataCache,
+                                CompressionPolicy compressionPolicy,
+                                ApplicationEventPublisher eventPublisher,
+                                TransactionTemplate transactionTemplate) {
         this.storageEntityRepository = storageEntityRepository;
+        this.blobContentRepository = blobContentRepository;
+        this.contentReferenceService = contentReferenceService;
+        this.metadataCache = metadataCache;
+        this.compressionPolicy = compressionPolicy;
+        this.eventPublisher = eventPublisher;
+        this.transactionTemplate = transactionTemplate;
     }
 
     /**
      * Saves a single uploaded file into the database.
+     * Checks size limits before the content is read.
+     */
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public StorageEntity saveAttachment(MultipartFile file, String path) throws IOException {
+        log.info("Saving file to " + path);
+        // Validate size
+        if (file.getSize() > maxFileSize) {
+            log.severe("File size exceeds max allowed: " + file.getSize() + " > " + maxFileSize);
+            throw new MaxUploadSizeExceededException(file.getSize());
+        }
+        try (InputStream content = file.getInputStream()) {
+            return saveAttachment(file.getOriginalFilename(), file.getContentType(), content, file.getSize(), path);
+        }
+    }
+
+    /**
+     * Saves a single file read from a stream into the database.
      * Validates file name, checks size limits, normalizes path separators,
-     * and stores binary contents directly.
+     * and streams binary contents into the BLOB, so only a fixed size buffer
+     * is held in memory regardless of the file size.
+     */
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public StorageEntity saveAttachment(String originalFileName,
+                                        String contentType,
+                                        InputStream content,
+                                        String path) throws IOException {
+        return saveAttachment(originalFileName, contentType, content, -1, path);
+    }
+
+    /**
+     * Saves a file from the local disk by streaming it into the BLOB, the content has to be
+     * copied into the database anyway. The size limit of the database store applies.
+     */
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public StorageEntity saveFile(String fileName, String contentType, Path file, String path) throws IOException {
+        try (InputStream content = Files.newInputStream(file)) {
+            return saveAttachment(fileName, contentType, content, Files.size(file), path);
+        }
+    }
+
+    /**
+     * Saves a single file read from a stream, compressing it if the size, when known,
+     * and the content type are worth it. Deduplicated content is never compressed.
      */
     @SuppressWarnings("checkstyle:MultipleStringLiterals")
+    private StorageEntity saveAttachment(String originalFileName,
+                                         String contentType,
+                                         InputStream content,
+                                         long size,
+                                         String path) throws IOException {
+
+        log.info("Streaming file to " + path);
+        String destination = destinationOf(originalFileName, path);
+
+        // Persist metadata to get the id, the row is written with the final size on flush
+        StorageEntity attachment = storageEntityRepository.save(
+            new StorageEntity(ContentReferenceService.DB_STORE, destination, contentType)
+        );
+
+        // The driver reads the stream while binding it, the size limit is enforced while reading
+        ChecksumInputStream checksumStream = new ChecksumInputStream(content, maxFileSize);
+        Optional<ContentCodec> codec = dedupEnabled ? Optional.empty() : compressionPolicy.codecFor(contentType, size);
+        if (codec.isPresent()) {
+            try (CompressedInputStream compressed = codec.get()
+                .encode(StreamUtils.nonClosing(checksumStream), compressionPolicy.getLevel())) {
+                blobContentRepository.writeContent(attachment.getId(), compressed);
+                attachment.setContentEncoding(codec.get().getCoding());
+                attachment.setEncodedSize(compressed.getSize());
+            }
+        } else {
+            blobContentRepository.writeContent(attachment.getId(), checksumStream);
+        }
+
+        attachment.setSize(checksumStream.getSize());
+        attachment.setChecksum(checksumStream.getChecksum());
+        attachment.setLastModified(Instant.now());
+
+        if (dedupEnabled) {
+            // Share the BLOB with identical content, or keep this one under the checksum
+            String checksum = checksumStream.getChecksum();
+            attachment.setContentId(checksum);
+            boolean shared = contentReferenceService.acquire(ContentReferenceService.DB_STORE,
+                checksum, attachment.getSize(),
+                () -> blobContentRepository.renameContent(attachment.getId(), checksum));
+            if (shared) {
+                blobContentRepository.deleteContent(attachment.getId());
+            }
+        }
+        metadataCache.invalidate(ContentReferenceService.DB_STORE, attachment.getId());
+        log.info("Metadata saved: " + attachment);
+        return attachment;
+    }
+
+    /**
+     * Saves all uploaded files in a single transaction and returns a list of stored entities.
+     * If any file fails, a RuntimeException is thrown and none of the files is kept.
+     * <p>
+     * Metadata rows are inserted by {@code saveAll} in JDBC batches and the BLOBs in batches
+     * of the same size, instead of an insert, an update and a BLOB insert per file, see
+     * {@link #writeBatch}. Deduplicated files are saved one by one, as each of them
+     * updates a shared reference count.
+     */
     @Override
-    @SuppressFBWarnings("NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE")
-    public StorageEntity saveAttachment(MultipartFile file, String path) throws IOException {
+    @Transactional(rollbackFor = Exception.class)
+    public List<StorageEntity> saveAttachments(MultipartFile[] files, String path) {
+        log.info("Saving " + files.length + " files to " + path);
+        List<StorageEntity> attachments = new ArrayList<>(files.length);
+        for (MultipartFile file : files) {
+            try {
+                attachments.add(dedupEnabled ? saveAttachment(file, path) : describe(file, path));
+            } catch (IOException e) {
+                log.log(java.util.logging.Level.SEVERE, e.getMessage());
+                throw new RuntimeException("Failed to save attachment: " + file.getOriginalFilename(), e);
+            }
+        }
+        return dedupEnabled ? attachments : writeBatch(Arrays.asList(files), attachments);
+    }
 
-        log.info("Saving file to " + path);
+    /**
+     * Saves the files of an uploaded batch like {@link #saveAttachments}, with a result per file:
+     * files with invalid names or over the size limit fail on their own, the others are saved
+     * in one transaction and all fail if it does. Deduplicated files are left to the
+     * {@link BatchUploadService}.
+     */
+    @Override
+    public Optional<List<UploadResult>> saveBatch(MultipartFile[] files, String path) {
+        if (dedupEnabled) {
+            return Optional.empty();
+        }
+        log.info("Saving a batch of " + files.length + " files to " + path);
+        UploadResult[] results = new UploadResult[files.length];
+        List<Integer> accepted = new ArrayList<>(files.length);
+        List<StorageEntity> attachments = new ArrayList<>(files.length);
+        for (int i = 0; i < files.length; i++) {
+            try {
+                attachments.add(describe(files[i], path));
+                accepted.add(i);
+            } catch (IOException | RuntimeException e) {
+                log.warning("Failed to save " + files[i].getOriginalFilename() + ": " + e.getMessage());
+                results[i] = new UploadResult(files[i].getOriginalFilename(), null, e);
+            }
+        }
+        List<MultipartFile> batch = accepted.stream().map(i -> files[i]).toList();
+        try {
+            List<StorageEntity> saved = Objects.requireNonNull(
+                transactionTemplate.execute(status -> writeBatch(batch, attachments)));
+            for (int i = 0; i < accepted.size(); i++) {
+                results[accepted.get(i)] = new UploadResult(batch.get(i).getOriginalFilename(), saved.get(i), null);
+            }
+        } catch (RuntimeException e) {
+            log.log(java.util.logging.Level.SEVERE, "Failed to save a batch of " + batch.size() + " files", e);
+            for (int i = 0; i < accepted.size(); i++) {
+                results[accepted.get(i)] = new UploadResult(batch.get(i).getOriginalFilename(), null, e);
+            }
+        }
+        return Optional.of(Arrays.asList(results));
+    }
+
+    /**
+     * Inserts the metadata rows of described files by {@code saveAll} in JDBC batches and streams
+     * their BLOBs in batches of the same size. Every file is read once: its size and checksum are
+     * computed while its BLOB is written, compressed if so described, and set on the metadata with
+     * the compressed size before the rows are flushed.
+     */
+    private List<StorageEntity> writeBatch(List<MultipartFile> files, List<StorageEntity> attachments) {
+        // ids are generated without a round trip, the rows are inserted in batches on flush
+        List<StorageEntity> saved = storageEntityRepository.saveAll(attachments);
+
+        Map<String, InputStreamSource> contents = new LinkedHashMap<>();
+        Map<String, ChecksumInputStream> checksums = new HashMap<>();
+        Map<String, CompressedInputStream> compressed = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            String id = saved.get(i).getId();
+            MultipartFile file = files.get(i);
+            Optional<ContentCodec> codec = ContentCodec.forCoding(saved.get(i).getContentEncoding());
+            contents.put(id, () -> {
+                ChecksumInputStream in = new ChecksumInputStream(file.getInputStream(), maxFileSize);
+                checksums.put(id, in);
+                if (codec.isEmpty()) {
+                    return in;
+                }
+                CompressedInputStream encoded = codec.get().encode(in, compressionPolicy.getLevel());
+                compressed.put(id, encoded);
+                return encoded;
+            });
+        }
+        try {
+            blobContentRepository.writeContents(contents, jdbcBatchSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (StorageEntity attachment : saved) {
+            ChecksumInputStream in = checksums.get(attachment.getId());
+            attachment.setSize(in.getSize());
+            attachment.setChecksum(in.getChecksum());
+            Optional.ofNullable(compressed.get(attachment.getId()))
+                .ifPresent(encoded -> attachment.setEncodedSize(encoded.getSize()));
+            metadataCache.invalidate(ContentReferenceService.DB_STORE, attachment.getId());
+        }
+        log.info("Metadata saved for " + saved.size() + " files");
+        return saved;
+    }
+
+    /**
+     * Builds metadata of an uploaded file before its content is read. The size is taken
+     * from the upload to choose the compression, the size and the checksum of the content
+     * are set while it is written.
+     */
+    private StorageEntity describe(MultipartFile file, String path) throws IOException {
+        if (file.getSize() > maxFileSize) {
+            log.severe("File size exceeds max allowed: " + file.getSize() + " > " + maxFileSize);
+            throw new MaxUploadSizeExceededException(file.getSize());
+        }
+        StorageEntity attachment = new StorageEntity(ContentReferenceService.DB_STORE,
+            destinationOf(file.getOriginalFilename(), path), file.getContentType());
+        attachment.setSize(file.getSize());
+        compressionPolicy.codecFor(file.getContentType(), attachment.getSize())
+            .ifPresent(codec -> attachment.setContentEncoding(codec.getCoding()));
+        attachment.setLastModified(Instant.now());
+        return attachment;
+    }
+
+    /**
+     * Validates the file name and builds the logical path: "some/path/file.ext" or just "file.ext".
+     */
+    private static String destinationOf(String originalFileName, String path) throws IOException {
         // Clean the filename to avoid path traversal attempts
         String fileName = StringUtils.cleanPath(
-            Objects.requireNonNull(file.getOriginalFilename(), "Original filename is null")
+            Objects.requireNonNull(originalFileName, "Original filename is null")
         );
 
-        // Build the logical path: "some/path/file.ext" or just "file.ext"
         String additionalPath = (path != null && !path.isEmpty()) ? path : "";
         log.info("Normalized path: " + additionalPath);
 
@@ -66,70 +351,129 @@ public class DbStorageServiceImpl implements StorageService {
         if (fileName.contains("..")) {
             throw new IOException("Filename contains invalid path sequence: " + fileName);
         }
+        return destination;
+    }
 
-        // Validate size
-        if (file.getSize() > maxFileSize) {
-            log.severe("File size exceeds max allowed: " + file.getSize() + " > " + maxFileSize);
-            throw new MaxUploadSizeExceededException(file.getSize());
-        }
+    /**
+     * Returns metadata of all files of the database store, BLOBs are not fetched.
+     */
+    @Override
+    public List<StorageEntity> getAll() {
+        return storageEntityRepository.findAllMetadata(ContentReferenceService.DB_STORE);
+    }
 
-        // Create an entity with the logical path + type + bytes
-        StorageEntity attachment = new StorageEntity(
-            destination,
-            file.getContentType(),
-            file.getBytes()
-        );
-        log.info("Metadata saved: " + attachment);
-        // Persist to DB
-        return storageEntityRepository.save(attachment);
+    /**
+     * Loads metadata of a single stored file by ID through the metadata cache, the BLOB is not fetched.
+     * Files of other stores are not found.
+     */
+    @Override
+    public Optional<StorageEntity> getStorageEntity(String id) {
+        return metadataCache.get(ContentReferenceService.DB_STORE, id,
+            key -> storageEntityRepository.findMetadataById(ContentReferenceService.DB_STORE, key));
     }
 
     /**
-     * Saves all uploaded files and returns a list of stored entities.
-     * If any file fails, a RuntimeException is thrown.
+     * Opens content of a single stored file by ID. The BLOB is read on demand,
+     * only the regions which are actually transferred. Compressed content is read uncompressed.
      */
     @Override
-    public List<StorageEntity> saveAttachments(MultipartFile[] files, String path) {
-        log.info("Saving " + files.length + " files to " + path);
-        return Arrays.stream(files).map(file -> {
-            try {
-                return saveAttachment(file, path);
-            } catch (Exception e) {
-                log.log(java.util.logging.Level.SEVERE, e.getMessage());
-                throw new RuntimeException("Failed to save attachment: " + file.getOriginalFilename(), e);
-            }
-        }).toList();
+    public Optional<StorageContent> getContent(String id) {
+        return getStorageEntity(id)
+            .map(metadata -> DecodedStorageContent.of(
+                new BlobStorageContent(metadata, blobId(metadata), blobContentRepository)));
     }
 
     /**
-     * Returns all stored files from the database.
+     * Deletes a stored file by ID. Its content is deleted too, unless it is
+     * deduplicated and still referenced by other files. Files of other stores are kept.
      */
     @Override
-    public List<StorageEntity> getAll() {
-        return storageEntityRepository.findAll();
+    @Transactional
+    public void deleteFile(String id) {
+        Optional<StorageEntity> metadata = getStorageEntity(id);
+        try {
+            if (metadata.isPresent() && metadata.get().getContentId() != null) {
+                String contentId = metadata.get().getContentId();
+                contentReferenceService.release(ContentReferenceService.DB_STORE, contentId,
+                    () -> blobContentRepository.deleteContent(contentId));
+            } else {
+                blobContentRepository.deleteContent(id);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        storageEntityRepository.deleteMetadataById(ContentReferenceService.DB_STORE, id);
+        metadataCache.invalidate(ContentReferenceService.DB_STORE, id);
+        eventPublisher.publishEvent(FilesDeletedEvent.ofIds(ContentReferenceService.DB_STORE, List.of(id)));
     }
 
     /**
-     * Loads a single stored file by ID.
+     * Deletes stored files by IDs, a chunk of IDs at a time: references of deduplicated content
+     * are released with one update per content, BLOBs and metadata rows are deleted in batches
+     * and with one statement per chunk. Content is removed within the transaction,
+     * so nothing is left for a background purge.
      */
     @Override
-    public Optional<StorageEntity> getStorageEntity(String id) {
-        return storageEntityRepository.findById(id);
+    @Transactional(rollbackFor = Exception.class)
+    public DeleteResult deleteFiles(List<String> ids) {
+        log.info("Deleting files by ids: " + ids.size());
+        int deleted = 0;
+        try {
+            for (int from = 0; from < ids.size(); from += IDS_PER_STATEMENT) {
+                List<String> chunk = ids.subList(from, Math.min(from + IDS_PER_STATEMENT, ids.size()));
+                List<String> unreferenced = contentReferenceService.releaseAll(ContentReferenceService.DB_STORE,
+                    storageEntityRepository.countContentUsageByIds(ContentReferenceService.DB_STORE, chunk));
+                blobContentRepository.deleteContents(chunk, jdbcBatchSize);
+                blobContentRepository.deleteContents(unreferenced, jdbcBatchSize);
+                deleted += storageEntityRepository.deleteMetadataByIds(ContentReferenceService.DB_STORE, chunk);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ids.forEach(id -> metadataCache.invalidate(ContentReferenceService.DB_STORE, id));
+        eventPublisher.publishEvent(FilesDeletedEvent.ofIds(ContentReferenceService.DB_STORE, ids));
+        log.info("Files deleted by ids: " + deleted);
+        return new DeleteResult(deleted, null);
     }
 
     /**
-     * Deletes a stored file by ID.
+     * Deletes stored files by path prefix with a few statements regardless of their number:
+     * one for the BLOBs, one for the metadata and one per released deduplicated content.
      */
     @Override
-    public void deleteFile(String id) {
-        storageEntityRepository.deleteById(id);
+    @Transactional(rollbackFor = Exception.class)
+    public DeleteResult deleteByPath(String path) {
+        log.info("Deleting files by path: " + path);
+        String pattern = StorageEntityRepository.likePathPrefix(path);
+        int deleted;
+        try {
+            List<String> unreferenced = contentReferenceService.releaseAll(ContentReferenceService.DB_STORE,
+                storageEntityRepository.countContentUsageByPathLike(ContentReferenceService.DB_STORE, pattern));
+            blobContentRepository.deleteContentByPathLike(ContentReferenceService.DB_STORE, pattern);
+            blobContentRepository.deleteContents(unreferenced, jdbcBatchSize);
+            deleted = storageEntityRepository.deleteMetadataByPathLike(ContentReferenceService.DB_STORE, pattern);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        metadataCache.invalidateAll(ContentReferenceService.DB_STORE);
+        eventPublisher.publishEvent(FilesDeletedEvent.ofPath(ContentReferenceService.DB_STORE, path));
+        log.info("Files deleted by path: " + deleted);
+        return new DeleteResult(deleted, null);
+    }
+
+    /**
+     * Returns the id of the BLOB with the content of a stored file.
+     */
+    private static String blobId(StorageEntity metadata) {
+        return metadata.getContentId() != null ? metadata.getContentId() : metadata.getId();
     }
 
     /**
      * Searches stored files by a prefix in their normalized path.
      * <p>
      * Both backslashes '\' and forward slashes '/' are normalized to '/'.
-     * Database values are also normalized before comparison.
+     * Database values are normalized when stored, so the search is
+     * a range scan of the path index.
      *
      * @param path prefix to match; if null/blank, returns all files
      * @return filtered list of storage entities
@@ -139,19 +483,31 @@ public class DbStorageServiceImpl implements StorageService {
         log.info("Searching for files by path: " + path);
         // If no filter provided, return everything
         if (path == null || path.isBlank()) {
-            return storageEntityRepository.findAll();
+            return storageEntityRepository.findAllMetadata(ContentReferenceService.DB_STORE);
         }
+        return storageEntityRepository.findMetadataByPathPrefix(ContentReferenceService.DB_STORE, path);
+    }
 
-        // Normalize prefix
-        String normalizedPrefix = path.replace('\\', '/');
-        log.info("Normalized path: " + normalizedPrefix);
+    /**
+     * Returns a page of stored files by path prefix, continuing after the given key.
+     */
+    @Override
+    public List<StorageEntity> findByPath(String path, PathKey after, int limit) {
+        log.info("Searching for files by path: " + path + ", after: " + after + ", limit: " + limit);
+        return storageEntityRepository.findMetadataPage(ContentReferenceService.DB_STORE, path, after, limit);
+    }
 
-        return storageEntityRepository.findAll().stream()
-            .filter(entity -> {
-                // Normalize the stored path
-                String storedPath = entity.getFileName().replace('\\', '/');
-                return storedPath.startsWith(normalizedPrefix);
-            })
-            .toList();
+    /**
+     * Streams stored files by path prefix to the action within a read-only transaction,
+     * which keeps the database cursor open.
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public void forEachByPath(String path, Consumer<StorageEntity> action) {
+        log.info("Streaming files by path: " + path);
+        try (Stream<StorageEntity> entities = storageEntityRepository.streamMetadataByPathPrefix(
+            ContentReferenceService.DB_STORE, path)) {
+            entities.forEach(action);
+        }
     }
 }
@@ -0,0 +1,17 @@
+package org.clematis.storage.service;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+/**
+ * Outcome of a bulk delete
+ *
+ * @param deleted number of deleted files
+ * @param purge   progress of the background removal of their content, null if nothing is left to remove
+ */
+@Schema(name = "DeleteResult", description = "Outcome of a bulk delete")
+public record DeleteResult(
+    @Schema(description = "Number of deleted files", example = "42")
+    int deleted,
+    @Schema(description = "Background removal of the content, absent if the content is deleted already")
+    PurgeProgress purge) {
+}
@@ -0,0 +1,146 @@
+package org.clematis.storage.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import lombok.extern.java.Log;
+
+/**
+ * Physical layout of the content of the filesystem store.
+ * <p>
+ * By default a file is kept under its logical path in the download folder. With sharding
+ * enabled, the content of a file is kept under its id instead, in a two level fan-out of
+ * folders named by the first bytes of a hash of the id, e.g. {@code .shards/ab/cd/<id>}.
+ * Every folder then holds a bounded number of entries however files are named, and the
+ * logical path stays in the metadata only. Folders known to exist are cached, so writes
+ * don't check and create them again.
+ */
+@Component
+@Log
+public class FileLayout {
+
+    /**
+     * Folder of sharded content under the download folder
+     */
+    public static final String SHARDS_FOLDER = ".shards";
+
+    /**
+     * Bytes of the hash naming a folder at every level, 256 folders per level
+     */
+    private static final int BYTES_PER_LEVEL = 1;
+
+    private static final int LEVELS = 2;
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final String downloadFolder;
+
+    private final boolean sharded;
+
+    private final Cache<Path, Boolean> existingFolders;
+
+    public FileLayout(@Value("${clematis.storage.download.folder}") String downloadFolder,
+                      @Value("${clematis.storage.sharding.enabled:false}") boolean sharded,
+                      @Value("${clematis.storage.sharding.folder-cache-size:100000}") long folderCacheSize) {
+        this.downloadFolder = downloadFolder;
+        this.sharded = sharded;
+        this.existingFolders = Caffeine.newBuilder().maximumSize(folderCacheSize).build();
+        log.info("Sharded layout: " + sharded + ", cached folders: " + folderCacheSize);
+    }
+
+    /**
+     * Tells if new content is stored in the sharded layout.
+     *
+     * @return true if content is kept under ids, false if under logical paths
+     */
+    public boolean isSharded() {
+        return sharded;
+    }
+
+    /**
+     * Returns the file of a stored file in the logical layout.
+     *
+     * @param fileName logical file name, relative to the download folder
+     * @return file under the download folder
+     */
+    public Path logicalPath(String fileName) {
+        return Path.of(downloadFolder, fileName);
+    }
+
+    /**
+     * Returns the folder of sharded content.
+     *
+     * @return folder under the download folder
+     */
+    public Path shardsFolder() {
+        return Path.of(downloadFolder, SHARDS_FOLDER);
+    }
+
+    /**
+     * Returns the file of a stored file in the sharded layout.
+     *
+     * @param id id of the stored file
+     * @return file under the shards folder
+     */
+    public Path shardPath(String id) {
+        byte[] hash = sha256(id);
+        Path folder = shardsFolder();
+        for (int level = 0; level < LEVELS; level++) {
+            folder = folder.resolve(HEX.formatHex(hash, level * BYTES_PER_LEVEL, (level + 1) * BYTES_PER_LEVEL));
+        }
+        return folder.resolve(id);
+    }
+
+    /**
+     * Tells if any content is stored in the sharded layout, e.g. by a migration,
+     * even if sharding is disabled now.
+     *
+     * @return true if the shards folder exists
+     */
+    public boolean hasShards() {
+        return sharded || Files.isDirectory(shardsFolder());
+    }
+
+    /**
+     * Creates a folder with its parents unless it is known to exist.
+     *
+     * @param folder folder to create
+     * @return the folder
+     * @throws IOException if the folder can't be created
+     */
+    public Path createFolder(Path folder) throws IOException {
+        if (existingFolders.getIfPresent(folder) == null) {
+            Files.createDirectories(folder);
+            existingFolders.put(folder, Boolean.TRUE);
+        }
+        return folder;
+    }
+
+    /**
+     * Drops a folder from the known folders, e.g. when it turns out to be removed.
+     *
+     * @param folder folder which may not exist
+     */
+    public void forgetFolder(Path folder) {
+        existingFolders.invalidate(folder);
+    }
+
+    private static byte[] sha256(String id) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
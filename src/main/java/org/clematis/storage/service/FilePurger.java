@@ -0,0 +1,194 @@
+package org.clematis.storage.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import lombok.extern.java.Log;
+
+/**
+ * Removes files of deleted metadata from the filesystem in the background.
+ * <p>
+ * A purge is started once the transaction deleting the metadata commits, or right away
+ * outside of a transaction. Purges run one at a time, the files of a purge are removed
+ * in chunks by a bounded number of parallel workers, and the overall removal rate is
+ * throttled, so a large purge doesn't saturate the disk for concurrent downloads.
+ * <p>
+ * Before a chunk is removed, the caller tells which of its files are in use again,
+ * e.g. uploaded anew under the same path since the metadata was deleted; those are kept.
+ * Progress of recent purges can be looked up by id.
+ */
+@Service
+@Log
+public class FilePurger {
+
+    private static final int CHUNK_SIZE = 500;
+
+    private static final long MAX_PURGES_KEPT = 1000;
+
+    private final ExecutorService purgeExecutor;
+
+    private final ExecutorService purgeJobExecutor;
+
+    private final int parallelism;
+
+    private final RateLimiter removalRate;
+
+    private final Cache<String, PurgeProgress> purges = Caffeine.newBuilder()
+        .maximumSize(MAX_PURGES_KEPT)
+        .expireAfterWrite(Duration.ofDays(1))
+        .build();
+
+    public FilePurger(@Qualifier("purgeExecutor") ExecutorService purgeExecutor,
+                      @Qualifier("purgeJobExecutor") ExecutorService purgeJobExecutor,
+                      @Value("${clematis.storage.purge.parallelism:4}") int parallelism,
+                      @Value("${clematis.storage.purge.files-per-second:1000}") int filesPerSecond) {
+        this.purgeExecutor = purgeExecutor;
+        this.purgeJobExecutor = purgeJobExecutor;
+        this.parallelism = parallelism;
+        this.removalRate = new RateLimiter(filesPerSecond);
+    }
+
+    /**
+     * Schedules removal of files.
+     *
+     * @param description what is purged, for progress reports
+     * @param files       supplies the files to remove, called and closed by the purging thread
+     * @param inUse       returns the files of a chunk which must be kept
+     * @return progress of the purge
+     */
+    public PurgeProgress submit(String description,
+                                Supplier<Stream<Path>> files,
+                                Function<List<Path>, Set<Path>> inUse) {
+        PurgeProgress progress = new PurgeProgress(UUID.randomUUID().toString(), description);
+        purges.put(progress.getId(), progress);
+        Runnable start = () -> purgeJobExecutor.execute(() -> run(progress, files, inUse));
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_COMMITTED) {
+                        start.run();
+                    } else {
+                        progress.cancel();
+                    }
+                }
+            });
+        } else {
+            start.run();
+        }
+        log.info("Purge " + progress.getId() + " scheduled: " + description);
+        return progress;
+    }
+
+    /**
+     * Returns progress of a recent purge.
+     *
+     * @param id id of the purge
+     * @return progress or empty if the purge is unknown or long finished
+     */
+    public Optional<PurgeProgress> getProgress(String id) {
+        return Optional.ofNullable(purges.getIfPresent(id));
+    }
+
+    private void run(PurgeProgress progress, Supplier<Stream<Path>> files, Function<List<Path>, Set<Path>> inUse) {
+        progress.start();
+        Semaphore workers = new Semaphore(parallelism);
+        try (Stream<Path> candidates = files.get()) {
+            List<Path> chunk = new ArrayList<>(CHUNK_SIZE);
+            Iterator<Path> iterator = candidates.iterator();
+            while (iterator.hasNext()) {
+                chunk.add(iterator.next());
+                progress.scanned();
+                if (chunk.size() == CHUNK_SIZE) {
+                    dispatch(chunk, progress, inUse, workers);
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                dispatch(chunk, progress, inUse, workers);
+            }
+            // all chunks are done when every worker permit is back
+            workers.acquire(parallelism);
+            progress.finish();
+            log.info("Purge " + progress.getId() + " done, deleted: " + progress.getDeleted()
+                + ", skipped: " + progress.getSkipped() + ", failed: " + progress.getFailed());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.fail("Interrupted");
+        } catch (RuntimeException e) {
+            log.severe("Purge " + progress.getId() + " failed: " + e.getMessage());
+            progress.fail(e.getMessage());
+        }
+    }
+
+    private void dispatch(List<Path> chunk,
+                          PurgeProgress progress,
+                          Function<List<Path>, Set<Path>> inUse,
+                          Semaphore workers) throws InterruptedException {
+        workers.acquire();
+        try {
+            purgeExecutor.execute(() -> {
+                try {
+                    purge(chunk, progress, inUse);
+                } finally {
+                    workers.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            workers.release();
+            throw e;
+        }
+    }
+
+    private void purge(List<Path> chunk, PurgeProgress progress, Function<List<Path>, Set<Path>> inUse) {
+        Set<Path> kept;
+        try {
+            kept = inUse.apply(chunk);
+        } catch (RuntimeException e) {
+            // without knowing which files are in use none of them may be removed
+            log.warning("Failed to check files in use, keeping " + chunk.size() + " files: " + e.getMessage());
+            chunk.forEach(file -> progress.failed());
+            return;
+        }
+        for (Path file : chunk) {
+            if (kept.contains(file)) {
+                progress.skipped();
+                continue;
+            }
+            try {
+                removalRate.acquire(1);
+                Files.deleteIfExists(file);
+                progress.deleted();
+            } catch (IOException e) {
+                log.warning("Failed to delete " + file + ": " + e.getMessage());
+                progress.failed();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                progress.failed();
+                return;
+            }
+        }
+    }
+}
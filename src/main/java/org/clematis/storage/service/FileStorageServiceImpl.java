@@ -2,21 +2,45 @@ package org.clematis.storage.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 import java.util.logging.Level;
+import java.util.stream.Stream;
 
+import org.clematis.storage.content.ChecksumInputStream;
+import org.clematis.storage.content.CompressedInputStream;
+import org.clematis.storage.content.ContentCodec;
+import org.clematis.storage.content.DecodedStorageContent;
+import org.clematis.storage.content.FileStorageContent;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.PathKey;
 import org.clematis.storage.model.StorageEntity;
 import org.clematis.storage.repository.StorageEntityRepository;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -27,8 +51,15 @@ import lombok.extern.java.Log;
  * in the database through {@link StorageEntityRepository}. Actual file bytes
  * are stored under the configured download folder.
  * <p>
- * On retrieval, files are re-read from the filesystem and returned as
- * {@link StorageEntity} objects with full binary content.
+ * On retrieval, files are streamed from the filesystem through
+ * {@link FileStorageContent} without loading them onto the heap, files read often
+ * may be read from their memory mappings, see {@link MappedFilePool}. Files may be
+ * stored compressed, as decided by the {@link CompressionPolicy}, and under their
+ * ids instead of their paths, as laid out by the {@link FileLayout}.
+ * <p>
+ * The files belong to the store named by {@link #store()}, the pack store keeps its large files
+ * with a subclass of its own, see {@link PackFileStorageServiceImpl}. Content of the stores is laid out
+ * in the same download folder, deduplicated content is shared by both.
  */
 @Service
 @Log
@@ -36,13 +67,81 @@ public class FileStorageServiceImpl implements StorageService {
 
     private static final String MAKE_DIR_ERROR_MESSAGE = "Couldn't make directory on the server: ";
 
+    private static final String PARENT_FOLDER = "..";
+
+    private static final String PARTIAL_FILE_PREFIX = ".upload-";
+
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+
+    /**
+     * Folder for deduplicated content under the download folder
+     */
+    private static final String OBJECTS_FOLDER = ".objects";
+
+    /**
+     * Maximum number of IDs bound to a single IN clause
+     */
+    private static final int IDS_PER_STATEMENT = 1000;
+
+    /**
+     * Stores keeping files under the download folder
+     */
+    private static final List<String> FILE_STORES = List.of(ContentReferenceService.FS_STORE,
+        ContentReferenceService.PACK_STORE);
+
     private final StorageEntityRepository storageEntityRepository;
 
+    private final ContentReferenceService contentReferenceService;
+
+    private final MetadataCache metadataCache;
+
+    private final BatchUploadService batchUploadService;
+
+    private final FilePurger filePurger;
+
+    private final CompressionPolicy compressionPolicy;
+
+    private final FileLayout fileLayout;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final MappedFilePool mappedFilePool;
+
+    private final ApplicationEventPublisher eventPublisher;
+
     @Value("${clematis.storage.download.folder}")
     private String downloadFolder;
 
-    public FileStorageServiceImpl(StorageEntityRepository storageEntityRepository) {
+    @Value("${clematis.storage.max-file-size:200MB}")
+    private DataSize maxFileSize;
+
+    /**
+     * Store identical content once and share it by reference counts
+     */
+    @Value("${clematis.storage.dedup.enabled:false}")
+    private boolean dedupEnabled;
+
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    public FileStorageServiceImpl(StorageEntityRepository storageEntityRepository,
+                                  ContentReferenceService contentReferenceService,
+                                  MetadataCache metadataCache,
+                                  BatchUploadService batchUploadService,
+                                  FilePurger filePurger,
+                                  CompressionPolicy compressionPolicy,
+                                  FileLayout fileLayout,
+                                  TransactionTemplate transactionTemplate,
+                                  MappedFilePool mappedFilePool,
+                                  ApplicationEventPublisher eventPublisher) {
         this.storageEntityRepository = storageEntityRepository;
+        this.contentReferenceService = contentReferenceService;
+        this.metadataCache = metadataCache;
+        this.batchUploadService = batchUploadService;
+        this.filePurger = filePurger;
+        this.compressionPolicy = compressionPolicy;
+        this.fileLayout = fileLayout;
+        this.transactionTemplate = transactionTemplate;
+        this.mappedFilePool = mappedFilePool;
+        this.eventPublisher = eventPublisher;
     }
 
     /**
@@ -53,19 +152,143 @@ public class FileStorageServiceImpl implements StorageService {
      *   <li>the original filename or a generated fallback</li>
      * </ul>
      *
-     * Only metadata (file path, MIME type) is persisted to the database.
+     * Only metadata (file path, MIME type, size and checksum) is persisted to the database.
      */
     @Override
-    @SuppressFBWarnings("NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE")
     public StorageEntity saveAttachment(MultipartFile file, String path) throws IOException {
         log.info("Saving file to " + path);
         if (file == null) {
             throw new IOException("Multipart file is null");
         }
+        try (InputStream content = file.getInputStream()) {
+            return saveAttachment(file.getOriginalFilename(), file.getContentType(), content, file.getSize(),
+                maxFileSize.toBytes(), path, false);
+        }
+    }
+
+    /**
+     * Saves a file read from a stream to the filesystem. The content is written into
+     * a temporary file next to the destination and renamed when complete, so it is
+     * never copied twice and a partially written file never becomes visible.
+     * Size and checksum are computed while the content is written.
+     */
+    @Override
+    public StorageEntity saveAttachment(String originalFileName,
+                                        String contentType,
+                                        InputStream content,
+                                        String path) throws IOException {
+        return saveAttachment(originalFileName, contentType, content, -1, maxFileSize.toBytes(), path, false);
+    }
+
+    /**
+     * Moves the content of a file read from a stream to its destination and leaves its metadata
+     * to {@link #saveStaged(List)}. Deduplicated and sharded content is saved with its metadata
+     * at once, as it is kept under its checksum or its id.
+     */
+    @Override
+    public StorageEntity stageAttachment(String originalFileName,
+                                         String contentType,
+                                         InputStream content,
+                                         String path) throws IOException {
+        return saveAttachment(originalFileName, contentType, content, -1, maxFileSize.toBytes(), path,
+            !dedupEnabled && !fileLayout.isSharded());
+    }
+
+    /**
+     * Inserts the metadata of staged files in one transaction, its rows are flushed in JDBC batches.
+     * If the transaction fails, the staged files without metadata under their paths are removed.
+     */
+    @Override
+    public List<StorageEntity> saveStaged(List<StorageEntity> staged) {
+        List<StorageEntity> unsaved = staged.stream().filter(entity -> entity.getId() == null).toList();
+        if (unsaved.isEmpty()) {
+            return staged;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> storageEntityRepository.saveAll(unsaved));
+        } catch (RuntimeException e) {
+            List<Path> files = unsaved.stream().map(entity -> fileLayout.logicalPath(entity.getFileName())).toList();
+            filePurger.submit(files.size() + " staged files", files::stream, this::inUse);
+            throw e;
+        }
+        unsaved.forEach(entity -> metadataCache.invalidate(store(), entity.getId()));
+        log.info("Metadata saved for " + unsaved.size() + " staged files");
+        return staged;
+    }
 
+    /**
+     * Saves a file read from a stream, compressing it if the size, when known,
+     * and the content type are worth it. Deduplicated content is never compressed.
+     * A staged file is moved to its destination, its metadata is not saved.
+     */
+    private StorageEntity saveAttachment(String originalFileName,
+                                         String contentType,
+                                         InputStream content,
+                                         long size,
+                                         long maxSize,
+                                         String path,
+                                         boolean staged) throws IOException {
+        log.info("Streaming file to " + path);
+        Target target = target(originalFileName, path);
+
+        // Write next to the destination, so the final move is a rename on the same volume
+        ChecksumInputStream checksumStream = new ChecksumInputStream(content, maxSize);
+        Path partial = createPartialFile(target);
+        Optional<ContentCodec> codec = dedupEnabled ? Optional.empty() : compressionPolicy.codecFor(contentType, size);
+        try {
+            Long encodedSize = null;
+            if (codec.isPresent()) {
+                try (CompressedInputStream compressed = codec.get()
+                    .encode(StreamUtils.nonClosing(checksumStream), compressionPolicy.getLevel())) {
+                    Files.copy(compressed, partial, StandardCopyOption.REPLACE_EXISTING);
+                    encodedSize = compressed.getSize();
+                }
+            } else {
+                Files.copy(checksumStream, partial, StandardCopyOption.REPLACE_EXISTING);
+            }
+            StorageEntity attachment = new StorageEntity(store(), target.fileName(), contentType);
+            attachment.setSize(checksumStream.getSize());
+            attachment.setChecksum(checksumStream.getChecksum());
+            attachment.setContentEncoding(codec.map(ContentCodec::getCoding).orElse(null));
+            attachment.setEncodedSize(encodedSize);
+            return staged ? place(target, attachment, partial) : store(target, attachment, partial);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Saves a file from the local disk. The file is read once for its checksum and renamed
+     * into place, its content is never copied, unless it is to be stored compressed.
+     * The file must be on the volume of the download folder. The per-file size limit
+     * of uploads doesn't apply, the size of the file is known.
+     */
+    @Override
+    public StorageEntity saveFile(String fileName, String contentType, Path file, String path) throws IOException {
+        long size = Files.size(file);
+        if (!dedupEnabled && compressionPolicy.codecFor(contentType, size).isPresent()) {
+            try (InputStream content = Files.newInputStream(file)) {
+                return saveAttachment(fileName, contentType, content, size, size, path, false);
+            }
+        }
+        Target target = target(fileName, path);
+        folderOf(target);
+        StorageEntity attachment = new StorageEntity(store(), target.fileName(), contentType);
+        try (ChecksumInputStream checksumStream = new ChecksumInputStream(Files.newInputStream(file), size)) {
+            checksumStream.transferTo(OutputStream.nullOutputStream());
+            attachment.setSize(checksumStream.getSize());
+            attachment.setChecksum(checksumStream.getChecksum());
+        }
+        return store(target, attachment, file);
+    }
+
+    /**
+     * Validates the file name and the path and resolves the destination file.
+     */
+    private Target target(String originalFileName, String path) throws IOException {
         // If no original filename -> generate the random UUID name
-        String fileName = file.getOriginalFilename() != null
-            ? file.getOriginalFilename()
+        String fileName = originalFileName != null
+            ? StringUtils.cleanPath(originalFileName)
             : UUID.randomUUID().toString();
         log.info("Generated filename: " + fileName);
 
@@ -75,101 +298,219 @@ public class FileStorageServiceImpl implements StorageService {
             : "";
         log.info("Normalized path: " + additionalPath);
 
-        if (additionalPath.contains("..")) {
-            throw new IOException("Filename contains invalid path sequence " + additionalPath);
+        if (additionalPath.contains(PARENT_FOLDER) || fileName.contains(PARENT_FOLDER)) {
+            throw new IOException("Filename contains invalid path sequence " + additionalPath + "/" + fileName);
         }
 
-        // Build the folder where the file will be stored
-        File destinationFolder = additionalPath.isEmpty()
-            ? new File(this.downloadFolder)
-            : new File(this.downloadFolder, additionalPath);
-        log.info("Destination folder: " + destinationFolder.getAbsolutePath());
+        // Build absolute destination file and the folder where it will be stored
+        File destination = new File(
+            additionalPath.isEmpty() ? new File(this.downloadFolder) : new File(this.downloadFolder, additionalPath),
+            fileName
+        ).getAbsoluteFile();
+        return new Target(Paths.get(additionalPath, fileName).toString(), destination);
+    }
 
-        // Build absolute destination file
-        File destination = new File(destinationFolder, fileName).getAbsoluteFile();
+    /**
+     * Creates the folder the content of a file is moved into, if it isn't known to exist yet.
+     */
+    private Path folderOf(Target target) throws IOException {
+        // Deduplicated content is kept under its checksum, sharded content under its id
+        Path destinationFolder;
+        if (dedupEnabled) {
+            destinationFolder = objectsFolder();
+        } else if (fileLayout.isSharded()) {
+            destinationFolder = fileLayout.shardsFolder();
+        } else {
+            destinationFolder = target.destination().getParentFile().toPath();
+        }
+        log.info("Destination folder: " + destinationFolder.toAbsolutePath());
+        try {
+            return fileLayout.createFolder(destinationFolder);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, MAKE_DIR_ERROR_MESSAGE + destinationFolder.toAbsolutePath());
+            throw new IOException(MAKE_DIR_ERROR_MESSAGE + destinationFolder.toAbsolutePath(), e);
+        }
+    }
 
-        // Extract the content type before moving the file
-        String contentType = file.getContentType();
+    /**
+     * Creates a partial file in the folder the content is moved into, so the final move is a rename.
+     */
+    private Path createPartialFile(Target target) throws IOException {
+        Path folder = folderOf(target);
+        try {
+            return Files.createTempFile(folder, PARTIAL_FILE_PREFIX, PARTIAL_FILE_SUFFIX);
+        } catch (NoSuchFileException e) {
+            // the folder was removed since it was created
+            fileLayout.forgetFolder(folder);
+            return Files.createTempFile(folderOf(target), PARTIAL_FILE_PREFIX, PARTIAL_FILE_SUFFIX);
+        }
+    }
 
-        // Ensure folder exists
-        if ((!destinationFolder.exists() && destinationFolder.mkdirs()) || destinationFolder.exists()) {
-            // Moves the uploaded file to destination (MultipartFile loses its buffer afterward)
-            file.transferTo(destination);
+    /**
+     * Moves complete content to its destination, or to the shared file of its checksum if
+     * content is deduplicated, and saves the metadata. The metadata row appears only once
+     * the content is in place. Sharded content is stored by {@link #storeSharded}.
+     */
+    @SuppressFBWarnings("NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE")
+    private StorageEntity store(Target target, StorageEntity attachment, Path content) throws IOException {
+        String contentId = null;
+        if (dedupEnabled) {
+            contentId = attachment.getChecksum();
+            Path object = objectPath(contentId);
+            // The content is left for the caller to drop if it is stored already
+            contentReferenceService.acquire(ContentReferenceService.FS_STORE,
+                contentId, attachment.getSize(), () -> {
+                    fileLayout.createFolder(object.getParent());
+                    Files.move(content, object, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                });
+        } else if (fileLayout.isSharded()) {
+            return storeSharded(attachment, content);
         } else {
-            log.info("Couldn't create directory: " + destinationFolder.getAbsolutePath());
-            log.log(Level.SEVERE, MAKE_DIR_ERROR_MESSAGE + destinationFolder.getAbsolutePath());
-            throw new IOException(MAKE_DIR_ERROR_MESSAGE + destinationFolder.getAbsolutePath());
+            place(target, attachment, content);
         }
 
         // Store metadata only; contents stored on filesystem
-        log.info("File saved to: " + destination.getAbsolutePath());
-        StorageEntity attachment = new StorageEntity(
-            Paths.get(additionalPath, fileName).toString(),
-            contentType,
-            new byte[0] // binary content is never stored here
-        );
-        attachment.setSize(destination.length());
+        log.info("File saved to: " + (contentId != null
+            ? objectPath(contentId)
+            : target.destination().getAbsolutePath()));
+        attachment.setContentId(contentId);
+        attachment.setLastModified(Instant.now());
         log.info("Metadata saved: " + attachment);
-        return storageEntityRepository.save(attachment);
+        try {
+            StorageEntity saved = storageEntityRepository.save(attachment);
+            metadataCache.invalidate(store(), saved.getId());
+            return saved;
+        } catch (RuntimeException e) {
+            // the reference taken for this file is not going to be released by a delete
+            if (contentId != null) {
+                Path object = objectPath(contentId);
+                contentReferenceService.release(ContentReferenceService.FS_STORE, contentId,
+                    () -> Files.deleteIfExists(object));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Moves complete content to its destination under the download folder, the metadata is not saved.
+     */
+    private StorageEntity place(Target target, StorageEntity attachment, Path content) throws IOException {
+        Files.move(content, target.destination().toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // a file replaced under the same path must not be read from the mapping of the former one
+        mappedFilePool.release(target.destination().toPath());
+        attachment.setLastModified(Instant.now());
+        return attachment;
     }
 
     /**
-     * Saves multiple uploaded files to the filesystem.
-     * If any file fails, a RuntimeException is thrown.
+     * Moves complete content to the file of its id and saves the metadata. The id is assigned
+     * when the metadata is persisted, the row is inserted when the transaction commits, after
+     * the content is moved.
+     */
+    private StorageEntity storeSharded(StorageEntity attachment, Path content) throws IOException {
+        attachment.setLastModified(Instant.now());
+        try {
+            StorageEntity saved = transactionTemplate.execute(status -> {
+                StorageEntity persisted = storageEntityRepository.save(attachment);
+                Path shard = fileLayout.shardPath(persisted.getId());
+                try {
+                    fileLayout.createFolder(shard.getParent());
+                    Files.move(content, shard, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                log.info("Content moved to shard: " + shard);
+                return persisted;
+            });
+            metadataCache.invalidate(store(), saved.getId());
+            log.info("Sharded metadata saved: " + saved);
+            return saved;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            // the metadata is not saved, the moved content belongs to nothing
+            if (attachment.getId() != null) {
+                Files.deleteIfExists(fileLayout.shardPath(attachment.getId()));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Saves multiple uploaded files to the filesystem in parallel.
+     * If any file fails, a RuntimeException is thrown once all files are done.
      */
     @Override
     public List<StorageEntity> saveAttachments(MultipartFile[] files, String path) {
-        log.info("Saving " + files.length + " files to " + path);
-        return Arrays.stream(files).map(file -> {
-            try {
-                return saveAttachment(file, path);
-            } catch (Exception e) {
-                log.log(Level.SEVERE, e.getMessage());
-                throw new RuntimeException(e);
+        List<UploadResult> results = batchUploadService.saveAll(this, files, path);
+        for (UploadResult result : results) {
+            if (!result.isSaved()) {
+                log.log(Level.SEVERE, result.error().getMessage());
+                throw new RuntimeException("Failed to save attachment: " + result.fileName(), result.error());
             }
-        }).toList();
+        }
+        return results.stream().map(UploadResult::entity).toList();
     }
 
     /**
-     * Returns metadata for all stored files.
+     * Returns metadata for all files of the store.
      * (Does not load binary content.)
      */
     @Override
     public List<StorageEntity> getAll() {
-        return storageEntityRepository.findAll();
+        return storageEntityRepository.findAllMetadata(store());
     }
 
     /**
-     * Loads a stored file by ID. The metadata is read from the database,
-     * and the binary content is loaded from disk.
-     * <p>
-     * MIME type is validated via:
+     * Loads metadata of a stored file by ID. The file itself is not read,
+     * only its MIME type is validated via:
      * <ol>
      *   <li>database-stored content type</li>
      *   <li>filesystem probing using {@link Files#probeContentType(Path)}</li>
      *   <li>fallback to application/octet-stream</li>
      * </ol>
      */
-    @SuppressWarnings("checkstyle:ReturnCount")
     @Override
     public Optional<StorageEntity> getStorageEntity(String id) {
+        log.info("Loading metadata with ID: " + id);
+        return findMetadataById(id).map(entity -> {
+            Path path = fileLayout.logicalPath(entity.getFileName());
+            return withMediaType(entity, ensureMediaType(entity, path));
+        });
+    }
+
+    /**
+     * Opens a stored file by ID. The metadata is read from the database, the binary
+     * content stays on disk and is streamed from the file when written out,
+     * uncompressed if it is stored compressed.
+     */
+    @Override
+    public Optional<StorageContent> getContent(String id) {
         log.info("Loading file with ID: " + id);
-        try {
-            Optional<StorageEntity> storageEntity = storageEntityRepository.findById(id);
-            if (storageEntity.isPresent()) {
-
-                // Build filesystem path
-                Path path = Path.of(downloadFolder, storageEntity.orElseThrow().getFileName());
-                log.info("Loading file from disk: " + path);
-                // Determine media type via stored metadata or probe
-                MediaType contentType = ensureMediaType(storageEntity, path);
-                // Load file bytes from disk
-                byte[] bytes = Files.readAllBytes(path);
-                log.info("Loaded file with size: " + bytes.length);
-                return Optional.of(new StorageEntity(id, contentType.toString(), bytes));
-            }
+        Optional<StorageEntity> storageEntity = findMetadataById(id);
+        if (storageEntity.isEmpty()) {
             log.info("File not found");
             return Optional.empty();
+        }
+        StorageEntity entity = storageEntity.get();
+        // Build filesystem path
+        Path path = contentPath(entity);
+        try {
+            long size;
+            try {
+                size = Files.size(path);
+            } catch (NoSuchFileException e) {
+                // not migrated to the current layout yet
+                path = otherLayoutPath(entity).orElseThrow(() -> e);
+                size = Files.size(path);
+            }
+            log.info("Streaming file from disk: " + path + ", size: " + size);
+            return Optional.of(DecodedStorageContent.of(mappedFilePool.open(
+                withMediaType(entity, ensureMediaType(entity, fileLayout.logicalPath(entity.getFileName()))),
+                path, size)
+            ));
         } catch (IOException e) {
             log.log(Level.SEVERE, "Failed to load file from disk: " + id);
             log.log(Level.SEVERE, e.getMessage());
@@ -177,21 +518,80 @@ public class FileStorageServiceImpl implements StorageService {
         }
     }
 
+    /**
+     * Returns the file with the content of a stored file: the file under its logical path or
+     * its id, as laid out now, or the shared file named by the checksum if the content is
+     * deduplicated.
+     */
+    private Path contentPath(StorageEntity entity) {
+        if (entity.getContentId() != null) {
+            return objectPath(entity.getContentId());
+        }
+        return fileLayout.isSharded()
+            ? fileLayout.shardPath(entity.getId())
+            : fileLayout.logicalPath(entity.getFileName());
+    }
+
+    /**
+     * Returns the file of a stored file in the layout other than the current one, if the file
+     * is there. Files stay there until they are migrated, see {@link ShardMigration}.
+     */
+    private Optional<Path> otherLayoutPath(StorageEntity entity) {
+        if (entity.getContentId() != null) {
+            return Optional.empty();
+        }
+        Path other = fileLayout.isSharded()
+            ? fileLayout.logicalPath(entity.getFileName())
+            : fileLayout.shardPath(entity.getId());
+        return Optional.of(other).filter(Files::exists);
+    }
+
+    /**
+     * Folder of deduplicated content, files are spread over subfolders by the first
+     * characters of their checksums.
+     */
+    private Path objectsFolder() {
+        return Path.of(downloadFolder, OBJECTS_FOLDER);
+    }
+
+    private Path objectPath(String contentId) {
+        return objectsFolder().resolve(contentId.substring(0, 2)).resolve(contentId);
+    }
+
+    /**
+     * Returns a detached copy of metadata with the given media type.
+     */
+    private static StorageEntity withMediaType(StorageEntity entity, MediaType mediaType) {
+        return StorageEntity.builder()
+            .id(entity.getId())
+            .fileName(entity.getFileName())
+            .contentType(mediaType.toString())
+            .size(entity.getSize())
+            .checksum(entity.getChecksum())
+            .path(entity.getPath())
+            .contentId(entity.getContentId())
+            .lastModified(entity.getLastModified())
+            .contentEncoding(entity.getContentEncoding())
+            .encodedSize(entity.getEncodedSize())
+            .store(entity.getStore())
+            .build();
+    }
+
     /**
      * Attempts to determine the correct MIME type based on:
      * 1. Database metadata
      * 2. Filesystem sniffing
      * 3. Fallback to octet-stream
      */
-    private MediaType ensureMediaType(Optional<StorageEntity> storageEntity, Path path) {
+    private MediaType ensureMediaType(StorageEntity storageEntity, Path path) {
 
         MediaType mediaType = null;
         log.info("Determining media type for " + path);
         // Try stored content type
         try {
-            mediaType = MediaType.valueOf(storageEntity.orElseThrow().getContentType());
+            mediaType = MediaType.valueOf(storageEntity.getContentType());
         } catch (Exception e) {
-            log.warning("Media type can't parse the " + storageEntity.orElseThrow().getContentType());
+            log.warning("Media type can't parse the " + storageEntity.getContentType());
         }
 
         // Try probing from the disk
@@ -212,24 +612,188 @@ public class FileStorageServiceImpl implements StorageService {
 
     /**
      * Deletes a file from both the filesystem and metadata from the database.
+     * Files of other stores are kept.
      */
     @Override
     public void deleteFile(String id) {
         log.info("Deleting file with ID: " + id);
-        storageEntityRepository.findById(id).ifPresent(entity -> {
-            Path path = Path.of(downloadFolder, entity.getFileName());
+        findMetadataById(id).ifPresent(entity -> {
+            Path path = Optional.of(contentPath(entity))
+                .filter(Files::exists)
+                .or(() -> otherLayoutPath(entity))
+                .orElse(contentPath(entity));
+            mappedFilePool.release(path);
             try {
-                Files.deleteIfExists(path);
+                if (entity.getContentId() != null) {
+                    // shared content is deleted with its last reference only
+                    contentReferenceService.release(ContentReferenceService.FS_STORE, entity.getContentId(),
+                        () -> Files.deleteIfExists(path));
+                } else {
+                    Files.deleteIfExists(path);
+                }
             } catch (IOException e) {
                 log.warning("Unable to delete file from filesystem: " + path);
             }
-            storageEntityRepository.deleteById(id);
+            storageEntityRepository.deleteMetadataById(store(), id);
+            metadataCache.invalidate(store(), id);
+            eventPublisher.publishEvent(FilesDeletedEvent.ofIds(store(), List.of(id)));
         });
     }
 
+    /**
+     * Deletes metadata of stored files by IDs with one statement per chunk of IDs and releases
+     * their deduplicated content. The files are removed from disk in the background once
+     * the transaction commits, see {@link FilePurger}.
+     */
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public DeleteResult deleteFiles(List<String> ids) {
+        log.info("Deleting files by ids: " + ids.size());
+        List<Path> files = new ArrayList<>();
+        int deleted = 0;
+        for (int from = 0; from < ids.size(); from += IDS_PER_STATEMENT) {
+            List<String> chunk = ids.subList(from, Math.min(from + IDS_PER_STATEMENT, ids.size()));
+            contentReferenceService.releaseAll(ContentReferenceService.FS_STORE,
+                    storageEntityRepository.countContentUsageByIds(store(), chunk))
+                .forEach(contentId -> files.add(objectPath(contentId)));
+            storageEntityRepository.findFileNamesByIds(store(), chunk)
+                .forEach(fileName -> files.add(fileLayout.logicalPath(fileName)));
+            if (fileLayout.hasShards()) {
+                // ids of deduplicated files and of files of other stores have no shards to remove
+                storageEntityRepository.findIdsIn(store(), chunk)
+                    .forEach(fileId -> files.add(fileLayout.shardPath(fileId)));
+            }
+            deleted += storageEntityRepository.deleteMetadataByIds(store(), chunk);
+        }
+        ids.forEach(id -> metadataCache.invalidate(store(), id));
+        eventPublisher.publishEvent(FilesDeletedEvent.ofIds(store(), ids));
+        files.forEach(mappedFilePool::release);
+        log.info("Files deleted by ids: " + deleted);
+        PurgeProgress purge = files.isEmpty()
+            ? null
+            : filePurger.submit(files.size() + " files by ids", files::stream, this::inUse);
+        return new DeleteResult(deleted, purge);
+    }
+
+    /**
+     * Deletes metadata of stored files by path prefix with a single statement and releases
+     * their deduplicated content. Files under the prefix are found by walking the download
+     * folder and removed in the background once the transaction commits, so the request
+     * doesn't wait for the disk, see {@link FilePurger}.
+     */
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public DeleteResult deleteByPath(String path) {
+        log.info("Deleting files by path: " + path);
+        String prefix = path != null ? StorageEntity.normalizePath(path.strip()) : "";
+        if (prefix.contains(PARENT_FOLDER)) {
+            throw new IllegalArgumentException("Path contains invalid path sequence " + prefix);
+        }
+        String pattern = StorageEntityRepository.likePathPrefix(prefix);
+        List<Path> objects = contentReferenceService.releaseAll(ContentReferenceService.FS_STORE,
+                storageEntityRepository.countContentUsageByPathLike(store(), pattern))
+            .stream().map(this::objectPath).toList();
+        // files in the sharded layout are found by ids, before their metadata is gone
+        List<Path> shards = fileLayout.hasShards()
+            ? storageEntityRepository.findIdsByPathLike(store(), pattern).stream().map(fileLayout::shardPath).toList()
+            : List.of();
+        int deleted = storageEntityRepository.deleteMetadataByPathLike(store(), pattern);
+        metadataCache.invalidateAll(store());
+        eventPublisher.publishEvent(FilesDeletedEvent.ofPath(store(), prefix));
+        mappedFilePool.releaseByPath(prefix);
+        shards.forEach(mappedFilePool::release);
+        objects.forEach(mappedFilePool::release);
+        log.info("Files deleted by path: " + deleted);
+        PurgeProgress purge = filePurger.submit("path " + prefix,
+            () -> Stream.of(filesUnder(prefix), shards.stream(), objects.stream()).flatMap(files -> files),
+            this::inUse);
+        return new DeleteResult(deleted, purge);
+    }
+
+    /**
+     * Lists files whose path relative to the download folder starts with the prefix,
+     * walking only the folder of the prefix. Deduplicated, sharded and packed content, partial uploads
+     * and files of upload sessions are skipped.
+     */
+    private Stream<Path> filesUnder(String prefix) {
+        Path root = downloadRoot();
+        int folderEnd = prefix.lastIndexOf('/');
+        Path start = folderEnd > 0 ? root.resolve(prefix.substring(0, folderEnd)) : root;
+        if (!Files.isDirectory(start)) {
+            return Stream.empty();
+        }
+        try {
+            return Files.walk(start)
+                .filter(Files::isRegularFile)
+                .filter(file -> {
+                    String relative = StorageEntity.normalizePath(root.relativize(file).toString());
+                    String name = file.getFileName().toString();
+                    return relative.startsWith(prefix)
+                        && !relative.startsWith(OBJECTS_FOLDER + "/")
+                        && !relative.startsWith(FileLayout.SHARDS_FOLDER + "/")
+                        && !relative.startsWith(PackStore.PACKS_FOLDER + "/")
+                        && !relative.startsWith(ChunkedUploadService.UPLOADS_FOLDER + "/")
+                        && !(name.startsWith(PARTIAL_FILE_PREFIX) && name.endsWith(PARTIAL_FILE_SUFFIX));
+                });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the files which belong to stored files again: logical files with metadata of any
+     * store keeping files in the download folder under their path, uploaded since the delete,
+     * and deduplicated content which is referenced.
+     */
+    private Set<Path> inUse(List<Path> files) {
+        Path root = downloadRoot();
+        Path objects = root.resolve(OBJECTS_FOLDER);
+        Map<String, Path> logical = new HashMap<>();
+        Map<String, Path> shared = new HashMap<>();
+        for (Path file : files) {
+            Path absolute = file.toAbsolutePath().normalize();
+            if (absolute.startsWith(objects)) {
+                shared.put(absolute.getFileName().toString(), file);
+            } else {
+                logical.put(StorageEntity.normalizePath(root.relativize(absolute).toString()), file);
+            }
+        }
+        Set<Path> used = new HashSet<>();
+        if (!logical.isEmpty()) {
+            storageEntityRepository.findPathsIn(FILE_STORES, logical.keySet())
+                .forEach(path -> used.add(logical.get(path)));
+        }
+        if (!shared.isEmpty()) {
+            contentReferenceService.findReferenced(ContentReferenceService.FS_STORE, shared.keySet())
+                .forEach(contentId -> used.add(shared.get(contentId)));
+        }
+        return used;
+    }
+
+    private Path downloadRoot() {
+        return Path.of(downloadFolder).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Returns the name of the store owning the files saved by this service.
+     *
+     * @return name of the store
+     */
+    protected String store() {
+        return ContentReferenceService.FS_STORE;
+    }
+
+    /**
+     * Loads metadata of a file of the store through the metadata cache.
+     */
+    private Optional<StorageEntity> findMetadataById(String id) {
+        return metadataCache.get(store(), id, key -> storageEntityRepository.findMetadataById(store(), key));
+    }
+
     /**
      * Finds stored files whose normalized path starts with the given prefix.
-     * Normalization converts '\' to '/' for both stored and input paths.
+     * Normalization converts '\' to '/' for both stored and input paths,
+     * stored paths are normalized and indexed when saved.
      *
      * @param path prefix to search for; null/blank returns all
      */
@@ -238,17 +802,39 @@ public class FileStorageServiceImpl implements StorageService {
         log.info("Searching for files by path: " + path);
         if (path == null || path.isBlank()) {
             log.info("Loading all files...");
-            return storageEntityRepository.findAll();
+            return storageEntityRepository.findAllMetadata(store());
         }
+        return storageEntityRepository.findMetadataByPathPrefix(store(), path);
+    }
 
-        String normalizedPrefix = path.replace('\\', '/');
-        log.info("Loading files from path: " + normalizedPrefix);
+    /**
+     * Returns a page of stored files by path prefix, continuing after the given key.
+     */
+    @Override
+    public List<StorageEntity> findByPath(String path, PathKey after, int limit) {
+        log.info("Searching for files by path: " + path + ", after: " + after + ", limit: " + limit);
+        return storageEntityRepository.findMetadataPage(store(), path, after, limit);
+    }
 
-        return storageEntityRepository.findAll().stream()
-            .filter(entity -> {
-                String storedPath = entity.getFileName().replace('\\', '/');
-                return storedPath.startsWith(normalizedPrefix);
-            })
-            .toList();
+    /**
+     * Streams stored files by path prefix to the action within a read-only transaction,
+     * which keeps the database cursor open.
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public void forEachByPath(String path, Consumer<StorageEntity> action) {
+        log.info("Streaming files by path: " + path);
+        try (Stream<StorageEntity> entities = storageEntityRepository.streamMetadataByPathPrefix(store(), path)) {
+            entities.forEach(action);
+        }
+    }
+
+    /**
+     * Destination of a stored file
+     *
+     * @param fileName    logical file name, relative to the download folder
+     * @param destination absolute file under the download folder
+     */
+    private record Target(String fileName, File destination) {
     }
 }
@@ -0,0 +1,36 @@
+package org.clematis.storage.service;
+
+import java.util.List;
+
+import org.clematis.storage.model.StorageEntity;
+
+/**
+ * Published by the stores deleting metadata rows of their files, so the components indexing
+ * files apart from the table, the {@link PackStore}, the {@link HotTier} and the {@link ContentCache},
+ * stop serving the deleted files. Listeners run after the transaction deleting the rows commits.
+ *
+ * @param store      name of the store owning the deleted files
+ * @param ids        ids of the deleted files, empty if they are deleted by a path prefix
+ * @param pathPrefix normalized path prefix of the deleted files, empty for all files,
+ *                   null if they are deleted by their ids
+ */
+public record FilesDeletedEvent(String store, List<String> ids, String pathPrefix) {
+
+    /**
+     * @param store name of the store owning the files
+     * @param ids   ids of the deleted files
+     * @return event of files deleted by their ids
+     */
+    public static FilesDeletedEvent ofIds(String store, List<String> ids) {
+        return new FilesDeletedEvent(store, List.copyOf(ids), null);
+    }
+
+    /**
+     * @param store name of the store owning the files
+     * @param path  path prefix with any separators, null for all files
+     * @return event of files deleted by a path prefix
+     */
+    public static FilesDeletedEvent ofPath(String store, String path) {
+        return new FilesDeletedEvent(store, List.of(), path != null ? StorageEntity.normalizePath(path) : "");
+    }
+}
@@ -0,0 +1,526 @@
+package org.clematis.storage.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.clematis.storage.content.DecodedStorageContent;
+import org.clematis.storage.content.HotStorageContent;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.repository.BlobContentRepository;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.util.unit.DataSize;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.java.Log;
+
+/**
+ * Hot tier of the {@link TieredStorageServiceImpl}: copies of files read often, kept in database
+ * BLOBs apart from the content of the {@link DbStorageServiceImpl}. Every file stays in the cold tier,
+ * the {@link FileStorageServiceImpl}, so a file is promoted by copying it into a BLOB and demoted by
+ * dropping the copy. Ids and metadata of files never change when they move between the tiers.
+ * <p>
+ * Reads of every file are counted, the counts are halved every aging interval. A file read
+ * often enough is promoted, room for it is made by demoting the copies read least, unless they
+ * are read more often than the file. Copies not read for the idle time are demoted too.
+ * <p>
+ * Files are migrated by a single background thread: promotions start when a file is due for
+ * promotion, and every aging interval the counts are aged and idle copies are demoted, whether
+ * files are read or not. Files are copied at the configured rate, so migrations don't compete
+ * with downloads for the disk.
+ * Hot copies, hot bytes, promotions, demotions and reads by tier are published as
+ * {@code clematis.storage.tiering.*} metrics.
+ */
+@Component
+@Log
+public class HotTier {
+
+    /**
+     * Prefix of the BLOB ids of hot copies, followed by the ids of the files
+     */
+    public static final String BLOB_PREFIX = "hot:";
+
+    private static final String METRIC_PREFIX = "clematis.storage.tiering";
+
+    private static final String TIER_TAG = "tier";
+
+    private static final String BYTES = ", bytes: ";
+
+    private static final long MAX_TRACKED_FILES = 100_000;
+
+    /**
+     * Copies read least, and longest ago of those read as often, come first
+     */
+    private static final Comparator<Access> COLDEST_FIRST = Comparator.comparingInt(Access::hits)
+        .thenComparingLong(Access::lastAccess);
+
+    private final StorageService coldTier;
+
+    private final BlobContentRepository blobContentRepository;
+
+    private final ExecutorService migrationExecutor;
+
+    private final long maxSize;
+
+    /**
+     * Limits bytes copied into the hot tier per second, 0 for unlimited
+     */
+    private final RateLimiter migrationRate;
+
+    private final Map<String, HotCopy> hot = new ConcurrentHashMap<>();
+
+    /**
+     * Ids of files with hot copies by logical path, ordered for prefix lookups
+     */
+    private final NavigableMap<String, Set<String>> idsByPath = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong hotBytes = new AtomicLong();
+
+    /**
+     * Read counts of files in the cold tier
+     */
+    private final Cache<String, Access> accesses = Caffeine.newBuilder()
+        .maximumSize(MAX_TRACKED_FILES)
+        .build();
+
+    private final Set<String> candidates = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean migrationScheduled = new AtomicBoolean();
+
+    /**
+     * Serializes adding and removing hot copies, so a copy of a file being deleted is never kept
+     */
+    private final Object migrationLock = new Object();
+
+    private final Counter promotions;
+
+    private final Counter demotions;
+
+    private final Counter hotReads;
+
+    private final Counter coldReads;
+
+    private volatile boolean stopped;
+
+    /**
+     * Reads which make a file due for promotion
+     */
+    @Value("${clematis.storage.tiering.promote-accesses:3}")
+    private int promoteAccesses;
+
+    /**
+     * Files of this size and smaller, as stored, are promoted
+     */
+    @Value("${clematis.storage.tiering.max-object-size:1MB}")
+    private DataSize maxObjectSize;
+
+    @Value("${clematis.storage.tiering.aging-interval:10m}")
+    private Duration agingInterval;
+
+    @Value("${clematis.storage.tiering.idle-time:30m}")
+    private Duration idleTime;
+
+    public HotTier(@Qualifier("fileStorageServiceImpl") StorageService coldTier,
+                   BlobContentRepository blobContentRepository,
+                   @Qualifier("tierMigrationExecutor") ExecutorService migrationExecutor,
+                   @Value("${clematis.storage.tiering.max-size:256MB}") DataSize maxSize,
+                   @Value("${clematis.storage.tiering.migration.bytes-per-second:8MB}") DataSize bytesPerSecond,
+                   MeterRegistry meterRegistry) {
+        this.coldTier = coldTier;
+        this.blobContentRepository = blobContentRepository;
+        this.migrationExecutor = migrationExecutor;
+        this.maxSize = maxSize.toBytes();
+        this.migrationRate = new RateLimiter(bytesPerSecond.toBytes());
+        this.promotions = Counter.builder(METRIC_PREFIX + ".promotions")
+            .description("Files copied into the hot tier")
+            .register(meterRegistry);
+        this.demotions = Counter.builder(METRIC_PREFIX + ".demotions")
+            .description("Hot copies dropped for hotter files or after the idle time")
+            .register(meterRegistry);
+        this.hotReads = readCounter(meterRegistry, "hot");
+        this.coldReads = readCounter(meterRegistry, "cold");
+        Gauge.builder(METRIC_PREFIX + ".hot.bytes", hotBytes, AtomicLong::get)
+            .description("Bytes of hot copies")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".hot.files", hot, Map::size)
+            .description("Files with hot copies")
+            .register(meterRegistry);
+        load();
+        log.info("Hot copies: " + hot.size() + BYTES + hotBytes.get() + ", max size: " + maxSize);
+    }
+
+    /**
+     * Starts aging the read counts and demoting idle copies every aging interval.
+     */
+    @PostConstruct
+    public void start() {
+        scheduleAging();
+    }
+
+    /**
+     * Stops aging, migrations in progress are finished by the executor.
+     */
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Opens the hot copy of a file and counts the read.
+     *
+     * @param id id of the file
+     * @return content of the hot copy or empty if the file is in the cold tier only
+     */
+    public Optional<StorageContent> open(String id) {
+        HotCopy copy = hot.get(id);
+        if (copy == null) {
+            return Optional.empty();
+        }
+        copy.access().hit();
+        hotReads.increment();
+        return Optional.of(DecodedStorageContent.of(new HotStorageContent(copy.metadata(), blobId(id),
+            blobContentRepository, () -> coldTier.getContent(id))));
+    }
+
+    /**
+     * Returns metadata of a file with a hot copy.
+     *
+     * @param id id of the file
+     * @return metadata or empty if the file is in the cold tier only
+     */
+    public Optional<StorageEntity> getMetadata(String id) {
+        return Optional.ofNullable(hot.get(id)).map(HotCopy::metadata);
+    }
+
+    /**
+     * Tells if a file has a hot copy.
+     *
+     * @param id id of the file
+     * @return true if the file is read from the hot tier
+     */
+    public boolean contains(String id) {
+        return hot.containsKey(id);
+    }
+
+    /**
+     * Counts a read of a file from the cold tier and schedules its promotion once it is read
+     * often enough.
+     *
+     * @param content content of the file opened in the cold tier
+     */
+    public void recordColdRead(StorageContent content) {
+        coldReads.increment();
+        String id = content.getMetadata().getId();
+        int hits = accesses.get(id, key -> new Access()).hit();
+        if (hits >= promoteAccesses && storedLength(content) <= maxObjectSize() && candidates.add(id)) {
+            scheduleMigration();
+        }
+    }
+
+    /**
+     * Drops the hot copy and the read count of a file, e.g. when the file is deleted.
+     * Call after the metadata of the file is deleted, a copy written meanwhile is dropped
+     * by the migration.
+     *
+     * @param id id of the file
+     */
+    public void drop(String id) {
+        candidates.remove(id);
+        accesses.invalidate(id);
+        remove(id);
+    }
+
+    /**
+     * Drops the hot copies of files deleted by the file store, e.g. through its own endpoints, so they are
+     * not served after their metadata is gone. A copy being written meanwhile is dropped by the migration.
+     *
+     * @param event files deleted by their ids or by a path prefix
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onFilesDeleted(FilesDeletedEvent event) {
+        if (!ContentReferenceService.FS_STORE.equals(event.store())) {
+            return;
+        }
+        List<String> ids = event.pathPrefix() != null ? findIdsByPath(event.pathPrefix()) : event.ids();
+        ids.forEach(this::drop);
+    }
+
+    /**
+     * Returns the ids of files with hot copies whose logical paths start with a prefix.
+     *
+     * @param prefix normalized path prefix, empty for all files
+     * @return ids of the files
+     */
+    public List<String> findIdsByPath(String prefix) {
+        return idsByPath.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values().stream()
+            .flatMap(Set::stream)
+            .toList();
+    }
+
+    private void scheduleMigration() {
+        if (migrationScheduled.compareAndSet(false, true)) {
+            migrationExecutor.execute(() -> {
+                migrationScheduled.set(false);
+                try {
+                    migrate();
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Tier migration failed, " + e.getMessage(), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs the next aging on the migration executor after the aging interval, the aging schedules the one after.
+     */
+    private void scheduleAging() {
+        if (stopped) {
+            return;
+        }
+        try {
+            CompletableFuture.delayedExecutor(agingInterval.toNanos(), TimeUnit.NANOSECONDS, migrationExecutor)
+                .execute(() -> {
+                    try {
+                        age();
+                    } catch (RuntimeException e) {
+                        log.log(Level.SEVERE, "Tier aging failed, " + e.getMessage(), e);
+                    } finally {
+                        scheduleAging();
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            log.info("Tier aging stopped, " + e.getMessage());
+        }
+    }
+
+    /**
+     * Halves the read counts and demotes the copies not read for the idle time.
+     */
+    private void age() {
+        long now = System.nanoTime();
+        // counts of files not read since the last aging drop out
+        accesses.asMap().values().removeIf(access -> access.age() == 0);
+        hot.values().forEach(copy -> copy.access().age());
+        hot.forEach((id, copy) -> {
+            if (now - copy.access().lastAccess() >= idleTime.toNanos()) {
+                demote(id);
+            }
+        });
+        log.info("Tier aging done, hot copies: " + hot.size() + BYTES + hotBytes.get());
+    }
+
+    /**
+     * Promotes the files due for promotion.
+     */
+    private void migrate() {
+        List<String> due = new ArrayList<>(candidates);
+        candidates.removeAll(due);
+        try {
+            for (String id : due) {
+                promote(id);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Tier migration done, hot copies: " + hot.size() + BYTES + hotBytes.get());
+    }
+
+    /**
+     * Copies a file from the cold tier into a BLOB, as stored, if there is room for it.
+     */
+    private void promote(String id) throws InterruptedException {
+        Access access = Optional.ofNullable(accesses.getIfPresent(id)).orElseGet(Access::new);
+        Optional<StorageContent> stored = (hot.containsKey(id) ? Optional.<StorageContent>empty()
+            : coldTier.getContent(id))
+            .map(content -> content.getEncoded().orElse(content))
+            .filter(content -> content.length() <= maxObjectSize() && makeRoom(content.length(), access));
+        if (stored.isPresent()) {
+            try {
+                copy(stored.get(), access);
+            } catch (IOException | DataAccessException e) {
+                log.warning("File " + id + " is not promoted: " + e.getMessage());
+            }
+        }
+    }
+
+    private void copy(StorageContent stored, Access access) throws IOException, InterruptedException {
+        StorageEntity metadata = stored.getMetadata();
+        String id = metadata.getId();
+        long length = stored.length();
+        migrationRate.acquire(length);
+        synchronized (migrationLock) {
+            // a copy may be left over by a failed delete or a previous run
+            blobContentRepository.deleteContent(blobId(id));
+            try (InputStream in = stored.getInputStream()) {
+                blobContentRepository.writeContent(blobId(id), in);
+            }
+            if (coldTier.getStorageEntity(id).isPresent()) {
+                keep(id, new HotCopy(metadata, length, access));
+                accesses.invalidate(id);
+                promotions.increment();
+                log.info("Promoted " + id + BYTES + length);
+            } else {
+                // the file was deleted while it was copied
+                blobContentRepository.deleteContent(blobId(id));
+            }
+        }
+    }
+
+    /**
+     * Demotes the coldest copies until a file fits, unless they are read more often than the file.
+     */
+    private boolean makeRoom(long length, Access access) {
+        while (hotBytes.get() + length > maxSize) {
+            Optional<Map.Entry<String, HotCopy>> coldest = hot.entrySet().stream()
+                .min(Map.Entry.comparingByValue(Comparator.comparing(HotCopy::access, COLDEST_FIRST)));
+            if (coldest.isEmpty() || COLDEST_FIRST.compare(access, coldest.get().getValue().access()) <= 0) {
+                return false;
+            }
+            demote(coldest.get().getKey());
+        }
+        return true;
+    }
+
+    private void demote(String id) {
+        remove(id).ifPresent(copy -> {
+            // the count goes on, a file read again soon is promoted again
+            accesses.put(id, copy.access());
+            demotions.increment();
+            log.info("Demoted " + id + BYTES + copy.length());
+        });
+    }
+
+    private Optional<HotCopy> remove(String id) {
+        synchronized (migrationLock) {
+            HotCopy copy = hot.remove(id);
+            if (copy != null) {
+                hotBytes.addAndGet(-copy.length());
+                String path = copy.metadata().getPath();
+                if (path != null) {
+                    idsByPath.computeIfPresent(path, (k, ids) -> {
+                        ids.remove(id);
+                        return ids.isEmpty() ? null : ids;
+                    });
+                }
+                try {
+                    blobContentRepository.deleteContent(blobId(id));
+                } catch (IOException e) {
+                    log.warning("Hot copy of " + id + " is not deleted: " + e.getMessage());
+                }
+            }
+            return Optional.ofNullable(copy);
+        }
+    }
+
+    private void keep(String id, HotCopy copy) {
+        hot.put(id, copy);
+        hotBytes.addAndGet(copy.length());
+        if (copy.metadata().getPath() != null) {
+            idsByPath.computeIfAbsent(copy.metadata().getPath(), k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    /**
+     * Indexes the hot copies kept in the database. Copies of files deleted meanwhile,
+     * and copies which don't fit anymore, are dropped.
+     */
+    private void load() {
+        try {
+            for (String blobId : blobContentRepository.findIdsByPrefix(BLOB_PREFIX)) {
+                String id = blobId.substring(BLOB_PREFIX.length());
+                Optional<StorageContent> stored = coldTier.getContent(id)
+                    .map(content -> content.getEncoded().orElse(content))
+                    .filter(content -> hotBytes.get() + content.length() <= maxSize);
+                if (stored.isPresent()) {
+                    keep(id, new HotCopy(stored.get().getMetadata(), stored.get().length(), new Access()));
+                } else {
+                    blobContentRepository.deleteContent(blobId);
+                }
+            }
+        } catch (IOException | DataAccessException e) {
+            log.warning("Hot copies are not loaded, files are copied again when promoted: " + e.getMessage());
+        }
+    }
+
+    private long maxObjectSize() {
+        return Math.min(maxObjectSize.toBytes(), maxSize);
+    }
+
+    private static Counter readCounter(MeterRegistry meterRegistry, String tier) {
+        return Counter.builder(METRIC_PREFIX + ".reads")
+            .description("Files opened by tier")
+            .tag(TIER_TAG, tier)
+            .register(meterRegistry);
+    }
+
+    private static long storedLength(StorageContent content) {
+        return content.getEncoded().orElse(content).length();
+    }
+
+    private static String blobId(String id) {
+        return BLOB_PREFIX + id;
+    }
+
+    /**
+     * Read count of a file, halved when aged, and the time of the last read
+     */
+    private static final class Access {
+
+        private final AtomicInteger hits = new AtomicInteger();
+
+        private volatile long lastAccess = System.nanoTime();
+
+        private int hit() {
+            lastAccess = System.nanoTime();
+            return hits.incrementAndGet();
+        }
+
+        private int age() {
+            return hits.updateAndGet(count -> count >> 1);
+        }
+
+        private int hits() {
+            return hits.get();
+        }
+
+        private long lastAccess() {
+            return lastAccess;
+        }
+    }
+
+    /**
+     * Hot copy of a file: the metadata of the file, the stored length and the read count
+     */
+    private record HotCopy(StorageEntity metadata, long length, Access access) {
+    }
+}
@@ -0,0 +1,45 @@
+package org.clematis.storage.service;
+
+import java.util.List;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+/**
+ * Outcome of an archive import
+ *
+ * @param files          number of stored files
+ * @param failed         number of entries which failed
+ * @param bytes          total size of the stored files
+ * @param millis         duration of the import in milliseconds
+ * @param bytesPerSecond import throughput
+ * @param failures       failed entries with their errors, the first ones if there are many
+ */
+@Schema(name = "ImportResult", description = "Outcome of an archive import")
+public record ImportResult(
+    @Schema(description = "Number of stored files", example = "1200")
+    int files,
+    @Schema(description = "Number of entries which failed", example = "1")
+    int failed,
+    @Schema(description = "Total size of the stored files in bytes", example = "73400320")
+    long bytes,
+    @Schema(description = "Duration of the import in milliseconds", example = "2150")
+    long millis,
+    @Schema(description = "Bytes stored per second", example = "34139683")
+    long bytesPerSecond,
+    @Schema(description = "Failed entries, the first ones if there are many")
+    List<Failure> failures) {
+
+    /**
+     * Archive entry which was not stored
+     *
+     * @param entry name of the entry in the archive
+     * @param error reason of the failure
+     */
+    @Schema(name = "ImportFailure", description = "Archive entry which was not stored")
+    public record Failure(
+        @Schema(description = "Name of the entry in the archive", example = "docs/../passwd")
+        String entry,
+        @Schema(description = "Reason of the failure", example = "Invalid path sequence")
+        String error) {
+    }
+}
@@ -0,0 +1,174 @@
+package org.clematis.storage.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.clematis.storage.content.FileStorageContent;
+import org.clematis.storage.content.MappedRegion;
+import org.clematis.storage.content.MappedStorageContent;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.java.Log;
+
+/**
+ * Bounded pool of memory mapped files of the filesystem store, stored files are never
+ * modified after they are uploaded, so their mappings stay valid until they are deleted.
+ * <p>
+ * A file is mapped once it is opened often enough within a minute, and read from the mapping
+ * by full and ranged downloads, see {@link MappedStorageContent}. The pool is bounded by the
+ * total size of the mapped files and evicts mappings with the W-TinyLFU policy of Caffeine.
+ * Mappings are released when their files are deleted or replaced, and unmapped as soon as
+ * the downloads reading them are done, see {@link MappedRegion}.
+ * <p>
+ * Hits, misses, evictions and the mapped bytes are published as
+ * {@code clematis.storage.mmap.*} metrics.
+ */
+@Component
+@Log
+public class MappedFilePool {
+
+    private static final String METRIC_PREFIX = "clematis.storage.mmap";
+
+    private static final long MAX_COUNTED_FILES = 100_000;
+
+    private static final Duration ACCESS_WINDOW = Duration.ofMinutes(1);
+
+    private final boolean enabled;
+
+    private final long maxFileSize;
+
+    private final int minAccesses;
+
+    private final Cache<Path, MappedRegion> regions;
+
+    private final Cache<Path, AtomicInteger> accesses = Caffeine.newBuilder()
+        .maximumSize(MAX_COUNTED_FILES)
+        .expireAfterWrite(ACCESS_WINDOW)
+        .build();
+
+    public MappedFilePool(@Value("${clematis.storage.mmap.enabled:false}") boolean enabled,
+                          @Value("${clematis.storage.mmap.max-size:256MB}") DataSize maxSize,
+                          @Value("${clematis.storage.mmap.max-file-size:64MB}") DataSize maxFileSize,
+                          @Value("${clematis.storage.mmap.min-accesses:2}") int minAccesses,
+                          MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxFileSize = Math.min(Math.min(maxFileSize.toBytes(), maxSize.toBytes()), Integer.MAX_VALUE);
+        this.minAccesses = minAccesses;
+        this.regions = Caffeine.newBuilder()
+            .maximumWeight(maxSize.toBytes())
+            .weigher((Path file, MappedRegion region) -> Math.toIntExact(region.length()))
+            // evicted mappings are released by the thread mapping another file, not at some later time
+            .executor(Runnable::run)
+            .evictionListener((Path file, MappedRegion region, RemovalCause cause) -> {
+                if (region != null) {
+                    region.close();
+                }
+            })
+            .recordStats()
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, regions, METRIC_PREFIX);
+        Gauge.builder(METRIC_PREFIX + ".bytes", regions,
+                c -> c.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L))
+            .description("Bytes of files mapped into memory")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        log.info("Mapped reads enabled: " + enabled + ", max size: " + maxSize
+            + ", max file size: " + maxFileSize + ", min accesses: " + minAccesses);
+    }
+
+    /**
+     * Opens the content of a stored file, from its mapping if the file is mapped already
+     * or is opened often enough to be mapped now.
+     *
+     * @param metadata metadata of the stored file
+     * @param file     file with the content
+     * @param length   length of the file
+     * @return mapped content or content read from the file
+     */
+    public StorageContent open(StorageEntity metadata, Path file, long length) {
+        FileStorageContent content = new FileStorageContent(metadata, file, length);
+        Optional<MappedRegion> region = enabled && length > 0 && length <= maxFileSize
+            ? region(keyOf(file), metadata.getPath(), length)
+            : Optional.empty();
+        return region.<StorageContent>map(mapped -> new MappedStorageContent(content, mapped)).orElse(content);
+    }
+
+    private Optional<MappedRegion> region(Path file, String path, long length) {
+        MappedRegion region = regions.getIfPresent(file);
+        if (region == null && accesses.get(file, key -> new AtomicInteger()).incrementAndGet() >= minAccesses) {
+            try {
+                region = regions.get(file, key -> map(key, path));
+                accesses.invalidate(file);
+            } catch (UncheckedIOException e) {
+                log.warning("Failed to map " + file + ", " + e.getMessage());
+            }
+        }
+        if (region != null && region.length() != length) {
+            // the file was replaced since it was mapped
+            release(file);
+            region = null;
+        }
+        return Optional.ofNullable(region);
+    }
+
+    /**
+     * Mappings are keyed by absolute paths, callers may refer to a file by a relative one.
+     */
+    private static Path keyOf(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    private static MappedRegion map(Path file, String path) {
+        try {
+            MappedRegion region = MappedRegion.map(file, path);
+            log.info("Mapped " + file + ", bytes: " + region.length());
+            return region;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Releases the mapping of a file, e.g. when the file is deleted or replaced. The file is
+     * unmapped once the downloads reading it are done, and counted anew before it is mapped again.
+     *
+     * @param file file which may be mapped
+     */
+    public void release(Path file) {
+        Path key = keyOf(file);
+        MappedRegion region = regions.asMap().remove(key);
+        if (region != null) {
+            region.close();
+        }
+        accesses.invalidate(key);
+    }
+
+    /**
+     * Releases the mappings of stored files whose logical paths start with a prefix.
+     *
+     * @param prefix normalized path prefix, empty for all files
+     */
+    public void releaseByPath(String prefix) {
+        regions.asMap().forEach((file, region) -> {
+            if (region.getPath() != null && region.getPath().startsWith(prefix)
+                && regions.asMap().remove(file, region)) {
+                region.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+package org.clematis.storage.service;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.Function;
+
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.java.Log;
+
+/**
+ * Cache of stored file metadata by id, shared by all storage services.
+ * <p>
+ * Missing files are cached too, for a shorter time, so repeated requests for
+ * unknown ids don't reach the database. The cache is bounded by the number of
+ * entries and entries expire after a time to live.
+ * <p>
+ * Entries are loaded atomically per id and dropped when a file is saved or deleted.
+ * Inside a transaction the entry is dropped once more after the transaction completes,
+ * so a lookup running concurrently with the change can't cache the state before the commit.
+ * Cached instances are shared and must not be modified.
+ */
+@Component
+@Log
+public class MetadataCache {
+
+    private final Cache<String, Optional<StorageEntity>> cache;
+
+    private final boolean enabled;
+
+    public MetadataCache(@Value("${clematis.storage.metadata-cache.enabled:true}") boolean enabled,
+                         @Value("${clematis.storage.metadata-cache.max-entries:10000}") long maxEntries,
+                         @Value("${clematis.storage.metadata-cache.ttl:5m}") Duration ttl,
+                         @Value("${clematis.storage.metadata-cache.negative-ttl:10s}") Duration negativeTtl,
+                         MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(maxEntries)
+            .expireAfter(Expiry.creating((String key, Optional<StorageEntity> metadata) ->
+                metadata.isPresent() ? ttl : negativeTtl))
+            .recordStats()
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "clematis.storage.metadata.cache");
+        log.info("Metadata cache enabled: " + enabled + ", max entries: " + maxEntries
+            + ", ttl: " + ttl + ", negative ttl: " + negativeTtl);
+    }
+
+    /**
+     * Returns metadata of a stored file, loading it on a miss.
+     *
+     * @param store  name of the store
+     * @param id     id of the file
+     * @param loader reads metadata from the database
+     * @return cached or loaded metadata, empty if there is no such file
+     */
+    public Optional<StorageEntity> get(String store, String id, Function<String, Optional<StorageEntity>> loader) {
+        if (!enabled || id == null) {
+            return loader.apply(id);
+        }
+        return cache.get(key(store, id), missing -> loader.apply(id));
+    }
+
+    /**
+     * Drops metadata of a file which is saved or deleted.
+     *
+     * @param store name of the store
+     * @param id    id of the file
+     */
+    public void invalidate(String store, String id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        String key = key(store, id);
+        cache.invalidate(key);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    cache.invalidate(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops metadata of all files of a store, after a bulk delete.
+     *
+     * @param store name of the store
+     */
+    public void invalidateAll(String store) {
+        if (!enabled) {
+            return;
+        }
+        String prefix = key(store, "");
+        cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+                }
+            });
+        }
+    }
+
+    private static String key(String store, String id) {
+        return store + ":" + id;
+    }
+}
@@ -0,0 +1,35 @@
+package org.clematis.storage.service;
+
+import org.clematis.storage.repository.StorageEntityRepository;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Stores the files too large to be packed by the {@link PackStorageServiceImpl} as individual files,
+ * like the {@link FileStorageServiceImpl} does. The files belong to the pack store, so they are listed
+ * and deleted with the packed files, and never by the file store.
+ */
+@Service
+public class PackFileStorageServiceImpl extends FileStorageServiceImpl {
+
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    public PackFileStorageServiceImpl(StorageEntityRepository storageEntityRepository,
+                                      ContentReferenceService contentReferenceService,
+                                      MetadataCache metadataCache,
+                                      BatchUploadService batchUploadService,
+                                      FilePurger filePurger,
+                                      CompressionPolicy compressionPolicy,
+                                      FileLayout fileLayout,
+                                      TransactionTemplate transactionTemplate,
+                                      MappedFilePool mappedFilePool,
+                                      ApplicationEventPublisher eventPublisher) {
+        super(storageEntityRepository, contentReferenceService, metadataCache, batchUploadService, filePurger,
+            compressionPolicy, fileLayout, transactionTemplate, mappedFilePool, eventPublisher);
+    }
+
+    @Override
+    protected String store() {
+        return ContentReferenceService.PACK_STORE;
+    }
+}
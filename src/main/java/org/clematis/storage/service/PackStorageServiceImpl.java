@@ -0,0 +1,357 @@
+package org.clematis.storage.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.clematis.storage.content.ChecksumInputStream;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.PathKey;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.repository.StorageEntityRepository;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.java.Log;
+
+/**
+ * Implementation of {@link StorageService} that packs small files into the append-only
+ * segments of the {@link PackStore}, so they take no file, inode or open of their own.
+ * Files larger than the configured maximum object size are stored as individual files
+ * by the {@link PackFileStorageServiceImpl}.
+ * <p>
+ * Metadata is stored in the database like with the other stores, so packed files are listed,
+ * searched and deleted by path with the large files of the store. Downloads of packed files
+ * are served from the index of the pack store, without reading the metadata from the database.
+ */
+@Service
+@Log
+public class PackStorageServiceImpl implements StorageService {
+
+    private static final String PARENT_FOLDER = "..";
+
+    /**
+     * Maximum number of IDs bound to a single IN clause
+     */
+    private static final int IDS_PER_STATEMENT = 1000;
+
+    private final StorageEntityRepository storageEntityRepository;
+
+    private final StorageService fileStorageService;
+
+    private final PackStore packStore;
+
+    private final BatchUploadService batchUploadService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    /**
+     * Files of this size and smaller are packed
+     */
+    @Value("${clematis.storage.pack.max-object-size:64KB}")
+    private DataSize maxObjectSize;
+
+    public PackStorageServiceImpl(StorageEntityRepository storageEntityRepository,
+                                  @Qualifier("packFileStorageServiceImpl") StorageService fileStorageService,
+                                  PackStore packStore,
+                                  BatchUploadService batchUploadService,
+                                  TransactionTemplate transactionTemplate) {
+        this.storageEntityRepository = storageEntityRepository;
+        this.fileStorageService = fileStorageService;
+        this.packStore = packStore;
+        this.batchUploadService = batchUploadService;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * Tombstones packed files without metadata, appended by saves whose transaction never committed,
+     * e.g. if the application stopped in between. Nothing is saved before the application starts,
+     * so every packed file is either committed or orphaned by then.
+     */
+    @PostConstruct
+    public void reconcile() {
+        List<String> packed = packStore.getIds();
+        List<String> orphans = new ArrayList<>();
+        try {
+            for (int from = 0; from < packed.size(); from += IDS_PER_STATEMENT) {
+                List<String> chunk = packed.subList(from, Math.min(from + IDS_PER_STATEMENT, packed.size()));
+                Set<String> stored = Set.copyOf(storageEntityRepository.findIdsIn(ContentReferenceService.PACK_STORE,
+                    chunk));
+                chunk.stream().filter(id -> !stored.contains(id)).forEach(orphans::add);
+            }
+        } catch (DataAccessException e) {
+            log.warning("Packed files are not reconciled with their metadata: " + e.getMessage());
+            return;
+        }
+        tombstone(orphans);
+        log.info("Packed files without metadata tombstoned: " + orphans.size());
+    }
+
+    /**
+     * Packs an uploaded file if it is small, otherwise stores it as a file.
+     */
+    @Override
+    public StorageEntity saveAttachment(MultipartFile file, String path) throws Exception {
+        if (file == null) {
+            throw new IOException("Multipart file is null");
+        }
+        if (file.getSize() > maxObjectSize.toBytes()) {
+            return fileStorageService.saveAttachment(file, path);
+        }
+        try (InputStream content = file.getInputStream()) {
+            return saveAttachment(file.getOriginalFilename(), file.getContentType(), content, path);
+        }
+    }
+
+    /**
+     * Reads a file up to the maximum object size and packs it if it ends there, otherwise
+     * the bytes read so far and the rest of the stream are stored as a file.
+     */
+    @Override
+    public StorageEntity saveAttachment(String fileName,
+                                        String contentType,
+                                        InputStream content,
+                                        String path) throws Exception {
+        byte[] head = content.readNBytes(Math.toIntExact(maxObjectSize.toBytes()) + 1);
+        if (head.length <= maxObjectSize.toBytes()) {
+            return savePacked(fileName, contentType, head, path);
+        }
+        log.info("File is too large to pack, storing it as a file: " + fileName);
+        InputStream whole = new SequenceInputStream(new ByteArrayInputStream(head), StreamUtils.nonClosing(content));
+        return fileStorageService.saveAttachment(fileName, contentType, whole, path);
+    }
+
+    /**
+     * Packs a small file read from the local disk, a larger one is taken over by the file store.
+     */
+    @Override
+    public StorageEntity saveFile(String fileName, String contentType, Path file, String path) throws Exception {
+        if (Files.size(file) > maxObjectSize.toBytes()) {
+            return fileStorageService.saveFile(fileName, contentType, file, path);
+        }
+        return savePacked(fileName, contentType, Files.readAllBytes(file), path);
+    }
+
+    /**
+     * Appends a file to the pack store and saves its metadata. The id is assigned when the
+     * metadata is persisted, the row is inserted when the transaction commits, after the file
+     * is appended. If the metadata isn't saved, the appended file is deleted again.
+     */
+    private StorageEntity savePacked(String originalFileName,
+                                     String contentType,
+                                     byte[] data,
+                                     String path) throws IOException {
+        String fileName = fileName(originalFileName, path);
+        // downloads of packed files take the content type from the index, it is never probed
+        StorageEntity attachment = new StorageEntity(ContentReferenceService.PACK_STORE, fileName, contentType != null
+            ? contentType
+            : MediaTypeFactory.getMediaType(fileName).orElse(MediaType.APPLICATION_OCTET_STREAM).toString());
+        try (ChecksumInputStream checksumStream = new ChecksumInputStream(new ByteArrayInputStream(data),
+            data.length)) {
+            checksumStream.transferTo(OutputStream.nullOutputStream());
+            attachment.setSize(checksumStream.getSize());
+            attachment.setChecksum(checksumStream.getChecksum());
+        }
+        attachment.setLastModified(Instant.now());
+        try {
+            StorageEntity saved = transactionTemplate.execute(status -> {
+                StorageEntity persisted = storageEntityRepository.save(attachment);
+                try {
+                    packStore.put(persisted, data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return persisted;
+            });
+            log.info("Packed metadata saved: " + saved);
+            return saved;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            // the metadata is not saved, the appended file belongs to nothing
+            if (attachment.getId() != null) {
+                packStore.delete(attachment.getId());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Validates the file name and the path and joins them into the logical file name.
+     */
+    private static String fileName(String originalFileName, String path) throws IOException {
+        String fileName = originalFileName != null
+            ? StringUtils.cleanPath(originalFileName)
+            : UUID.randomUUID().toString();
+        String additionalPath = (path != null && !path.isEmpty())
+            ? StringUtils.cleanPath(path)
+            : "";
+        if (additionalPath.contains(PARENT_FOLDER) || fileName.contains(PARENT_FOLDER)) {
+            throw new IOException("Filename contains invalid path sequence " + additionalPath + "/" + fileName);
+        }
+        return Paths.get(additionalPath, fileName).toString();
+    }
+
+    /**
+     * Saves multiple uploaded files in parallel.
+     * If any file fails, a RuntimeException is thrown once all files are done.
+     */
+    @Override
+    public List<StorageEntity> saveAttachments(MultipartFile[] files, String path) {
+        List<UploadResult> results = batchUploadService.saveAll(this, files, path);
+        for (UploadResult result : results) {
+            if (!result.isSaved()) {
+                log.log(Level.SEVERE, result.error().getMessage());
+                throw new RuntimeException("Failed to save attachment: " + result.fileName(), result.error());
+            }
+        }
+        return results.stream().map(UploadResult::entity).toList();
+    }
+
+    @Override
+    public List<StorageEntity> findByPath(String path) {
+        return fileStorageService.findByPath(path);
+    }
+
+    @Override
+    public List<StorageEntity> findByPath(String path, PathKey after, int limit) {
+        return fileStorageService.findByPath(path, after, limit);
+    }
+
+    @Override
+    public void forEachByPath(String path, Consumer<StorageEntity> action) {
+        fileStorageService.forEachByPath(path, action);
+    }
+
+    @Override
+    public List<StorageEntity> getAll() {
+        return fileStorageService.getAll();
+    }
+
+    /**
+     * Returns metadata of a packed file from the index of the pack store, of other files
+     * from the file store.
+     */
+    @Override
+    public Optional<StorageEntity> getStorageEntity(String id) {
+        return packStore.getMetadata(id).or(() -> fileStorageService.getStorageEntity(id));
+    }
+
+    /**
+     * Reads a packed file with a single positioned read, other files are streamed by the file store.
+     */
+    @Override
+    public Optional<StorageContent> getContent(String id) {
+        try {
+            return packStore.read(id).or(() -> fileStorageService.getContent(id));
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed to read packed file: " + id + ", " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Deletes the metadata of a packed file and appends its tombstone, the space is reclaimed
+     * by a compaction. Other files are deleted by the file store.
+     */
+    @Override
+    public void deleteFile(String id) {
+        if (packStore.contains(id)) {
+            log.info("Deleting packed file with ID: " + id);
+            storageEntityRepository.deleteMetadataById(ContentReferenceService.PACK_STORE, id);
+            tombstone(List.of(id));
+        } else {
+            fileStorageService.deleteFile(id);
+        }
+    }
+
+    /**
+     * Deletes metadata of packed files by IDs with one statement per chunk of IDs and appends
+     * their tombstones once the metadata is gone. Other files are deleted by the file store.
+     */
+    @Override
+    public DeleteResult deleteFiles(List<String> ids) {
+        List<String> packed = ids.stream().filter(packStore::contains).toList();
+        DeleteResult others = fileStorageService.deleteFiles(ids.stream().filter(id -> !packStore.contains(id))
+            .toList());
+        Integer deleted = transactionTemplate.execute(status -> {
+            int count = 0;
+            for (int from = 0; from < packed.size(); from += IDS_PER_STATEMENT) {
+                count += storageEntityRepository.deleteMetadataByIds(ContentReferenceService.PACK_STORE,
+                    packed.subList(from, Math.min(from + IDS_PER_STATEMENT, packed.size())));
+            }
+            return count;
+        });
+        tombstone(packed);
+        log.info("Packed files deleted by ids: " + deleted);
+        return new DeleteResult(others.deleted() + (deleted != null ? deleted : 0), others.purge());
+    }
+
+    /**
+     * Deletes all files by path prefix with the file store, the packed ones are tombstoned
+     * by {@link #onFilesDeleted} once their metadata is gone.
+     */
+    @Override
+    public DeleteResult deleteByPath(String path) {
+        return fileStorageService.deleteByPath(path);
+    }
+
+    /**
+     * Tombstones packed files whose metadata is deleted by the file store of the large files,
+     * deleting a path prefix, so they are not served from the index anymore. Of the files under
+     * a deleted prefix, only those without metadata are tombstoned, files packed since the delete are kept.
+     *
+     * @param event files deleted by their ids or by a path prefix
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onFilesDeleted(FilesDeletedEvent event) {
+        if (!ContentReferenceService.PACK_STORE.equals(event.store())) {
+            return;
+        }
+        if (event.pathPrefix() == null) {
+            tombstone(event.ids().stream().filter(packStore::contains).toList());
+        } else {
+            List<String> packed = packStore.findIdsByPath(event.pathPrefix());
+            if (!packed.isEmpty()) {
+                Set<String> stored = Set.copyOf(storageEntityRepository.findIdsByPathLike(
+                    ContentReferenceService.PACK_STORE, StorageEntityRepository.likePathPrefix(event.pathPrefix())));
+                tombstone(packed.stream().filter(id -> !stored.contains(id)).toList());
+            }
+        }
+    }
+
+    private void tombstone(List<String> ids) {
+        for (String id : ids) {
+            try {
+                packStore.delete(id);
+            } catch (IOException e) {
+                log.warning("Tombstone of packed file " + id + " is not written: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,690 @@
+package org.clematis.storage.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.clematis.storage.content.ByteArrayStorageContent;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.java.Log;
+
+/**
+ * Append-only segment files holding the content of small stored files, after Haystack.
+ * <p>
+ * A file is appended to the active segment as a record carrying its id, metadata and content,
+ * the active segment is rolled over at the configured size. An in-memory index maps ids to the
+ * segment, offset and length of their content along with the metadata, so a file is read with
+ * a single positioned read and no metadata lookup. The index is rebuilt from the segments when
+ * the store starts, a torn record at the end of the last segment is cut off. Files appended by saves
+ * whose metadata was never committed are tombstoned by the {@link PackStorageServiceImpl} once it starts.
+ * <p>
+ * A delete appends a tombstone and drops the id from the index, the records of deleted files
+ * become garbage. A segment whose garbage reaches the configured ratio is compacted in the
+ * background: its live records are appended to the active segment and the segment is removed.
+ * Tombstones are carried over as long as the segment of the deleted record exists.
+ */
+@Component
+@Log
+public class PackStore {
+
+    /**
+     * Default folder of the segments under the download folder
+     */
+    public static final String PACKS_FOLDER = ".packs";
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{8})\\.pack");
+
+    private static final int MAGIC = 0x434C504B;
+
+    private static final byte PUT = 1;
+
+    private static final byte TOMBSTONE = 2;
+
+    /**
+     * Magic, type and header length before the header
+     */
+    private static final int PREFIX_BYTES = 9;
+
+    /**
+     * Prefix, data length and CRC32 of a record
+     */
+    private static final int RECORD_OVERHEAD = PREFIX_BYTES + 8;
+
+    private static final int MAX_HEADER_BYTES = 4 * 65536;
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private static final String SEGMENT = "Segment ";
+
+    private final Path folder;
+
+    private final long segmentSize;
+
+    private final double garbageRatio;
+
+    private final boolean fsync;
+
+    private final ExecutorService compactionExecutor;
+
+    private final Map<String, Needle> index = new ConcurrentHashMap<>();
+
+    /**
+     * Ids of packed files by logical path, ordered for prefix lookups
+     */
+    private final NavigableMap<String, Set<String>> idsByPath = new ConcurrentSkipListMap<>();
+
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    /**
+     * Serializes appends, the index entry of a record changes only while this lock is held
+     */
+    private final Object appendLock = new Object();
+
+    private volatile Segment active;
+
+    public PackStore(@Value("${clematis.storage.pack.folder:${clematis.storage.download.folder}/.packs}") String folder,
+                     @Value("${clematis.storage.pack.segment-size:256MB}") DataSize segmentSize,
+                     @Value("${clematis.storage.pack.compaction.garbage-ratio:0.5}") double garbageRatio,
+                     @Value("${clematis.storage.pack.fsync:false}") boolean fsync,
+                     @Qualifier("packCompactionExecutor") ExecutorService compactionExecutor) throws IOException {
+        this.folder = Path.of(folder);
+        this.segmentSize = segmentSize.toBytes();
+        this.garbageRatio = garbageRatio;
+        this.fsync = fsync;
+        this.compactionExecutor = compactionExecutor;
+        load();
+        log.info("Pack segments: " + segments.size() + ", packed files: " + index.size()
+            + ", segment size: " + segmentSize + ", folder: " + this.folder.toAbsolutePath());
+        scheduleCompaction();
+    }
+
+    /**
+     * Appends a file to the active segment and makes it readable by its id.
+     *
+     * @param metadata metadata of the file with its id assigned
+     * @param data     content of the file
+     * @throws IOException if the record can't be written
+     */
+    public void put(StorageEntity metadata, byte[] data) throws IOException {
+        StorageEntity packed = packed(metadata.getId(), metadata.getFileName(), metadata.getContentType(),
+            metadata.getChecksum(), metadata.getLastModified(), data.length);
+        synchronized (appendLock) {
+            Needle previous = index.put(packed.getId(), append(PUT, packed, data, -1));
+            if (previous != null) {
+                previous.segment().garbage.addAndGet(previous.recordLength());
+                unindexPath(previous.metadata());
+            }
+            indexPath(packed);
+        }
+    }
+
+    /**
+     * Tells if a file is packed.
+     *
+     * @param id id of the file
+     * @return true if the file is in a segment
+     */
+    public boolean contains(String id) {
+        return index.containsKey(id);
+    }
+
+    /**
+     * Returns metadata of a packed file from the index.
+     *
+     * @param id id of the file
+     * @return metadata or empty if the file isn't packed
+     */
+    public Optional<StorageEntity> getMetadata(String id) {
+        return Optional.ofNullable(index.get(id)).map(Needle::metadata);
+    }
+
+    /**
+     * Reads a packed file with one positioned read of its segment.
+     *
+     * @param id id of the file
+     * @return content or empty if the file isn't packed
+     * @throws IOException if the segment can't be read
+     */
+    public Optional<StorageContent> read(String id) throws IOException {
+        Needle needle = index.get(id);
+        byte[] data = null;
+        while (needle != null && data == null) {
+            try {
+                data = read(needle);
+            } catch (ClosedChannelException e) {
+                needle = afterClose(id, needle, e);
+            }
+        }
+        return needle != null ? Optional.of(new ByteArrayStorageContent(needle.metadata(), data)) : Optional.empty();
+    }
+
+    /**
+     * Looks a file up again after the channel of its segment turned out to be closed. Either the
+     * segment was compacted since the lookup and the file is elsewhere now or deleted, or the channel
+     * was closed by an interrupt of a thread using it and is reopened by the next read.
+     */
+    private Needle afterClose(String id, Needle needle, ClosedChannelException e) throws IOException {
+        Needle current = index.get(id);
+        if (current == needle && (needle.segment().removed || e instanceof ClosedByInterruptException)) {
+            throw e;
+        }
+        return current;
+    }
+
+    /**
+     * Returns the ids of packed files whose logical paths start with a prefix.
+     *
+     * @param prefix normalized path prefix, empty for all files
+     * @return ids of the files
+     */
+    public List<String> findIdsByPath(String prefix) {
+        return idsByPath.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values().stream()
+            .flatMap(Set::stream)
+            .toList();
+    }
+
+    /**
+     * Returns the ids of all packed files.
+     *
+     * @return ids of the files
+     */
+    public List<String> getIds() {
+        return List.copyOf(index.keySet());
+    }
+
+    /**
+     * Appends a tombstone of a packed file and drops it from the index.
+     *
+     * @param id id of the file
+     * @return true if the file was packed
+     * @throws IOException if the tombstone can't be written
+     */
+    public boolean delete(String id) throws IOException {
+        Segment garbage;
+        synchronized (appendLock) {
+            Needle needle = index.get(id);
+            if (needle == null) {
+                return false;
+            }
+            StorageEntity tombstone = packed(id, null, null, null, null, 0);
+            Needle written = append(TOMBSTONE, tombstone, new byte[0], needle.segment().number);
+            written.segment().garbage.addAndGet(written.recordLength());
+            index.remove(id);
+            unindexPath(needle.metadata());
+            garbage = needle.segment();
+            garbage.garbage.addAndGet(needle.recordLength());
+        }
+        if (garbage != active && garbage.garbageRatio() >= garbageRatio) {
+            scheduleCompaction();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of segment files.
+     *
+     * @return number of segments, including the active one
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Compacts every segment but the active one whose garbage reaches the configured ratio.
+     * Compactions run one at a time, reads and appends continue while a segment is compacted.
+     *
+     * @return number of compacted segments
+     * @throws IOException if a segment can't be read or live records can't be written
+     */
+    public synchronized int compact() throws IOException {
+        int compacted = 0;
+        for (Segment segment : List.copyOf(segments.values())) {
+            if (segment != active && segment.garbageRatio() >= garbageRatio) {
+                compact(segment);
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Closes the segment files.
+     */
+    @PreDestroy
+    public void close() {
+        synchronized (appendLock) {
+            for (Segment segment : segments.values()) {
+                segment.removed = true;
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    log.warning("Failed to close segment " + segment.file + ", " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void scheduleCompaction() {
+        boolean due = segments.values().stream()
+            .anyMatch(segment -> segment != active && segment.garbageRatio() >= garbageRatio);
+        if (due && compactionScheduled.compareAndSet(false, true)) {
+            compactionExecutor.execute(() -> {
+                compactionScheduled.set(false);
+                try {
+                    int compacted = compact();
+                    log.info("Compacted pack segments: " + compacted);
+                } catch (IOException | RuntimeException e) {
+                    log.log(Level.SEVERE, "Pack compaction failed, " + e.getMessage(), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Appends the live records and the tombstones still needed of a segment to the active segment,
+     * then removes the segment. A record is copied only if the index still points to it, under the
+     * append lock, so a concurrent delete either drops it first or writes its tombstone after the copy.
+     */
+    private void compact(Segment segment) throws IOException {
+        AtomicLong copied = new AtomicLong();
+        scan(segment, (record, offset) -> {
+            synchronized (appendLock) {
+                if (record.type() == PUT) {
+                    Needle current = index.get(record.metadata().getId());
+                    if (current != null && current.segment() == segment && current.offset() == offset) {
+                        index.put(current.metadata().getId(), append(PUT, current.metadata(), record.data(), -1));
+                        copied.incrementAndGet();
+                    }
+                } else if (record.deletedSegment() != segment.number
+                    && segments.containsKey(record.deletedSegment())) {
+                    Needle written = append(TOMBSTONE, record.metadata(), record.data(), record.deletedSegment());
+                    written.segment().garbage.addAndGet(written.recordLength());
+                }
+            }
+        });
+        synchronized (appendLock) {
+            segments.remove(segment.number);
+            segment.removed = true;
+            segment.channel.close();
+        }
+        Files.deleteIfExists(segment.file);
+        log.info(SEGMENT + segment.file + " compacted, live files moved: " + copied.get());
+    }
+
+    /**
+     * Opens the segments in the order they were written and indexes their records.
+     */
+    private void load() throws IOException {
+        Files.createDirectories(folder);
+        List<Integer> numbers;
+        try (Stream<Path> files = Files.list(folder)) {
+            numbers = files.map(file -> SEGMENT_NAME.matcher(file.getFileName().toString()))
+                .filter(Matcher::matches)
+                .map(matcher -> Integer.parseInt(matcher.group(1)))
+                .sorted()
+                .toList();
+        }
+        for (int number : numbers) {
+            Segment segment = open(number);
+            segments.put(number, segment);
+            long end = scan(segment, (record, offset) -> index(segment, record, offset));
+            long size = segment.channel.size();
+            if (end < size && number == numbers.get(numbers.size() - 1)) {
+                log.warning(SEGMENT + segment.file + " is cut off after a torn record at " + end);
+                segment.channel.truncate(end);
+                segment.end = end;
+            } else {
+                // an unreadable tail of an older segment is garbage, it goes with the compaction
+                segment.end = size;
+                segment.garbage.addAndGet(size - end);
+            }
+        }
+        active = segments.isEmpty() ? roll() : segments.lastEntry().getValue();
+    }
+
+    /**
+     * Applies a record found while loading to the index.
+     */
+    private void index(Segment segment, Record record, long offset) {
+        String id = record.metadata().getId();
+        Needle previous;
+        if (record.type() == PUT) {
+            previous = index.put(id, new Needle(segment, offset, record.data().length,
+                record.length(), record.metadata()));
+        } else {
+            segment.garbage.addAndGet(record.length());
+            previous = index.remove(id);
+        }
+        if (previous != null) {
+            previous.segment().garbage.addAndGet(previous.recordLength());
+            unindexPath(previous.metadata());
+        }
+        if (record.type() == PUT) {
+            indexPath(record.metadata());
+        }
+    }
+
+    private void indexPath(StorageEntity metadata) {
+        if (metadata.getPath() != null) {
+            idsByPath.computeIfAbsent(metadata.getPath(), k -> ConcurrentHashMap.newKeySet()).add(metadata.getId());
+        }
+    }
+
+    private void unindexPath(StorageEntity metadata) {
+        if (metadata.getPath() != null) {
+            idsByPath.computeIfPresent(metadata.getPath(), (k, ids) -> {
+                ids.remove(metadata.getId());
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    private Segment open(int number) throws IOException {
+        Path file = folder.resolve(String.format("segment-%08d.pack", number));
+        return new Segment(number, file, openChannel(file));
+    }
+
+    private static FileChannel openChannel(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Starts a new active segment, the caller holds the append lock unless the store is loading.
+     */
+    private Segment roll() throws IOException {
+        int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Segment segment = open(number);
+        segments.put(number, segment);
+        active = segment;
+        log.info("Active pack segment: " + segment.file);
+        return segment;
+    }
+
+    /**
+     * Writes a record at the end of the active segment, the caller holds the append lock.
+     * A record which fails half-way is overwritten by the next one.
+     *
+     * @return location of the content of the record
+     */
+    private Needle append(byte type, StorageEntity metadata, byte[] data, int deletedSegment) throws IOException {
+        byte[] header = header(metadata, deletedSegment);
+        int length = RECORD_OVERHEAD + header.length + data.length;
+        Segment segment = active;
+        if (segment.end > 0 && segment.end + length > segmentSize) {
+            Segment full = segment;
+            segment = roll();
+            if (full.garbageRatio() >= garbageRatio) {
+                scheduleCompaction();
+            }
+        }
+        ByteBuffer record = ByteBuffer.allocate(length)
+            .putInt(MAGIC)
+            .put(type)
+            .putInt(header.length)
+            .put(header)
+            .putInt(data.length)
+            .put(data);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), Integer.BYTES, length - 2 * Integer.BYTES);
+        record.putInt((int) crc.getValue()).flip();
+        long start = segment.end;
+        FileChannel channel = segment.channel();
+        while (record.hasRemaining()) {
+            channel.write(record, start + record.position());
+        }
+        if (fsync) {
+            channel.force(false);
+        }
+        segment.end = start + length;
+        return new Needle(segment, start + PREFIX_BYTES + header.length + Integer.BYTES, data.length,
+            length, metadata);
+    }
+
+    private static byte[] read(Needle needle) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(needle.length());
+        while (buffer.hasRemaining()) {
+            if (needle.segment().channel().read(buffer, needle.offset() + buffer.position()) < 0) {
+                throw new EOFException(SEGMENT + needle.segment().file + " ends before " + needle.offset());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads the records of a segment one after another.
+     *
+     * @return end of the last complete record
+     */
+    private static long scan(Segment segment, RecordHandler handler) throws IOException {
+        long position = 0;
+        try (InputStream file = Files.newInputStream(segment.file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, SCAN_BUFFER_SIZE))) {
+            while (true) {
+                Record record = readRecord(in);
+                handler.accept(record, position + PREFIX_BYTES + record.headerLength() + Integer.BYTES);
+                position += record.length();
+            }
+        } catch (EOFException | StreamCorruptedException e) {
+            // the end of the segment, or of its last complete record
+            return position;
+        }
+    }
+
+    private static Record readRecord(DataInputStream in) throws IOException {
+        byte[] prefix = new byte[PREFIX_BYTES];
+        in.readFully(prefix);
+        ByteBuffer fields = ByteBuffer.wrap(prefix);
+        int headerLength = fields.getInt(Integer.BYTES + 1);
+        if (fields.getInt(0) != MAGIC || headerLength <= 0 || headerLength > MAX_HEADER_BYTES) {
+            throw new StreamCorruptedException("Not a record");
+        }
+        byte[] header = in.readNBytes(headerLength);
+        int dataLength = in.readInt();
+        if (header.length < headerLength || dataLength < 0) {
+            throw new EOFException();
+        }
+        byte[] data = in.readNBytes(dataLength);
+        if (data.length < dataLength) {
+            throw new EOFException();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(prefix, Integer.BYTES, PREFIX_BYTES - Integer.BYTES);
+        crc.update(header);
+        crc.update(ByteBuffer.allocate(Integer.BYTES).putInt(dataLength).array());
+        crc.update(data);
+        if (in.readInt() != (int) crc.getValue()) {
+            throw new StreamCorruptedException("Checksum mismatch");
+        }
+        DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header));
+        StorageEntity metadata = packed(headerIn.readUTF(), emptyToNull(headerIn.readUTF()),
+            emptyToNull(headerIn.readUTF()), emptyToNull(headerIn.readUTF()),
+            instantOf(headerIn), dataLength);
+        return new Record(fields.get(Integer.BYTES), metadata, headerIn.readInt(), headerLength, data);
+    }
+
+    private static byte[] header(StorageEntity metadata, int deletedSegment) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(metadata.getId());
+        out.writeUTF(nullToEmpty(metadata.getFileName()));
+        out.writeUTF(nullToEmpty(metadata.getContentType()));
+        out.writeUTF(nullToEmpty(metadata.getChecksum()));
+        Instant lastModified = metadata.getLastModified();
+        out.writeBoolean(lastModified != null);
+        out.writeLong(lastModified != null ? lastModified.getEpochSecond() : 0);
+        out.writeInt(lastModified != null ? lastModified.getNano() : 0);
+        out.writeInt(deletedSegment);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns detached metadata of a packed file, as kept in the index.
+     */
+    private static StorageEntity packed(String id,
+                                        String fileName,
+                                        String contentType,
+                                        String checksum,
+                                        Instant lastModified,
+                                        long size) {
+        return StorageEntity.builder()
+            .id(id)
+            .fileName(fileName)
+            .contentType(contentType)
+            .size(size)
+            .checksum(checksum)
+            .path(StorageEntity.normalizePath(fileName))
+            .lastModified(lastModified)
+            .store(ContentReferenceService.PACK_STORE)
+            .build();
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static Instant instantOf(DataInputStream headerIn) throws IOException {
+        boolean present = headerIn.readBoolean();
+        Instant instant = Instant.ofEpochSecond(headerIn.readLong(), headerIn.readInt());
+        return present ? instant : null;
+    }
+
+    /**
+     * Consumer of the records of a segment
+     */
+    @FunctionalInterface
+    private interface RecordHandler {
+
+        /**
+         * Handles a record.
+         *
+         * @param record record read from the segment
+         * @param offset position of the content of the record in the segment
+         */
+        void accept(Record record, long offset) throws IOException;
+    }
+
+    /**
+     * Segment file, positioned reads and writes of its channel may run concurrently
+     */
+    private static final class Segment {
+
+        private final int number;
+
+        private final Path file;
+
+        /**
+         * Bytes of deleted records and tombstones
+         */
+        private final AtomicLong garbage = new AtomicLong();
+
+        private volatile FileChannel channel;
+
+        /**
+         * End of the last written record, records are appended there
+         */
+        private volatile long end;
+
+        /**
+         * Set once the segment is compacted or the store is closed
+         */
+        private volatile boolean removed;
+
+        private Segment(int number, Path file, FileChannel channel) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        /**
+         * Returns the channel of the segment, reopened if an interrupted thread closed it.
+         */
+        private FileChannel channel() throws IOException {
+            FileChannel current = channel;
+            if (!current.isOpen() && !removed) {
+                synchronized (this) {
+                    if (!channel.isOpen()) {
+                        channel = openChannel(file);
+                    }
+                    current = channel;
+                }
+            }
+            return current;
+        }
+
+        private double garbageRatio() {
+            long written = end;
+            return written > 0 ? (double) garbage.get() / written : 0;
+        }
+    }
+
+    /**
+     * Location of the content of a packed file along with its metadata
+     *
+     * @param segment      segment of the record
+     * @param offset       position of the content in the segment
+     * @param length       length of the content
+     * @param recordLength length of the whole record
+     * @param metadata     metadata of the file
+     */
+    private record Needle(Segment segment, long offset, int length, int recordLength, StorageEntity metadata) {
+    }
+
+    /**
+     * Record read from a segment
+     *
+     * @param type           put or tombstone
+     * @param metadata       metadata of the file, only the id is set for a tombstone
+     * @param deletedSegment number of the segment of the deleted record, for a tombstone
+     * @param headerLength   length of the header
+     * @param data           content of the file, empty for a tombstone
+     */
+    private record Record(byte type, StorageEntity metadata, int deletedSegment, int headerLength, byte[] data) {
+
+        private int length() {
+            return RECORD_OVERHEAD + headerLength + data.length;
+        }
+    }
+}
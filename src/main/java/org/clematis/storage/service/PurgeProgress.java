@@ -0,0 +1,138 @@
+package org.clematis.storage.service;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Progress of a background removal of stored files from the filesystem.
+ * Counters are updated by the purging threads and may be read at any time.
+ */
+@Getter
+@Schema(name = "PurgeProgress", description = "Progress of a background removal of files")
+public class PurgeProgress {
+
+    @Schema(description = "Id of the purge", example = "0b6e0c5e-7b5c-4a5e-9f4b-3b0f1b0c7f11")
+    private final String id;
+
+    @Schema(description = "What is purged", example = "path photos/2023")
+    private final String description;
+
+    @Schema(description = "Time the purge was requested")
+    private final Instant created = Instant.now();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong scanned = new AtomicLong();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong deleted = new AtomicLong();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong skipped = new AtomicLong();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong failed = new AtomicLong();
+
+    @Schema(description = "State of the purge")
+    private volatile State state = State.PENDING;
+
+    @Schema(description = "Time the removal started")
+    private volatile Instant started;
+
+    @Schema(description = "Time the removal ended")
+    private volatile Instant finished;
+
+    @Schema(description = "Error which stopped the purge")
+    private volatile String error;
+
+    public PurgeProgress(String id, String description) {
+        this.id = id;
+        this.description = description;
+    }
+
+    @Schema(description = "Files found to remove")
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    @Schema(description = "Files removed")
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    @Schema(description = "Files kept, as they belong to stored files again")
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    @Schema(description = "Files which couldn't be removed")
+    public long getFailed() {
+        return failed.get();
+    }
+
+    void scanned() {
+        scanned.incrementAndGet();
+    }
+
+    void deleted() {
+        deleted.incrementAndGet();
+    }
+
+    void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    void start() {
+        started = Instant.now();
+        state = State.RUNNING;
+    }
+
+    void finish() {
+        finished = Instant.now();
+        state = State.DONE;
+    }
+
+    void fail(String message) {
+        finished = Instant.now();
+        error = message;
+        state = State.FAILED;
+    }
+
+    void cancel() {
+        finished = Instant.now();
+        state = State.CANCELLED;
+    }
+
+    /**
+     * State of a purge
+     */
+    public enum State {
+        /**
+         * Waits for the deletion of the metadata to commit
+         */
+        PENDING,
+        /**
+         * Files are being removed
+         */
+        RUNNING,
+        /**
+         * All files are processed
+         */
+        DONE,
+        /**
+         * Stopped by an error
+         */
+        FAILED,
+        /**
+         * Not started, as the deletion of the metadata was rolled back
+         */
+        CANCELLED
+    }
+}
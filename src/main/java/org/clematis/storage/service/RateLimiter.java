@@ -0,0 +1,41 @@
+package org.clematis.storage.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of work shared by concurrent workers, like files removed or bytes copied
+ * per second. Every worker takes the time slot following the ones taken before it, as long
+ * as its share of the rate, and waits until the slot starts.
+ */
+class RateLimiter {
+
+    private final long permitsPerSecond;
+
+    private final AtomicLong nextPermit = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param permitsPerSecond permits per second, 0 for unlimited
+     */
+    RateLimiter(long permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * Waits for the next slot of the rate for a number of permits.
+     *
+     * @param permits permits taken, e.g. a file or the bytes of a file
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void acquire(long permits) throws InterruptedException {
+        if (permitsPerSecond > 0) {
+            long now = System.nanoTime();
+            long interval = TimeUnit.SECONDS.toNanos(1) * permits / permitsPerSecond;
+            long slot = Math.max(nextPermit.getAndAccumulate(interval,
+                (previous, next) -> Math.max(previous, now) + next), now);
+            if (slot > now) {
+                TimeUnit.NANOSECONDS.sleep(slot - now);
+            }
+        }
+    }
+}
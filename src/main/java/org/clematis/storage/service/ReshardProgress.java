@@ -0,0 +1,142 @@
+package org.clematis.storage.service;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Progress of a migration of the filesystem store to the sharded layout.
+ * Counters are updated by the migrating threads and may be read at any time.
+ */
+@Getter
+@Schema(name = "ReshardProgress", description = "Progress of a migration of files to the sharded layout")
+public class ReshardProgress {
+
+    @Schema(description = "Id of the migration", example = "0b6e0c5e-7b5c-4a5e-9f4b-3b0f1b0c7f11")
+    private final String id;
+
+    @Schema(description = "Time the migration was requested")
+    private final Instant created = Instant.now();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong scanned = new AtomicLong();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong migrated = new AtomicLong();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong skipped = new AtomicLong();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong missing = new AtomicLong();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong failed = new AtomicLong();
+
+    @Schema(description = "State of the migration")
+    private volatile State state = State.PENDING;
+
+    @Schema(description = "Time the migration started")
+    private volatile Instant started;
+
+    @Schema(description = "Time the migration ended")
+    private volatile Instant finished;
+
+    @Schema(description = "Error which stopped the migration")
+    private volatile String error;
+
+    public ReshardProgress(String id) {
+        this.id = id;
+    }
+
+    @Schema(description = "Stored files listed")
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    @Schema(description = "Files moved to the sharded layout")
+    public long getMigrated() {
+        return migrated.get();
+    }
+
+    @Schema(description = "Files sharded already or deduplicated")
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    @Schema(description = "Stored files without a file under their path, e.g. files of the database store")
+    public long getMissing() {
+        return missing.get();
+    }
+
+    @Schema(description = "Files which couldn't be moved")
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Schema(description = "Whether the migration is pending or running")
+    public boolean isActive() {
+        return state == State.PENDING || state == State.RUNNING;
+    }
+
+    void scanned(int files) {
+        scanned.addAndGet(files);
+    }
+
+    void migrated() {
+        migrated.incrementAndGet();
+    }
+
+    void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    void missing() {
+        missing.incrementAndGet();
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    void start() {
+        started = Instant.now();
+        state = State.RUNNING;
+    }
+
+    void finish() {
+        finished = Instant.now();
+        state = State.DONE;
+    }
+
+    void fail(String message) {
+        finished = Instant.now();
+        error = message;
+        state = State.FAILED;
+    }
+
+    /**
+     * State of a migration
+     */
+    public enum State {
+        /**
+         * Waits for a thread
+         */
+        PENDING,
+        /**
+         * Files are being moved
+         */
+        RUNNING,
+        /**
+         * All files are processed
+         */
+        DONE,
+        /**
+         * Stopped by an error
+         */
+        FAILED
+    }
+}
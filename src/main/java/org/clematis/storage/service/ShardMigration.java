@@ -0,0 +1,239 @@
+package org.clematis.storage.service;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.clematis.storage.model.PathKey;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.repository.StorageEntityRepository;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import lombok.extern.java.Log;
+
+/**
+ * Moves files of the filesystem store, and the large files of the pack store kept the same way,
+ * from their logical paths to the sharded layout, see {@link FileLayout}.
+ * <p>
+ * A migration runs in the background while the store is in use. Stored files are listed a page
+ * at a time, ordered by path, and the pages are migrated by a bounded number of parallel workers.
+ * The file of a stored file is hard linked under its id, or copied if the filesystem has no hard
+ * links, and the logical file is removed once every stored file sharing its path has its own
+ * link, so a file is readable under one of its paths at any time. Files sharded already and
+ * deduplicated content are skipped, a migration may be run again after a failure.
+ * <p>
+ * Files deleted while the migration runs may leave their sharded copies behind.
+ */
+@Service
+@Log
+public class ShardMigration {
+
+    private static final int PAGE_SIZE = 500;
+
+    private static final String MIGRATION = "Migration ";
+
+    private static final String COPY_SUFFIX = ".part";
+
+    /**
+     * Stores keeping files in the layout, migrated one after the other
+     */
+    private static final List<String> STORES = List.of(ContentReferenceService.FS_STORE,
+        ContentReferenceService.PACK_STORE);
+
+    private final StorageEntityRepository storageEntityRepository;
+
+    private final FileLayout fileLayout;
+
+    private final ExecutorService reshardExecutor;
+
+    private final int parallelism;
+
+    private final AtomicReference<ReshardProgress> last = new AtomicReference<>();
+
+    public ShardMigration(StorageEntityRepository storageEntityRepository,
+                          FileLayout fileLayout,
+                          @Qualifier("reshardExecutor") ExecutorService reshardExecutor,
+                          @Value("${clematis.storage.sharding.migration.parallelism:4}") int parallelism) {
+        this.storageEntityRepository = storageEntityRepository;
+        this.fileLayout = fileLayout;
+        this.reshardExecutor = reshardExecutor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Starts a migration of all stored files to the sharded layout.
+     *
+     * @return progress of the migration
+     * @throws IllegalStateException if sharding is disabled or a migration is running
+     */
+    public synchronized ReshardProgress start() {
+        if (!fileLayout.isSharded()) {
+            throw new IllegalStateException("Sharding is disabled, files are stored under their paths");
+        }
+        ReshardProgress previous = last.get();
+        if (previous != null && previous.isActive()) {
+            throw new IllegalStateException(MIGRATION + previous.getId() + " is running");
+        }
+        ReshardProgress progress = new ReshardProgress(UUID.randomUUID().toString());
+        last.set(progress);
+        reshardExecutor.execute(() -> run(progress));
+        log.info(MIGRATION + progress.getId() + " started");
+        return progress;
+    }
+
+    /**
+     * Returns progress of the last migration since the start of the application.
+     *
+     * @return progress or empty if no migration was started
+     */
+    public Optional<ReshardProgress> getProgress() {
+        return Optional.ofNullable(last.get());
+    }
+
+    private void run(ReshardProgress progress) {
+        progress.start();
+        Semaphore workers = new Semaphore(parallelism);
+        try {
+            for (String store : STORES) {
+                migrateStore(store, progress, workers);
+            }
+            // all pages are done when every worker permit is back
+            workers.acquire(parallelism);
+            progress.finish();
+            log.info(MIGRATION + progress.getId() + " done, migrated: " + progress.getMigrated()
+                + ", skipped: " + progress.getSkipped() + ", missing: " + progress.getMissing()
+                + ", failed: " + progress.getFailed());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.fail("Interrupted");
+        } catch (RuntimeException e) {
+            log.severe(MIGRATION + progress.getId() + " failed: " + e.getMessage());
+            progress.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Lists the files of a store a page at a time and dispatches the pages to the workers.
+     */
+    private void migrateStore(String store,
+                              ReshardProgress progress,
+                              Semaphore workers) throws InterruptedException {
+        PathKey after = null;
+        List<StorageEntity> page;
+        do {
+            page = storageEntityRepository.findMetadataPage(store, null, after, PAGE_SIZE);
+            boolean continued = page.size() == PAGE_SIZE;
+            List<StorageEntity> migrated = continued ? completeGroups(page) : page;
+            progress.scanned(migrated.size());
+            if (continued && migrated.size() == page.size()) {
+                // a page of a single path continues on the next page, it is migrated before the
+                // next page is listed and its logical file is kept for the next page
+                migrate(migrated, true, progress);
+            } else if (!migrated.isEmpty()) {
+                dispatch(migrated, progress, workers);
+            }
+            after = migrated.isEmpty() ? after : PathKey.of(migrated.get(migrated.size() - 1));
+        } while (page.size() == PAGE_SIZE);
+    }
+
+    /**
+     * Cuts off the files sharing the path of the last file of a full page, they are listed
+     * again with the next page, so files sharing a path are migrated by the same worker.
+     */
+    private static List<StorageEntity> completeGroups(List<StorageEntity> page) {
+        String lastPath = page.get(page.size() - 1).getPath();
+        int end = page.size();
+        while (end > 0 && Objects.equals(page.get(end - 1).getPath(), lastPath)) {
+            end--;
+        }
+        return end > 0 ? page.subList(0, end) : page;
+    }
+
+    private void dispatch(List<StorageEntity> page,
+                          ReshardProgress progress,
+                          Semaphore workers) throws InterruptedException {
+        workers.acquire();
+        try {
+            reshardExecutor.execute(() -> {
+                try {
+                    migrate(page, false, progress);
+                } finally {
+                    workers.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            workers.release();
+            throw e;
+        }
+    }
+
+    private void migrate(List<StorageEntity> page, boolean keepLast, ReshardProgress progress) {
+        int from = 0;
+        while (from < page.size()) {
+            String path = page.get(from).getPath();
+            int to = from;
+            while (to < page.size() && Objects.equals(page.get(to).getPath(), path)) {
+                to++;
+            }
+            migrateGroup(page.subList(from, to), keepLast && to == page.size(), progress);
+            from = to;
+        }
+    }
+
+    /**
+     * Links the logical file of stored files sharing a path under each of their ids,
+     * then removes the logical file.
+     */
+    private void migrateGroup(List<StorageEntity> group, boolean keepLogical, ReshardProgress progress) {
+        Path logical = null;
+        boolean linked = true;
+        for (StorageEntity entity : group) {
+            Path shard = fileLayout.shardPath(entity.getId());
+            logical = fileLayout.logicalPath(entity.getFileName());
+            if (entity.getContentId() != null || Files.exists(shard)) {
+                progress.skipped();
+            } else if (!Files.exists(logical)) {
+                progress.missing();
+            } else {
+                try {
+                    link(logical, shard);
+                    progress.migrated();
+                } catch (IOException | RuntimeException e) {
+                    log.warning("Failed to migrate " + entity.getId() + " from " + logical + ", " + e.getMessage());
+                    progress.failed();
+                    linked = false;
+                }
+            }
+        }
+        if (logical != null && linked && !keepLogical) {
+            try {
+                Files.deleteIfExists(logical);
+            } catch (IOException e) {
+                log.warning("Migrated file " + logical + " is not removed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void link(Path logical, Path shard) throws IOException {
+        fileLayout.createFolder(shard.getParent());
+        try {
+            Files.createLink(shard, logical);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // a complete copy appears under the id at once
+            Path copy = shard.resolveSibling(shard.getFileName() + COPY_SUFFIX);
+            Files.copy(logical, copy, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(copy, shard, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
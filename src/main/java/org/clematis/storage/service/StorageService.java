@@ -1,8 +1,13 @@
 package org.clematis.storage.service;
 
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.PathKey;
 import org.clematis.storage.model.StorageEntity;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -26,6 +31,68 @@ public interface StorageService {
      */
     StorageEntity saveAttachment(MultipartFile file, String path) throws Exception;
 
+    /**
+     * Stores a single file read from a stream under the given logical path. The content
+     * is written to its destination while it is read, size and checksum are computed
+     * on the fly. The stream is consumed but not closed.
+     *
+     * @param fileName    original name of the file; implementations may generate one if null
+     * @param contentType MIME type of the content, may be null
+     * @param content     stream with the file content
+     * @param path        optional subpath (folder-like prefix) inside the storage
+     * @return the created {@link StorageEntity} describing the stored binary file
+     * @throws Exception if storing fails due to I/O problems, invalid file name,
+     *                   storage limits, or other implementation-specific issues
+     */
+    StorageEntity saveAttachment(String fileName, String contentType, InputStream content, String path)
+        throws Exception;
+
+    /**
+     * Stores a single file read from a stream like {@link #saveAttachment(String, String, InputStream, String)},
+     * but may leave its metadata unsaved, so the metadata of many files is saved together by
+     * {@link #saveStaged(List)} in JDBC batches. Until then the file is not listed nor readable.
+     * Implementations which can't separate the content from its metadata save the file at once.
+     *
+     * @param fileName    original name of the file
+     * @param contentType MIME type of the content, may be null
+     * @param content     stream with the file content
+     * @param path        optional subpath (folder-like prefix) inside the storage
+     * @return the stored file, without an id if its metadata is not saved yet
+     * @throws Exception if storing fails due to I/O problems, invalid file name,
+     *                   storage limits, or other implementation-specific issues
+     */
+    default StorageEntity stageAttachment(String fileName, String contentType, InputStream content, String path)
+        throws Exception {
+        return saveAttachment(fileName, contentType, content, path);
+    }
+
+    /**
+     * Saves the metadata of files stored by {@link #stageAttachment}, files saved at once are left as they are.
+     * The metadata is saved in one transaction, if it fails none of the staged files is saved.
+     *
+     * @param staged files returned by {@link #stageAttachment}
+     * @return the saved files, in the same order
+     */
+    default List<StorageEntity> saveStaged(List<StorageEntity> staged) {
+        return staged;
+    }
+
+    /**
+     * Stores a complete file from the local disk under the given logical path, e.g. a file
+     * assembled from the chunks of a resumable upload. Implementations keeping content
+     * on the same volume take the file over with a rename instead of copying it,
+     * others read it once. The caller removes the file if it is still there afterwards.
+     *
+     * @param fileName    original name of the file
+     * @param contentType MIME type of the content, may be null
+     * @param file        file with the content
+     * @param path        optional subpath (folder-like prefix) inside the storage
+     * @return the created {@link StorageEntity} describing the stored binary file
+     * @throws Exception if storing fails due to I/O problems, invalid file name,
+     *                   storage limits, or other implementation-specific issues
+     */
+    StorageEntity saveFile(String fileName, String contentType, Path file, String path) throws Exception;
+
     /**
      * Stores multiple uploaded files under the given logical path.
      * Implementations may choose to store them in a batch or serialize the operations.
@@ -36,6 +103,19 @@ public interface StorageService {
      */
     List<StorageEntity> saveAttachments(MultipartFile[] files, String path) throws Exception;
 
+    /**
+     * Stores the files of an uploaded batch at once with a result per file, for implementations
+     * saving batches more cheaply than file by file, e.g. in JDBC batches. Others return empty
+     * and the files are saved one by one in parallel by {@link BatchUploadService}.
+     *
+     * @param files array of multipart files; may be empty but must not be null
+     * @param path  optional subpath (folder-like prefix)
+     * @return results of the files in the order of the batch, empty if the files are to be saved one by one
+     */
+    default Optional<List<UploadResult>> saveBatch(MultipartFile[] files, String path) {
+        return Optional.empty();
+    }
+
     /**
      * Finds stored files whose normalized path starts with the given prefix.
      * Both forward (/) and backward (\) slashes are treated as equivalent separators.
@@ -47,6 +127,28 @@ public interface StorageService {
      */
     List<StorageEntity> findByPath(String path);
 
+    /**
+     * Returns one page of stored files whose normalized path starts with the given prefix,
+     * ordered by path and id. The next page starts after the key of the last returned file,
+     * so the cost of a page doesn't grow with its position in the listing.
+     *
+     * @param path  prefix of stored paths, or null/blank for all files
+     * @param after key of the last file of the previous page, or null for the first page
+     * @param limit maximum number of files to return
+     * @return page of matching stored entities; never null
+     */
+    List<StorageEntity> findByPath(String path, PathKey after, int limit);
+
+    /**
+     * Passes every stored file whose normalized path starts with the given prefix to the action,
+     * ordered by path and id. Files are read from a database cursor one by one and never
+     * collected, so memory use doesn't depend on the number of files.
+     *
+     * @param path   prefix of stored paths, or null/blank for all files
+     * @param action consumer of each file; may throw unchecked exceptions to stop the iteration
+     */
+    void forEachByPath(String path, Consumer<StorageEntity> action);
+
     /**
      * Returns all stored entities.
      *
@@ -55,13 +157,23 @@ public interface StorageService {
     List<StorageEntity> getAll();
 
     /**
-     * Looks up a stored entity by its unique identifier.
+     * Looks up a stored entity by its unique identifier. Binary content is not
+     * guaranteed to be loaded, use {@link #getContent(String)} to read it.
      *
      * @param id database or storage ID of the file
      * @return optional containing the entity or empty if not found
      */
     Optional<StorageEntity> getStorageEntity(String id);
 
+    /**
+     * Opens the binary content of a stored file by its unique identifier.
+     * The content is streamed from the backing store when it is written out.
+     *
+     * @param id database or storage ID of the file
+     * @return optional containing the content or empty if not found
+     */
+    Optional<StorageContent> getContent(String id);
+
     /**
      * Deletes a stored file by its identifier.
      *
@@ -69,4 +181,23 @@ public interface StorageService {
      *           behavior is implementation-specific (usually no-op)
      */
     void deleteFile(String id);
+
+    /**
+     * Deletes many stored files by their identifiers with set-based statements.
+     * Unknown identifiers are ignored. Content which can't be removed within
+     * the transaction, like files on disk, may be removed in the background.
+     *
+     * @param ids identifiers of the files to delete
+     * @return number of deleted files and the background removal, if any
+     */
+    DeleteResult deleteFiles(List<String> ids);
+
+    /**
+     * Deletes all stored files whose normalized path starts with the given prefix
+     * with set-based statements, see {@link #deleteFiles(List)}.
+     *
+     * @param path prefix of stored paths, or null/blank for all files
+     * @return number of deleted files and the background removal, if any
+     */
+    DeleteResult deleteByPath(String path);
 }
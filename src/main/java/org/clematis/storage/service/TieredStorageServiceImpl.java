@@ -0,0 +1,134 @@
+package org.clematis.storage.service;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.PathKey;
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import lombok.extern.java.Log;
+
+/**
+ * Implementation of {@link StorageService} over two tiers: files are stored on the filesystem
+ * by the {@link FileStorageServiceImpl}, the cold tier, and files read often are copied into
+ * database BLOBs of the {@link HotTier} and read from there. Files are promoted and demoted
+ * in the background as their read counts change, their ids and metadata stay the same.
+ * <p>
+ * Uploads, listings, searches and deletes go to the cold tier, which keeps every file. The hot
+ * copies of deleted files are dropped once their metadata is gone, whichever store deleted it.
+ */
+@Service
+@Log
+public class TieredStorageServiceImpl implements StorageService {
+
+    private final StorageService coldTier;
+
+    private final HotTier hotTier;
+
+    public TieredStorageServiceImpl(@Qualifier("fileStorageServiceImpl") StorageService coldTier,
+                                    HotTier hotTier) {
+        this.coldTier = coldTier;
+        this.hotTier = hotTier;
+    }
+
+    @Override
+    public StorageEntity saveAttachment(MultipartFile file, String path) throws Exception {
+        return coldTier.saveAttachment(file, path);
+    }
+
+    @Override
+    public StorageEntity saveAttachment(String fileName,
+                                        String contentType,
+                                        InputStream content,
+                                        String path) throws Exception {
+        return coldTier.saveAttachment(fileName, contentType, content, path);
+    }
+
+    @Override
+    public StorageEntity stageAttachment(String fileName,
+                                         String contentType,
+                                         InputStream content,
+                                         String path) throws Exception {
+        return coldTier.stageAttachment(fileName, contentType, content, path);
+    }
+
+    @Override
+    public List<StorageEntity> saveStaged(List<StorageEntity> staged) {
+        return coldTier.saveStaged(staged);
+    }
+
+    @Override
+    public StorageEntity saveFile(String fileName, String contentType, Path file, String path) throws Exception {
+        return coldTier.saveFile(fileName, contentType, file, path);
+    }
+
+    @Override
+    public List<StorageEntity> saveAttachments(MultipartFile[] files, String path) throws Exception {
+        return coldTier.saveAttachments(files, path);
+    }
+
+    @Override
+    public List<StorageEntity> findByPath(String path) {
+        return coldTier.findByPath(path);
+    }
+
+    @Override
+    public List<StorageEntity> findByPath(String path, PathKey after, int limit) {
+        return coldTier.findByPath(path, after, limit);
+    }
+
+    @Override
+    public void forEachByPath(String path, Consumer<StorageEntity> action) {
+        coldTier.forEachByPath(path, action);
+    }
+
+    @Override
+    public List<StorageEntity> getAll() {
+        return coldTier.getAll();
+    }
+
+    /**
+     * Returns metadata of a file with a hot copy from the hot tier, of other files from the cold tier.
+     */
+    @Override
+    public Optional<StorageEntity> getStorageEntity(String id) {
+        return hotTier.getMetadata(id).or(() -> coldTier.getStorageEntity(id));
+    }
+
+    /**
+     * Reads a file from its hot copy if it has one, otherwise from the cold tier, counting the read
+     * towards the promotion of the file.
+     */
+    @Override
+    public Optional<StorageContent> getContent(String id) {
+        return hotTier.open(id).or(() -> coldTier.getContent(id).map(content -> {
+            hotTier.recordColdRead(content);
+            return content;
+        }));
+    }
+
+    /**
+     * Deletes a file with the cold tier, its hot copy is dropped by {@link HotTier#onFilesDeleted}.
+     */
+    @Override
+    public void deleteFile(String id) {
+        coldTier.deleteFile(id);
+    }
+
+    @Override
+    public DeleteResult deleteFiles(List<String> ids) {
+        return coldTier.deleteFiles(ids);
+    }
+
+    @Override
+    public DeleteResult deleteByPath(String path) {
+        return coldTier.deleteByPath(path);
+    }
+}
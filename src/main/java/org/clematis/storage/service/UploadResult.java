@@ -0,0 +1,20 @@
+package org.clematis.storage.service;
+
+import org.clematis.storage.model.StorageEntity;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Outcome of saving one file of a batch
+ *
+ * @param fileName original name of the file
+ * @param entity   metadata of the saved file, null if saving failed
+ * @param error    reason of the failure, null if the file is saved
+ */
+@SuppressFBWarnings({"EI_EXPOSE_REP", "EI_EXPOSE_REP2"})
+public record UploadResult(String fileName, StorageEntity entity, Exception error) {
+
+    public boolean isSaved() {
+        return error == null;
+    }
+}
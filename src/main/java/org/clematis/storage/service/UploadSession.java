@@ -0,0 +1,182 @@
+package org.clematis.storage.service;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Resumable upload of a single file, sent in chunks which may arrive in any order
+ * and over parallel connections. Chunks are written in place into a file of the
+ * declared size, the received byte ranges are tracked and merged as they complete.
+ */
+@Getter
+@Schema(name = "UploadSession", description = "Resumable upload of a file in chunks")
+public class UploadSession {
+
+    @Schema(description = "Id of the upload session", example = "0b6e0c5e-7b5c-4a5e-9f4b-3b0f1b0c7f11")
+    private final String id;
+
+    @Schema(description = "Name of the uploaded file", example = "video.mp4")
+    private final String fileName;
+
+    @Schema(description = "MIME type of the file", example = "video/mp4")
+    private final String contentType;
+
+    @Schema(description = "Storage path of the file", example = "videos/2024")
+    private final String path;
+
+    @Schema(description = "Size of the file in bytes", example = "1073741824")
+    private final long size;
+
+    @Schema(description = "Time the upload started")
+    private final Instant created = Instant.now();
+
+    /**
+     * Store which the file is committed to, a session is visible through its store only
+     */
+    @Getter(AccessLevel.NONE)
+    private final String store;
+
+    /**
+     * File the chunks are written into
+     */
+    @Getter(AccessLevel.NONE)
+    private final Path file;
+
+    /**
+     * Received ranges, end exclusive by start, merged when they touch
+     */
+    @Getter(AccessLevel.NONE)
+    private final TreeMap<Long, Long> received = new TreeMap<>();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger activeWrites = new AtomicInteger();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean committing = new AtomicBoolean();
+
+    public UploadSession(String id, String store, String fileName, String contentType, String path, long size,
+                         Path file) {
+        this.id = id;
+        this.store = store;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.path = path;
+        this.size = size;
+        this.file = file;
+    }
+
+    @Schema(description = "Byte ranges received so far, merged and ordered")
+    public synchronized List<ByteRange> getReceived() {
+        List<ByteRange> ranges = new ArrayList<>(received.size());
+        received.forEach((start, end) -> ranges.add(new ByteRange(start, end - 1)));
+        return ranges;
+    }
+
+    @Schema(description = "Byte ranges still missing, ordered")
+    public synchronized List<ByteRange> getMissing() {
+        List<ByteRange> missing = new ArrayList<>();
+        long next = 0;
+        for (Map.Entry<Long, Long> range : received.entrySet()) {
+            if (range.getKey() > next) {
+                missing.add(new ByteRange(next, range.getKey() - 1));
+            }
+            next = range.getValue();
+        }
+        if (next < size) {
+            missing.add(new ByteRange(next, size - 1));
+        }
+        return missing;
+    }
+
+    @Schema(description = "Number of bytes received so far")
+    public synchronized long getReceivedBytes() {
+        return received.entrySet().stream().mapToLong(range -> range.getValue() - range.getKey()).sum();
+    }
+
+    @Schema(description = "Whether all bytes are received and the upload can be committed")
+    public synchronized boolean isComplete() {
+        return getReceivedBytes() == size;
+    }
+
+    String store() {
+        return store;
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * Records bytes written into the file, merging the range with the ranges it touches.
+     */
+    synchronized void received(long start, long end) {
+        long from = start;
+        long to = end;
+        Map.Entry<Long, Long> before = received.floorEntry(from);
+        if (before != null && before.getValue() >= from) {
+            from = before.getKey();
+            to = Math.max(to, before.getValue());
+        }
+        for (Map.Entry<Long, Long> next = received.ceilingEntry(from);
+             next != null && next.getKey() <= to;
+             next = received.ceilingEntry(from)) {
+            to = Math.max(to, next.getValue());
+            received.remove(next.getKey());
+        }
+        received.put(from, to);
+    }
+
+    /**
+     * Registers a chunk being written, refused once the upload is being committed.
+     */
+    boolean startWrite() {
+        activeWrites.incrementAndGet();
+        if (committing.get()) {
+            activeWrites.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void endWrite() {
+        activeWrites.decrementAndGet();
+    }
+
+    /**
+     * Starts the commit, refused while chunks are being written or another commit runs.
+     */
+    boolean startCommit() {
+        if (!committing.compareAndSet(false, true)) {
+            return false;
+        }
+        if (activeWrites.get() > 0) {
+            committing.set(false);
+            return false;
+        }
+        return true;
+    }
+
+    void endCommit() {
+        committing.set(false);
+    }
+
+    /**
+     * Range of bytes of a file
+     *
+     * @param start offset of the first byte
+     * @param end   offset of the last byte, inclusive as in HTTP ranges
+     */
+    @Schema(name = "ByteRange", description = "Range of bytes, both offsets inclusive")
+    public record ByteRange(long start, long end) {
+    }
+}
@@ -0,0 +1,20 @@
+package org.clematis.storage.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Response body which writes itself to the response stream, used to stream
+ * stored content without buffering it. Written by {@link ContentBodyHttpMessageConverter}.
+ */
+@FunctionalInterface
+public interface ContentBody {
+
+    /**
+     * Writes the body to the given stream. The stream must not be closed.
+     *
+     * @param out response output stream
+     * @throws IOException if reading the content or writing the response fails
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,44 @@
+package org.clematis.storage.web;
+
+import java.io.IOException;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.lang.NonNull;
+
+/**
+ * Write-only converter which lets {@link ContentBody} instances stream themselves
+ * into the response. Content type and length are expected to be set by the controller.
+ */
+public class ContentBodyHttpMessageConverter extends AbstractHttpMessageConverter<ContentBody> {
+
+    public ContentBodyHttpMessageConverter() {
+        super(MediaType.ALL);
+    }
+
+    @Override
+    protected boolean supports(@NonNull Class<?> clazz) {
+        return ContentBody.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(@NonNull Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    @NonNull
+    protected ContentBody readInternal(@NonNull Class<? extends ContentBody> clazz,
+                                       @NonNull HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Content body can't be read from a request", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(@NonNull ContentBody contentBody,
+                                 @NonNull HttpOutputMessage outputMessage) throws IOException {
+        contentBody.writeTo(outputMessage.getBody());
+    }
+}
@@ -0,0 +1,426 @@
+package org.clematis.storage.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.StorageEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.java.Log;
+
+/**
+ * Builds download responses for stored content.
+ * <p>
+ * File-backed content is handed over to the servlet container with Tomcat sendfile
+ * when the connector supports it, so bytes go from disk to socket without passing
+ * through the Java heap. Any other content is streamed with a {@link StreamingResponseBody},
+ * which Spring MVC writes on its async executor after the request thread is released,
+ * see {@link org.clematis.storage.config.SpringWebMvcConfig}. A slow client then holds
+ * a thread of the download executor instead of a connector thread.
+ * <p>
+ * Byte ranges are supported: a single range is answered with {@code 206 Partial Content}
+ * and a {@code Content-Range} header, several ranges with a {@code multipart/byteranges}
+ * body. Only the requested regions are read from the backing store.
+ * <p>
+ * Responses carry a strong {@code ETag}, the content checksum, and {@code Last-Modified}, the
+ * upload time, both taken from the metadata. Conditional requests are evaluated against the
+ * metadata alone, before the content is opened.
+ * <p>
+ * Content stored compressed is sent as stored, with {@code Content-Encoding}, to clients
+ * accepting its coding with {@code Accept-Encoding}, so it is neither uncompressed nor
+ * compressed again, and still goes through sendfile. Such a response has the weak entity
+ * tag of the content. Other clients and byte ranges get the uncompressed content.
+ */
+@Component
+@Log
+public class DownloadResponseFactory {
+
+    /**
+     * Request attribute set by Tomcat when the connector is able to use sendfile
+     */
+    public static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+
+    /**
+     * Request attribute with the absolute name of the file to send
+     */
+    public static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+
+    /**
+     * Request attribute with the position of the first byte to send
+     */
+    public static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+
+    /**
+     * Request attribute with the position after the last byte to send
+     */
+    public static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final String BYTES = "bytes";
+
+    private static final String CRLF = "\r\n";
+
+    private static final String BOUNDARY_DASHES = "--";
+
+    private static final String QUOTE = "\"";
+
+    private static final String WEAK_PREFIX = "W/";
+
+    private static final String ANY_CODING = "*";
+
+    private static final String QUALITY_PARAMETER = "q=";
+
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * Files smaller than this are cheaper to write directly than to hand over to sendfile
+     */
+    @Value("${clematis.storage.download.sendfile-threshold:49152}")
+    private long sendfileThreshold;
+
+    /**
+     * Evaluates {@code If-Match}, {@code If-None-Match}, {@code If-Modified-Since} and
+     * {@code If-Unmodified-Since} against the metadata of a stored file.
+     *
+     * @param metadata metadata of the requested file
+     * @param request  current request
+     * @param response current response, validators are added to it if the check succeeds
+     * @return {@code 304 Not Modified} or {@code 412 Precondition Failed} response,
+     *     or empty if the content has to be sent
+     */
+    public <T> Optional<ResponseEntity<T>> checkNotModified(StorageEntity metadata,
+                                                            HttpServletRequest request,
+                                                            HttpServletResponse response) {
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        // the entity tag of the representation which is going to be sent
+        String eTag = request.getHeader(HttpHeaders.RANGE) == null && isEncodingAccepted(metadata, request)
+            ? weakETagOf(metadata)
+            : eTagOf(metadata);
+        if (webRequest.checkNotModified(eTag, lastModifiedOf(metadata))) {
+            log.info("Not modified: " + metadata.getId() + ", status: " + response.getStatus());
+            ResponseEntity<T> notModified = ResponseEntity.status(response.getStatus()).build();
+            return Optional.of(notModified);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Creates a response to a {@code HEAD} request from the metadata alone.
+     *
+     * @param metadata metadata of the requested file
+     * @param request  current request
+     * @return response entity with the headers of a full download and no body
+     */
+    public ResponseEntity<Void> head(StorageEntity metadata, HttpServletRequest request) {
+        if (metadata.getEncodedSize() != null && isEncodingAccepted(metadata, request)) {
+            return withEncoding(ResponseEntity.ok(), metadata)
+                .contentType(mediaTypeOf(metadata))
+                .contentLength(metadata.getEncodedSize())
+                .build();
+        }
+        return withValidators(ResponseEntity.ok(), metadata)
+            .header(HttpHeaders.ACCEPT_RANGES, BYTES)
+            .contentType(mediaTypeOf(metadata))
+            .contentLength(metadata.getSize())
+            .build();
+    }
+
+    /**
+     * Creates a response which transfers the content, or the byte ranges of it
+     * requested with the {@code Range} header, to the client.
+     *
+     * @param content content to download
+     * @param request current request
+     * @return response entity with headers set and a streaming body (or no body if sendfile is used)
+     */
+    @SuppressWarnings("checkstyle:ReturnCount")
+    public ResponseEntity<StreamingResponseBody> create(StorageContent content, HttpServletRequest request) {
+        StorageEntity metadata = content.getMetadata();
+        String range = request.getHeader(HttpHeaders.RANGE);
+        // ranges are served from the uncompressed content, whole downloads may be sent as stored
+        Optional<StorageContent> encoded = content.getEncoded()
+            .filter(stored -> range == null && isEncodingAccepted(metadata, request));
+        if (encoded.isPresent()) {
+            long length = encoded.get().length();
+            ResponseEntity.BodyBuilder builder = withEncoding(ResponseEntity.ok(), metadata)
+                .contentType(mediaTypeOf(metadata))
+                .contentLength(length);
+            return transfer(builder, encoded.get(), new Region(0, length), request);
+        }
+        // the whole content is sent if the client has a stale copy of it
+        if (range == null
+            || !HttpMethod.GET.matches(request.getMethod())
+            || !isIfRangeMatched(metadata, request)) {
+            ResponseEntity.BodyBuilder builder = withValidators(ResponseEntity.ok(), metadata)
+                .header(HttpHeaders.ACCEPT_RANGES, BYTES)
+                .contentType(mediaTypeOf(metadata))
+                .contentLength(content.length());
+            return transfer(builder, content, new Region(0, content.length()), request);
+        }
+
+        List<Region> regions = parseRegions(range, content.length());
+        if (regions.isEmpty()) {
+            log.info("Range not satisfiable: " + range + ", length: " + content.length());
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.ACCEPT_RANGES, BYTES)
+                .header(HttpHeaders.CONTENT_RANGE, BYTES + " */" + content.length())
+                .build();
+        }
+
+        if (regions.size() == 1) {
+            Region region = regions.get(0);
+            ResponseEntity.BodyBuilder builder = withValidators(ResponseEntity.status(HttpStatus.PARTIAL_CONTENT),
+                metadata)
+                .header(HttpHeaders.ACCEPT_RANGES, BYTES)
+                .header(HttpHeaders.CONTENT_RANGE, contentRange(region, content.length()))
+                .contentType(mediaTypeOf(metadata))
+                .contentLength(region.count());
+            return transfer(builder, content, region, request);
+        }
+
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        return withValidators(ResponseEntity.status(HttpStatus.PARTIAL_CONTENT), metadata)
+            .header(HttpHeaders.ACCEPT_RANGES, BYTES)
+            .contentType(new MediaType("multipart", "byteranges", Map.of("boundary", boundary)))
+            .body(out -> writeRegions(content, regions, boundary, out));
+    }
+
+    /**
+     * Completes the response with a body transferring a single region of the content,
+     * or with the sendfile attributes if the container can send the file itself.
+     */
+    private ResponseEntity<StreamingResponseBody> transfer(ResponseEntity.BodyBuilder builder,
+                                       StorageContent content,
+                                       Region region,
+                                       HttpServletRequest request) {
+        Optional<Path> file = content.getFile();
+        if (file.isPresent() && canSendfile(request, region.count())) {
+            log.info("Sending file with sendfile: " + file.get());
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.get().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, region.start());
+            request.setAttribute(SENDFILE_END_ATTR, region.start() + region.count());
+            return builder.build();
+        }
+        return builder.body(out -> content.transferTo(region.start(), region.count(), out));
+    }
+
+    /**
+     * Sendfile is used only for GET requests with large enough files and only
+     * if the container advertises the support.
+     */
+    private boolean canSendfile(HttpServletRequest request, long length) {
+        return length >= sendfileThreshold
+            && HttpMethod.GET.matches(request.getMethod())
+            && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR));
+    }
+
+    /**
+     * Checks the {@code If-Range} header: ranges are sent only if it is absent or names
+     * the current entity tag or the exact modification date of the content.
+     */
+    private static boolean isIfRangeMatched(StorageEntity metadata, HttpServletRequest request) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        // weak entity tags can't be used with ranges, so the comparison is strong
+        if (ifRange.startsWith(QUOTE) || ifRange.startsWith(WEAK_PREFIX)) {
+            return ifRange.equals(eTagOf(metadata));
+        }
+        try {
+            long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return date != -1 && date == lastModifiedOf(metadata);
+        } catch (IllegalArgumentException e) {
+            log.warning("Invalid If-Range header: " + ifRange);
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether the content is stored compressed with a coding the client accepts. An explicit
+     * {@code q=0} refuses the coding, otherwise the coding is accepted by name or by {@code *}.
+     */
+    private static boolean isEncodingAccepted(StorageEntity metadata, HttpServletRequest request) {
+        String coding = metadata.getContentEncoding();
+        if (coding == null) {
+            return false;
+        }
+        Float codingQuality = null;
+        Float anyQuality = null;
+        for (String header : Collections.list(request.getHeaders(HttpHeaders.ACCEPT_ENCODING))) {
+            for (String token : header.split(",")) {
+                String[] parts = token.split(";");
+                String name = parts[0].trim();
+                if (name.equalsIgnoreCase(coding)) {
+                    codingQuality = qualityOf(parts);
+                } else if (ANY_CODING.equals(name)) {
+                    anyQuality = qualityOf(parts);
+                }
+            }
+        }
+        Float quality = codingQuality != null ? codingQuality : anyQuality;
+        return quality != null && quality > 0;
+    }
+
+    /**
+     * Returns the {@code q} parameter of an {@code Accept-Encoding} element, 1 if it is absent
+     * and 0 if it is malformed.
+     */
+    private static float qualityOf(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith(QUALITY_PARAMETER)) {
+                try {
+                    return Float.parseFloat(parameter.substring(QUALITY_PARAMETER.length()));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Adds the headers of content sent as stored, compressed: {@code Content-Encoding},
+     * {@code Vary}, the weak entity tag and {@code Last-Modified}.
+     */
+    private static ResponseEntity.BodyBuilder withEncoding(ResponseEntity.BodyBuilder builder,
+                                                           StorageEntity metadata) {
+        withValidators(builder, metadata)
+            .header(HttpHeaders.CONTENT_ENCODING, metadata.getContentEncoding());
+        String eTag = weakETagOf(metadata);
+        if (eTag != null) {
+            builder.eTag(eTag);
+        }
+        return builder;
+    }
+
+    /**
+     * Adds {@code ETag} and {@code Last-Modified} headers, if the metadata has them, and
+     * {@code Vary: Accept-Encoding} if the content is stored compressed.
+     */
+    private static <B extends ResponseEntity.HeadersBuilder<B>> B withValidators(B builder, StorageEntity metadata) {
+        String eTag = eTagOf(metadata);
+        if (eTag != null) {
+            builder.eTag(eTag);
+        }
+        if (metadata.getLastModified() != null) {
+            builder.lastModified(lastModifiedOf(metadata));
+        }
+        if (metadata.getContentEncoding() != null) {
+            builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        return builder;
+    }
+
+    /**
+     * Returns the strong entity tag of a stored file, the quoted checksum of its content.
+     */
+    private static String eTagOf(StorageEntity metadata) {
+        return metadata.getChecksum() != null ? QUOTE + metadata.getChecksum() + QUOTE : null;
+    }
+
+    /**
+     * Returns the weak entity tag of a stored file sent compressed, which is the same content
+     * as the uncompressed one, but not the same bytes.
+     */
+    private static String weakETagOf(StorageEntity metadata) {
+        String eTag = eTagOf(metadata);
+        return eTag != null ? WEAK_PREFIX + eTag : null;
+    }
+
+    /**
+     * Returns the modification time truncated to seconds as HTTP dates have it, or -1 if unknown.
+     */
+    private static long lastModifiedOf(StorageEntity metadata) {
+        return metadata.getLastModified() != null
+            ? metadata.getLastModified().getEpochSecond() * MILLIS_PER_SECOND
+            : -1;
+    }
+
+    /**
+     * Converts the {@code Range} header to regions of the content. Ranges starting
+     * beyond the content are dropped, an empty result means the request can't be satisfied.
+     */
+    private static List<Region> parseRegions(String header, long length) {
+        List<Region> regions = new ArrayList<>();
+        try {
+            long total = 0;
+            for (HttpRange range : HttpRange.parseRanges(header)) {
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                if (start < length && start <= end) {
+                    regions.add(new Region(start, end - start + 1));
+                    total += end - start + 1;
+                }
+            }
+            // overlapping ranges asking for more than the whole content are refused
+            if (regions.size() > 1 && total > length) {
+                log.warning("Too many bytes requested by ranges: " + header);
+                regions.clear();
+            }
+        } catch (IllegalArgumentException e) {
+            log.warning("Invalid range header: " + header);
+            regions.clear();
+        }
+        return regions;
+    }
+
+    private static void writeRegions(StorageContent content,
+                                     List<Region> regions,
+                                     String boundary,
+                                     OutputStream out) throws IOException {
+        MediaType mediaType = mediaTypeOf(content.getMetadata());
+        for (Region region : regions) {
+            String partHeaders = CRLF + BOUNDARY_DASHES + boundary + CRLF
+                + HttpHeaders.CONTENT_TYPE + ": " + mediaType + CRLF
+                + HttpHeaders.CONTENT_RANGE + ": " + contentRange(region, content.length()) + CRLF
+                + CRLF;
+            out.write(partHeaders.getBytes(StandardCharsets.US_ASCII));
+            content.transferTo(region.start(), region.count(), out);
+        }
+        String closingBoundary = CRLF + BOUNDARY_DASHES + boundary + BOUNDARY_DASHES + CRLF;
+        out.write(closingBoundary.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String contentRange(Region region, long length) {
+        return BYTES + " " + region.start() + "-" + (region.start() + region.count() - 1) + "/" + length;
+    }
+
+    private static MediaType mediaTypeOf(StorageEntity metadata) {
+        String contentType = metadata.getContentType();
+        try {
+            return contentType != null ? MediaType.valueOf(contentType) : MediaType.APPLICATION_OCTET_STREAM;
+        } catch (Exception e) {
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+    }
+
+    /**
+     * Region of the content to transfer
+     *
+     * @param start offset of the first byte
+     * @param count number of bytes
+     */
+    private record Region(long start, long count) {
+    }
+}
@@ -1,5 +1,7 @@
 package org.clematis.storage.web;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import io.swagger.v3.oas.annotations.media.Schema;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -8,6 +10,7 @@ import lombok.NoArgsConstructor;
 
 /**
  * DTO returned after a successful upload or in file listing responses.
+ * In batch upload responses, a file which failed has an error and no download URL.
  */
 @AllArgsConstructor
 @NoArgsConstructor
@@ -30,6 +33,18 @@ public class RequestResponse {
     @Schema(description = "File size in bytes", example = "34567")
     private long size;
 
+    @Schema(description = "Reason why the file of a batch wasn't saved, absent on success",
+        example = "Filename contains invalid path sequence")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String error;
+
+    public RequestResponse(String fileName, String downloadUrl, String contentType, long size) {
+        this.fileName = fileName;
+        this.downloadUrl = downloadUrl;
+        this.contentType = contentType;
+        this.size = size;
+    }
+
     public RequestResponse setFileName(String fileName) {
         this.fileName = fileName;
         return this;
@@ -49,4 +64,9 @@ public class RequestResponse {
         this.size = size;
         return this;
     }
+
+    public RequestResponse setError(String error) {
+        this.error = error;
+        return this;
+    }
 }
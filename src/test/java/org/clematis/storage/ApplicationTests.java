@@ -1,7 +1,14 @@
 package org.clematis.storage;
 
+import static io.restassured.RestAssured.given;
+import java.nio.charset.StandardCharsets;
+
+import org.clematis.storage.web.RequestResponse;
+
 import io.restassured.RestAssured;
 import io.restassured.builder.RequestSpecBuilder;
+import io.restassured.response.ExtractableResponse;
+import io.restassured.response.Response;
 import io.restassured.specification.RequestSpecification;
 import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.documentationConfiguration;
 
@@ -36,6 +43,38 @@ public class ApplicationTests {
             .build();
     }
 
+    /* -------------------------------------------------------
+     *                Helper upload and download methods
+     * ------------------------------------------------------- */
+
+    protected RequestResponse upload(String api, String fileName, String contentType, byte[] content, String path) {
+        return given(this.spec)
+            .multiPart("file", fileName, content, contentType)
+            .formParam("path", path)
+            .when()
+            .post(api + "/upload")
+            .andReturn()
+            .as(RequestResponse.class);
+    }
+
+    protected RequestResponse upload(String api, String fileName, String content, String path) {
+        return upload(api, fileName, "text/plain", content.getBytes(StandardCharsets.UTF_8), path);
+    }
+
+    protected static String idOf(RequestResponse uploaded) {
+        String url = uploaded.getDownloadUrl();
+        return url.substring(url.lastIndexOf('/') + 1);
+    }
+
+    protected ExtractableResponse<Response> download(String url) {
+        return given(this.spec)
+            .when()
+            .get(url)
+            .then()
+            .statusCode(200)
+            .extract();
+    }
+
     @Test
     void contextLoads() {}
 
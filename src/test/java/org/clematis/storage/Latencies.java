@@ -0,0 +1,27 @@
+package org.clematis.storage;
+
+import java.util.Arrays;
+
+/**
+ * Prints latencies measured by the benchmarks.
+ */
+public final class Latencies {
+
+    private Latencies() {
+    }
+
+    /**
+     * Prints the average, the median, the 99th percentile and the maximum of the measured times.
+     *
+     * @param name  name of the measured operation
+     * @param nanos measured times in nanoseconds
+     */
+    public static void report(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double avg = Arrays.stream(sorted).average().orElse(0) / 1_000_000;
+        System.out.printf("%s: runs=%d avg=%.3f ms p50=%.3f ms p99=%.3f ms max=%.3f ms%n", name, sorted.length,
+            avg, sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+            sorted[sorted.length - 1] / 1e6);
+    }
+}
@@ -0,0 +1,133 @@
+package org.clematis.storage.content;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.clematis.storage.Latencies.report;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Measures full and ranged reads of small and large files from memory mappings
+ * and through file channels opened for every read, as downloads do without mappings.
+ * Run with {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+public class MappedReadBenchmarkTests {
+
+    private static final int SMALL_FILES = 1_000;
+    private static final int SMALL_SIZE = 4 * 1024;
+    private static final int LARGE_SIZE = 64 * 1024 * 1024;
+    private static final int RANGE_SIZE = 64 * 1024;
+    private static final int WARMUP = 3;
+    private static final int SMALL_ITERATIONS = 20;
+    private static final int LARGE_ITERATIONS = 20;
+    private static final int RANGES = 2_000;
+
+    private static Path folder;
+
+    private static List<Path> smallFiles;
+
+    private static Path largeFile;
+
+    @BeforeAll
+    public static void createFiles() throws IOException {
+        folder = Files.createTempDirectory("mapped-benchmark");
+        Random random = new Random(42);
+        smallFiles = new ArrayList<>(SMALL_FILES);
+        byte[] small = new byte[SMALL_SIZE];
+        for (int i = 0; i < SMALL_FILES; i++) {
+            random.nextBytes(small);
+            smallFiles.add(Files.write(folder.resolve("small-" + i), small));
+        }
+        byte[] large = new byte[LARGE_SIZE];
+        random.nextBytes(large);
+        largeFile = Files.write(folder.resolve("large"), large);
+    }
+
+    @AfterAll
+    public static void deleteFiles() throws IOException {
+        FileSystemUtils.deleteRecursively(folder);
+    }
+
+    @Test
+    public void benchmarkSmallFiles() throws IOException {
+        List<StorageContent> channels = new ArrayList<>();
+        List<StorageContent> mapped = new ArrayList<>();
+        List<MappedRegion> regions = new ArrayList<>();
+        for (Path file : smallFiles) {
+            FileStorageContent content = new FileStorageContent(null, file, SMALL_SIZE);
+            MappedRegion region = MappedRegion.map(file, null);
+            channels.add(content);
+            mapped.add(new MappedStorageContent(content, region));
+            regions.add(region);
+        }
+        try {
+            report("small files, channel", measure(channels, SMALL_ITERATIONS, 0, SMALL_SIZE));
+            report("small files, mapped", measure(mapped, SMALL_ITERATIONS, 0, SMALL_SIZE));
+        } finally {
+            regions.forEach(MappedRegion::close);
+        }
+    }
+
+    @Test
+    public void benchmarkLargeFile() throws IOException {
+        FileStorageContent channel = new FileStorageContent(null, largeFile, LARGE_SIZE);
+        MappedRegion region = MappedRegion.map(largeFile, null);
+        StorageContent mapped = new MappedStorageContent(channel, region);
+        try {
+            report("large file, channel", measure(List.of(channel), LARGE_ITERATIONS, 0, LARGE_SIZE));
+            report("large file, mapped", measure(List.of(mapped), LARGE_ITERATIONS, 0, LARGE_SIZE));
+            report("large file ranges, channel", measureRanges(channel));
+            report("large file ranges, mapped", measureRanges(mapped));
+        } finally {
+            region.close();
+        }
+    }
+
+    /**
+     * Reads every content in full, each iteration reads all of them.
+     */
+    private static long[] measure(List<StorageContent> contents, int iterations, long position, long count)
+        throws IOException {
+        OutputStream out = OutputStream.nullOutputStream();
+        for (int i = 0; i < WARMUP; i++) {
+            for (StorageContent content : contents) {
+                content.transferTo(position, count, out);
+            }
+        }
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            for (StorageContent content : contents) {
+                content.transferTo(position, count, out);
+            }
+            nanos[i] = System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    /**
+     * Reads random ranges of the content, one read per run.
+     */
+    private static long[] measureRanges(StorageContent content) throws IOException {
+        OutputStream out = OutputStream.nullOutputStream();
+        Random random = new Random(7);
+        long[] nanos = new long[RANGES];
+        for (int i = 0; i < RANGES; i++) {
+            long position = random.nextInt(LARGE_SIZE - RANGE_SIZE);
+            long start = System.nanoTime();
+            content.transferTo(position, RANGE_SIZE, out);
+            nanos[i] = System.nanoTime() - start;
+        }
+        return nanos;
+    }
+}
@@ -0,0 +1,91 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.service.StorageService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import io.restassured.response.Response;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+public class ArchiveTests extends ApplicationTests {
+
+    @Qualifier("fileStorageServiceImpl")
+    @Autowired
+    private StorageService fileStorageService;
+
+    @Qualifier("dbStorageServiceImpl")
+    @Autowired
+    private StorageService dbStorageService;
+
+    private static void save(StorageService storageService, String fileName, String contentType, String content,
+                             String path) throws Exception {
+        storageService.saveAttachment(fileName, contentType,
+            new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), path);
+    }
+
+    private static Map<String, String> unzip(byte[] archive) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                entries.put(entry.getName(), new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    public void testArchiveOfPathPrefix() throws Exception {
+        Map<String, StorageService> stores = Map.of("/api/files", fileStorageService, "/api/db", dbStorageService);
+        for (Map.Entry<String, StorageService> store : stores.entrySet()) {
+            StorageService storageService = store.getValue();
+            // both stores keep their metadata in the same table, each gets its own folder
+            String root = "zipped" + store.getKey();
+            save(storageService, "a.txt", "text/plain", "first", root + "/docs");
+            save(storageService, "b.txt", "text/plain", "second", root + "/docs/sub");
+            save(storageService, "c.png", "image/png", "not really an image", root + "/docs");
+            save(storageService, "d.txt", "text/plain", "outside", root + "/documents");
+
+            Response response = given(this.spec)
+                .filter(document("archive"))
+                .queryParam("path", root + "/docs/")
+                .when()
+                .get(store.getKey() + "/archive")
+                .then()
+                .statusCode(200)
+                .contentType("application/zip")
+                .extract()
+                .response();
+            Assertions.assertTrue(response.getHeader("Content-Disposition").contains("docs.zip"));
+
+            Map<String, String> entries = unzip(response.asByteArray());
+            Assertions.assertEquals(Map.of(
+                root + "/docs/a.txt", "first",
+                root + "/docs/c.png", "not really an image",
+                root + "/docs/sub/b.txt", "second"), entries);
+
+            Map<String, String> stored = unzip(given(this.spec)
+                .queryParam("path", root + "/doc")
+                .queryParam("stored", true)
+                .when()
+                .get(store.getKey() + "/archive")
+                .then()
+                .statusCode(200)
+                .extract()
+                .asByteArray());
+            Assertions.assertEquals(4, stored.size());
+            Assertions.assertEquals("outside", stored.get(root + "/documents/d.txt"));
+        }
+    }
+}
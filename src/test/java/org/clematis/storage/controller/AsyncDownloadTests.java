@@ -0,0 +1,92 @@
+package org.clematis.storage.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.StorageService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.TestPropertySource;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Downloads written by the download executor: a client which stops reading holds a thread
+ * of the executor, not of the connector, until the download times out.
+ */
+@Import(SlowDownloadBenchmark.SmallSendBufferConfig.class)
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:async-download",
+    "clematis.storage.download.folder=./temp/async-download",
+    SlowDownloadBenchmark.NO_SENDFILE,
+    "clematis.storage.download.async.timeout=1s",
+    "server.tomcat.connection-timeout=2s"
+})
+public class AsyncDownloadTests extends ApplicationTests {
+
+    private static final int FILE_SIZE = 900_000;
+
+    @LocalServerPort
+    private int serverPort;
+
+    @Qualifier("fileStorageServiceImpl")
+    @Autowired
+    private StorageService storageService;
+
+    @Qualifier("downloadExecutor")
+    @Autowired
+    private ExecutorService downloadExecutor;
+
+    @Test
+    public void testStalledDownloadIsCancelled() throws Exception {
+        StorageEntity file = storageService.saveAttachment("stalled.bin", "application/octet-stream",
+            new ByteArrayInputStream(new byte[FILE_SIZE]), "async");
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) downloadExecutor;
+
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", serverPort));
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /api/files/" + file.getId() + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            Assertions.assertTrue(in.read(new byte[1024]) > 0);
+
+            // the client stops reading, the writer waits for it on a download thread
+            Assertions.assertEquals(1, executor.getActiveCount());
+            // other requests are served meanwhile
+            given(this.spec).when().get("/api/files/metadata/" + file.getId()).then().statusCode(200);
+
+            long deadline = System.currentTimeMillis() + 15_000;
+            while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            Assertions.assertEquals(0, executor.getActiveCount());
+        }
+    }
+
+    @Test
+    public void testDownloadNotFoundHasErrorBody() {
+        given(this.spec)
+            .when()
+            .get("/api/files/unknown")
+            .then()
+            .statusCode(404)
+            .contentType("application/json")
+            .body("status", equalTo("NOT_FOUND"));
+    }
+}
@@ -0,0 +1,230 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.repository.StorageEntityRepository;
+import org.clematis.storage.service.DeleteResult;
+import org.clematis.storage.service.PurgeProgress;
+import org.clematis.storage.service.StorageService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileSystemUtils;
+
+import io.restassured.path.json.JsonPath;
+import io.restassured.response.Response;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+public class BulkDeleteTests extends ApplicationTests {
+
+    private static final int FILES = 20;
+
+    @Autowired
+    private StorageEntityRepository storageEntityRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Qualifier("fileStorageServiceImpl")
+    @Autowired
+    private StorageService fileStorageService;
+
+    @Qualifier("dbStorageServiceImpl")
+    @Autowired
+    private StorageService dbStorageService;
+
+    @Value("${clematis.storage.download.folder}")
+    private String downloadFolder;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        storageEntityRepository.deleteAll();
+        FileSystemUtils.deleteRecursively(Path.of(downloadFolder, "bulk"));
+    }
+
+    @Test
+    public void testFsDeleteByPathPurgesFiles() throws Exception {
+        List<StorageEntity> deleted = save(fileStorageService, "bulk/purge");
+        List<StorageEntity> kept = save(fileStorageService, "bulk/purged");
+        Path purgedFolder = Path.of(downloadFolder, "bulk", "purge");
+        Assertions.assertTrue(Files.exists(purgedFolder.resolve("file0.txt")));
+
+        Response response = given(this.spec)
+            .filter(document("fs-delete-by-path"))
+            .when()
+            .delete("/api/files/delete?path=bulk/purge/")
+            .then()
+            .statusCode(202)
+            .extract()
+            .response();
+        Assertions.assertEquals(FILES, response.jsonPath().getInt("deleted"));
+
+        JsonPath progress = awaitPurge(response.getHeader("Location"));
+        Assertions.assertEquals(FILES, progress.getLong("deleted"));
+        Assertions.assertEquals(0, progress.getLong("failed"));
+        for (StorageEntity entity : deleted) {
+            Assertions.assertFalse(Files.exists(Path.of(downloadFolder, entity.getFileName())));
+            Assertions.assertTrue(fileStorageService.getStorageEntity(entity.getId()).isEmpty());
+        }
+        for (StorageEntity entity : kept) {
+            Assertions.assertTrue(Files.exists(Path.of(downloadFolder, entity.getFileName())));
+            Assertions.assertTrue(fileStorageService.getContent(entity.getId()).isPresent());
+        }
+    }
+
+    @Test
+    public void testFsDeleteByIdsPurgesFiles() throws Exception {
+        List<StorageEntity> saved = save(fileStorageService, "bulk/ids");
+        List<String> ids = saved.subList(0, FILES / 2).stream().map(StorageEntity::getId).toList();
+
+        Response response = given(this.spec)
+            .filter(document("fs-delete-batch"))
+            .contentType(MediaType.APPLICATION_JSON_VALUE)
+            .body(ids)
+            .when()
+            .post("/api/files/delete/batch")
+            .then()
+            .statusCode(202)
+            .extract()
+            .response();
+        Assertions.assertEquals(FILES / 2, response.jsonPath().getInt("deleted"));
+
+        awaitPurge(response.getHeader("Location"));
+        for (int i = 0; i < FILES; i++) {
+            Assertions.assertEquals(i >= FILES / 2, Files.exists(Path.of(downloadFolder, saved.get(i).getFileName())));
+        }
+    }
+
+    @Test
+    public void testFsPurgeKeepsFilesUploadedAgain() throws Exception {
+        save(fileStorageService, "bulk/again");
+        // the purge starts after the commit, when the files are stored again under the same paths
+        DeleteResult result = transactionTemplate.execute(status -> {
+            try {
+                DeleteResult deleted = fileStorageService.deleteByPath("bulk/again");
+                save(fileStorageService, "bulk/again");
+                return deleted;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(FILES, result.deleted());
+
+        PurgeProgress purge = result.purge();
+        for (int attempt = 0; attempt < 200 && purge.getFinished() == null; attempt++) {
+            Thread.sleep(50);
+        }
+        Assertions.assertEquals(PurgeProgress.State.DONE, purge.getState());
+        Assertions.assertEquals(FILES, purge.getSkipped());
+        Assertions.assertEquals(0, purge.getDeleted());
+        for (StorageEntity entity : fileStorageService.findByPath("bulk/again")) {
+            Assertions.assertTrue(fileStorageService.getContent(entity.getId()).isPresent());
+        }
+    }
+
+    @Test
+    public void testDbDeleteByPath() throws Exception {
+        List<StorageEntity> deleted = save(dbStorageService, "bulk/db");
+        List<StorageEntity> kept = save(dbStorageService, "bulk/dbx");
+
+        DeleteResult result = given(this.spec)
+            .filter(document("db-delete-by-path"))
+            .when()
+            .delete("/api/db/delete?path=bulk/db/")
+            .then()
+            .statusCode(200)
+            .extract()
+            .as(DeleteResult.class);
+
+        Assertions.assertEquals(FILES, result.deleted());
+        Assertions.assertNull(result.purge());
+        deleted.forEach(entity -> Assertions.assertEquals(0, countBlobs(entity.getId())));
+        kept.forEach(entity -> Assertions.assertEquals(1, countBlobs(entity.getId())));
+        Assertions.assertEquals(FILES, dbStorageService.findByPath("bulk/").size());
+    }
+
+    @Test
+    public void testDbDeleteByIds() throws Exception {
+        List<StorageEntity> saved = save(dbStorageService, "bulk/dbids");
+        List<String> ids = new ArrayList<>(saved.stream().map(StorageEntity::getId).toList());
+        ids.add("unknown");
+
+        DeleteResult result = dbStorageService.deleteFiles(ids);
+
+        Assertions.assertEquals(FILES, result.deleted());
+        saved.forEach(entity -> {
+            Assertions.assertEquals(0, countBlobs(entity.getId()));
+            Assertions.assertTrue(dbStorageService.getStorageEntity(entity.getId()).isEmpty());
+        });
+    }
+
+    @Test
+    public void testDeleteByPathRejectsParentFolder() {
+        given(this.spec)
+            .when()
+            .delete("/api/files/delete?path=../bulk")
+            .then()
+            .statusCode(400);
+    }
+
+    @Test
+    public void testUnknownPurge() {
+        given(this.spec)
+            .when()
+            .get("/api/files/purge/unknown")
+            .then()
+            .statusCode(404);
+    }
+
+    private static List<StorageEntity> save(StorageService storageService, String path) throws Exception {
+        List<StorageEntity> saved = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            saved.add(storageService.saveAttachment("file" + i + ".txt", "text/plain",
+                new java.io.ByteArrayInputStream((path + i).getBytes(StandardCharsets.UTF_8)), path));
+        }
+        return saved;
+    }
+
+    private JsonPath awaitPurge(String location) throws InterruptedException {
+        Assertions.assertNotNull(location);
+        for (int attempt = 0; attempt < 200; attempt++) {
+            JsonPath progress = given(this.spec)
+                .when()
+                .get(location)
+                .then()
+                .statusCode(200)
+                .extract()
+                .jsonPath();
+            if (progress.getString("finished") != null) {
+                Assertions.assertEquals("DONE", progress.getString("state"));
+                return progress;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Purge did not finish: " + location);
+    }
+
+    private int countBlobs(String id) {
+        Integer count = jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM storage_blob WHERE id = ?", Integer.class, id);
+        return count != null ? count : 0;
+    }
+}
@@ -0,0 +1,192 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.web.RequestResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.restassured.path.json.JsonPath;
+import io.restassured.response.Response;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+public class ChunkedUploadTests extends ApplicationTests {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private static final int CHUNKS = 8;
+
+    private static byte[] content() {
+        byte[] content = new byte[CHUNK_SIZE * CHUNKS - 123];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        return content;
+    }
+
+    private String createSession(String api, String fileName, long size) {
+        Response response = given(this.spec)
+            .filter(document("upload-session-create"))
+            .queryParam("fileName", fileName)
+            .queryParam("size", size)
+            .queryParam("contentType", "text/plain")
+            .queryParam("path", "chunked")
+            .when()
+            .post(api + "/upload/sessions")
+            .then()
+            .statusCode(201)
+            .extract()
+            .response();
+        Assertions.assertNotNull(response.getHeader("Location"));
+        return response.jsonPath().getString("id");
+    }
+
+    private JsonPath putChunk(String api, String id, byte[] content, int offset, int length) {
+        return given(this.spec)
+            .contentType("application/octet-stream")
+            .body(Arrays.copyOfRange(content, offset, offset + length))
+            .queryParam("offset", offset)
+            .when()
+            .put(api + "/upload/sessions/" + id)
+            .then()
+            .statusCode(200)
+            .extract()
+            .jsonPath();
+    }
+
+    @Test
+    public void testParallelChunksAreCommitted() throws Exception {
+        byte[] content = content();
+        for (String api : new String[]{"/api/files", "/api/db"}) {
+            String id = createSession(api, "parallel.txt", content.length);
+
+            // the last chunk first, the others in parallel
+            int last = (CHUNKS - 1) * CHUNK_SIZE;
+            putChunk(api, id, content, last, content.length - last);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<JsonPath>> chunks = new ArrayList<>();
+                for (int i = CHUNKS - 2; i >= 0; i--) {
+                    int offset = i * CHUNK_SIZE;
+                    chunks.add(executor.submit(() -> putChunk(api, id, content, offset, CHUNK_SIZE)));
+                }
+                for (Future<JsonPath> chunk : chunks) {
+                    chunk.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            JsonPath session = given(this.spec)
+                .when()
+                .get(api + "/upload/sessions/" + id)
+                .then()
+                .statusCode(200)
+                .extract()
+                .jsonPath();
+            Assertions.assertTrue(session.getBoolean("complete"));
+            Assertions.assertEquals(1, session.getList("received").size());
+            Assertions.assertEquals(content.length - 1, session.getLong("received[0].end"));
+            Assertions.assertTrue(session.getList("missing").isEmpty());
+
+            RequestResponse stored = given(this.spec)
+                .filter(document("upload-session-commit"))
+                .when()
+                .post(api + "/upload/sessions/" + id + "/commit")
+                .then()
+                .statusCode(200)
+                .extract()
+                .as(RequestResponse.class);
+            Assertions.assertEquals(content.length, stored.getSize());
+
+            byte[] downloaded = given(this.spec)
+                .when()
+                .get(stored.getDownloadUrl())
+                .then()
+                .statusCode(200)
+                .extract()
+                .asByteArray();
+            Assertions.assertArrayEquals(content, downloaded);
+
+            given(this.spec)
+                .when()
+                .get(api + "/upload/sessions/" + id)
+                .then()
+                .statusCode(404);
+        }
+    }
+
+    @Test
+    public void testIncompleteUploadIsNotVisible() {
+        byte[] content = content();
+        for (String api : new String[]{"/api/files", "/api/db"}) {
+            String id = createSession(api, "incomplete.txt", content.length);
+            JsonPath session = putChunk(api, id, content, CHUNK_SIZE, CHUNK_SIZE);
+            Assertions.assertEquals(CHUNK_SIZE, session.getLong("receivedBytes"));
+            Assertions.assertEquals(0, session.getLong("missing[0].start"));
+            Assertions.assertEquals(CHUNK_SIZE - 1, session.getLong("missing[0].end"));
+            Assertions.assertEquals(2 * CHUNK_SIZE, session.getLong("missing[1].start"));
+
+            given(this.spec)
+                .when()
+                .post(api + "/upload/sessions/" + id + "/commit")
+                .then()
+                .statusCode(409);
+            String files = given(this.spec)
+                .queryParam("pathPrefix", "chunked/incomplete")
+                .when()
+                .get(api + "/getByPath")
+                .then()
+                .statusCode(200)
+                .extract()
+                .asString();
+            Assertions.assertEquals("[]", files);
+
+            given(this.spec)
+                .when()
+                .delete(api + "/upload/sessions/" + id)
+                .then()
+                .statusCode(204);
+            given(this.spec)
+                .when()
+                .get(api + "/upload/sessions/" + id)
+                .then()
+                .statusCode(404);
+        }
+    }
+
+    @Test
+    public void testInvalidChunksAreRejected() {
+        byte[] content = "0123456789".getBytes(StandardCharsets.UTF_8);
+        String id = createSession("/api/files", "invalid.txt", content.length);
+        given(this.spec)
+            .contentType("application/octet-stream")
+            .body(content)
+            .queryParam("offset", 5)
+            .when()
+            .put("/api/files/upload/sessions/" + id)
+            .then()
+            .statusCode(400);
+        // sessions are visible through their own store only
+        given(this.spec)
+            .when()
+            .get("/api/db/upload/sessions/" + id)
+            .then()
+            .statusCode(404);
+        given(this.spec)
+            .queryParam("fileName", "../escape.txt")
+            .queryParam("size", 10)
+            .when()
+            .post("/api/files/upload/sessions")
+            .then()
+            .statusCode(400);
+    }
+}
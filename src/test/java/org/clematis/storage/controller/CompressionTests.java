@@ -0,0 +1,161 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.content.ContentCodec;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.repository.StorageEntityRepository;
+import org.clematis.storage.web.RequestResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import io.restassured.config.DecoderConfig;
+import io.restassured.config.RestAssuredConfig;
+import io.restassured.response.Response;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:compression",
+    "clematis.storage.download.folder=./temp/compression",
+    "clematis.storage.compression.enabled=true",
+    "clematis.storage.compression.min-size=1KB"
+})
+public class CompressionTests extends ApplicationTests {
+
+    private static final String CONTENT = "a line of text which compresses well\n".repeat(500);
+
+    private static final RestAssuredConfig RAW = RestAssuredConfig.config()
+        .decoderConfig(DecoderConfig.decoderConfig().noContentDecoders());
+
+    @Autowired
+    private StorageEntityRepository storageEntityRepository;
+
+    private Response download(RequestResponse uploaded, String acceptEncoding) {
+        return given(this.spec)
+            .config(RAW)
+            .header("Accept-Encoding", acceptEncoding)
+            .when()
+            .get(uploaded.getDownloadUrl())
+            .then()
+            .statusCode(200)
+            .extract()
+            .response();
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testCompressedContentIsSentAsStored() throws IOException {
+        for (String api : new String[]{"/api/files", "/api/db"}) {
+            RequestResponse uploaded = upload(api, "text.txt", CONTENT, "compression");
+            StorageEntity metadata = storageEntityRepository.findMetadataById(idOf(uploaded)).orElseThrow();
+            Assertions.assertEquals("gzip", metadata.getContentEncoding());
+            Assertions.assertEquals(CONTENT.length(), metadata.getSize());
+            Assertions.assertTrue(metadata.getEncodedSize() < CONTENT.length() / 10);
+
+            Response response = given(this.spec)
+                .config(RAW)
+                .filter(document("download-compressed"))
+                .header("Accept-Encoding", "gzip, deflate")
+                .when()
+                .get(uploaded.getDownloadUrl())
+                .then()
+                .statusCode(200)
+                .header("Content-Encoding", "gzip")
+                .header("Vary", "Accept-Encoding")
+                .extract()
+                .response();
+            byte[] body = response.asByteArray();
+            Assertions.assertEquals(metadata.getEncodedSize(), body.length);
+            Assertions.assertEquals(CONTENT, gunzip(body));
+            Assertions.assertTrue(response.getHeader("ETag").startsWith("W/"));
+
+            given(this.spec)
+                .config(RAW)
+                .header("Accept-Encoding", "gzip")
+                .when()
+                .head(uploaded.getDownloadUrl())
+                .then()
+                .statusCode(200)
+                .header("Content-Encoding", "gzip")
+                .header("Content-Length", String.valueOf(metadata.getEncodedSize()));
+        }
+    }
+
+    @Test
+    public void testCompressedContentIsUncompressedForOtherClients() throws IOException {
+        for (String api : new String[]{"/api/files", "/api/db"}) {
+            RequestResponse uploaded = upload(api, "identity.txt", CONTENT, "compression");
+            for (String acceptEncoding : new String[]{"identity", "br", "gzip;q=0, *"}) {
+                Response response = download(uploaded, acceptEncoding);
+                Assertions.assertNull(response.getHeader("Content-Encoding"));
+                Assertions.assertEquals("Accept-Encoding", response.getHeader("Vary"));
+                Assertions.assertEquals(CONTENT, response.asString());
+            }
+            String part = given(this.spec)
+                .config(RAW)
+                .header("Accept-Encoding", "gzip")
+                .header("Range", "bytes=2-5")
+                .when()
+                .get(uploaded.getDownloadUrl())
+                .then()
+                .statusCode(206)
+                .extract()
+                .asString();
+            Assertions.assertEquals(CONTENT.substring(2, 6), part);
+        }
+    }
+
+    @Test
+    public void testExcludedTypesAndSmallFilesAreStoredAsIs() throws IOException {
+        for (String api : new String[]{"/api/files", "/api/db"}) {
+            RequestResponse image = upload(api, "image.png", "image/png",
+                CONTENT.getBytes(StandardCharsets.UTF_8), "compression");
+            RequestResponse small = upload(api, "small.txt", "small", "compression");
+            for (RequestResponse uploaded : new RequestResponse[]{image, small}) {
+                Assertions.assertNull(storageEntityRepository.findMetadataById(idOf(uploaded))
+                    .orElseThrow().getContentEncoding());
+                Response response = download(uploaded, "gzip");
+                Assertions.assertNull(response.getHeader("Content-Encoding"));
+                Assertions.assertNull(response.getHeader("Vary"));
+            }
+            Assertions.assertEquals(CONTENT, download(image, "gzip").asString());
+        }
+    }
+
+    @Test
+    public void testCodecsRoundTrip() throws IOException {
+        byte[] content = CONTENT.getBytes(StandardCharsets.UTF_8);
+        for (ContentCodec codec : ContentCodec.values()) {
+            byte[] encoded;
+            try (InputStream in = codec.encode(new ByteArrayInputStream(content), 9)) {
+                encoded = in.readAllBytes();
+            }
+            try (InputStream in = codec.decode(new ByteArrayInputStream(encoded))) {
+                Assertions.assertArrayEquals(content, in.readAllBytes());
+            }
+        }
+        byte[] deflated;
+        try (InputStream in = ContentCodec.DEFLATE.encode(new ByteArrayInputStream(content), 1)) {
+            deflated = in.readAllBytes();
+        }
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(deflated))) {
+            Assertions.assertArrayEquals(content, in.readAllBytes());
+        }
+        Assertions.assertEquals(ContentCodec.GZIP, ContentCodec.forCoding(" GZIP").orElseThrow());
+        Assertions.assertTrue(ContentCodec.forCoding("br").isEmpty());
+    }
+}
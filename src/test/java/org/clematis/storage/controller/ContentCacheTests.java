@@ -0,0 +1,135 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.content.ByteArrayStorageContent;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.ContentCache;
+import org.clematis.storage.web.RequestResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:cache",
+    "clematis.storage.download.folder=./temp/cache",
+    "clematis.storage.cache.enabled=true",
+    "clematis.storage.cache.off-heap=true",
+    "clematis.storage.cache.max-object-size=1KB"
+})
+public class ContentCacheTests extends ApplicationTests {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ContentCache contentCache;
+
+    private static StorageContent content(String id, String fileName) {
+        StorageEntity metadata = new StorageEntity(fileName, "text/plain");
+        metadata.setId(id);
+        metadata.setSize(id.length());
+        return new ByteArrayStorageContent(metadata, id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private double hits() {
+        return meterRegistry.get("clematis.storage.content.cache.gets").tag("result", "hit")
+            .functionCounter().count();
+    }
+
+    @Test
+    public void testRepeatedDownloadsAreCached() throws IOException {
+        for (String api : new String[]{"/api/files", "/api/db"}) {
+            RequestResponse response = upload(api, "cached.txt", "cached", "cache");
+            Assertions.assertEquals("cached", download(response.getDownloadUrl()).asString());
+            double hits = hits();
+            Assertions.assertEquals("cached", download(response.getDownloadUrl()).asString());
+            Assertions.assertTrue(hits() > hits);
+
+            String part = given(this.spec)
+                .header("Range", "bytes=1-3")
+                .when()
+                .get(response.getDownloadUrl())
+                .then()
+                .statusCode(206)
+                .extract()
+                .asString();
+            Assertions.assertEquals("ach", part);
+        }
+    }
+
+    @Test
+    public void testReuploadInvalidatesSamePath() throws IOException {
+        RequestResponse first = upload("/api/files", "cached.txt", "first", "cache");
+        Assertions.assertEquals("first", download(first.getDownloadUrl()).asString());
+
+        // the file system store keeps one file per path, the new upload replaces the old content
+        upload("/api/files", "cached.txt", "second", "cache");
+        Assertions.assertEquals("second", download(first.getDownloadUrl()).asString());
+    }
+
+    @Test
+    public void testDeleteInvalidates() throws IOException {
+        RequestResponse response = upload("/api/db", "cached.txt", "deleted", "cache");
+        Assertions.assertEquals("deleted", download(response.getDownloadUrl()).asString());
+
+        given(this.spec).when().delete(response.getDownloadUrl()).then().statusCode(200);
+        given(this.spec).when().get(response.getDownloadUrl()).then().statusCode(404);
+    }
+
+    @Test
+    public void testLargeFilesAreNotCached() throws IOException {
+        String large = "x".repeat(2048);
+        RequestResponse response = upload("/api/db", "cached.txt", large, "cache");
+        Assertions.assertEquals(large, download(response.getDownloadUrl()).asString());
+        double hits = hits();
+        Assertions.assertEquals(large, download(response.getDownloadUrl()).asString());
+        Assertions.assertEquals(hits, hits());
+        given(this.spec)
+            .when()
+            .head(response.getDownloadUrl())
+            .then()
+            .statusCode(200)
+            .header("Content-Length", String.valueOf(large.getBytes(StandardCharsets.UTF_8).length));
+    }
+
+    @Test
+    public void testContentReadBeforeInvalidationIsNotCached() throws IOException {
+        long stamp = contentCache.stamp();
+        contentCache.invalidate("test:stale");
+        contentCache.put("test:", "stale", content("stale", "stale/a.txt"), stamp);
+        Assertions.assertTrue(contentCache.get("test:stale").isEmpty());
+
+        // the same refill started after the delete is cached
+        contentCache.put("test:", "stale", content("stale", "stale/a.txt"), contentCache.stamp());
+        Assertions.assertTrue(contentCache.get("test:stale").isPresent());
+        contentCache.invalidate("test:stale");
+    }
+
+    @Test
+    public void testPathInvalidationKeepsOtherPaths() throws IOException {
+        contentCache.put("test:", "kept", content("kept", "kept/a.txt"), contentCache.stamp());
+        contentCache.put("test:", "dropped", content("dropped", "dropped/a.txt"), contentCache.stamp());
+        contentCache.put("test:", "nested", content("nested", "dropped/nested/a.txt"), contentCache.stamp());
+        long stamp = contentCache.stamp();
+
+        contentCache.invalidateByPath("test:", "dropped");
+        Assertions.assertTrue(contentCache.get("test:kept").isPresent());
+        Assertions.assertTrue(contentCache.get("test:dropped").isEmpty());
+        Assertions.assertTrue(contentCache.get("test:nested").isEmpty());
+
+        // a refill of the store started before the delete is rejected
+        contentCache.put("test:", "dropped", content("dropped", "dropped/a.txt"), stamp);
+        Assertions.assertTrue(contentCache.get("test:dropped").isEmpty());
+
+        contentCache.invalidatePath("test:", "kept/a.txt");
+        Assertions.assertTrue(contentCache.get("test:kept").isEmpty());
+    }
+}
@@ -0,0 +1,180 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.ImportResult;
+import org.clematis.storage.service.StorageService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.test.context.TestPropertySource;
+
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:import",
+    "clematis.storage.download.folder=./temp/import",
+    "clematis.storage.max_file_size=1000",
+    "clematis.storage.max-file-size=1000B"
+})
+public class ImportTests extends ApplicationTests {
+
+    private static final String LONG_NAME = "nested/" + "long-folder-name/".repeat(8) + "deep.txt";
+
+    @Qualifier("fileStorageServiceImpl")
+    @Autowired
+    private StorageService fileStorageService;
+
+    @Qualifier("dbStorageServiceImpl")
+    @Autowired
+    private StorageService dbStorageService;
+
+    private Map<String, StorageService> stores() {
+        return Map.of("/api/files", fileStorageService, "/api/db", dbStorageService);
+    }
+
+    private static byte[] zip(Map<String, String> files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("docs/empty/"));
+            zip.closeEntry();
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                zip.putNextEntry(new ZipEntry(file.getKey()));
+                zip.write(file.getValue().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] tarGz(Map<String, String> files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(out))) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            TarArchiveEntry link = new TarArchiveEntry("docs/link.txt", TarArchiveEntry.LF_SYMLINK);
+            link.setLinkName("a.txt");
+            tar.putArchiveEntry(link);
+            tar.closeArchiveEntry();
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                byte[] content = file.getValue().getBytes(StandardCharsets.UTF_8);
+                TarArchiveEntry entry = new TarArchiveEntry(file.getKey());
+                entry.setSize(content.length);
+                tar.putArchiveEntry(entry);
+                tar.write(content);
+                tar.closeArchiveEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private ImportResult importArchive(String api, byte[] archive, String contentType, String path,
+                                       int statusCode) {
+        return given(this.spec)
+            .filter(document("import"))
+            .contentType(contentType)
+            .queryParam("path", path)
+            .body(archive)
+            .when()
+            .post(api + "/import")
+            .then()
+            .statusCode(statusCode)
+            .extract()
+            .as(ImportResult.class);
+    }
+
+    private static Map<String, String> stored(StorageService storageService, String path) throws IOException {
+        Map<String, String> files = new TreeMap<>();
+        for (StorageEntity entity : storageService.findByPath(path)) {
+            StorageContent content = storageService.getContent(entity.getId()).orElseThrow();
+            try (InputStream in = content.getInputStream()) {
+                files.put(entity.getPath(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return files;
+    }
+
+    @Test
+    public void testZipImport() throws IOException {
+        Map<String, String> files = new TreeMap<>(Map.of(
+            "docs/a.txt", "first",
+            "docs/sub/b.json", "{\"second\": true}",
+            "/absolute.txt", "third",
+            "../escape.txt", "never stored"));
+        for (Map.Entry<String, StorageService> store : stores().entrySet()) {
+            String path = "imported/zip" + store.getKey();
+            ImportResult result = importArchive(store.getKey(), zip(files), "application/zip", path, 207);
+            Assertions.assertEquals(3, result.files());
+            Assertions.assertEquals(1, result.failed());
+            Assertions.assertEquals("../escape.txt", result.failures().get(0).entry());
+            Assertions.assertEquals("first".length() + "{\"second\": true}".length() + "third".length(),
+                result.bytes());
+
+            Assertions.assertEquals(Map.of(
+                path + "/absolute.txt", "third",
+                path + "/docs/a.txt", "first",
+                path + "/docs/sub/b.json", "{\"second\": true}"), stored(store.getValue(), path));
+            Assertions.assertEquals("application/json",
+                store.getValue().findByPath(path + "/docs/sub").get(0).getContentType());
+        }
+    }
+
+    @Test
+    public void testGzippedTarImport() throws IOException {
+        Map<String, String> files = Map.of("docs/a.txt", "first", LONG_NAME, "deep");
+        for (Map.Entry<String, StorageService> store : stores().entrySet()) {
+            String path = "imported/tar" + store.getKey();
+            ImportResult result = importArchive(store.getKey(), tarGz(files), "application/gzip", path, 200);
+            Assertions.assertEquals(2, result.files());
+            Assertions.assertEquals(0, result.failed());
+            Assertions.assertEquals(Map.of(path + "/docs/a.txt", "first", path + "/" + LONG_NAME, "deep"),
+                stored(store.getValue(), path));
+        }
+    }
+
+    @Test
+    public void testFailedEntries() throws IOException {
+        Map<String, String> files = new TreeMap<>(Map.of(
+            "1.txt", "before the failure",
+            "2.txt", "too large".repeat(200),
+            "3.txt", "after the failure"));
+        for (Map.Entry<String, StorageService> store : stores().entrySet()) {
+            String path = "imported/failed" + store.getKey();
+            ImportResult result = importArchive(store.getKey(), zip(files), "application/zip", path, 207);
+            // a failed entry doesn't take the other entries of its batch with it
+            Assertions.assertEquals(2, result.files());
+            Assertions.assertEquals(1, result.failed());
+            Assertions.assertEquals("2.txt", result.failures().get(0).entry());
+            Assertions.assertEquals(Map.of(
+                path + "/1.txt", "before the failure",
+                path + "/3.txt", "after the failure"), stored(store.getValue(), path));
+        }
+    }
+
+    @Test
+    public void testNotAnArchive() {
+        for (String api : stores().keySet()) {
+            given(this.spec)
+                .contentType("application/zip")
+                .body("plain text".getBytes(StandardCharsets.UTF_8))
+                .when()
+                .post(api + "/import")
+                .then()
+                .statusCode(400);
+        }
+    }
+}
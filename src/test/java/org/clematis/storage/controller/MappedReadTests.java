@@ -0,0 +1,59 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.io.IOException;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.web.RequestResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:mapped",
+    "clematis.storage.download.folder=./temp/mapped",
+    "clematis.storage.mmap.enabled=true",
+    "clematis.storage.mmap.min-accesses=1"
+})
+public class MappedReadTests extends ApplicationTests {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private double mappedBytes() {
+        return meterRegistry.get("clematis.storage.mmap.bytes").gauge().value();
+    }
+
+    @Test
+    public void testDownloadsAreReadFromMapping() throws IOException {
+        RequestResponse first = upload("/api/files", "mapped.txt", "mapped content", "mapped");
+        Assertions.assertEquals("mapped content", download(first.getDownloadUrl()).asString());
+        Assertions.assertEquals("mapped content".length(), mappedBytes());
+
+        String part = given(this.spec)
+            .filter(document("mapped-range"))
+            .header("Range", "bytes=7-13")
+            .when()
+            .get(first.getDownloadUrl())
+            .then()
+            .statusCode(206)
+            .extract()
+            .asString();
+        Assertions.assertEquals("content", part);
+
+        // a file of the same length replacing the mapped one is read anew
+        RequestResponse second = upload("/api/files", "mapped.txt", "MAPPED CONTENT", "mapped");
+        Assertions.assertEquals("MAPPED CONTENT", download(second.getDownloadUrl()).asString());
+
+        given(this.spec)
+            .when()
+            .delete(second.getDownloadUrl())
+            .then()
+            .statusCode(200);
+        Assertions.assertEquals(0, mappedBytes());
+    }
+}
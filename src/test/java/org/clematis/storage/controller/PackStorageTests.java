@@ -0,0 +1,161 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.PackStorageServiceImpl;
+import org.clematis.storage.service.PackStore;
+import org.clematis.storage.web.RequestResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.unit.DataSize;
+
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:packs",
+    "clematis.storage.download.folder=./temp/packs",
+    "clematis.storage.pack.folder=./temp/packs/.packs",
+    "clematis.storage.pack.segment-size=4KB",
+    "clematis.storage.pack.max-object-size=1KB"
+})
+public class PackStorageTests extends ApplicationTests {
+
+    private static final String PACKS_FOLDER = "./temp/packs/.packs";
+
+    private static final String PACKS_PATH = "/api/packs/";
+
+    @Autowired
+    private PackStore packStore;
+
+    @Autowired
+    private PackStorageServiceImpl packStorageService;
+
+    @Value("${clematis.storage.download.folder}")
+    private String downloadFolder;
+
+    @Test
+    public void testSmallFileIsPacked() {
+        RequestResponse uploaded = given(this.spec)
+            .filter(document("pack-upload"))
+            .multiPart("file", "a.txt", "packed content".getBytes(StandardCharsets.UTF_8), "text/plain")
+            .formParam("path", "packed")
+            .when()
+            .post("/api/packs/upload")
+            .andReturn()
+            .as(RequestResponse.class);
+        String id = idOf(uploaded);
+
+        Assertions.assertTrue(packStore.contains(id));
+        Assertions.assertFalse(Files.exists(Path.of(downloadFolder, "packed", "a.txt")));
+        Assertions.assertEquals("packed content", download(PACKS_PATH + id).asString());
+
+        given(this.spec)
+            .when()
+            .delete(PACKS_PATH + id)
+            .then()
+            .statusCode(200);
+        Assertions.assertFalse(packStore.contains(id));
+        given(this.spec)
+            .when()
+            .get(PACKS_PATH + id)
+            .then()
+            .statusCode(404);
+    }
+
+    @Test
+    public void testOtherStoresKeepPackedFiles() {
+        String id = idOf(upload("/api/packs", "a.txt", "kept", "other-stores"));
+
+        // the stores delete their own files only
+        given(this.spec).when().delete("/api/db/" + id).then().statusCode(200);
+        given(this.spec).queryParam("path", "other-stores").when().delete("/api/db/delete").then().statusCode(200);
+        Assertions.assertTrue(packStore.contains(id));
+        Assertions.assertEquals("kept", download(PACKS_PATH + id).asString());
+    }
+
+    @Test
+    public void testOrphansAreTombstoned() throws Exception {
+        String id = idOf(upload("/api/packs", "d.txt", "committed", "orphans"));
+        // appended by a save whose metadata was never committed
+        StorageEntity orphan = new StorageEntity("pack", "orphans/e.txt", "text/plain");
+        orphan.setId("orphan-" + id);
+        packStore.put(orphan, "orphan".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(List.of(orphan.getId()), packStore.findIdsByPath("orphans/e"));
+
+        packStorageService.reconcile();
+
+        Assertions.assertFalse(packStore.contains(orphan.getId()));
+        Assertions.assertTrue(packStore.findIdsByPath("orphans/e").isEmpty());
+        Assertions.assertEquals(List.of(id), packStore.findIdsByPath("orphans/"));
+        Assertions.assertEquals("committed", download(PACKS_PATH + id).asString());
+    }
+
+    @Test
+    public void testLargeFileIsStoredAsFile() {
+        String content = "x".repeat(2000);
+        String id = idOf(upload("/api/packs", "b.txt", content, "unpacked"));
+
+        Assertions.assertFalse(packStore.contains(id));
+        Assertions.assertTrue(Files.exists(Path.of(downloadFolder, "unpacked", "b.txt")));
+        Assertions.assertEquals(content, download(PACKS_PATH + id).asString());
+    }
+
+    @Test
+    public void testCompactionAndRecovery() throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String content = String.valueOf((char) ('a' + i)).repeat(500);
+            ids.add(idOf(upload("/api/packs", "c" + i + ".txt", content, "compacted")));
+        }
+        int segments = packStore.getSegmentCount();
+        List<String> deleted = ids.subList(0, 16);
+        List<String> kept = ids.subList(16, ids.size());
+
+        given(this.spec)
+            .filter(document("pack-delete-batch"))
+            .contentType(MediaType.APPLICATION_JSON_VALUE)
+            .body(deleted)
+            .when()
+            .post("/api/packs/delete/batch")
+            .then()
+            .statusCode(200);
+        // compactions run one at a time, this one follows any started by the deletes
+        packStore.compact();
+
+        Assertions.assertTrue(packStore.getSegmentCount() < segments);
+        for (int i = 16; i < ids.size(); i++) {
+            Assertions.assertEquals(String.valueOf((char) ('a' + i)).repeat(500),
+                download(PACKS_PATH + ids.get(i)).asString());
+        }
+        given(this.spec)
+            .when()
+            .get(PACKS_PATH + deleted.get(0))
+            .then()
+            .statusCode(404);
+
+        // the index is rebuilt from the segments, a ratio above 1 never compacts
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        PackStore reopened = new PackStore(PACKS_FOLDER, DataSize.ofKilobytes(4), 2, false, executor);
+        try {
+            kept.forEach(id -> Assertions.assertTrue(reopened.contains(id)));
+            deleted.forEach(id -> Assertions.assertFalse(reopened.contains(id)));
+            Assertions.assertEquals(packStore.getMetadata(kept.get(0)), reopened.getMetadata(kept.get(0)));
+        } finally {
+            reopened.close();
+            executor.shutdown();
+        }
+    }
+}
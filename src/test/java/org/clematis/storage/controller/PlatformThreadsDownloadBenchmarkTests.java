@@ -0,0 +1,21 @@
+package org.clematis.storage.controller;
+
+import org.junit.jupiter.api.Tag;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Slow downloads handled by the default pool of 200 platform request threads and written
+ * by the pool of 256 platform download threads, further downloads wait for a free one.
+ * Run with {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+@TestPropertySource(properties = {
+    "spring.threads.virtual.enabled=false",
+    "clematis.storage.download.async.threads=256",
+    SlowDownloadBenchmark.NO_SENDFILE,
+    SlowDownloadBenchmark.MAX_CONNECTIONS,
+    SlowDownloadBenchmark.ACCEPT_COUNT,
+    SlowDownloadBenchmark.NO_SQL_LOG
+})
+public class PlatformThreadsDownloadBenchmarkTests extends SlowDownloadBenchmark {
+}
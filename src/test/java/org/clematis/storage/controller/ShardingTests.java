@@ -0,0 +1,141 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.repository.StorageEntityRepository;
+import org.clematis.storage.service.ContentReferenceService;
+import org.clematis.storage.service.FileLayout;
+import org.clematis.storage.web.RequestResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+import io.restassured.path.json.JsonPath;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:sharding",
+    "clematis.storage.download.folder=./temp/sharding",
+    "clematis.storage.sharding.enabled=true"
+})
+public class ShardingTests extends ApplicationTests {
+
+    private static final String FILES_PATH = "/api/files/";
+
+    @Autowired
+    private StorageEntityRepository storageEntityRepository;
+
+    @Autowired
+    private FileLayout fileLayout;
+
+    @Value("${clematis.storage.download.folder}")
+    private String downloadFolder;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        storageEntityRepository.deleteMetadataByPathLike(ContentReferenceService.FS_STORE, "sharded/%");
+        storageEntityRepository.deleteMetadataByPathLike(ContentReferenceService.FS_STORE, "legacy/%");
+        FileSystemUtils.deleteRecursively(Path.of(downloadFolder, "sharded"));
+        FileSystemUtils.deleteRecursively(Path.of(downloadFolder, "legacy"));
+    }
+
+    /**
+     * Stores a file the way it was stored before sharding, under its logical path.
+     */
+    private StorageEntity saveLegacy(String fileName, String content) throws IOException {
+        Path file = Path.of(downloadFolder, fileName);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        StorageEntity entity = new StorageEntity(ContentReferenceService.FS_STORE, fileName, "text/plain");
+        entity.setSize(content.length());
+        entity.setChecksum("0".repeat(64));
+        entity.setLastModified(Instant.now());
+        return storageEntityRepository.save(entity);
+    }
+
+    @Test
+    public void testUploadIsStoredUnderId() throws IOException {
+        RequestResponse uploaded = upload("/api/files", "a.txt", "sharded content", "sharded/docs");
+        String id = idOf(uploaded);
+
+        Path shard = fileLayout.shardPath(id);
+        Assertions.assertTrue(Files.exists(shard));
+        Assertions.assertEquals(3, fileLayout.shardsFolder().relativize(shard).getNameCount());
+        Assertions.assertFalse(Files.exists(Path.of(downloadFolder, "sharded", "docs", "a.txt")));
+        Assertions.assertEquals("sharded/docs/a.txt",
+            storageEntityRepository.findMetadataById(id).orElseThrow().getPath());
+        Assertions.assertEquals("sharded content", download(uploaded.getDownloadUrl()).asString());
+
+        given(this.spec)
+            .when()
+            .delete(FILES_PATH + id)
+            .then()
+            .statusCode(200);
+        Assertions.assertFalse(Files.exists(shard));
+    }
+
+    @Test
+    public void testMigration() throws Exception {
+        StorageEntity single = saveLegacy("legacy/single.txt", "single");
+        StorageEntity first = saveLegacy("legacy/shared.txt", "shared");
+        StorageEntity second = saveLegacy("legacy/shared.txt", "shared");
+        // files not migrated yet are read from their logical paths
+        Assertions.assertEquals("single", download(FILES_PATH + single.getId()).asString());
+
+        String location = given(this.spec)
+            .filter(document("reshard"))
+            .when()
+            .post("/api/files/reshard")
+            .then()
+            .statusCode(202)
+            .extract()
+            .header("Location");
+
+        JsonPath progress = null;
+        for (int attempt = 0; attempt < 200; attempt++) {
+            progress = given(this.spec)
+                .when()
+                .get(location)
+                .then()
+                .statusCode(200)
+                .extract()
+                .jsonPath();
+            if (progress.getString("finished") != null) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        Assertions.assertNotNull(progress);
+        Assertions.assertEquals("DONE", progress.getString("state"));
+        Assertions.assertEquals(3, progress.getLong("migrated"));
+        Assertions.assertEquals(0, progress.getLong("failed"));
+
+        for (StorageEntity entity : new StorageEntity[]{single, first, second}) {
+            Path shard = fileLayout.shardPath(entity.getId());
+            Assertions.assertTrue(Files.exists(shard));
+            Assertions.assertEquals(Files.readString(shard, StandardCharsets.UTF_8),
+                download(FILES_PATH + entity.getId()).asString());
+        }
+        Assertions.assertFalse(Files.exists(Path.of(downloadFolder, "legacy", "single.txt")));
+        Assertions.assertFalse(Files.exists(Path.of(downloadFolder, "legacy", "shared.txt")));
+
+        // deleting one of the files sharing a path keeps the other one
+        given(this.spec)
+            .when()
+            .delete(FILES_PATH + first.getId())
+            .then()
+            .statusCode(200);
+        Assertions.assertEquals("shared", download(FILES_PATH + second.getId()).asString());
+    }
+}
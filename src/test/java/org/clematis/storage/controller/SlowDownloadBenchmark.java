@@ -0,0 +1,150 @@
+package org.clematis.storage.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.clematis.storage.Latencies.report;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.StorageService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.boot.web.embedded.tomcat.TomcatConnectorCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+
+/**
+ * Downloads a file from the filesystem store by 1,000 and 10,000 concurrent slow clients,
+ * which read a few kilobytes at a time with pauses, like clients on a slow link.
+ * Subclasses run it with platform and with virtual threads. Files are streamed by the download
+ * executor after the request thread is released, not by sendfile, and the socket send buffer
+ * is small, so a download thread is blocked for the whole transfer. With platform threads the
+ * download threads are a pool of a fixed size, with virtual threads every download gets one.
+ * Reports the time until all clients are done, time to the first byte, which grows when
+ * downloads wait for a free thread, and time of a whole download.
+ * <p>
+ * The clients run on virtual threads of the test JVM, which needs a limit of open files
+ * above twice the number of clients, e.g. {@code ulimit -n 32768}.
+ */
+@Import(SlowDownloadBenchmark.SmallSendBufferConfig.class)
+public abstract class SlowDownloadBenchmark extends ApplicationTests {
+
+    /**
+     * Properties shared by the subclasses: streamed downloads and enough connections for all clients
+     */
+    protected static final String NO_SENDFILE = "clematis.storage.download.sendfile-threshold=1073741824";
+    protected static final String MAX_CONNECTIONS = "server.tomcat.max-connections=20000";
+    protected static final String ACCEPT_COUNT = "server.tomcat.accept-count=10000";
+    protected static final String NO_SQL_LOG = "spring.jpa.show-sql=false";
+
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final int READ_SIZE = 4 * 1024;
+    private static final long READ_PAUSE_MILLIS = 10;
+    private static final int SOCKET_BUFFER = 8 * 1024;
+    private static final int READ_TIMEOUT_MILLIS = 600_000;
+
+    @LocalServerPort
+    private int serverPort;
+
+    @Qualifier("fileStorageServiceImpl")
+    @Autowired
+    private StorageService storageService;
+
+    @Test
+    public void benchmarkSlowDownloads() throws Exception {
+        byte[] content = new byte[FILE_SIZE];
+        Arrays.fill(content, (byte) 'x');
+        StorageEntity file = storageService.saveAttachment("slow.bin", "application/octet-stream",
+            new ByteArrayInputStream(content), "benchmark");
+        String request = "GET /api/files/" + file.getId() + " HTTP/1.1\r\nHost: localhost\r\n"
+            + "Connection: close\r\n\r\n";
+
+        for (int clients : new int[]{1_000, 10_000}) {
+            run(clients, request);
+        }
+    }
+
+    private void run(int clients, String request) throws Exception {
+        VirtualThreadTaskExecutor executor = new VirtualThreadTaskExecutor("slow-client-");
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<long[]>> downloads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            downloads.add(executor.submit(() -> {
+                start.await();
+                return readSlowly(request);
+            }));
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        long[] firstByte = new long[clients];
+        long[] total = new long[clients];
+        for (int i = 0; i < clients; i++) {
+            long[] result = downloads.get(i).get();
+            firstByte[i] = result[0];
+            total[i] = result[1];
+        }
+        long elapsed = System.nanoTime() - started;
+        System.out.printf("%s, %d clients: all done in %d ms, %.1f downloads/s%n", getClass().getSimpleName(),
+            clients, elapsed / 1_000_000, clients / (elapsed / 1e9));
+        report("  time to first byte", firstByte);
+        report("  download time", total);
+    }
+
+    /**
+     * Downloads the file reading slowly, returns the time to the first byte and the total time.
+     */
+    private long[] readSlowly(String request) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long firstByte = 0;
+        long received = 0;
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(SOCKET_BUFFER);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.connect(new InetSocketAddress("localhost", serverPort));
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[READ_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (firstByte == 0) {
+                    firstByte = System.nanoTime() - start;
+                }
+                received += read;
+                Thread.sleep(READ_PAUSE_MILLIS);
+            }
+        }
+        // headers come on top of the content
+        assertTrue(received > FILE_SIZE, "Incomplete download: " + received);
+        return new long[]{firstByte, System.nanoTime() - start};
+    }
+
+    /**
+     * Fixes the socket send buffer of the connector, so a response doesn't fit into it
+     * and the writing thread waits for the client.
+     */
+    @TestConfiguration
+    static class SmallSendBufferConfig {
+
+        @Bean
+        TomcatConnectorCustomizer smallSendBuffer() {
+            return connector -> connector.setProperty("socket.txBufSize", String.valueOf(SOCKET_BUFFER));
+        }
+    }
+}
@@ -5,6 +5,10 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
 
 import org.clematis.storage.ApplicationTests;
 import org.clematis.storage.web.RequestResponse;
@@ -13,8 +17,11 @@ import org.junit.jupiter.api.Test;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.List;
+import static org.hamcrest.Matchers.startsWith;
 import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
 @SuppressFBWarnings("NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE")
 public class StorageControllerTests extends ApplicationTests {
@@ -106,6 +113,29 @@ public class StorageControllerTests extends ApplicationTests {
         Assertions.assertEquals(2, list.size());
     }
 
+    @Test
+    public void testDbUploadBatchPartialFailure() {
+        List<RequestResponse> list = given(this.spec)
+            .multiPart("files", "first.txt", HELLO_WORLD.getBytes(StandardCharsets.UTF_8), "text/plain")
+            .multiPart("files", "../escape.txt", HELLO_WORLD.getBytes(StandardCharsets.UTF_8), "text/plain")
+            .multiPart("files", "third.txt", HELLO_WORLD.getBytes(StandardCharsets.UTF_8), "text/plain")
+            .filter(document("db-upload-batch-partial"))
+            .when()
+            .post("/api/db/upload/batch")
+            .then()
+            .statusCode(207)
+            .extract()
+            .jsonPath().getList(".", RequestResponse.class);
+
+        Assertions.assertEquals(3, list.size());
+        Assertions.assertEquals("first.txt", list.get(0).getFileName());
+        Assertions.assertNull(list.get(0).getError());
+        Assertions.assertNotNull(list.get(1).getError());
+        Assertions.assertNull(list.get(1).getDownloadUrl());
+        Assertions.assertEquals("third.txt", list.get(2).getFileName());
+        Assertions.assertNotNull(list.get(2).getDownloadUrl());
+    }
+
     @Test
     public void testDbDeleteFile() throws IOException {
         RequestResponse saved = uploadToDb();
@@ -144,6 +174,44 @@ public class StorageControllerTests extends ApplicationTests {
         Assertions.assertEquals(HELLO_WORLD, new String(file, StandardCharsets.UTF_8));
     }
 
+    @Test
+    public void testFsLargeFileDownload() throws IOException {
+        byte[] content = new byte[512 * 1024];
+        new Random(42).nextBytes(content);
+        Path testFile = Files.createTempFile("large", ".bin");
+        Files.write(testFile, content);
+
+        RequestResponse response = given(this.spec)
+            .multiPart(testFile.toFile())
+            .when()
+            .post("/api/files/upload")
+            .andReturn()
+            .as(RequestResponse.class);
+
+        byte[] file = given(this.spec)
+            .when()
+            .get(response.getDownloadUrl())
+            .then()
+            .statusCode(200)
+            .header("Content-Length", String.valueOf(content.length))
+            .extract()
+            .asByteArray();
+
+        Assertions.assertArrayEquals(content, file);
+
+        byte[] region = given(this.spec)
+            .header("Range", "bytes=1000-1999")
+            .when()
+            .get(response.getDownloadUrl())
+            .then()
+            .statusCode(206)
+            .header("Content-Range", "bytes 1000-1999/" + content.length)
+            .extract()
+            .asByteArray();
+
+        Assertions.assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), region);
+    }
+
     @Test
     public void testFsGetAllReturns200() {
         given(this.spec)
@@ -212,6 +280,339 @@ public class StorageControllerTests extends ApplicationTests {
             .statusCode(404);
     }
 
+    /* -------------------------------------------------------
+     *                Streaming uploads
+     * ------------------------------------------------------- */
+
+    @Test
+    public void testFsStreamUpload() throws IOException {
+        List<RequestResponse> list = given(this.spec)
+            .multiPart("files", mockMultipartFile().getFile())
+            .multiPart("files", mockMultipartFile().getFile())
+            .filter(document("fs-upload-stream"))
+            .when()
+            .post("/api/files/upload/stream?path=stream-folder")
+            .then()
+            .statusCode(200)
+            .extract()
+            .jsonPath().getList(".", RequestResponse.class);
+
+        Assertions.assertEquals(2, list.size());
+        for (RequestResponse response : list) {
+            Assertions.assertEquals(HELLO_WORLD.length(), response.getSize());
+            byte[] file = given(this.spec)
+                .when()
+                .get(response.getDownloadUrl())
+                .asByteArray();
+            Assertions.assertEquals(HELLO_WORLD, new String(file, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testDbStreamUpload() throws IOException {
+        List<RequestResponse> list = given(this.spec)
+            .multiPart("path", "stream-folder")
+            .multiPart("files", mockMultipartFile().getFile())
+            .filter(document("db-upload-stream"))
+            .when()
+            .post("/api/db/upload/stream")
+            .then()
+            .statusCode(200)
+            .extract()
+            .jsonPath().getList(".", RequestResponse.class);
+
+        Assertions.assertEquals(1, list.size());
+        Assertions.assertTrue(list.get(0).getFileName().startsWith("stream-folder"));
+
+        byte[] file = given(this.spec)
+            .when()
+            .get(list.get(0).getDownloadUrl())
+            .asByteArray();
+        Assertions.assertEquals(HELLO_WORLD, new String(file, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDbStreamUploadTooLarge() throws IOException {
+        Path testFile = Files.createTempFile("too-large", ".bin");
+        Files.write(testFile, new byte[1_000_001]);
+
+        List<RequestResponse> list = given(this.spec)
+            .multiPart("files", testFile.toFile())
+            .multiPart("files", mockMultipartFile().getFile())
+            .when()
+            .post("/api/db/upload/stream")
+            .then()
+            .statusCode(207)
+            .extract()
+            .jsonPath().getList(".", RequestResponse.class);
+
+        Assertions.assertEquals(2, list.size());
+        Assertions.assertNotNull(list.get(0).getError());
+        Assertions.assertNull(list.get(0).getDownloadUrl());
+        Assertions.assertNull(list.get(1).getError());
+        Assertions.assertEquals(HELLO_WORLD.length(), list.get(1).getSize());
+
+        Files.deleteIfExists(testFile);
+    }
+
+    @Test
+    public void testStreamUploadPathTooLong() throws IOException {
+        given(this.spec)
+            .multiPart("path", "a".repeat(4097))
+            .multiPart("files", mockMultipartFile().getFile())
+            .when()
+            .post("/api/files/upload/stream")
+            .then()
+            .statusCode(400);
+    }
+
+    /* -------------------------------------------------------
+     *                Keyset pagination
+     * ------------------------------------------------------- */
+
+    @Test
+    public void testFsFindPaged() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            given(this.spec)
+                .multiPart(mockMultipartFile().getFile())
+                .when()
+                .post("/api/files/upload?path=paging-folder")
+                .then()
+                .statusCode(200);
+        }
+
+        List<String> urls = new ArrayList<>();
+        String url = "/api/files/find?path=paging-folder&limit=2";
+        int pages = 0;
+        while (url != null) {
+            io.restassured.response.Response response = given(this.spec)
+                .filter(document("fs-find-paged"))
+                .when()
+                .get(url);
+            Assertions.assertEquals(200, response.statusCode());
+            List<RequestResponse> page = response.jsonPath().getList(".", RequestResponse.class);
+            Assertions.assertTrue(page.size() <= 2);
+            page.forEach(r -> urls.add(r.getDownloadUrl()));
+            String link = response.header("Link");
+            url = link != null ? link.substring(link.indexOf('<') + 1, link.indexOf('>')) : null;
+            pages++;
+        }
+
+        Assertions.assertEquals(3, pages);
+        Assertions.assertEquals(5, urls.size());
+        Assertions.assertEquals(5, new HashSet<>(urls).size());
+    }
+
+    @Test
+    public void testDbListNdjson() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            given(this.spec)
+                .multiPart(mockMultipartFile().getFile())
+                .when()
+                .post("/api/db/upload?path=ndjson-folder")
+                .then()
+                .statusCode(200);
+        }
+
+        io.restassured.response.Response response = given(this.spec)
+            .filter(document("db-list-ndjson"))
+            .when()
+            .get("/api/db/list?path=ndjson-folder");
+        Assertions.assertEquals(200, response.statusCode());
+        Assertions.assertTrue(response.contentType().startsWith("application/x-ndjson"));
+
+        String[] lines = response.asString().split("\n");
+        Assertions.assertEquals(3, lines.length);
+        ObjectMapper objectMapper = new ObjectMapper();
+        String previous = "";
+        for (String line : lines) {
+            RequestResponse entry = objectMapper.readValue(line, RequestResponse.class);
+            Assertions.assertTrue(entry.getFileName().startsWith("ndjson-folder"));
+            Assertions.assertTrue(entry.getFileName().compareTo(previous) > 0);
+            previous = entry.getFileName();
+            byte[] file = given(this.spec)
+                .when()
+                .get(entry.getDownloadUrl())
+                .asByteArray();
+            Assertions.assertEquals(HELLO_WORLD, new String(file, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testInvalidPageToken() {
+        given(this.spec)
+            .when()
+            .get("/api/db/get?next=bm90LWEtdG9rZW4")
+            .then()
+            .statusCode(400);
+    }
+
+    /* -------------------------------------------------------
+     *                Range requests
+     * ------------------------------------------------------- */
+
+    @Test
+    public void testDbSingleRange() throws IOException {
+        RequestResponse response = uploadToDb();
+
+        String part = given(this.spec)
+            .header("Range", "bytes=7-11")
+            .filter(document("db-download-range"))
+            .when()
+            .get(response.getDownloadUrl())
+            .then()
+            .statusCode(206)
+            .header("Accept-Ranges", "bytes")
+            .header("Content-Range", "bytes 7-11/" + HELLO_WORLD.length())
+            .extract()
+            .asString();
+
+        Assertions.assertEquals("world", part);
+    }
+
+    @Test
+    public void testFsSuffixRange() throws IOException {
+        RequestResponse response = uploadToFs();
+
+        String part = given(this.spec)
+            .header("Range", "bytes=-6")
+            .filter(document("fs-download-range"))
+            .when()
+            .get(response.getDownloadUrl())
+            .then()
+            .statusCode(206)
+            .header("Content-Range", "bytes 7-12/" + HELLO_WORLD.length())
+            .extract()
+            .asString();
+
+        Assertions.assertEquals("world!", part);
+    }
+
+    @Test
+    public void testMultipleRanges() throws IOException {
+        for (RequestResponse response : List.of(uploadToFs(), uploadToDb())) {
+            String body = given(this.spec)
+                .header("Range", "bytes=0-4,7-11")
+                .when()
+                .get(response.getDownloadUrl())
+                .then()
+                .statusCode(206)
+                .contentType(startsWith("multipart/byteranges"))
+                .extract()
+                .asString();
+
+            Assertions.assertTrue(body.contains("Content-Range: bytes 0-4/" + HELLO_WORLD.length()));
+            Assertions.assertTrue(body.contains("Hello"));
+            Assertions.assertTrue(body.contains("Content-Range: bytes 7-11/" + HELLO_WORLD.length()));
+            Assertions.assertTrue(body.contains("world"));
+        }
+    }
+
+    @Test
+    public void testRangeNotSatisfiable() throws IOException {
+        for (RequestResponse response : List.of(uploadToFs(), uploadToDb())) {
+            given(this.spec)
+                .header("Range", "bytes=100-")
+                .when()
+                .get(response.getDownloadUrl())
+                .then()
+                .statusCode(416)
+                .header("Content-Range", "bytes */" + HELLO_WORLD.length());
+        }
+    }
+
+    /* -------------------------------------------------------
+     *                Conditional requests
+     * ------------------------------------------------------- */
+
+    @Test
+    public void testConditionalGet() throws IOException {
+        for (RequestResponse response : List.of(uploadToFs(), uploadToDb())) {
+            io.restassured.response.Response download = given(this.spec)
+                .when()
+                .get(response.getDownloadUrl());
+            String eTag = download.getHeader("ETag");
+            String lastModified = download.getHeader("Last-Modified");
+            Assertions.assertNotNull(eTag);
+            Assertions.assertNotNull(lastModified);
+
+            given(this.spec)
+                .header("If-None-Match", eTag)
+                .filter(document("download-not-modified"))
+                .when()
+                .get(response.getDownloadUrl())
+                .then()
+                .statusCode(304)
+                .header("ETag", eTag);
+
+            given(this.spec)
+                .header("If-Modified-Since", lastModified)
+                .when()
+                .get(response.getDownloadUrl())
+                .then()
+                .statusCode(304);
+
+            given(this.spec)
+                .header("If-None-Match", "\"stale\"")
+                .when()
+                .get(response.getDownloadUrl())
+                .then()
+                .statusCode(200)
+                .header("ETag", eTag);
+        }
+    }
+
+    @Test
+    public void testHeadFromMetadata() throws IOException {
+        for (RequestResponse response : List.of(uploadToFs(), uploadToDb())) {
+            String body = given(this.spec)
+                .filter(document("download-head"))
+                .when()
+                .head(response.getDownloadUrl())
+                .then()
+                .statusCode(200)
+                .header("Content-Length", String.valueOf(HELLO_WORLD.length()))
+                .header("Accept-Ranges", "bytes")
+                .header("ETag", startsWith("\""))
+                .extract()
+                .asString();
+            Assertions.assertTrue(body.isEmpty());
+        }
+        given(this.spec)
+            .when()
+            .head("/api/db/does-not-exist")
+            .then()
+            .statusCode(404);
+    }
+
+    @Test
+    public void testIfRange() throws IOException {
+        RequestResponse response = uploadToDb();
+        String eTag = given(this.spec)
+            .when()
+            .head(response.getDownloadUrl())
+            .getHeader("ETag");
+
+        given(this.spec)
+            .header("Range", "bytes=7-11")
+            .header("If-Range", eTag)
+            .when()
+            .get(response.getDownloadUrl())
+            .then()
+            .statusCode(206);
+
+        String full = given(this.spec)
+            .header("Range", "bytes=7-11")
+            .header("If-Range", "\"stale\"")
+            .when()
+            .get(response.getDownloadUrl())
+            .then()
+            .statusCode(200)
+            .extract()
+            .asString();
+        Assertions.assertEquals(HELLO_WORLD, full);
+    }
+
     /* -------------------------------------------------------
      *               Negative / Error scenarios
      * ------------------------------------------------------- */
@@ -0,0 +1,45 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.service.HotTier;
+import org.clematis.storage.web.RequestResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:tiered-aging",
+    "clematis.storage.download.folder=./temp/tiered-aging",
+    "clematis.storage.tiering.promote-accesses=1",
+    "clematis.storage.tiering.aging-interval=200ms",
+    "clematis.storage.tiering.idle-time=500ms",
+    "clematis.storage.tiering.migration.bytes-per-second=0"
+})
+public class TieredAgingTests extends ApplicationTests {
+
+    @Autowired
+    private HotTier hotTier;
+
+    private boolean awaitHot(String id, boolean hot) throws InterruptedException {
+        for (int attempt = 0; attempt < 200 && hotTier.contains(id) != hot; attempt++) {
+            Thread.sleep(50);
+        }
+        return hotTier.contains(id) == hot;
+    }
+
+    @Test
+    public void testIdleCopyIsDemotedWithoutReads() throws Exception {
+        RequestResponse uploaded = upload("/api/tiered", "idle.txt", "idle content", "tiered-aging");
+        String id = idOf(uploaded);
+
+        download(uploaded.getDownloadUrl());
+        Assertions.assertTrue(awaitHot(id, true));
+
+        // no file is read anymore, the aging demotes the copy once it is idle
+        Assertions.assertTrue(awaitHot(id, false));
+        given(this.spec).when().delete(uploaded.getDownloadUrl()).then().statusCode(200);
+    }
+}
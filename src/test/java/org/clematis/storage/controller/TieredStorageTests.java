@@ -0,0 +1,127 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.service.HotTier;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+
+import io.restassured.response.ExtractableResponse;
+import io.restassured.response.Response;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+import org.springframework.test.context.TestPropertySource;
+
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:tiered",
+    "clematis.storage.download.folder=./temp/tiered",
+    "clematis.storage.tiering.promote-accesses=2",
+    "clematis.storage.tiering.max-size=40B",
+    "clematis.storage.tiering.migration.bytes-per-second=0"
+})
+public class TieredStorageTests extends ApplicationTests {
+
+    private static final String TIERED_PATH = "/api/tiered/";
+
+    @Autowired
+    private HotTier hotTier;
+
+    @Value("${clematis.storage.download.folder}")
+    private String downloadFolder;
+
+    private String upload(String fileName, String content, String path) {
+        return idOf(upload("/api/tiered", fileName, content, path));
+    }
+
+    private void delete(String id) {
+        given(this.spec)
+            .when()
+            .delete(TIERED_PATH + id)
+            .then()
+            .statusCode(200);
+    }
+
+    private void awaitTiers(String hot, String cold) throws InterruptedException {
+        for (int attempt = 0; attempt < 200; attempt++) {
+            if (hotTier.contains(hot) && (cold == null || !hotTier.contains(cold))) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        Assertions.assertTrue(hotTier.contains(hot));
+        if (cold != null) {
+            Assertions.assertFalse(hotTier.contains(cold));
+        }
+    }
+
+    @Test
+    public void testFileReadOftenIsPromoted() throws Exception {
+        String id = upload("a.txt", "tiered content", "tiered");
+        String etag = download(TIERED_PATH + id).header(HttpHeaders.ETAG);
+        Assertions.assertFalse(hotTier.contains(id));
+        download(TIERED_PATH + id);
+        awaitTiers(id, null);
+
+        // the hot copy is read, the id and the metadata are the same
+        Files.delete(Path.of(downloadFolder, "tiered", "a.txt"));
+        ExtractableResponse<Response> hot = given(this.spec)
+            .filter(document("tiered-download"))
+            .when()
+            .get(TIERED_PATH + id)
+            .then()
+            .statusCode(200)
+            .extract();
+        Assertions.assertEquals("tiered content", hot.asString());
+        Assertions.assertEquals(etag, hot.header(HttpHeaders.ETAG));
+
+        delete(id);
+        Assertions.assertFalse(hotTier.contains(id));
+        given(this.spec)
+            .when()
+            .get(TIERED_PATH + id)
+            .then()
+            .statusCode(404);
+    }
+
+    @Test
+    public void testColdestCopyIsDemoted() throws Exception {
+        String first = upload("b.txt", "b".repeat(20), "capacity");
+        String second = upload("c.txt", "c".repeat(30), "capacity");
+        download(TIERED_PATH + first);
+        download(TIERED_PATH + first);
+        awaitTiers(first, null);
+
+        // both don't fit, the copy read least is demoted for the file read more
+        for (int i = 0; i < 3; i++) {
+            download(TIERED_PATH + second);
+        }
+        awaitTiers(second, first);
+        Assertions.assertEquals("b".repeat(20), download(TIERED_PATH + first).asString());
+        Assertions.assertEquals("c".repeat(30), download(TIERED_PATH + second).asString());
+
+        delete(first);
+        delete(second);
+        Assertions.assertFalse(hotTier.contains(second));
+    }
+
+    @Test
+    public void testDeleteThroughFileStoreDropsHotCopy() throws Exception {
+        String id = upload("d.txt", "deleted elsewhere", "tiered-deleted");
+        download(TIERED_PATH + id);
+        download(TIERED_PATH + id);
+        awaitTiers(id, null);
+
+        given(this.spec).when().delete("/api/files/" + id).then().statusCode(200);
+        Assertions.assertFalse(hotTier.contains(id));
+        given(this.spec)
+            .when()
+            .get(TIERED_PATH + id)
+            .then()
+            .statusCode(404);
+    }
+}
@@ -0,0 +1,20 @@
+package org.clematis.storage.controller;
+
+import org.junit.jupiter.api.Tag;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Slow downloads handled by a virtual request thread and written by a virtual download thread each,
+ * requires Java 21.
+ * Run with {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+@TestPropertySource(properties = {
+    "spring.threads.virtual.enabled=true",
+    SlowDownloadBenchmark.NO_SENDFILE,
+    SlowDownloadBenchmark.MAX_CONNECTIONS,
+    SlowDownloadBenchmark.ACCEPT_COUNT,
+    SlowDownloadBenchmark.NO_SQL_LOG
+})
+public class VirtualThreadsDownloadBenchmarkTests extends SlowDownloadBenchmark {
+}
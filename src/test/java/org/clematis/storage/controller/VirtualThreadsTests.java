@@ -0,0 +1,94 @@
+package org.clematis.storage.controller;
+
+import static io.restassured.RestAssured.given;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.clematis.storage.ApplicationTests;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.context.TestPropertySource;
+
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Runs requests and storage executors on virtual threads, requires Java 21.
+ */
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:virtual-threads",
+    "clematis.storage.download.folder=./temp/virtual-threads",
+    "spring.threads.virtual.enabled=true"
+})
+public class VirtualThreadsTests extends ApplicationTests {
+
+    @Qualifier("uploadExecutor")
+    @Autowired
+    private ExecutorService uploadExecutor;
+
+    @Qualifier("downloadExecutor")
+    @Autowired
+    private ExecutorService downloadExecutor;
+
+    @Value("${clematis.transactionId.logKey}")
+    private String transactionIdKey;
+
+    @Test
+    public void testExecutorPropagatesMdcToVirtualThreads() throws Exception {
+        MDC.put(transactionIdKey, "virtual-1");
+        try {
+            Future<String[]> seen = uploadExecutor.submit(() -> new String[]{
+                Thread.currentThread().getClass().getSimpleName(), MDC.get(transactionIdKey)
+            });
+            String[] result = seen.get();
+            Assertions.assertEquals("VirtualThread", result[0]);
+            Assertions.assertEquals("virtual-1", result[1]);
+        } finally {
+            MDC.remove(transactionIdKey);
+        }
+    }
+
+    @Test
+    public void testBatchUploadOnVirtualThreads() throws IOException {
+        given(this.spec)
+            .header("Transaction-ID", "virtual-2")
+            .multiPart("files", StorageControllerTests.mockMultipartFile().getFile())
+            .multiPart("files", StorageControllerTests.mockMultipartFile().getFile())
+            .when()
+            .post("/api/files/upload/batch")
+            .then()
+            .statusCode(200)
+            .header("Transaction-ID", equalTo("virtual-2"));
+    }
+
+    @Test
+    public void testDownloadsGetAVirtualThreadEach() throws Exception {
+        // more blocked downloads than the platform pool has threads, none of them waits in a queue
+        int downloads = 300;
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> threads = new ArrayList<>(downloads);
+        try {
+            for (int i = 0; i < downloads; i++) {
+                threads.add(downloadExecutor.submit(() -> {
+                    release.await();
+                    return Thread.currentThread().getClass().getSimpleName();
+                }));
+            }
+            Assertions.assertEquals(downloads, ((ThreadPoolExecutor) downloadExecutor).getPoolSize());
+            Assertions.assertTrue(((ThreadPoolExecutor) downloadExecutor).getQueue().isEmpty());
+        } finally {
+            release.countDown();
+        }
+        for (Future<String> thread : threads) {
+            Assertions.assertEquals("VirtualThread", thread.get());
+        }
+    }
+}
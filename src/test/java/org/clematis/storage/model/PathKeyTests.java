@@ -0,0 +1,31 @@
+package org.clematis.storage.model;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class PathKeyTests {
+
+    @Test
+    public void testEncodeDecode() {
+        PathKey key = new PathKey("folder:with/colons/file name.txt", "0f8fad5b-d9cb-469f-a165-70867728950e");
+        String token = key.encode();
+        Assertions.assertTrue(token.matches("[A-Za-z0-9_-]+"));
+        Assertions.assertEquals(key, PathKey.decode(token));
+    }
+
+    @Test
+    public void testOf() {
+        StorageEntity entity = StorageEntity.builder()
+            .id("id")
+            .fileName("folder\\file.txt")
+            .build();
+        entity.updatePath();
+        Assertions.assertEquals(new PathKey("folder/file.txt", "id"), PathKey.of(entity));
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> PathKey.decode("bm90LWEtdG9rZW4"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> PathKey.decode("***"));
+    }
+}
@@ -9,19 +9,19 @@ public class StorageEntityTests {
 
     public static final String APPLICATION_IMAGE = "application/image";
     public static final String TEST_FOLDER_FILE_JPG = "test/folder/file.jpg";
-    public static final byte[] DATA = new byte[0];
+    public static final long SIZE = 1024;
 
     @Test
     public void testEquals() {
         StorageEntity storageEntity = new StorageEntity();
         storageEntity.setId(String.valueOf(UUID.randomUUID()));
-        storageEntity.setData(DATA);
+        storageEntity.setSize(SIZE);
         storageEntity.setContentType(APPLICATION_IMAGE);
         storageEntity.setFileName(TEST_FOLDER_FILE_JPG);
 
         StorageEntity storageEntity2 = new StorageEntity();
         storageEntity2.setId(String.valueOf(UUID.randomUUID()));
-        storageEntity2.setData(DATA);
+        storageEntity2.setSize(SIZE);
         storageEntity2.setContentType(APPLICATION_IMAGE);
         storageEntity2.setFileName(TEST_FOLDER_FILE_JPG);
 
@@ -33,7 +33,7 @@ public class StorageEntityTests {
         StorageEntity storageEntity3 = StorageEntity.builder()
             .id(storageEntity.getId())
             .contentType(APPLICATION_IMAGE)
-            .data(DATA)
+            .size(SIZE)
             .fileName(TEST_FOLDER_FILE_JPG)
             .build();
         Assertions.assertEquals(storageEntity, storageEntity3);
@@ -0,0 +1,217 @@
+package org.clematis.storage.repository;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.StorageService;
+import org.clematis.storage.web.RequestResponse;
+import org.hibernate.Session;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.restassured.specification.RequestSpecification;
+import jakarta.persistence.EntityManager;
+
+/**
+ * Measures saving a batch of 1,000 small files into the database, one file at a time
+ * with the streaming {@code saveAttachment} and a JDBC batch size of 1, and with
+ * {@code saveAttachments}, which inserts metadata and BLOBs in JDBC batches, and through
+ * the {@code /api/db/upload/batch} endpoint, which saves the batch the same way.
+ * Round trips are counted as statement executions, a batch counts once.
+ * Run with {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+@Import(BatchSaveBenchmarkTests.CountingDataSourceConfig.class)
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:file:./build/batch-save-benchmark-db",
+    "spring.jpa.show-sql=false",
+    "server.tomcat.max-part-count=2000"
+})
+public class BatchSaveBenchmarkTests extends ApplicationTests {
+
+    private static final AtomicLong ROUND_TRIPS = new AtomicLong();
+
+    private static final int FILES = 1_000;
+
+    private static final int RUNS = 3;
+
+    @Qualifier("dbStorageServiceImpl")
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Test
+    public void benchmarkBatchSave() {
+        for (int run = 0; run < RUNS; run++) {
+            MockMultipartFile[] files = files("run-" + run);
+            String oneByOnePath = "save-attachment-" + run;
+
+            long roundTrips = ROUND_TRIPS.get();
+            long start = System.nanoTime();
+            List<StorageEntity> saved = transactionTemplate.execute(status -> {
+                // one statement at a time, as without hibernate.jdbc.batch_size
+                entityManager.unwrap(Session.class).setJdbcBatchSize(1);
+                return Arrays.stream(files).map(file -> {
+                    try {
+                        return storageService.saveAttachment(file, oneByOnePath);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }).toList();
+            });
+            report("saveAttachment, batch size 1", start, roundTrips);
+            assertEquals(FILES, saved.size());
+
+            roundTrips = ROUND_TRIPS.get();
+            start = System.nanoTime();
+            saved = storageService.saveAttachments(files, "batched-" + run);
+            long batched = report("saveAttachments", start, roundTrips);
+            assertEquals(FILES, saved.size());
+            assertTrue(batched < FILES);
+
+            roundTrips = ROUND_TRIPS.get();
+            start = System.nanoTime();
+            List<RequestResponse> uploaded = uploadBatch("endpoint-" + run);
+            long endpoint = report("POST /api/db/upload/batch", start, roundTrips);
+            assertEquals(FILES, uploaded.size());
+            assertTrue(endpoint < FILES);
+        }
+    }
+
+    private List<RequestResponse> uploadBatch(String prefix) {
+        RequestSpecification request = given(this.spec).queryParam("path", prefix);
+        for (int i = 0; i < FILES; i++) {
+            request.multiPart("files", prefix + "-" + i + ".txt", content(i), "text/plain");
+        }
+        return request
+            .when()
+            .post("/api/db/upload/batch")
+            .then()
+            .statusCode(200)
+            .extract()
+            .jsonPath().getList(".", RequestResponse.class);
+    }
+
+    private static MockMultipartFile[] files(String prefix) {
+        MockMultipartFile[] files = new MockMultipartFile[FILES];
+        for (int i = 0; i < FILES; i++) {
+            files[i] = new MockMultipartFile("files", prefix + "-" + i + ".txt", "text/plain", content(i));
+        }
+        return files;
+    }
+
+    private static byte[] content(int i) {
+        return ("small file " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long report(String name, long start, long roundTripsBefore) {
+        long roundTrips = ROUND_TRIPS.get() - roundTripsBefore;
+        System.out.printf("%s: files=%d round trips=%d time=%d ms%n", name, FILES, roundTrips,
+            (System.nanoTime() - start) / 1_000_000);
+        return roundTrips;
+    }
+
+    /**
+     * Wraps the data source to count statement executions
+     */
+    @TestConfiguration
+    static class CountingDataSourceConfig {
+
+        @Bean
+        static BeanPostProcessor countingDataSourcePostProcessor() {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    return bean instanceof DataSource dataSource && !(bean instanceof CountingDataSource)
+                        ? new CountingDataSource(dataSource)
+                        : bean;
+                }
+            };
+        }
+    }
+
+    static class CountingDataSource extends DelegatingDataSource {
+
+        CountingDataSource(DataSource target) {
+            super(target);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return counting(super.getConnection());
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return counting(super.getConnection(username, password));
+        }
+
+        private static Connection counting(Connection connection) {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    Object result = invoke(connection, method, args);
+                    return result instanceof Statement statement ? countingStatement(statement) : result;
+                });
+        }
+
+        private static Object countingStatement(Statement statement) {
+            return Proxy.newProxyInstance(Statement.class.getClassLoader(), interfacesOf(statement),
+                (proxy, method, args) -> {
+                    if (method.getName().startsWith("execute")) {
+                        ROUND_TRIPS.incrementAndGet();
+                    }
+                    return invoke(statement, method, args);
+                });
+        }
+
+        private static Class<?>[] interfacesOf(Statement statement) {
+            if (statement instanceof CallableStatement) {
+                return new Class<?>[]{CallableStatement.class};
+            }
+            if (statement instanceof PreparedStatement) {
+                return new Class<?>[]{PreparedStatement.class};
+            }
+            return new Class<?>[]{Statement.class};
+        }
+
+        private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.clematis.storage.repository;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.content.StorageContent;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.StorageService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Uploads a file larger than the free heap into the database. The upload only succeeds
+ * if the content is streamed into the BLOB instead of being materialized on the heap.
+ * A file based H2 database is used, the in-memory one keeps all BLOBs on the heap.
+ */
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:file:./build/large-upload-db",
+    "clematis.storage.max_file_size=9223372036854775807"
+})
+public class DBLargeUploadTests extends ApplicationTests {
+
+    private static final long EXTRA_BYTES = 32L * 1024 * 1024;
+
+    @Qualifier("dbStorageServiceImpl")
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private StorageEntityRepository storageEntityRepository;
+
+    @Test
+    public void testUploadLargerThanHeapHeadroom() throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        long headroom = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long length = headroom + EXTRA_BYTES;
+
+        StorageEntity saved;
+        try (InputStream content = new GeneratedInputStream(length)) {
+            saved = storageService.saveAttachment("large.bin", "application/octet-stream", content, "large");
+        }
+
+        String expected = checksum(new GeneratedInputStream(length));
+        assertEquals(length, saved.getSize());
+        assertEquals(expected, saved.getChecksum());
+
+        StorageEntity metadata = storageEntityRepository.findMetadataById(saved.getId()).orElseThrow();
+        assertEquals(length, metadata.getSize());
+        assertEquals(expected, metadata.getChecksum());
+
+        StorageContent stored = storageService.getContent(saved.getId()).orElseThrow();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            stored.transferTo(out);
+        }
+        assertEquals(expected, HexFormat.of().formatHex(digest.digest()));
+
+        storageService.deleteFile(saved.getId());
+        assertTrue(storageEntityRepository.findMetadataById(saved.getId()).isEmpty());
+    }
+
+    private static String checksum(InputStream in) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream digestStream = new DigestInputStream(in, digest)) {
+            digestStream.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Produces the same non-repeating byte sequence of the given length without holding it in memory
+     */
+    private static final class GeneratedInputStream extends InputStream {
+
+        private final long length;
+        private long position;
+
+        private GeneratedInputStream(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            if (position >= length) {
+                return -1;
+            }
+            return byteAt(position++) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= length) {
+                return -1;
+            }
+            int count = (int) Math.min(len, length - position);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = byteAt(position++);
+            }
+            return count;
+        }
+
+        private static byte byteAt(long position) {
+            return (byte) (position ^ (position >>> 11) ^ (position >>> 23));
+        }
+    }
+}
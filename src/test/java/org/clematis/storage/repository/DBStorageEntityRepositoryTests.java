@@ -6,6 +6,7 @@ import java.util.List;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.clematis.storage.ApplicationTests;
 import org.clematis.storage.model.StorageEntity;
 import org.clematis.storage.service.StorageService;
@@ -13,6 +14,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.mock.web.MockMultipartFile;
 
 public class DBStorageEntityRepositoryTests extends ApplicationTests {
@@ -20,6 +22,9 @@ public class DBStorageEntityRepositoryTests extends ApplicationTests {
     @Autowired
     private StorageEntityRepository storageEntityRepository;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
     @Qualifier("dbStorageServiceImpl")
     @Autowired
     private StorageService storageService;
@@ -59,6 +64,74 @@ public class DBStorageEntityRepositoryTests extends ApplicationTests {
         assertEquals("testFolder/test2.txt", storageEntities.get(1).getFileName());
     }
 
+    @Test
+    public void testSaveFilesWritesContent() throws Exception {
+        MockMultipartFile[] files = new MockMultipartFile[120];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new MockMultipartFile("files", "file" + i + ".txt", "text/plain",
+                ("content " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        List<StorageEntity> saved = storageService.saveAttachments(files, "batch");
+        assertEquals(files.length, saved.size());
+        for (int i = 0; i < files.length; i++) {
+            StorageEntity entity = saved.get(i);
+            assertEquals("batch/file" + i + ".txt", entity.getFileName());
+            assertEquals(files[i].getSize(), entity.getSize());
+            assertNotNull(entity.getChecksum());
+            assertEquals(1, countBlobs(entity.getId()));
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            storageService.getContent(entity.getId()).orElseThrow().transferTo(out);
+            assertEquals("content " + i, out.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testSaveFilesIsAllOrNothing() {
+        MockMultipartFile[] files = {
+            new MockMultipartFile("files", "good.txt", "text/plain", "good".getBytes(StandardCharsets.UTF_8)),
+            new MockMultipartFile("files", "../bad.txt", "text/plain", "bad".getBytes(StandardCharsets.UTF_8))
+        };
+        assertThrows(RuntimeException.class, () -> storageService.saveAttachments(files, "rollback"));
+        assertTrue(storageService.findByPath("rollback").isEmpty());
+    }
+
+    @Test
+    public void testDeleteRemovesContent() throws Exception {
+        MockMultipartFile mockFile = new MockMultipartFile(
+            "file", "test.txt", "text/plain",
+            "Hello, world!".getBytes(StandardCharsets.UTF_8));
+        StorageEntity storageEntity = storageService.saveAttachment(mockFile, "");
+        assertEquals(1, countBlobs(storageEntity.getId()));
+
+        List<StorageEntity> all = storageService.getAll();
+        assertEquals(1, all.size());
+        assertEquals(13, all.get(0).getSize());
+
+        storageService.deleteFile(storageEntity.getId());
+        assertEquals(0, countBlobs(storageEntity.getId()));
+        assertTrue(storageService.getAll().isEmpty());
+    }
+
+    @Test
+    public void testFindByPathPrefix() throws Exception {
+        for (String folder : new String[]{"a_b", "axb", "a_b\\sub", "a%"}) {
+            MockMultipartFile mockFile = new MockMultipartFile(
+                "file", "test.txt", "text/plain",
+                "Hello, world!".getBytes(StandardCharsets.UTF_8));
+            storageService.saveAttachment(mockFile, folder);
+        }
+
+        List<StorageEntity> found = storageService.findByPath("a_b");
+        assertEquals(2, found.size());
+        assertTrue(found.stream().allMatch(e -> e.getFileName().startsWith("a_b")));
+
+        assertEquals(1, storageService.findByPath("a_b/sub").size());
+        assertEquals(1, storageService.findByPath("a_b\\sub\\test").size());
+        assertEquals(1, storageService.findByPath("a%").size());
+        assertEquals(0, storageService.findByPath("b").size());
+        assertEquals(4, storageService.findByPath("").size());
+    }
+
     @Test
     public void testSaveAttachmentInvalidName() {
         MockMultipartFile mockFile = new MockMultipartFile(
@@ -75,4 +148,9 @@ public class DBStorageEntityRepositoryTests extends ApplicationTests {
         assertThrows(Exception.class, () -> storageService.saveAttachment(mockFile, ""));
     }
 
+    private int countBlobs(String id) {
+        Integer count = jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM storage_blob WHERE id = ?", Integer.class, id);
+        return count != null ? count : 0;
+    }
 }
@@ -0,0 +1,176 @@
+package org.clematis.storage.repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.model.ContentReference;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.ContentReferenceService;
+import org.clematis.storage.service.StorageService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:dedup",
+    "clematis.storage.download.folder=./temp/dedup",
+    "clematis.storage.dedup.enabled=true"
+})
+public class DedupStorageTests extends ApplicationTests {
+
+    private static final String CONTENT = "Deduplicated content";
+
+    @Qualifier("dbStorageServiceImpl")
+    @Autowired
+    private StorageService dbStorageService;
+
+    @Qualifier("fileStorageServiceImpl")
+    @Autowired
+    private StorageService fileStorageService;
+
+    @Autowired
+    private StorageEntityRepository storageEntityRepository;
+
+    @Autowired
+    private ContentReferenceRepository contentReferenceRepository;
+
+    @Autowired
+    private ContentReferenceService contentReferenceService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    public void setUp() {
+        storageEntityRepository.deleteAll();
+        contentReferenceRepository.deleteAll();
+        jdbcTemplate.update("DELETE FROM storage_blob");
+    }
+
+    @Test
+    public void testDbContentIsShared() throws Exception {
+        StorageEntity first = save(dbStorageService, "first");
+        StorageEntity second = save(dbStorageService, "second");
+
+        assertNotNull(first.getContentId());
+        assertEquals(first.getContentId(), second.getContentId());
+        assertEquals(1, countBlobs());
+        assertEquals(2.0, contentReferenceService.getRatio(ContentReferenceService.DB_STORE));
+        assertEquals(2.0, meterRegistry.get("clematis.storage.dedup.ratio")
+            .tag("store", ContentReferenceService.DB_STORE).gauge().value());
+
+        dbStorageService.deleteFile(first.getId());
+        assertEquals(1, countBlobs());
+        assertEquals(CONTENT, read(dbStorageService, second.getId()));
+
+        dbStorageService.deleteFile(second.getId());
+        assertEquals(0, countBlobs());
+        assertTrue(contentReferenceRepository.findAll().isEmpty());
+    }
+
+    @Test
+    public void testFsContentIsShared() throws Exception {
+        StorageEntity first = save(fileStorageService, "first");
+        StorageEntity second = save(fileStorageService, "second");
+
+        assertNotNull(first.getContentId());
+        assertEquals(first.getContentId(), second.getContentId());
+        assertEquals(2.0, contentReferenceService.getRatio(ContentReferenceService.FS_STORE));
+
+        fileStorageService.deleteFile(first.getId());
+        assertEquals(CONTENT, read(fileStorageService, second.getId()));
+
+        java.nio.file.Path object = fileStorageService.getContent(second.getId()).orElseThrow()
+            .getFile().orElseThrow();
+        assertTrue(object.toFile().exists());
+
+        fileStorageService.deleteFile(second.getId());
+        assertFalse(object.toFile().exists());
+        assertTrue(contentReferenceRepository.findAll().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentUploadsShareContent() throws Exception {
+        for (StorageService storageService : new StorageService[]{dbStorageService, fileStorageService}) {
+            List<StorageEntity> saved = saveConcurrently(storageService, 8);
+
+            assertEquals(1, saved.stream().map(StorageEntity::getContentId).distinct().count());
+            String contentId = saved.get(0).getContentId();
+            ContentReference reference = contentReferenceRepository.findAll().stream()
+                .filter(r -> r.getChecksum().equals(contentId))
+                .findFirst()
+                .orElseThrow();
+            assertEquals(8, reference.getRefCount());
+            for (StorageEntity entity : saved) {
+                assertEquals(CONTENT, read(storageService, entity.getId()));
+            }
+        }
+        assertEquals(1, countBlobs());
+    }
+
+    /**
+     * Saves the same content from several threads released at once.
+     */
+    private static List<StorageEntity> saveConcurrently(StorageService storageService, int uploads)
+        throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(uploads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<StorageEntity>> futures = new ArrayList<>();
+            for (int i = 0; i < uploads; i++) {
+                String path = "concurrent" + i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return save(storageService, path);
+                }));
+            }
+            start.countDown();
+            List<StorageEntity> saved = new ArrayList<>();
+            for (Future<StorageEntity> future : futures) {
+                saved.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return saved;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static StorageEntity save(StorageService storageService, String path) throws Exception {
+        try (InputStream content = new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8))) {
+            return storageService.saveAttachment("dedup.txt", "text/plain", content, "dedup/" + path);
+        }
+    }
+
+    private static String read(StorageService storageService, String id) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        storageService.getContent(id).orElseThrow().transferTo(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private int countBlobs() {
+        Integer count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM storage_blob", Integer.class);
+        return count != null ? count : 0;
+    }
+}
@@ -37,6 +37,9 @@ public class FileStorageEntityRepositoryTests extends ApplicationTests {
         assertNotNull(storageEntity.getId());
         assertEquals("test.txt", storageEntity.getFileName());
         assertEquals("text/plain", storageEntity.getContentType());
+        assertEquals(13, storageEntity.getSize());
+        assertEquals("315f5bdb76d078c43b8ac0064e4a0164612b1fce77c869345bfc94c75894edd3",
+            storageEntity.getChecksum());
     }
 
     @Test
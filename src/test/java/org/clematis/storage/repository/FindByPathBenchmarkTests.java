@@ -0,0 +1,105 @@
+package org.clematis.storage.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.clematis.storage.Latencies.report;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.ContentReferenceService;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Measures path prefix searches over one million stored entries, with the indexed
+ * LIKE query and with the former approach of filtering all metadata in Java.
+ * Run with {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:file:./build/find-by-path-benchmark-db",
+    "spring.jpa.show-sql=false"
+})
+public class FindByPathBenchmarkTests extends ApplicationTests {
+
+    private static final int FOLDERS = 10_000;
+    private static final int FILES_PER_FOLDER = 100;
+    private static final int BATCH_SIZE = 10_000;
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 200;
+    private static final int FULL_SCAN_ITERATIONS = 3;
+    private static final String STORE = ContentReferenceService.DB_STORE;
+
+    @Autowired
+    private StorageEntityRepository storageEntityRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    public void benchmarkFindByPathPrefix() {
+        populate();
+
+        String prefix = "folder-04242/";
+        for (int i = 0; i < WARMUP; i++) {
+            storageEntityRepository.findMetadataByPathPrefix(STORE, prefix);
+        }
+        long[] indexed = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            String folder = String.format("folder-%05d/", (i * 7919) % FOLDERS);
+            long start = System.nanoTime();
+            List<StorageEntity> found = storageEntityRepository.findMetadataByPathPrefix(STORE, folder);
+            indexed[i] = System.nanoTime() - start;
+            assertEquals(FILES_PER_FOLDER, found.size());
+        }
+
+        long[] fullScan = new long[FULL_SCAN_ITERATIONS];
+        for (int i = 0; i < FULL_SCAN_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            List<StorageEntity> found = storageEntityRepository.findAllMetadata(STORE).stream()
+                .filter(e -> e.getFileName().replace('\\', '/').startsWith(prefix))
+                .toList();
+            fullScan[i] = System.nanoTime() - start;
+            assertEquals(FILES_PER_FOLDER, found.size());
+        }
+
+        report("indexed LIKE prefix", indexed);
+        report("findAll + startsWith", fullScan);
+
+        String plan = jdbcTemplate.queryForObject(
+            "EXPLAIN SELECT id FROM storage_entity WHERE store = 'db' AND path LIKE 'folder-04242/%'", String.class);
+        System.out.println("Query plan: " + plan);
+        assertTrue(plan != null && plan.toUpperCase().contains("IDX_STORAGE_ENTITY_STORE_PATH"));
+    }
+
+    private void populate() {
+        jdbcTemplate.update("DELETE FROM storage_entity");
+        long start = System.nanoTime();
+        List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+        for (int folder = 0; folder < FOLDERS; folder++) {
+            for (int file = 0; file < FILES_PER_FOLDER; file++) {
+                String name = String.format("folder-%05d/file-%03d.txt", folder, file);
+                batch.add(new Object[]{UUID.randomUUID().toString(), STORE, name, name, "text/plain", 13L});
+                if (batch.size() == BATCH_SIZE) {
+                    insert(batch);
+                }
+            }
+        }
+        insert(batch);
+        System.out.printf("Inserted %d entries in %d ms%n", (long) FOLDERS * FILES_PER_FOLDER,
+            (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void insert(List<Object[]> batch) {
+        jdbcTemplate.batchUpdate(
+            "INSERT INTO storage_entity (id, store, file_name, path, content_type, size) VALUES (?, ?, ?, ?, ?, ?)",
+            batch);
+        batch.clear();
+    }
+}
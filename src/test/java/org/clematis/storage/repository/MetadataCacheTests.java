@@ -0,0 +1,92 @@
+package org.clematis.storage.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.clematis.storage.ApplicationTests;
+import org.clematis.storage.model.StorageEntity;
+import org.clematis.storage.service.StorageService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockMultipartFile;
+
+public class MetadataCacheTests extends ApplicationTests {
+
+    @Qualifier("dbStorageServiceImpl")
+    @Autowired
+    private StorageService dbStorageService;
+
+    @Qualifier("fileStorageServiceImpl")
+    @Autowired
+    private StorageService fileStorageService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private static MockMultipartFile mockFile() {
+        return new MockMultipartFile("file", "cached.txt", "text/plain",
+            "Hello, world!".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLookupIsServedFromCache() throws Exception {
+        for (StorageService storageService : List.of(dbStorageService, fileStorageService)) {
+            StorageEntity saved = storageService.saveAttachment(mockFile(), "metadata");
+            assertTrue(storageService.getStorageEntity(saved.getId()).isPresent());
+
+            // the row is gone behind the cache's back, the cached metadata is still served
+            jdbcTemplate.update("DELETE FROM storage_entity WHERE id = ?", saved.getId());
+            assertTrue(storageService.getStorageEntity(saved.getId()).isPresent());
+
+            storageService.deleteFile(saved.getId());
+            assertFalse(storageService.getStorageEntity(saved.getId()).isPresent());
+        }
+    }
+
+    @Test
+    public void testMissingFileIsCached() {
+        String id = UUID.randomUUID().toString();
+        assertFalse(dbStorageService.getStorageEntity(id).isPresent());
+
+        jdbcTemplate.update("INSERT INTO storage_entity (id, file_name, size) VALUES (?, ?, ?)", id, "late.txt", 0);
+        assertFalse(dbStorageService.getStorageEntity(id).isPresent());
+        jdbcTemplate.update("DELETE FROM storage_entity WHERE id = ?", id);
+    }
+
+    @Test
+    public void testDeleteUnderConcurrentLookups() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 20; i++) {
+                StorageEntity saved = dbStorageService.saveAttachment(mockFile(), "concurrent");
+                AtomicBoolean deleted = new AtomicBoolean();
+                List<Future<?>> readers = new ArrayList<>();
+                for (int r = 0; r < 4; r++) {
+                    readers.add(executor.submit(() -> {
+                        while (!deleted.get()) {
+                            dbStorageService.getStorageEntity(saved.getId());
+                        }
+                    }));
+                }
+                dbStorageService.deleteFile(saved.getId());
+                deleted.set(true);
+                for (Future<?> reader : readers) {
+                    reader.get();
+                }
+                assertFalse(dbStorageService.getStorageEntity(saved.getId()).isPresent());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}